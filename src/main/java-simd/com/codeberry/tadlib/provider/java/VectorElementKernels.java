@@ -0,0 +1,230 @@
+package com.codeberry.tadlib.provider.java;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API versions of the element wise kernels. The tail that does not fill a whole vector is done by the
+ * scalar loops.
+ * <p>
+ * Only compiled with the <code>simd</code> profile, and loaded by reflection from {@link ElementKernels}.
+ */
+class VectorElementKernels extends ElementKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    public VectorElementKernels() {
+    }
+
+    @Override
+    boolean isVectorized() {
+        return true;
+    }
+
+    private static int loopEnd(int start, int end) {
+        return start + SPECIES.loopBound(end - start);
+    }
+
+    @Override
+    void add(double[] a, double[] b, double[] out, int start, int end) {
+        int i = start;
+        for (int upper = loopEnd(start, end); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i)
+                    .add(DoubleVector.fromArray(SPECIES, b, i))
+                    .intoArray(out, i);
+        }
+        super.add(a, b, out, i, end);
+    }
+
+    @Override
+    void mul(double[] a, double[] b, double[] out, int start, int end) {
+        int i = start;
+        for (int upper = loopEnd(start, end); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i)
+                    .mul(DoubleVector.fromArray(SPECIES, b, i))
+                    .intoArray(out, i);
+        }
+        super.mul(a, b, out, i, end);
+    }
+
+    @Override
+    void div(double[] a, double[] b, double[] out, int start, int end) {
+        int i = start;
+        for (int upper = loopEnd(start, end); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i)
+                    .div(DoubleVector.fromArray(SPECIES, b, i))
+                    .intoArray(out, i);
+        }
+        super.div(a, b, out, i, end);
+    }
+
+    @Override
+    void add(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int len) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(len); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, aOffset + i)
+                    .add(DoubleVector.fromArray(SPECIES, b, bOffset + i))
+                    .intoArray(out, outOffset + i);
+        }
+        super.add(a, aOffset + i, b, bOffset + i, out, outOffset + i, len - i);
+    }
+
+    @Override
+    void mul(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int len) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(len); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, aOffset + i)
+                    .mul(DoubleVector.fromArray(SPECIES, b, bOffset + i))
+                    .intoArray(out, outOffset + i);
+        }
+        super.mul(a, aOffset + i, b, bOffset + i, out, outOffset + i, len - i);
+    }
+
+    @Override
+    void div(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int len) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(len); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, aOffset + i)
+                    .div(DoubleVector.fromArray(SPECIES, b, bOffset + i))
+                    .intoArray(out, outOffset + i);
+        }
+        super.div(a, aOffset + i, b, bOffset + i, out, outOffset + i, len - i);
+    }
+
+    @Override
+    void add(double[] a, double v, double[] out, int start, int end) {
+        int i = start;
+        for (int upper = loopEnd(start, end); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).add(v).intoArray(out, i);
+        }
+        super.add(a, v, out, i, end);
+    }
+
+    @Override
+    void mul(double[] a, double v, double[] out, int start, int end) {
+        int i = start;
+        for (int upper = loopEnd(start, end); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).mul(v).intoArray(out, i);
+        }
+        super.mul(a, v, out, i, end);
+    }
+
+    @Override
+    void div(double[] a, double v, double[] out, int start, int end) {
+        int i = start;
+        for (int upper = loopEnd(start, end); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).div(v).intoArray(out, i);
+        }
+        super.div(a, v, out, i, end);
+    }
+
+    @Override
+    void axpy(double alpha, double[] x, double[] y, int start, int end) {
+        DoubleVector alphaVector = DoubleVector.broadcast(SPECIES, alpha);
+        int i = start;
+        for (int upper = loopEnd(start, end); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, x, i)
+                    .fma(alphaVector, DoubleVector.fromArray(SPECIES, y, i))
+                    .intoArray(y, i);
+        }
+        super.axpy(alpha, x, y, i, end);
+    }
+
+    @Override
+    void sqr(double[] a, double[] out, int start, int end) {
+        int i = start;
+        for (int upper = loopEnd(start, end); i < upper; i += SPECIES.length()) {
+            DoubleVector v = DoubleVector.fromArray(SPECIES, a, i);
+            v.mul(v).intoArray(out, i);
+        }
+        super.sqr(a, out, i, end);
+    }
+
+    @Override
+    void sqrt(double[] a, double[] out, int start, int end) {
+        int i = start;
+        for (int upper = loopEnd(start, end); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).sqrt().intoArray(out, i);
+        }
+        super.sqrt(a, out, i, end);
+    }
+
+    @Override
+    void pow(double[] a, double power, double[] out, int start, int end) {
+        int i = start;
+        for (int upper = loopEnd(start, end); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).lanewise(VectorOperators.POW, power).intoArray(out, i);
+        }
+        super.pow(a, power, out, i, end);
+    }
+
+    @Override
+    void log(double[] a, double[] out, int start, int end) {
+        int i = start;
+        for (int upper = loopEnd(start, end); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).lanewise(VectorOperators.LOG).intoArray(out, i);
+        }
+        super.log(a, out, i, end);
+    }
+
+    @Override
+    void clip(double[] a, double min, double max, double[] out, int start, int end) {
+        int i = start;
+        for (int upper = loopEnd(start, end); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).max(min).min(max).intoArray(out, i);
+        }
+        super.clip(a, min, max, out, i, end);
+    }
+
+    /**
+     * The lane count divides 64, so the lanes of one vector never straddle two words.
+     */
+    @Override
+    void relu(double[] a, double leakyScale, double[] out, long[] positive, int start, int end) {
+        DoubleVector leaky = DoubleVector.broadcast(SPECIES, leakyScale);
+        int i = start;
+        for (int upper = loopEnd(start, end); i < upper; i += SPECIES.length()) {
+            DoubleVector v = DoubleVector.fromArray(SPECIES, a, i);
+            VectorMask<Double> notPositive = v.compare(VectorOperators.LE, 0);
+            v.blend(v.mul(leaky), notPositive).intoArray(out, i);
+            positive[i >>> 6] |= notPositive.not().toLong() << i;
+        }
+        super.relu(a, leakyScale, out, positive, i, end);
+    }
+
+    @Override
+    void applyMask(double[] grad, long[] bits, double onValue, double offValue, double[] out, int start, int end) {
+        DoubleVector on = DoubleVector.broadcast(SPECIES, onValue);
+        DoubleVector off = DoubleVector.broadcast(SPECIES, offValue);
+        int i = start;
+        for (int upper = loopEnd(start, end); i < upper; i += SPECIES.length()) {
+            VectorMask<Double> set = VectorMask.fromLong(SPECIES, bits[i >>> 6] >>> i);
+            DoubleVector.fromArray(SPECIES, grad, i)
+                    .mul(off.blend(on, set))
+                    .intoArray(out, i);
+        }
+        super.applyMask(grad, bits, onValue, offValue, out, i, end);
+    }
+
+    @Override
+    double sumBlock(double[] a, int start, int end) {
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int i = start;
+        for (int upper = loopEnd(start, end); i < upper; i += SPECIES.length()) {
+            acc = acc.add(DoubleVector.fromArray(SPECIES, a, i));
+        }
+        return acc.reduceLanes(VectorOperators.ADD) + super.sumBlock(a, i, end);
+    }
+
+    @Override
+    void addTo(double[] src, int srcOffset, double[] tgt, int tgtOffset, int len) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(len); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, tgt, tgtOffset + i)
+                    .add(DoubleVector.fromArray(SPECIES, src, srcOffset + i))
+                    .intoArray(tgt, tgtOffset + i);
+        }
+        super.addTo(src, srcOffset + i, tgt, tgtOffset + i, len - i);
+    }
+}
@@ -0,0 +1,15 @@
+package com.codeberry.tadlib.array;
+
+/**
+ * Element type of the values stored in an {@link NDArray}.
+ */
+public enum DType {
+    FLOAT64(Double.BYTES),
+    FLOAT32(Float.BYTES);
+
+    public final int byteSize;
+
+    DType(int byteSize) {
+        this.byteSize = byteSize;
+    }
+}
@@ -0,0 +1,11 @@
+package com.codeberry.tadlib.array;
+
+public class DTypeMismatch extends RuntimeException {
+    public DTypeMismatch(String msg) {
+        super(msg);
+    }
+
+    public static DTypeMismatch of(DType expected, DType actual) {
+        return new DTypeMismatch("Expected " + expected + " but was " + actual + ", cast explicitly with asType()");
+    }
+}
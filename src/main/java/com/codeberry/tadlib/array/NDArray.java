@@ -1,5 +1,6 @@
 package com.codeberry.tadlib.array;
 
+import com.codeberry.tadlib.array.util.SoftmaxUtils;
 import com.codeberry.tadlib.provider.ProviderStore;
 
 import java.util.Arrays;
@@ -26,6 +27,27 @@ public interface NDArray extends Disposable {
      */
     double[] getInternalData();
 
+    default DType getDType() {
+        return DType.FLOAT64;
+    }
+
+    /**
+     * @return this array when already of the type, otherwise a converted copy
+     */
+    default NDArray asType(DType dType) {
+        if (dType == getDType()) {
+            return this;
+        }
+        throw new UnsupportedOperationException("Cannot convert " + getDType() + " to " + dType);
+    }
+
+    /**
+     * @return the object holding the data of this array, the same for all views of it, e.g. from reshape()
+     */
+    default Object getDataOwner() {
+        return this;
+    }
+
     static void validateConv2dShapes(Shape inputShape, Shape filterShape) {
         if (inputShape.getDimCount() < 4) {
             throw new RuntimeException("input must have 4+ dims");
@@ -57,6 +79,65 @@ public interface NDArray extends Disposable {
 
     NDArray div(double val);
 
+    /*
+     * Mutating variants. Providers that cannot update in place return a new array instead, so always
+     * continue with the returned array. Other arrays sharing the data, like views from reshape() or
+     * transpose(), see the update.
+     */
+
+    /**
+     * this += other
+     *
+     * @param other broadcast to the shape of this array
+     */
+    default NDArray addInPlace(NDArray other) {
+        return add(other);
+    }
+
+    /**
+     * this *= other
+     *
+     * @param other broadcast to the shape of this array
+     */
+    default NDArray mulInPlace(NDArray other) {
+        return mul(other);
+    }
+
+    default NDArray mulInPlace(double val) {
+        return mul(val);
+    }
+
+    /**
+     * this += alpha * x
+     */
+    default NDArray axpy(double alpha, NDArray x) {
+        return add(x.mul(alpha));
+    }
+
+    /**
+     * target = this + other
+     * <p>
+     * The default ignores the target and returns a new array, for providers that cannot write into it.
+     *
+     * @param target must have the broadcast shape of this and other, and may share data with them
+     * @return the target, or the new array of the default
+     */
+    default NDArray addInto(NDArray other, NDArray target) {
+        return add(other);
+    }
+
+    /**
+     * target = this * other
+     * <p>
+     * The default ignores the target and returns a new array, for providers that cannot write into it.
+     *
+     * @param target must have the broadcast shape of this and other, and may share data with them
+     * @return the target, or the new array of the default
+     */
+    default NDArray mulInto(NDArray other, NDArray target) {
+        return mul(other);
+    }
+
     default NDArray conv2d(NDArray filter) {
         return conv2d(filter, 0, 0);
     }
@@ -70,6 +151,21 @@ public interface NDArray extends Disposable {
      */
     NDArray calcConv2dFilterGradient(NDArray input, NDArray filter);
 
+    /**
+     * Called on the output gradient of conv2d(filter).
+     */
+    default NDArray calcConv2dInputGradient(NDArray filter) {
+        return disposeAllExceptReturnedValue(() -> {
+            NDArray transposed = filter.transpose(0, 1, 3, 2);
+            NDArray fT = transposed.normalOrderedCopy();
+            NDArray fRotated = fT.rot180(0, 1);
+
+            int offsetY = (filter.getShape().at(0) % 2 == 0) ? -1 : 0;
+            int offsetX = (filter.getShape().at(1) % 2 == 0) ? -1 : 0;
+            return conv2d(fRotated, offsetY, offsetX);
+        });
+    }
+
     NDArray matmul(NDArray b);
 
     NDArray transpose(int... axes);
@@ -131,6 +227,15 @@ public interface NDArray extends Disposable {
 
     NDArray softMaxCrossEntropyGrad(NDArray softmax, NDArray oneHotArray);
 
+    /**
+     * Softmax over the last axis and cross entropy against class indices, without building a one hot matrix.
+     *
+     * @param labels the class index of each row, the shape of this array without the last axis
+     */
+    default SoftmaxCrossEntropyResult softmaxCrossEntropy(NDIntArray labels) {
+        return SoftmaxUtils.calcSparseSoftmaxCrossEntropy(this, labels);
+    }
+
     DropOutResult dropOut(Random rnd, double dropoutKeep);
 
     NDArray withUpdates(List<ValueUpdate> updates);
@@ -247,12 +352,38 @@ public interface NDArray extends Disposable {
         NDArray getOutput();
 
         NDArray createMask();
+
+        /**
+         * @return grad multiplied by the mask, which a provider may apply without creating it
+         */
+        default NDArray maskGradient(NDArray grad) {
+            return grad.mul(createMask());
+        }
+    }
+
+    interface SoftmaxCrossEntropyResult {
+        /**
+         * @return scalar SUM(-log(softmax[label]))
+         */
+        NDArray getLoss();
+
+        /**
+         * @return softmax - oneHot(labels), the gradient of the loss with respect to the logits
+         */
+        NDArray getGradient();
     }
 
     interface DropOutResult {
         NDArray getOutput();
 
         NDArray createMask();
+
+        /**
+         * @return grad multiplied by the mask, which a provider may apply without creating it
+         */
+        default NDArray maskGradient(NDArray grad) {
+            return grad.mul(createMask());
+        }
     }
 
     class ValueUpdate {
@@ -55,6 +55,19 @@ public interface Shape {
         return idx;
     }
 
+    /**
+     * Same as {@link #calcDataIndex(int...)}, for shapes with more than {@link Integer#MAX_VALUE} elements.
+     */
+    default long calcLongDataIndex(int... indices) {
+        long idx = 0;
+        long blockSize = 1;
+        for (int i = indices.length - 1; i >= 0; i--) {
+            idx += indices[i] * blockSize;
+            blockSize *= at(i);
+        }
+        return idx;
+    }
+
     default int[] newIndexArray() {
         return new int[getDimCount()];
     }
@@ -168,7 +181,7 @@ public interface Shape {
         int f = (fromDim >= 0 ? fromDim : getDimCount() + fromDim);
         int t = (toDimExclusive >= 0 ? toDimExclusive : getDimCount() + toDimExclusive);
         if (f < t) {
-            int r = 1;
+            long r = 1;
             for (int i = f; i < t; i++) {
                 r *= at(i);
             }
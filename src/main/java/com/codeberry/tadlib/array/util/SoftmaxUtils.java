@@ -2,6 +2,7 @@ package com.codeberry.tadlib.array.util;
 
 import com.codeberry.tadlib.array.NDArray;
 import com.codeberry.tadlib.array.NDIntArray;
+import com.codeberry.tadlib.tensor.Ops;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -9,6 +10,14 @@ import java.util.List;
 import static com.codeberry.tadlib.array.NDArray.ValueUpdate.fromIndices;
 
 public abstract class SoftmaxUtils {
+    /**
+     * Bounds of -log(softmax[label]) per example, from clipping the probability to
+     * [{@link Ops#EPSILON}, 1 - {@link Ops#EPSILON}] like the one hot
+     * {@link com.codeberry.tadlib.nn.loss.SoftmaxCrossEntropyLoss}.
+     */
+    public static final double MIN_EXAMPLE_LOSS = -Math.log(1.0 - Ops.EPSILON);
+    public static final double MAX_EXAMPLE_LOSS = -Math.log(Ops.EPSILON);
+
     public static NDArray calcSoftmaxCrossEntropyGradient(NDArray predicted, NDArray labelsOneHot) {
         NDIntArray indices = labelsOneHot.argmax(-1);
         NDArray predAtTargetIndices = predicted.getAtIndicesOnAxis(indices, -1);
@@ -16,6 +25,46 @@ public abstract class SoftmaxUtils {
 
         return predicted.withUpdateAtIndicesOnAxis(indices, -1, change);
     }
+
+    /**
+     * Generic version built from existing ops, for providers without a fused kernel.
+     */
+    public static NDArray.SoftmaxCrossEntropyResult calcSparseSoftmaxCrossEntropy(NDArray logits, NDIntArray labels) {
+        NDArray softmax = logits.softmax();
+        NDArray predAtLabels = softmax.getAtIndicesOnAxis(labels, -1);
+
+        NDArray loss = predAtLabels.clip(Ops.EPSILON, 1.0 - Ops.EPSILON).log().sum().negate();
+        NDArray gradient = softmax.withUpdateAtIndicesOnAxis(labels, -1, predAtLabels.add(-1));
+
+        return new SoftmaxCrossEntropyResult(loss, gradient);
+    }
+
+    /**
+     * @param exampleLoss -log(softmax[label]) of one example, from log-sum-exp
+     */
+    public static double clipExampleLoss(double exampleLoss) {
+        return Math.min(Math.max(exampleLoss, MIN_EXAMPLE_LOSS), MAX_EXAMPLE_LOSS);
+    }
+
+    public static class SoftmaxCrossEntropyResult implements NDArray.SoftmaxCrossEntropyResult {
+        private final NDArray loss;
+        private final NDArray gradient;
+
+        public SoftmaxCrossEntropyResult(NDArray loss, NDArray gradient) {
+            this.loss = loss;
+            this.gradient = gradient;
+        }
+
+        @Override
+        public NDArray getLoss() {
+            return loss;
+        }
+
+        @Override
+        public NDArray getGradient() {
+            return gradient;
+        }
+    }
 //    public static List<NDArray.ValueUpdate> getSoftmaxGradientUpdates(NDArray predicted, int[] indices, NDArray labelsOneHot, int dim) {
 //        List<NDArray.ValueUpdate> updates = new ArrayList<>();
 //        double[] predData = predicted.getInternalData();
@@ -128,7 +128,7 @@ public class FixedMNISTConvAttentionModel implements Model {
         List<Runnable> trainingTasks = new ArrayList<>();
         Tensor y = forward(rnd, trainingData.input, trainingTasks, RunMode.TRAINING, iterationInfo);
 
-        Tensor totalSoftmaxCost = sumSoftmaxCrossEntropy(TrainingDataUtils.toOneHot(trainingData.output, 10), y);
+        Tensor totalSoftmaxCost = sumSoftmaxCrossEntropy(TrainingDataUtils.toClassIndices(trainingData.output), y);
         Tensor avgSoftmaxCost = div(totalSoftmaxCost, constant(actualBatchSize));
 
         List<Tensor> weights = new ArrayList<>(asList(w0, skipW0, w1, w2, skipW2, finalW));
@@ -190,7 +190,7 @@ public class FixedMNISTConvAttentionModel implements Model {
     }
 
     public Tensor predict(Tensor x_train, IterationInfo iterationInfo) {
-        return forward(null, x_train, new ArrayList<>(), RunMode.INFERENCE, new IterationInfo(0, 0, 1));
+        return Tensor.noGrad(() -> forward(null, x_train, new ArrayList<>(), RunMode.INFERENCE, new IterationInfo(0, 0, 1)));
     }
 
     private Tensor forward(Random rnd, Tensor inputs, List<Runnable> trainingTasks, RunMode runMode, IterationInfo iterationInfo) {
@@ -91,7 +91,7 @@ public class FixedMNISTConvModel implements Model {
         List<Runnable> trainingTasks = new ArrayList<>();
         Tensor y = forward(rnd, trainingData.input, trainingTasks, RunMode.TRAINING);
 
-        Tensor totalSoftmaxCost = sumSoftmaxCrossEntropy(TrainingDataUtils.toOneHot(trainingData.output, 10), y);
+        Tensor totalSoftmaxCost = sumSoftmaxCrossEntropy(TrainingDataUtils.toClassIndices(trainingData.output), y);
         Tensor avgSoftmaxCost = div(totalSoftmaxCost, constant(actualBatchSize));
 
         Tensor l2Loss = cfg.l2Lambda <= 0 ? Tensor.ZERO :
@@ -116,7 +116,7 @@ public class FixedMNISTConvModel implements Model {
     }
 
     public Tensor predict(Tensor x_train, IterationInfo iterationInfo) {
-        return forward(null, x_train, new ArrayList<>(), RunMode.INFERENCE);
+        return Tensor.noGrad(() -> forward(null, x_train, new ArrayList<>(), RunMode.INFERENCE));
     }
 
     private Tensor forward(Random rnd, Tensor inputs, List<Runnable> trainingTasks, RunMode runMode) {
@@ -8,6 +8,7 @@ import com.codeberry.tadlib.nn.model.ModelFactory;
 import com.codeberry.tadlib.nn.model.optimizer.Optimizer;
 import com.codeberry.tadlib.nn.model.TrainStats;
 import com.codeberry.tadlib.provider.ProviderStore;
+import com.codeberry.tadlib.provider.java.JavaBufferPool;
 import com.codeberry.tadlib.tensor.Tensor;
 import com.codeberry.tadlib.util.StringUtils;
 
@@ -20,9 +21,15 @@ import java.util.Random;
 
 import static com.codeberry.tadlib.memorymanagement.DisposalRegister.*;
 import static com.codeberry.tadlib.util.AccuracyUtils.softmaxAccuracy;
+import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 
 public class SimpleTrainer {
+    /**
+     * Set to <code>true</code> to print the {@link JavaBufferPool} statistics after each epoch.
+     */
+    public static final String PROP_TAD_PRINT_POOL_STATS = "tad.trainer.poolstats";
+    private static final boolean PRINT_POOL_STATS = Boolean.parseBoolean(System.getProperty(PROP_TAD_PRINT_POOL_STATS));
 
     private final TrainParams params;
     private final TrainLogger logger = new TrainLogger();
@@ -62,19 +69,24 @@ public class SimpleTrainer {
                 IterationInfo iterationInfo = new IterationInfo(epoch, batchId, numberOfBatches, trainInfo);
                 optimizer.getLearningRateSchedule().beforeBatch(iterationInfo);
 
-                modelIteration(() -> trainBatch(rnd, stats, iterationInfo));
+                JavaBufferPool.plannedIteration(asList("train", batchSizeOf(trainingData.xTrain, batchId)),
+                        () -> modelIteration(() -> trainBatch(rnd, stats, iterationInfo)));
             }
             System.out.println(stats);
+            if (PRINT_POOL_STATS && JavaBufferPool.getMode() != JavaBufferPool.Mode.OFF) {
+                System.out.println("Buffer pool: " + JavaBufferPool.getStats());
+            }
 
             double[] testAccuracy = new double[1];
             for (int batchId = 0; batchId < numberOfTestBatches; batchId++) {
 
                 IterationInfo iterationInfo = new IterationInfo(-1, batchId, numberOfTestBatches);
-                modelIteration(() -> {
-                    testAccuracy[0] += testBatch(iterationInfo);
+                JavaBufferPool.plannedIteration(asList("test", batchSizeOf(trainingData.xTest, batchId)),
+                        () -> modelIteration(() -> {
+                            testAccuracy[0] += testBatch(iterationInfo);
 
-                    return emptyList();
-                });
+                            return emptyList();
+                        }));
             }
             double testAcc = testAccuracy[0] / numberOfTestBatches;
             System.out.println("* Test acc: " + testAcc);
@@ -82,6 +94,7 @@ public class SimpleTrainer {
             trainInfo = new Model.TrainInfo(stats.asOutputStats(), new Model.OutputStats(-1, testAcc));
             LeakDetector.printOldObjectsAndIncreaseObjectAge();
         }
+        JavaBufferPool.clear();
     }
 
     private void printParamCount() {
@@ -95,6 +108,10 @@ public class SimpleTrainer {
         System.out.println("Total (main) params: " + paramCount);
     }
 
+    private int batchSizeOf(Tensor examples, int batchId) {
+        return Math.min(params.batchSize, examples.getShape().at(0) - batchId * params.batchSize);
+    }
+
     private double testBatch(IterationInfo iterationInfo) {
         TrainingData.Batch testBatch = trainingData.getTestBatch(iterationInfo.batchIndex, params.batchSize);
 
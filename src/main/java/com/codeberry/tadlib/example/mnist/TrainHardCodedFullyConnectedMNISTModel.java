@@ -18,7 +18,7 @@ import static com.codeberry.tadlib.tensor.Ops.*;
 import static com.codeberry.tadlib.tensor.Ops.matmul;
 import static com.codeberry.tadlib.tensor.Tensor.constant;
 import static com.codeberry.tadlib.tensor.Tensor.tensor;
-import static com.codeberry.tadlib.util.TrainingDataUtils.toOneHot;
+import static com.codeberry.tadlib.util.TrainingDataUtils.toClassIndices;
 
 public class TrainHardCodedFullyConnectedMNISTModel {
     private final TrainingData trainingData;
@@ -93,7 +93,7 @@ public class TrainHardCodedFullyConnectedMNISTModel {
     }
 
     private Tensor calcCost(TrainingData.Batch batch, Tensor prediction) {
-        Tensor totalSoftmaxCost = sumSoftmaxCrossEntropy(toOneHot(batch.output, OUTPUTS), prediction);
+        Tensor totalSoftmaxCost = sumSoftmaxCrossEntropy(toClassIndices(batch.output), prediction);
         Tensor avgSoftmaxCost = div(totalSoftmaxCost, constant(batch.getBatchSize()));
 
         return avgSoftmaxCost;
@@ -22,6 +22,13 @@ public class DisposalRegister {
         }
     }
 
+    /**
+     * @return true when the current thread is inside {@link #modelIteration(Callable)}
+     */
+    public static boolean isInModelIteration() {
+        return TRAINING_ITERATION_DISPOSABLE.get() != null;
+    }
+
     /**
      * All additional resources created during the input callable will be disposed.
      *
@@ -90,7 +97,10 @@ public class DisposalRegister {
         return (R) returnArrays.get(0);
     }
 
-    private static List<Disposable> disposeAllExceptReturnedValues(Callable<List<Disposable>> callable) {
+    /**
+     * Like {@link #disposeAllExceptReturnedValue(Callable)}, for several values.
+     */
+    public static List<Disposable> disposeAllExceptReturnedValues(Callable<List<Disposable>> callable) {
         Stack<List<Disposable>> stack = CREATED_ARRAYS.get();
 
         List<Disposable> instantiatedDisposablesToKeep = new ArrayList<>();
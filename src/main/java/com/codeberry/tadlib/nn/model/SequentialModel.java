@@ -62,7 +62,7 @@ public class SequentialModel implements Model {
 
         OutputWithTasks outputWithTasks = forward(rnd, trainingData.input, RunMode.TRAINING, iterationInfo);
 
-        Tensor totalSoftmaxCost = sumSoftmaxCrossEntropy(TrainingDataUtils.toOneHot(trainingData.output, 10), outputWithTasks.output);
+        Tensor totalSoftmaxCost = sumSoftmaxCrossEntropy(TrainingDataUtils.toClassIndices(trainingData.output), outputWithTasks.output);
         Tensor avgSoftmaxCost = div(totalSoftmaxCost, constant(actualBatchSize));
 
         List<Tensor> otherCosts = layers.stream()
@@ -106,14 +106,22 @@ public class SequentialModel implements Model {
     }
 
     public Tensor predict(Tensor x_train, IterationInfo iterationInfo) {
-        return forward(null, x_train, RunMode.INFERENCE, iterationInfo).output;
+        return Tensor.noGrad(() -> forward(null, x_train, RunMode.INFERENCE, iterationInfo).output);
     }
 
     private OutputWithTasks forward(Random rnd, Tensor inputs, RunMode runMode, IterationInfo iterationInfo) {
+        if (runMode == RunMode.TRAINING && cfg.checkpointEvery > 0) {
+            return forwardWithCheckpoints(rnd, inputs, iterationInfo);
+        }
+        return forward(rnd, inputs, 0, layers.size(), runMode, iterationInfo);
+    }
+
+    private OutputWithTasks forward(Random rnd, Tensor inputs, int fromLayer, int toLayer, RunMode runMode, IterationInfo iterationInfo) {
         List<Runnable> tasks = new ArrayList<>();
+        List<DisposalRegister.Disposable> taskInputs = new ArrayList<>();
 
         Tensor output = inputs;
-        for (int i = 0, layersSize = layers.size(); i < layersSize; i++) {
+        for (int i = fromLayer; i < toLayer; i++) {
 //            double[] d = output.getInternalData();
 //            for (double v : d) {
 //                if (Double.isNaN(v)) {
@@ -124,6 +132,7 @@ public class SequentialModel implements Model {
             Layer l = layers.get(i);
             Layer.ForwardResult result = l.forward(rnd, output, runMode, iterationInfo);
             result.putTasksInto(tasks);
+            result.putTaskInputsInto(taskInputs);
 
             output = result.output;
 //            d = output.getInternalData();
@@ -134,16 +143,69 @@ public class SequentialModel implements Model {
 //            }
         }
 
-        return new OutputWithTasks(output, tasks);
+        return new OutputWithTasks(output, tasks, taskInputs);
+    }
+
+    /**
+     * Only the outputs of every {@link Factory#checkpointEvery} layers are kept, the layers in between are
+     * calculated again during backward. Each segment gets its own seeded Random, so the recomputed
+     * segment makes the same random choices (like dropout).
+     * <p>
+     * The other arrays of a segment are disposed as soon as its forward pass is done, except the inputs of its
+     * training tasks.
+     */
+    private OutputWithTasks forwardWithCheckpoints(Random rnd, Tensor inputs, IterationInfo iterationInfo) {
+        List<Runnable> tasks = new ArrayList<>();
+        List<DisposalRegister.Disposable> taskInputs = new ArrayList<>();
+
+        Tensor output = inputs;
+        for (int from = 0, layersSize = layers.size(); from < layersSize; from += cfg.checkpointEvery) {
+            int to = Math.min(from + cfg.checkpointEvery, layersSize);
+            long seed = (rnd != null ? rnd.nextLong() : 0);
+            int fromLayer = from;
+
+            Tensor segmentInput = output;
+            OutputWithTasks[] segmentRef = new OutputWithTasks[1];
+            DisposalRegister.disposeAllExceptReturnedValues(() -> {
+                segmentRef[0] = Tensor.noGrad(() ->
+                        forward(segmentRandom(rnd, seed), segmentInput, fromLayer, to, RunMode.TRAINING, iterationInfo));
+
+                List<DisposalRegister.Disposable> keep = new ArrayList<>(segmentRef[0].taskInputs);
+                keep.add(segmentRef[0].output.getVals());
+                return keep;
+            });
+            OutputWithTasks segment = segmentRef[0];
+            tasks.addAll(segment.trainingTasks);
+            taskInputs.addAll(segment.taskInputs);
+
+            output = checkpoint(segmentInput, segment.output,
+                    in -> forward(segmentRandom(rnd, seed), in, fromLayer, to, RunMode.TRAINING, iterationInfo).output,
+                    getParams(fromLayer, to));
+        }
+
+        return new OutputWithTasks(output, tasks, taskInputs);
+    }
+
+    private static Random segmentRandom(Random rnd, long seed) {
+        return (rnd != null ? new Random(seed) : null);
+    }
+
+    private List<Tensor> getParams(int fromLayer, int toLayer) {
+        return layers.subList(fromLayer, toLayer).stream()
+                .map(Layer::getTrainableParams)
+                .flatMap(Arrays::stream)
+                .collect(toList());
     }
 
     private static class OutputWithTasks {
         final Tensor output;
         final List<Runnable> trainingTasks;
+        final List<DisposalRegister.Disposable> taskInputs;
 
-        private OutputWithTasks(Tensor output, List<Runnable> trainingTasks) {
+        private OutputWithTasks(Tensor output, List<Runnable> trainingTasks, List<DisposalRegister.Disposable> taskInputs) {
             this.output = output;
             this.trainingTasks = trainingTasks;
+            this.taskInputs = taskInputs;
         }
     }
 
@@ -151,11 +213,17 @@ public class SequentialModel implements Model {
         private final Shape inputShape;
         private final LayerBuilder[] layerBuilders;
         private final long weightInitRandomSeed;
+        private final int checkpointEvery;
 
         public Factory(Shape inputShape, LayerBuilder[] layerBuilders, long weightInitRandomSeed) {
+            this(inputShape, layerBuilders, weightInitRandomSeed, 0);
+        }
+
+        public Factory(Shape inputShape, LayerBuilder[] layerBuilders, long weightInitRandomSeed, int checkpointEvery) {
             this.inputShape = inputShape;
             this.layerBuilders = layerBuilders;
             this.weightInitRandomSeed = weightInitRandomSeed;
+            this.checkpointEvery = checkpointEvery;
         }
 
         @Override
@@ -167,6 +235,7 @@ public class SequentialModel implements Model {
             private Shape inputShape;
             private LayerBuilder[] layerBuilders;
             private long weightInitRandomSeed = 4;
+            private int checkpointEvery;
 
             public static Builder cfgBuilder() {
                 return new Builder();
@@ -187,8 +256,21 @@ public class SequentialModel implements Model {
                 return this;
             }
 
+            /**
+             * Trade compute for memory while training: keep only the output of every layerCount layers and
+             * calculate the layers in between again during backward. 1 checkpoints every layer, 0 (default)
+             * keeps all layer outputs.
+             */
+            public Builder checkpointEvery(int layerCount) {
+                if (layerCount < 0) {
+                    throw new IllegalArgumentException("Layer count must be >= 0: " + layerCount);
+                }
+                this.checkpointEvery = layerCount;
+                return this;
+            }
+
             public Factory build() {
-                return new Factory(inputShape, layerBuilders, weightInitRandomSeed);
+                return new Factory(inputShape, layerBuilders, weightInitRandomSeed, checkpointEvery);
             }
         }
     }
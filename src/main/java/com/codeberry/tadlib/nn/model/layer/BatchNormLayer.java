@@ -14,6 +14,7 @@ import static com.codeberry.tadlib.provider.ProviderStore.shape;
 import static com.codeberry.tadlib.tensor.Ops.*;
 import static com.codeberry.tadlib.tensor.OpsExtended.*;
 import static com.codeberry.tadlib.tensor.Tensor.TensorFactories.*;
+import static java.util.Arrays.asList;
 
 public class BatchNormLayer implements Layer {
     private final double runningAverageMomentum;
@@ -39,7 +40,7 @@ public class BatchNormLayer implements Layer {
         BatchNormResult result = batchNorm(inputs, beta, gamma, runningAverages, runMode);
 
         if (runMode == RunMode.TRAINING) {
-            return result(result.output,
+            return result(result.output, asList(result.mean, result.variance),
                     () -> this.runningAverages.updateWith(result, runningAverageMomentum));
         }
         return result(result.output);
@@ -69,13 +69,18 @@ public interface Layer {
     class ForwardResult {
         public final Tensor output;
         public final Runnable[] trainingTasks;
+        /**
+         * Arrays read by the training tasks, that must be kept when the rest of the forward pass is disposed
+         */
+        public final List<? extends DisposalRegister.Disposable> taskInputs;
 
         private ForwardResult(Tensor output) {
-            this(output, null);
+            this(output, emptyList(), null);
         }
 
-        private ForwardResult(Tensor output, Runnable[] trainingTasks) {
+        private ForwardResult(Tensor output, List<? extends DisposalRegister.Disposable> taskInputs, Runnable[] trainingTasks) {
             this.output = output;
+            this.taskInputs = taskInputs;
             this.trainingTasks = trainingTasks;
         }
 
@@ -83,8 +88,9 @@ public interface Layer {
             return new ForwardResult(output);
         }
 
-        public static ForwardResult result(Tensor output, Runnable... trainingTasks) {
-            return new ForwardResult(output, trainingTasks);
+        public static ForwardResult result(Tensor output, List<? extends DisposalRegister.Disposable> taskInputs,
+                                           Runnable... trainingTasks) {
+            return new ForwardResult(output, taskInputs, trainingTasks);
         }
 
         public void putTasksInto(List<Runnable> target) {
@@ -92,5 +98,9 @@ public interface Layer {
                 Collections.addAll(target, trainingTasks);
             }
         }
+
+        public void putTaskInputsInto(List<DisposalRegister.Disposable> target) {
+            target.addAll(taskInputs);
+        }
     }
 }
@@ -39,7 +39,7 @@ public class RMSProp implements Optimizer {
                 NDArray sT = updateST(p, gradient);
                 NDArray sTWithEpsilon = sT.add(EPSILON);
                 NDArray sqrt = sTWithEpsilon.sqrt();
-                return values.sub(gradient.mul(learningRateSchedule.getLearningRate()).div(sqrt));
+                return values.axpy(-learningRateSchedule.getLearningRate(), gradient.div(sqrt));
             });
         }
     }
@@ -55,9 +55,17 @@ public class RMSProp implements Optimizer {
             sT = zeros(gradient.getShape());
         }
         NDArray gradSqr = gradient.sqr();
-        sT = sT.mul(gamma).add(gradSqr.mul(1.0 - gamma));
-        NDArray old = sTMap.put(p, sT);
-        DisposalRegister.registerForDisposal(old);
+        NDArray old = sT;
+        // both steps allocate on providers without in-place support
+        NDArray decayed = old.mulInPlace(gamma);
+        sT = decayed.axpy(1.0 - gamma, gradSqr);
+        sTMap.put(p, sT);
+        if (decayed != old && decayed != sT) {
+            DisposalRegister.registerForDisposal(decayed);
+        }
+        if (old != sT) {
+            DisposalRegister.registerForDisposal(old);
+        }
 
         return sT;
     }
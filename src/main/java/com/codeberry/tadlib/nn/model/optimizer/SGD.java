@@ -19,7 +19,7 @@ public class SGD implements Optimizer {
     @Override
     public void optimize(List<Tensor> params) {
         for (Tensor p : params) {
-            p.update((values, gradient) -> values.sub(gradient.mul(learningRateSchedule.getLearningRate())));
+            p.update((values, gradient) -> values.axpy(-learningRateSchedule.getLearningRate(), gradient));
         }
     }
 }
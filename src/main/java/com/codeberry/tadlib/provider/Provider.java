@@ -1,5 +1,6 @@
 package com.codeberry.tadlib.provider;
 
+import com.codeberry.tadlib.array.DType;
 import com.codeberry.tadlib.array.NDArray;
 import com.codeberry.tadlib.array.NDIntArray;
 import com.codeberry.tadlib.array.Shape;
@@ -16,9 +17,33 @@ public interface Provider {
 
     NDArray createArray(double[] data, Shape shape);
 
+    default NDArray createArray(float[] data, Shape shape) {
+        throw new UnsupportedOperationException(getShortDescription() + " does not support " + DType.FLOAT32);
+    }
+
+    /**
+     * @return type of the arrays created from doubles
+     */
+    default DType getDType() {
+        return DType.FLOAT64;
+    }
+
     Shape createShape(int... dims);
 
     NDArray createArrayWithValue(Shape shape, double v);
 
+    /**
+     * Creates a dense array, unless the provider has a sparse implementation.
+     *
+     * @param offsets flat, normal ordered, offset of each value. Values with the same offset are summed.
+     */
+    default NDArray createSparseArray(Shape shape, int[] offsets, double[] values) {
+        double[] data = new double[Math.toIntExact(shape.getSize())];
+        for (int i = 0; i < offsets.length; i++) {
+            data[offsets[i]] += values[i];
+        }
+        return createArray(data, shape);
+    }
+
     String getShortDescription();
 }
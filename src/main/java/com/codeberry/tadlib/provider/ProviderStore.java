@@ -1,5 +1,6 @@
 package com.codeberry.tadlib.provider;
 
+import com.codeberry.tadlib.array.DType;
 import com.codeberry.tadlib.array.NDArray;
 import com.codeberry.tadlib.array.NDIntArray;
 import com.codeberry.tadlib.array.Shape;
@@ -38,6 +39,43 @@ public class ProviderStore {
         return provider.createArray(data, shape);
     }
 
+    public static NDArray array(float[] data, Shape shape) {
+        return provider.createArray(data, shape);
+    }
+
+    /**
+     * @param offsets flat, normal ordered, offset of each value
+     */
+    public static NDArray sparseArray(Shape shape, int[] offsets, double[] values) {
+        return provider.createSparseArray(shape, offsets, values);
+    }
+
+    /**
+     * Sparse array of the non-zero values in the dense data.
+     */
+    public static NDArray sparseArray(double[] data, Shape shape) {
+        int count = 0;
+        for (double v : data) {
+            if (v != 0) {
+                count++;
+            }
+        }
+        int[] offsets = new int[count];
+        double[] values = new double[count];
+        for (int i = 0, idx = 0; i < data.length; i++) {
+            if (data[i] != 0) {
+                offsets[idx] = i;
+                values[idx] = data[i];
+                idx++;
+            }
+        }
+        return provider.createSparseArray(shape, offsets, values);
+    }
+
+    public static DType getDType() {
+        return provider.getDType();
+    }
+
     public static Shape shape(int... dims) {
         return provider.createShape(dims);
     }
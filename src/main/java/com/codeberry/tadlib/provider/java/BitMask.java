@@ -0,0 +1,51 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.NDArray;
+
+/**
+ * Gradient mask for relu and dropout, with one bit per element instead of a double. Elements with the bit set
+ * scale the gradient by <code>onValue</code>, the others by <code>offValue</code>.
+ */
+final class BitMask {
+    final long[] bits;
+    private final JavaShape shape;
+    private final double onValue;
+    private final double offValue;
+
+    /**
+     * @param shape normal ordered
+     */
+    BitMask(JavaShape shape, double onValue, double offValue) {
+        this.bits = new long[(shape.size + 63) >>> 6];
+        this.shape = shape;
+        this.onValue = onValue;
+        this.offValue = offValue;
+    }
+
+    void set(int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    JavaArray toArray() {
+        double[] data = JavaBufferPool.allocate(shape.size);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = ((bits[i >>> 6] & (1L << i)) != 0 ? onValue : offValue);
+        }
+        return new JavaArray(data, shape);
+    }
+
+    /**
+     * Same as <code>grad.mul(toArray())</code>.
+     */
+    NDArray apply(NDArray grad) {
+        if (!shape.equals(grad.getShape())) {
+            return grad.mul(toArray());
+        }
+        JavaArray g = JavaArray.javaArray(grad).asNormalOrdered();
+        double[] out = JavaBufferPool.allocate(shape.size);
+
+        ElementKernels.get().applyMask(g.getInternalData(), bits, onValue, offValue, out, 0, out.length);
+
+        return new JavaArray(out, shape);
+    }
+}
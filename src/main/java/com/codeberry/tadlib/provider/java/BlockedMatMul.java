@@ -0,0 +1,344 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.Shape;
+
+import static com.codeberry.tadlib.util.MultiThreadingSupport.TaskRange.taskRange;
+import static com.codeberry.tadlib.util.MultiThreadingSupport.multiThreadingSupportRun;
+import static com.codeberry.tadlib.util.TaskCost.taskCost;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+/**
+ * Cache blocked matrix multiplication of row/column strided matrices.
+ * <p>
+ * Follows the GotoBLAS layout: the right matrix is packed into KC x NC panels of NR wide column strips and
+ * the left matrix into MC x KC blocks of MR tall row strips. The micro kernel then multiplies one MR x NR tile
+ * at a time, keeping all partial sums in local variables (registers), while reading the packed panels linearly.
+ * <p>
+ * Reference: https://www.cs.utexas.edu/users/flame/pubs/GotoTOMS_revision.pdf
+ */
+class BlockedMatMul {
+    static final int MR = 4;
+    static final int NR = 4;
+    private static final int KC = 256;
+    private static final int MC = 64;
+    private static final int NC = 1024;
+
+    // Below this amount of multiplications per matrix, packing costs more than it gains
+    private static final int MIN_PACKED_MUL_COUNT = 4 * 4 * 16;
+    // Rows of a unit are added up to about this many multiplications, since units with few rows repack the right
+    // matrix more often
+    private static final int MIN_UNIT_MUL_COUNT = 65536;
+
+    /**
+     * @return true when the shape is laid out as consecutive (row or column major) matrices
+     */
+    static boolean isSupported(JavaShape shape) {
+        if (shape.getClass() == JavaShape.class) {
+            return true;
+        }
+        return shape.getClass() == ReorderedJavaShape.class &&
+                ((ReorderedJavaShape) shape).isOnlyLastTwoAxesSwapped();
+    }
+
+    /**
+     * Multiplies every (broadcast) matrix of the output.
+     * <p>
+     * The work is cut into units of one row block of one matrix, and the units of all matrices are split over
+     * the threads together. So many small matrices, with few rows each, are spread over the threads as well as
+     * one large matrix. Each unit packs the right matrix of its batch, so a row block covers at least MR rows,
+     * and more when the rows are cheap, up to MC. How many units a task gets is decided by the cost of a unit.
+     */
+    static double[] matmul(double[] a, JavaShape aShape,
+                           double[] b, JavaShape bShape,
+                           double[] out, JavaShape outShape) {
+        int m = outShape.at(-2);
+        int n = outShape.at(-1);
+        int k = aShape.at(-1);
+
+        int[] aBatchOffsets = calcBatchOffsets(aShape, outShape);
+        int[] bBatchOffsets = calcBatchOffsets(bShape, outShape);
+        int aRowStride = rowStride(aShape);
+        int aColStride = colStride(aShape);
+        int bRowStride = rowStride(bShape);
+        int bColStride = colStride(bShape);
+
+        long mulsPerRow = max(1, (long) n * k);
+        int rowsPerUnit = (int) min(m, max(MR, min(MC, 1 + MIN_UNIT_MUL_COUNT / mulsPerRow)));
+        if (rowsPerUnit == 0) {
+            return out;
+        }
+        int rowBlocks = (m + rowsPerUnit - 1) / rowsPerUnit;
+        int units = aBatchOffsets.length * rowBlocks;
+        double unitValues = (double) rowsPerUnit * k + (double) k * n + (double) rowsPerUnit * n;
+
+        return multiThreadingSupportRun(taskRange(0, units,
+                taskCost("blockedMatmul", 2.0 * rowsPerUnit * mulsPerRow, Double.BYTES * unitValues)), range -> {
+            for (int unit = range.start; unit < range.end; unit++) {
+                int batch = unit / rowBlocks;
+                int rowStart = (unit % rowBlocks) * rowsPerUnit;
+                multiply(a, aBatchOffsets[batch], aRowStride, aColStride,
+                        b, bBatchOffsets[batch], bRowStride, bColStride,
+                        out, batch * m * n, n,
+                        rowStart, min(m, rowStart + rowsPerUnit), n, k);
+            }
+            return out;
+        }, (left, ignored) -> left);
+    }
+
+    /**
+     * out[rowStart..rowEnd, 0..n] += a[rowStart..rowEnd, 0..k] @ b[0..k, 0..n]
+     * <p>
+     * Packs the matrices unless they are too small to gain from it.
+     */
+    static void multiply(double[] a, int aOffset, int aRowStride, int aColStride,
+                         double[] b, int bOffset, int bRowStride, int bColStride,
+                         double[] out, int outOffset, int outRowStride,
+                         int rowStart, int rowEnd, int n, int k) {
+        if ((long) (rowEnd - rowStart) * n * k < MIN_PACKED_MUL_COUNT) {
+            multiplyDirect(a, aOffset, aRowStride, aColStride,
+                    b, bOffset, bRowStride, bColStride,
+                    out, outOffset, outRowStride,
+                    rowStart, rowEnd, n, k);
+        } else {
+            multiplyPacked(a, aOffset, aRowStride, aColStride,
+                    b, bOffset, bRowStride, bColStride,
+                    out, outOffset, outRowStride,
+                    rowStart, rowEnd, n, k, WORKSPACE.get());
+        }
+    }
+
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+
+    /**
+     * Packing buffers, one per thread, reused between calls.
+     */
+    static class Workspace {
+        final double[] packedA = new double[MC * KC];
+        final double[] packedB = new double[KC * NC];
+    }
+
+    /**
+     * out[rowStart..rowEnd, 0..n] += a[rowStart..rowEnd, 0..k] @ b[0..k, 0..n]
+     */
+    static void multiplyPacked(double[] a, int aOffset, int aRowStride, int aColStride,
+                               double[] b, int bOffset, int bRowStride, int bColStride,
+                               double[] out, int outOffset, int outRowStride,
+                               int rowStart, int rowEnd, int n, int k,
+                               Workspace ws) {
+        double[] packedA = ws.packedA;
+        double[] packedB = ws.packedB;
+
+        for (int jc = 0; jc < n; jc += NC) {
+            int nc = min(NC, n - jc);
+            for (int pc = 0; pc < k; pc += KC) {
+                int kc = min(KC, k - pc);
+                packB(b, bOffset + pc * bRowStride + jc * bColStride, bRowStride, bColStride,
+                        kc, nc, packedB);
+
+                for (int ic = rowStart; ic < rowEnd; ic += MC) {
+                    int mc = min(MC, rowEnd - ic);
+                    packA(a, aOffset + ic * aRowStride + pc * aColStride, aRowStride, aColStride,
+                            mc, kc, packedA);
+
+                    multiplyBlock(packedA, packedB, mc, nc, kc,
+                            out, outOffset + ic * outRowStride + jc, outRowStride);
+                }
+            }
+        }
+    }
+
+    /**
+     * out[rowStart..rowEnd, 0..n] += a[rowStart..rowEnd, 0..k] @ b[0..k, 0..n], without packing.
+     */
+    static void multiplyDirect(double[] a, int aOffset, int aRowStride, int aColStride,
+                               double[] b, int bOffset, int bRowStride, int bColStride,
+                               double[] out, int outOffset, int outRowStride,
+                               int rowStart, int rowEnd, int n, int k) {
+        for (int y = rowStart; y < rowEnd; y++) {
+            int aRow = aOffset + y * aRowStride;
+            int outRow = outOffset + y * outRowStride;
+            for (int i = 0; i < k; i++) {
+                double _a = a[aRow + i * aColStride];
+                int bRow = bOffset + i * bRowStride;
+                for (int x = 0; x < n; x++) {
+                    out[outRow + x] += _a * b[bRow + x * bColStride];
+                }
+            }
+        }
+    }
+
+    /**
+     * Packs mc x kc into strips of MR rows. Each strip is stored k-major: [p][r]. Missing rows are zero padded.
+     */
+    private static void packA(double[] a, int offset, int rowStride, int colStride,
+                              int mc, int kc, double[] packed) {
+        int idx = 0;
+        for (int i = 0; i < mc; i += MR) {
+            int rows = min(MR, mc - i);
+            int rowOffset = offset + i * rowStride;
+            if (rows == MR) {
+                for (int p = 0; p < kc; p++) {
+                    int src = rowOffset + p * colStride;
+                    packed[idx] = a[src];
+                    packed[idx + 1] = a[src + rowStride];
+                    packed[idx + 2] = a[src + 2 * rowStride];
+                    packed[idx + 3] = a[src + 3 * rowStride];
+                    idx += MR;
+                }
+            } else {
+                for (int p = 0; p < kc; p++) {
+                    int src = rowOffset + p * colStride;
+                    for (int r = 0; r < MR; r++) {
+                        packed[idx + r] = (r < rows ? a[src + r * rowStride] : 0);
+                    }
+                    idx += MR;
+                }
+            }
+        }
+    }
+
+    /**
+     * Packs kc x nc into strips of NR columns. Each strip is stored k-major: [p][c]. Missing columns are zero padded.
+     */
+    private static void packB(double[] b, int offset, int rowStride, int colStride,
+                              int kc, int nc, double[] packed) {
+        int idx = 0;
+        for (int j = 0; j < nc; j += NR) {
+            int cols = min(NR, nc - j);
+            int colOffset = offset + j * colStride;
+            if (cols == NR) {
+                for (int p = 0; p < kc; p++) {
+                    int src = colOffset + p * rowStride;
+                    packed[idx] = b[src];
+                    packed[idx + 1] = b[src + colStride];
+                    packed[idx + 2] = b[src + 2 * colStride];
+                    packed[idx + 3] = b[src + 3 * colStride];
+                    idx += NR;
+                }
+            } else {
+                for (int p = 0; p < kc; p++) {
+                    int src = colOffset + p * rowStride;
+                    for (int c = 0; c < NR; c++) {
+                        packed[idx + c] = (c < cols ? b[src + c * colStride] : 0);
+                    }
+                    idx += NR;
+                }
+            }
+        }
+    }
+
+    private static void multiplyBlock(double[] packedA, double[] packedB,
+                                      int mc, int nc, int kc,
+                                      double[] out, int outOffset, int outRowStride) {
+        for (int j = 0; j < nc; j += NR) {
+            int cols = min(NR, nc - j);
+            int bStrip = j * kc;
+            for (int i = 0; i < mc; i += MR) {
+                int rows = min(MR, mc - i);
+                int aStrip = i * kc;
+                microKernel(packedA, aStrip, packedB, bStrip, kc,
+                        out, outOffset + i * outRowStride + j, outRowStride, rows, cols);
+            }
+        }
+    }
+
+    private static void microKernel(double[] packedA, int aIdx, double[] packedB, int bIdx, int kc,
+                                    double[] out, int outOffset, int outRowStride, int rows, int cols) {
+        double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+        double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+        double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+        double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+
+        for (int p = 0; p < kc; p++) {
+            double a0 = packedA[aIdx];
+            double a1 = packedA[aIdx + 1];
+            double a2 = packedA[aIdx + 2];
+            double a3 = packedA[aIdx + 3];
+            double b0 = packedB[bIdx];
+            double b1 = packedB[bIdx + 1];
+            double b2 = packedB[bIdx + 2];
+            double b3 = packedB[bIdx + 3];
+
+            c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+            c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+            c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+            c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+
+            aIdx += MR;
+            bIdx += NR;
+        }
+
+        if (rows == MR && cols == NR) {
+            int o = outOffset;
+            out[o] += c00; out[o + 1] += c01; out[o + 2] += c02; out[o + 3] += c03;
+            o += outRowStride;
+            out[o] += c10; out[o + 1] += c11; out[o + 2] += c12; out[o + 3] += c13;
+            o += outRowStride;
+            out[o] += c20; out[o + 1] += c21; out[o + 2] += c22; out[o + 3] += c23;
+            o += outRowStride;
+            out[o] += c30; out[o + 1] += c31; out[o + 2] += c32; out[o + 3] += c33;
+        } else {
+            double[] tile = {
+                    c00, c01, c02, c03,
+                    c10, c11, c12, c13,
+                    c20, c21, c22, c23,
+                    c30, c31, c32, c33};
+            for (int r = 0; r < rows; r++) {
+                int o = outOffset + r * outRowStride;
+                for (int c = 0; c < cols; c++) {
+                    out[o + c] += tile[r * NR + c];
+                }
+            }
+        }
+    }
+
+    static int rowStride(JavaShape shape) {
+        return shape.getClass() == JavaShape.class ? shape.at(-1) : 1;
+    }
+
+    static int colStride(JavaShape shape) {
+        return shape.getClass() == JavaShape.class ? 1 : shape.at(-2);
+    }
+
+    /**
+     * @return data offset of the matrix, within the operand, for each (flattened) batch index of the output
+     */
+    static int[] calcBatchOffsets(Shape operandShape, Shape outShape) {
+        int outBatchDims = outShape.getDimCount() - 2;
+        int batchCount = 1;
+        for (int i = 0; i < outBatchDims; i++) {
+            batchCount *= outShape.at(i);
+        }
+
+        // block size of each output batch dim within the operand, 0 when broadcast
+        int[] blockSizes = new int[outBatchDims];
+        int blockSize = operandShape.at(-2) * operandShape.at(-1);
+        int operandDims = operandShape.getDimCount();
+        for (int i = -3; i >= -outBatchDims - 2; i--) {
+            int dimLen = operandShape.atOrDefault(i, 1);
+            blockSizes[outBatchDims + 2 + i] = (dimLen == 1 ? 0 : blockSize);
+            if (-i <= operandDims) {
+                blockSize *= dimLen;
+            }
+        }
+
+        int[] offsets = new int[batchCount];
+        int[] indices = new int[outBatchDims];
+        for (int batch = 0; batch < batchCount; batch++) {
+            int offset = 0;
+            for (int d = 0; d < outBatchDims; d++) {
+                offset += indices[d] * blockSizes[d];
+            }
+            offsets[batch] = offset;
+
+            for (int d = outBatchDims - 1; d >= 0; d--) {
+                if (++indices[d] < outShape.at(d)) {
+                    break;
+                }
+                indices[d] = 0;
+            }
+        }
+        return offsets;
+    }
+}
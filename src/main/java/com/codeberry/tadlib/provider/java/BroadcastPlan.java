@@ -0,0 +1,188 @@
+package com.codeberry.tadlib.provider.java;
+
+import static com.codeberry.tadlib.provider.java.BroadcastPlan.Kind.*;
+
+/**
+ * Flat loops for the common broadcasts of a binary op: one operand has the output shape, and the other is a
+ * scalar, one value per column (trailing axes, like a <code>[C]</code> bias of <code>[N,H,W,C]</code>) or one
+ * value per row (leading axes, like <code>[N,1,1,1]</code>). The output is seen as a rows x cols grid, so the
+ * loops never look at the dimensions.
+ * <p>
+ * Other broadcasts, and operands that are not normal ordered, have no plan, and are done with {@link NDIter}.
+ */
+final class BroadcastPlan {
+    enum Kind {
+        FULL, SCALAR, PER_ROW, PER_COLUMN
+    }
+
+    final JavaShape outShape;
+    final Kind left;
+    final Kind right;
+    final int rows;
+    final int cols;
+
+    private BroadcastPlan(JavaShape outShape, Kind left, Kind right, int rows, int cols) {
+        this.outShape = outShape;
+        this.left = left;
+        this.right = right;
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /**
+     * @return null when there is no flat loop for the shapes, or they do not broadcast
+     */
+    static BroadcastPlan plan(JavaShape a, JavaShape b) {
+        if (!isNormalOrdered(a) || !isNormalOrdered(b)) {
+            return null;
+        }
+        int dimCount = Math.max(a.dimCount, b.dimCount);
+        int[] outDims = new int[dimCount];
+        for (int i = 1; i <= dimCount; i++) {
+            int aLen = a.atOrDefault(-i, 1);
+            int bLen = b.atOrDefault(-i, 1);
+            if (aLen != bLen && aLen != 1 && bLen != 1) {
+                return null;
+            }
+            outDims[dimCount - i] = Math.max(aLen, bLen);
+        }
+        JavaShape outShape = new JavaShape(outDims);
+        int size = outShape.size;
+        if (size <= 0) {
+            return null;
+        }
+
+        if (a.size == size) {
+            return withPartial(outShape, b, false);
+        }
+        if (b.size == size) {
+            return withPartial(outShape, a, true);
+        }
+        return null;
+    }
+
+    private static BroadcastPlan withPartial(JavaShape outShape, JavaShape partial, boolean partialIsLeft) {
+        int size = outShape.size;
+        Kind kind;
+        int cols;
+        if (partial.size == 1) {
+            kind = SCALAR;
+            cols = size;
+        } else if (isTrailing(partial, outShape)) {
+            kind = PER_COLUMN;
+            cols = partial.size;
+        } else if (isLeading(partial, outShape)) {
+            kind = PER_ROW;
+            cols = size / partial.size;
+        } else {
+            return null;
+        }
+        return (partialIsLeft ?
+                new BroadcastPlan(outShape, kind, FULL, size / cols, cols) :
+                new BroadcastPlan(outShape, FULL, kind, size / cols, cols));
+    }
+
+    /**
+     * out = a (op) b, where out is normal ordered with {@link #outShape}
+     */
+    void apply(JavaArray.BinaryOp op, double[] a, double[] b, double[] out) {
+        ElementKernels kernels = ElementKernels.get();
+        for (int r = 0; r < rows; r++) {
+            int start = r * cols;
+            if (right == PER_COLUMN) {
+                binary(kernels, op, a, start, b, 0, out, start, cols);
+            } else if (left == PER_COLUMN) {
+                binary(kernels, op, a, 0, b, start, out, start, cols);
+            } else if (left == FULL) {
+                scalarRight(kernels, op, a, b[right == SCALAR ? 0 : r], out, start, start + cols);
+            } else {
+                scalarLeft(kernels, op, a[left == SCALAR ? 0 : r], b, out, start, start + cols);
+            }
+        }
+    }
+
+    private static void binary(ElementKernels kernels, JavaArray.BinaryOp op,
+                               double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int len) {
+        switch (op) {
+            case ADD:
+                kernels.add(a, aOffset, b, bOffset, out, outOffset, len);
+                break;
+            case MUL:
+                kernels.mul(a, aOffset, b, bOffset, out, outOffset, len);
+                break;
+            case DIV:
+                kernels.div(a, aOffset, b, bOffset, out, outOffset, len);
+                break;
+        }
+    }
+
+    private static void scalarRight(ElementKernels kernels, JavaArray.BinaryOp op,
+                                    double[] a, double v, double[] out, int start, int end) {
+        switch (op) {
+            case ADD:
+                kernels.add(a, v, out, start, end);
+                break;
+            case MUL:
+                kernels.mul(a, v, out, start, end);
+                break;
+            case DIV:
+                kernels.div(a, v, out, start, end);
+                break;
+        }
+    }
+
+    private static void scalarLeft(ElementKernels kernels, JavaArray.BinaryOp op,
+                                   double v, double[] b, double[] out, int start, int end) {
+        switch (op) {
+            case ADD:
+                kernels.add(b, v, out, start, end);
+                break;
+            case MUL:
+                kernels.mul(b, v, out, start, end);
+                break;
+            case DIV:
+                for (int i = start; i < end; i++) {
+                    out[i] = v / b[i];
+                }
+                break;
+        }
+    }
+
+    private static boolean isNormalOrdered(JavaShape shape) {
+        return shape.getClass() == JavaShape.class;
+    }
+
+    /**
+     * @return true when the dimensions of the shape, right aligned, are 1 up to some axis, and then equal to
+     * the output dimensions
+     */
+    private static boolean isTrailing(JavaShape shape, JavaShape outShape) {
+        int i = 1;
+        while (i <= outShape.dimCount && shape.atOrDefault(-i, 1) == outShape.at(-i)) {
+            i++;
+        }
+        for (; i <= outShape.dimCount; i++) {
+            if (shape.atOrDefault(-i, 1) != 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true when the dimensions of the shape, right aligned, are equal to the output dimensions up to some
+     * axis, and then 1
+     */
+    private static boolean isLeading(JavaShape shape, JavaShape outShape) {
+        int i = 1;
+        while (i <= outShape.dimCount && shape.atOrDefault(-i, 1) == 1) {
+            i++;
+        }
+        for (; i <= outShape.dimCount; i++) {
+            if (shape.atOrDefault(-i, 1) != outShape.at(-i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
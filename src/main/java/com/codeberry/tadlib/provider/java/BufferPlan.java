@@ -0,0 +1,159 @@
+package com.codeberry.tadlib.provider.java;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The pooled allocations of one model iteration, captured by {@link JavaBufferPool#plannedIteration}, with a
+ * buffer slot assigned to each of them. Allocations that are not alive at the same time share a slot, so the
+ * replayed iteration takes its buffers by position instead of from the free lists.
+ * <p>
+ * Allocations that are still referenced when the captured iteration ends (e.g. new param values) get no slot.
+ */
+final class BufferPlan {
+    static final int NO_SLOT = -1;
+
+    private final int[] lengths;
+    private final int[] slots;
+    private final double[][] buffers;
+    private final boolean[] inUse;
+
+    private int next;
+    private boolean diverged;
+
+    private BufferPlan(int[] lengths, int[] slots, int slotCount) {
+        this.lengths = lengths;
+        this.slots = slots;
+        this.buffers = new double[slotCount][];
+        this.inUse = new boolean[slotCount];
+    }
+
+    void rewind() {
+        next = 0;
+        diverged = false;
+    }
+
+    /**
+     * @return true when a replayed iteration has made other allocations than the captured one
+     */
+    boolean hasDiverged() {
+        return diverged || next != lengths.length;
+    }
+
+    /**
+     * @return the slot of the next allocation, or {@link #NO_SLOT} when it has none or the iteration has
+     * diverged from the plan
+     */
+    int nextSlot(int length) {
+        if (diverged) {
+            return NO_SLOT;
+        }
+        if (next >= lengths.length || lengths[next] != length) {
+            diverged = true;
+            return NO_SLOT;
+        }
+        int slot = slots[next++];
+        if (slot != NO_SLOT && inUse[slot]) {
+            // a buffer is kept longer than in the captured iteration
+            diverged = true;
+            return NO_SLOT;
+        }
+        return slot;
+    }
+
+    /**
+     * @return the buffer of the slot, not cleared, or null when the slot has not been used yet
+     */
+    double[] bufferOf(int slot) {
+        return buffers[slot];
+    }
+
+    /**
+     * @param buf the buffer of the slot, or a new one for a slot that has not been used yet
+     */
+    void take(int slot, double[] buf) {
+        buffers[slot] = buf;
+        inUse[slot] = true;
+    }
+
+    void free(int slot) {
+        inUse[slot] = false;
+    }
+
+    long plannedDoubles() {
+        long sum = 0;
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != NO_SLOT) {
+                sum += lengths[i];
+            }
+        }
+        return sum;
+    }
+
+    long slotDoubles() {
+        long[] slotLengths = new long[inUse.length];
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != NO_SLOT) {
+                slotLengths[slots[i]] = lengths[i];
+            }
+        }
+        return Arrays.stream(slotLengths).sum();
+    }
+
+    /**
+     * Records allocations and releases in the order they happen.
+     */
+    static class Recorder {
+        private final List<Integer> lengths = new ArrayList<>();
+        // allocation index, or ~index for its release
+        private final List<Integer> events = new ArrayList<>();
+
+        int allocated(int length) {
+            int index = lengths.size();
+            lengths.add(length);
+            events.add(index);
+            return index;
+        }
+
+        void released(int index) {
+            events.add(~index);
+        }
+
+        /**
+         * Liveness: an allocation can use the slot of any allocation of the same length that was released
+         * before it.
+         */
+        BufferPlan toPlan() {
+            int count = lengths.size();
+            boolean[] releasedInIteration = new boolean[count];
+            for (int event : events) {
+                if (event < 0) {
+                    releasedInIteration[~event] = true;
+                }
+            }
+
+            int[] slots = new int[count];
+            Arrays.fill(slots, NO_SLOT);
+            Map<Integer, ArrayDeque<Integer>> freeSlots = new HashMap<>();
+            int slotCount = 0;
+            for (int event : events) {
+                if (event >= 0) {
+                    if (releasedInIteration[event]) {
+                        ArrayDeque<Integer> free = freeSlots.get(lengths.get(event));
+                        slots[event] = (free != null && !free.isEmpty() ? free.pollLast() : slotCount++);
+                    }
+                } else {
+                    int index = ~event;
+                    freeSlots.computeIfAbsent(lengths.get(index), len -> new ArrayDeque<>()).addLast(slots[index]);
+                }
+            }
+
+            int[] lengthArr = lengths.stream().mapToInt(Integer::intValue).toArray();
+            return new BufferPlan(lengthArr, slots, slotCount);
+        }
+    }
+}
@@ -1,79 +1,136 @@
 package com.codeberry.tadlib.provider.java;
 
+import com.codeberry.tadlib.array.Comparison;
 import com.codeberry.tadlib.array.Shape;
 
-import java.util.function.IntFunction;
-
-import static com.codeberry.tadlib.array.util.DimensionUtils.*;
-import static java.lang.Math.toIntExact;
-
-public class CompareHelper {
-    public interface CompareWriter<E, R> {
-        R scalar(E value);
-
-        R toArray(JavaShape shape);
-
-        void prepareDate(int size);
-
-        void write(int offset, E outVal);
+import static com.codeberry.tadlib.array.util.DimensionUtils.validateBroadcastShapes;
+
+/**
+ * Element wise comparison of two broadcast operands, with one loop per pair of primitive data types, writing the
+ * true or false value of each output element.
+ */
+class CompareHelper {
+    static JavaArray compare(Comparison comparison, double trueValue, double falseValue,
+                             double[] left, Shape leftShape, double[] right, Shape rightShape) {
+        JavaShape outShape = outShape(leftShape, rightShape);
+        double[] out = new double[outShape.size];
+        double[] values = {falseValue, trueValue};
+
+        NDIter it = iterate(outShape, leftShape, rightShape);
+        int len = it.innerLength();
+        int leftStride = it.innerStride(1);
+        int rightStride = it.innerStride(2);
+        for (; it.hasNext(); it.next()) {
+            int outIdx = it.offset(0);
+            int leftIdx = it.offset(1);
+            int rightIdx = it.offset(2);
+            for (int i = 0; i < len; i++, outIdx++, leftIdx += leftStride, rightIdx += rightStride) {
+                out[outIdx] = values[comparison.doubleIsTrue(left[leftIdx], right[rightIdx]) ? 1 : 0];
+            }
+        }
+        return new JavaArray(out, outShape);
     }
 
-    public interface ValueComparator<E> {
-        boolean compare(E leftV, E rightV);
+    static JavaArray compare(Comparison comparison, double trueValue, double falseValue,
+                             double[] left, Shape leftShape, int[] right, Shape rightShape) {
+        JavaShape outShape = outShape(leftShape, rightShape);
+        double[] out = new double[outShape.size];
+        double[] values = {falseValue, trueValue};
+
+        NDIter it = iterate(outShape, leftShape, rightShape);
+        int len = it.innerLength();
+        int leftStride = it.innerStride(1);
+        int rightStride = it.innerStride(2);
+        for (; it.hasNext(); it.next()) {
+            int outIdx = it.offset(0);
+            int leftIdx = it.offset(1);
+            int rightIdx = it.offset(2);
+            for (int i = 0; i < len; i++, outIdx++, leftIdx += leftStride, rightIdx += rightStride) {
+                out[outIdx] = values[comparison.doubleIsTrue(left[leftIdx], right[rightIdx]) ? 1 : 0];
+            }
+        }
+        return new JavaArray(out, outShape);
     }
 
-    static <E, R> R compare(ValueComparator<E> comparator, E trueValue, E falseValue,
-                            Shape leftShape, Shape rightShape,
-                            IntFunction<E> left, IntFunction<E> right,
-                            CompareWriter<E, R> writer) {
-        if (leftShape.getDimCount() == 0 &&
-                rightShape.getDimCount() == 0) {
+    static JavaFloatArray compare(Comparison comparison, double trueValue, double falseValue,
+                                  float[] left, Shape leftShape, float[] right, Shape rightShape) {
+        JavaShape outShape = outShape(leftShape, rightShape);
+        float[] out = new float[outShape.size];
+        float[] values = {(float) falseValue, (float) trueValue};
+
+        NDIter it = iterate(outShape, leftShape, rightShape);
+        int len = it.innerLength();
+        int leftStride = it.innerStride(1);
+        int rightStride = it.innerStride(2);
+        for (; it.hasNext(); it.next()) {
+            int outIdx = it.offset(0);
+            int leftIdx = it.offset(1);
+            int rightIdx = it.offset(2);
+            for (int i = 0; i < len; i++, outIdx++, leftIdx += leftStride, rightIdx += rightStride) {
+                out[outIdx] = values[comparison.doubleIsTrue(left[leftIdx], right[rightIdx]) ? 1 : 0];
+            }
+        }
+        return new JavaFloatArray(out, outShape);
+    }
 
-            E outVal = comparator.compare(left.apply(0), right.apply(0)) ?
-                    trueValue : falseValue;
+    static JavaFloatArray compare(Comparison comparison, double trueValue, double falseValue,
+                                  float[] left, Shape leftShape, int[] right, Shape rightShape) {
+        JavaShape outShape = outShape(leftShape, rightShape);
+        float[] out = new float[outShape.size];
+        float[] values = {(float) falseValue, (float) trueValue};
+
+        NDIter it = iterate(outShape, leftShape, rightShape);
+        int len = it.innerLength();
+        int leftStride = it.innerStride(1);
+        int rightStride = it.innerStride(2);
+        for (; it.hasNext(); it.next()) {
+            int outIdx = it.offset(0);
+            int leftIdx = it.offset(1);
+            int rightIdx = it.offset(2);
+            for (int i = 0; i < len; i++, outIdx++, leftIdx += leftStride, rightIdx += rightStride) {
+                out[outIdx] = values[comparison.doubleIsTrue(left[leftIdx], right[rightIdx]) ? 1 : 0];
+            }
+        }
+        return new JavaFloatArray(out, outShape);
+    }
 
-            return writer.scalar(outVal);
+    static JavaIntArray compare(Comparison comparison, int trueValue, int falseValue,
+                                int[] left, Shape leftShape, int[] right, Shape rightShape) {
+        JavaShape outShape = outShape(leftShape, rightShape);
+        int[] out = new int[outShape.size];
+        int[] values = {falseValue, trueValue};
+
+        NDIter it = iterate(outShape, leftShape, rightShape);
+        int len = it.innerLength();
+        int leftStride = it.innerStride(1);
+        int rightStride = it.innerStride(2);
+        for (; it.hasNext(); it.next()) {
+            int outIdx = it.offset(0);
+            int leftIdx = it.offset(1);
+            int rightIdx = it.offset(2);
+            for (int i = 0; i < len; i++, outIdx++, leftIdx += leftStride, rightIdx += rightStride) {
+                out[outIdx] = values[comparison.intIsTrue(left[leftIdx], right[rightIdx]) ? 1 : 0];
+            }
         }
+        return new JavaIntArray(out, outShape);
+    }
 
+    private static JavaShape outShape(Shape leftShape, Shape rightShape) {
+        if (leftShape.getDimCount() == 0 && rightShape.getDimCount() == 0) {
+            return JavaShape.zeroDim();
+        }
         validateBroadcastShapes(leftShape, rightShape, -1);
-        JavaShape outShape = JavaArray.evalBroadcastOutputShape(leftShape, rightShape);
-
-        writer.prepareDate(toIntExact(outShape.getSize()));
-
-        int[] thisBroadcastBlockSizes = calcBroadcastBlockSizes(leftShape, outShape.getDimCount());
-        int[] otherBroadcastBlockSizes = calcBroadcastBlockSizes(rightShape, outShape.getDimCount());
-
-        fillCompare(comparator, trueValue, falseValue,
-                left, thisBroadcastBlockSizes,
-                right, otherBroadcastBlockSizes,
-                writer, outShape, outShape.newIndexArray(), 0);
-
-        return writer.toArray(outShape);
+        return JavaArray.evalBroadcastOutputShape(leftShape, rightShape);
     }
 
-    static <E, R> void fillCompare(ValueComparator<E> comparator, E trueValue, E falseValue,
-                                   IntFunction<E> left, int[] leftBroadcastBlockSizes,
-                                   IntFunction<E> right, int[] rightBroadcastBlockSizes,
-                                   CompareWriter<E, R> writer, Shape outShape, int[] outIndices, int outDim) {
-        int dimLen = outShape.at(outDim);
-        for (int i = 0; i < dimLen; i++) {
-            outIndices[outDim] = i;
-
-            if (outDim == outIndices.length - 1) {
-                //... then is last dimension
-                E leftVal = left.apply(calcOffset(outIndices, leftBroadcastBlockSizes));
-                E rightVal = right.apply(calcOffset(outIndices, rightBroadcastBlockSizes));
-
-                E outVal = comparator.compare(leftVal, rightVal) ?
-                        trueValue : falseValue;
-
-                writer.write(outShape.calcDataIndex(outIndices), outVal);
-            } else {
-                fillCompare(comparator, trueValue, falseValue,
-                        left, leftBroadcastBlockSizes,
-                        right, rightBroadcastBlockSizes,
-                        writer, outShape, outIndices, outDim + 1);
-            }
-        }
+    /**
+     * The output operand is normal ordered, so its inner stride is always 1.
+     */
+    private static NDIter iterate(JavaShape outShape, Shape leftShape, Shape rightShape) {
+        int[] outDims = outShape.toDimArray();
+        return NDIter.iterate(outDims,
+                NDIter.operand(outShape.strides(), 0),
+                NDIter.broadcast(leftShape, outDims),
+                NDIter.broadcast(rightShape, outDims));
     }
 }
@@ -0,0 +1,215 @@
+package com.codeberry.tadlib.provider.java;
+
+/**
+ * Element wise and reduction loops over flat data, for index range [start, end).
+ * <p>
+ * This is the scalar implementation. When built with the <code>simd</code> profile, and the JVM is started
+ * with <code>--add-modules jdk.incubator.vector</code>, a Vector API subclass is used instead. Set the system
+ * property {@value #PROP_TAD_JAVA_SIMD} to <code>false</code> to force the scalar loops.
+ */
+class ElementKernels {
+    public static final String PROP_TAD_JAVA_SIMD = "tad.java.simd";
+
+    private static final String VECTOR_KERNELS_CLASS = "com.codeberry.tadlib.provider.java.VectorElementKernels";
+
+    private static final ElementKernels INSTANCE = load();
+
+    static final int SUM_BLOCK_SIZE = 128;
+
+    static ElementKernels get() {
+        return INSTANCE;
+    }
+
+    private static ElementKernels load() {
+        if (Boolean.parseBoolean(System.getProperty(PROP_TAD_JAVA_SIMD, "true"))) {
+            try {
+                ElementKernels kernels = (ElementKernels) Class.forName(VECTOR_KERNELS_CLASS)
+                        .getDeclaredConstructor()
+                        .newInstance();
+                // Fails here if the class was found, but not the incubator module
+                kernels.add(new double[1], new double[1], new double[1], 0, 1);
+                return kernels;
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // Not built with the simd profile, or the module is not added: use scalar
+            }
+        }
+        return new ElementKernels();
+    }
+
+    boolean isVectorized() {
+        return false;
+    }
+
+    void add(double[] a, double[] b, double[] out, int start, int end) {
+        for (int i = start; i < end; i++) {
+            out[i] = a[i] + b[i];
+        }
+    }
+
+    void mul(double[] a, double[] b, double[] out, int start, int end) {
+        for (int i = start; i < end; i++) {
+            out[i] = a[i] * b[i];
+        }
+    }
+
+    void div(double[] a, double[] b, double[] out, int start, int end) {
+        for (int i = start; i < end; i++) {
+            out[i] = a[i] / b[i];
+        }
+    }
+
+    /**
+     * out[outOffset + i] = a[aOffset + i] + b[bOffset + i], for i in [0, len)
+     */
+    void add(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int len) {
+        for (int i = 0; i < len; i++) {
+            out[outOffset + i] = a[aOffset + i] + b[bOffset + i];
+        }
+    }
+
+    void mul(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int len) {
+        for (int i = 0; i < len; i++) {
+            out[outOffset + i] = a[aOffset + i] * b[bOffset + i];
+        }
+    }
+
+    void div(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int len) {
+        for (int i = 0; i < len; i++) {
+            out[outOffset + i] = a[aOffset + i] / b[bOffset + i];
+        }
+    }
+
+    void add(double[] a, double v, double[] out, int start, int end) {
+        for (int i = start; i < end; i++) {
+            out[i] = a[i] + v;
+        }
+    }
+
+    void mul(double[] a, double v, double[] out, int start, int end) {
+        for (int i = start; i < end; i++) {
+            out[i] = a[i] * v;
+        }
+    }
+
+    void div(double[] a, double v, double[] out, int start, int end) {
+        for (int i = start; i < end; i++) {
+            out[i] = a[i] / v;
+        }
+    }
+
+    /**
+     * y += alpha * x
+     */
+    void axpy(double alpha, double[] x, double[] y, int start, int end) {
+        for (int i = start; i < end; i++) {
+            y[i] += alpha * x[i];
+        }
+    }
+
+    void sqr(double[] a, double[] out, int start, int end) {
+        for (int i = start; i < end; i++) {
+            out[i] = a[i] * a[i];
+        }
+    }
+
+    void sqrt(double[] a, double[] out, int start, int end) {
+        for (int i = start; i < end; i++) {
+            out[i] = Math.sqrt(a[i]);
+        }
+    }
+
+    void pow(double[] a, double power, double[] out, int start, int end) {
+        for (int i = start; i < end; i++) {
+            out[i] = Math.pow(a[i], power);
+        }
+    }
+
+    void log(double[] a, double[] out, int start, int end) {
+        for (int i = start; i < end; i++) {
+            out[i] = Math.log(a[i]);
+        }
+    }
+
+    /**
+     * Use infinity for no limit.
+     */
+    void clip(double[] a, double min, double max, double[] out, int start, int end) {
+        for (int i = start; i < end; i++) {
+            out[i] = Math.min(Math.max(a[i], min), max);
+        }
+    }
+
+    /**
+     * Ranges should start at a multiple of 64, so two ranges never write to the same word.
+     *
+     * @param positive bit i is set when a[i] is positive, the bits must be cleared on entry
+     */
+    void relu(double[] a, double leakyScale, double[] out, long[] positive, int start, int end) {
+        for (int i = start; i < end; i++) {
+            double v = a[i];
+            if (v <= 0) {
+                out[i] = v * leakyScale;
+            } else {
+                out[i] = v;
+                positive[i >>> 6] |= 1L << i;
+            }
+        }
+    }
+
+    /**
+     * out[i] = grad[i] * (bit i is set ? onValue : offValue). Ranges should start at a multiple of 64.
+     */
+    void applyMask(double[] grad, long[] bits, double onValue, double offValue, double[] out, int start, int end) {
+        for (int i = start; i < end; i++) {
+            out[i] = grad[i] * ((bits[i >>> 6] & (1L << i)) != 0 ? onValue : offValue);
+        }
+    }
+
+    /**
+     * Pairwise: the two halves are summed separately down to blocks of {@value #SUM_BLOCK_SIZE}, so the
+     * rounding error grows with log(n) rather than n. The split points only depend on the range.
+     */
+    final double sum(double[] a, int start, int end) {
+        if (end - start <= SUM_BLOCK_SIZE) {
+            return sumBlock(a, start, end);
+        }
+        int mid = start + (end - start) / 2;
+        return sum(a, start, mid) + sum(a, mid, end);
+    }
+
+    /**
+     * Pairwise sum of a[offset], a[offset + stride]... len values.
+     */
+    final double sum(double[] a, int offset, int stride, int len) {
+        if (stride == 1) {
+            return sum(a, offset, offset + len);
+        }
+        if (len <= SUM_BLOCK_SIZE) {
+            double sum = 0;
+            for (int i = 0; i < len; i++) {
+                sum += a[offset];
+                offset += stride;
+            }
+            return sum;
+        }
+        int half = len / 2;
+        return sum(a, offset, stride, half) + sum(a, offset + half * stride, stride, len - half);
+    }
+
+    double sumBlock(double[] a, int start, int end) {
+        double sum = 0;
+        for (int i = start; i < end; i++) {
+            sum += a[i];
+        }
+        return sum;
+    }
+
+    /**
+     * tgt[tgtOffset + i] += src[srcOffset + i]
+     */
+    void addTo(double[] src, int srcOffset, double[] tgt, int tgtOffset, int len) {
+        for (int i = 0; i < len; i++) {
+            tgt[tgtOffset + i] += src[srcOffset + i];
+        }
+    }
+}
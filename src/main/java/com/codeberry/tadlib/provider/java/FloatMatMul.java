@@ -0,0 +1,127 @@
+package com.codeberry.tadlib.provider.java;
+
+import static com.codeberry.tadlib.util.MultiThreadingSupport.TaskRange.taskRange;
+import static com.codeberry.tadlib.util.MultiThreadingSupport.multiThreadingSupportRun;
+import static com.codeberry.tadlib.util.TaskCost.taskCost;
+
+/**
+ * Matrix multiplication of row/column strided float matrices, for {@link JavaFloatArray}.
+ * <p>
+ * Same layout as {@link BlockedMatMul}, without the packing. The sums are kept in float.
+ */
+class FloatMatMul {
+    /**
+     * Multiplies every (broadcast) matrix of the output. The rows of all matrices are split over the threads
+     * together.
+     *
+     * @param aShape as supported by {@link BlockedMatMul#isSupported(JavaShape)}
+     * @param bShape as supported by {@link BlockedMatMul#isSupported(JavaShape)}
+     */
+    static float[] matmul(float[] a, JavaShape aShape,
+                          float[] b, JavaShape bShape,
+                          float[] out, JavaShape outShape) {
+        int m = outShape.at(-2);
+        int n = outShape.at(-1);
+        int k = aShape.at(-1);
+
+        int[] aBatchOffsets = BlockedMatMul.calcBatchOffsets(aShape, outShape);
+        int[] bBatchOffsets = BlockedMatMul.calcBatchOffsets(bShape, outShape);
+        int aRowStride = BlockedMatMul.rowStride(aShape);
+        int aColStride = BlockedMatMul.colStride(aShape);
+        int bRowStride = BlockedMatMul.rowStride(bShape);
+        int bColStride = BlockedMatMul.colStride(bShape);
+
+        return multiThreadingSupportRun(taskRange(0, aBatchOffsets.length * m,
+                taskCost("floatMatmul", 2.0 * k * n, Float.BYTES * ((double) k * n + k + n))), range -> {
+            for (int row = range.start; row < range.end; ) {
+                int batch = row / m;
+                int y = row % m;
+                int rowEnd = Math.min(m, y + range.end - row);
+                multiply(a, aBatchOffsets[batch], aRowStride, aColStride,
+                        b, bBatchOffsets[batch], bRowStride, bColStride,
+                        out, batch * m * n, n,
+                        y, rowEnd, n, k);
+                row += rowEnd - y;
+            }
+            return out;
+        }, (left, ignored) -> left);
+    }
+
+    /**
+     * out[rowStart..rowEnd, 0..n] += a[rowStart..rowEnd, 0..k] @ b[0..k, 0..n]
+     * <p>
+     * The output is summed in 4 x 4 tiles, kept in local variables over the whole k, like the micro kernel of
+     * {@link BlockedMatMul}. Rows and columns outside whole tiles are summed one value at a time.
+     */
+    static void multiply(float[] a, int aOffset, int aRowStride, int aColStride,
+                         float[] b, int bOffset, int bRowStride, int bColStride,
+                         float[] out, int outOffset, int outRowStride,
+                         int rowStart, int rowEnd, int n, int k) {
+        int tileRowEnd = rowStart + (rowEnd - rowStart) / 4 * 4;
+        int tileColEnd = n / 4 * 4;
+        for (int y = rowStart; y < tileRowEnd; y += 4) {
+            int aRow = aOffset + y * aRowStride;
+            for (int x = 0; x < tileColEnd; x += 4) {
+                multiplyTile(a, aRow, aRowStride, aColStride,
+                        b, bOffset + x * bColStride, bRowStride, bColStride,
+                        out, outOffset + y * outRowStride + x, outRowStride, k);
+            }
+            multiplyEach(a, aOffset, aRowStride, aColStride,
+                    b, bOffset, bRowStride, bColStride,
+                    out, outOffset, outRowStride,
+                    y, y + 4, tileColEnd, n, k);
+        }
+        multiplyEach(a, aOffset, aRowStride, aColStride,
+                b, bOffset, bRowStride, bColStride,
+                out, outOffset, outRowStride,
+                tileRowEnd, rowEnd, 0, n, k);
+    }
+
+    private static void multiplyTile(float[] a, int aRow, int aRowStride, int aColStride,
+                                     float[] b, int bCol, int bRowStride, int bColStride,
+                                     float[] out, int o, int outRowStride, int k) {
+        float c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+        float c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+        float c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+        float c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+        for (int i = 0; i < k; i++) {
+            int aIdx = aRow + i * aColStride;
+            float a0 = a[aIdx];
+            float a1 = a[aIdx + aRowStride];
+            float a2 = a[aIdx + 2 * aRowStride];
+            float a3 = a[aIdx + 3 * aRowStride];
+            int bIdx = bCol + i * bRowStride;
+            float b0 = b[bIdx];
+            float b1 = b[bIdx + bColStride];
+            float b2 = b[bIdx + 2 * bColStride];
+            float b3 = b[bIdx + 3 * bColStride];
+            c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+            c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+            c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+            c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+        }
+        out[o] += c00; out[o + 1] += c01; out[o + 2] += c02; out[o + 3] += c03;
+        o += outRowStride;
+        out[o] += c10; out[o + 1] += c11; out[o + 2] += c12; out[o + 3] += c13;
+        o += outRowStride;
+        out[o] += c20; out[o + 1] += c21; out[o + 2] += c22; out[o + 3] += c23;
+        o += outRowStride;
+        out[o] += c30; out[o + 1] += c31; out[o + 2] += c32; out[o + 3] += c33;
+    }
+
+    private static void multiplyEach(float[] a, int aOffset, int aRowStride, int aColStride,
+                                     float[] b, int bOffset, int bRowStride, int bColStride,
+                                     float[] out, int outOffset, int outRowStride,
+                                     int rowStart, int rowEnd, int colStart, int colEnd, int k) {
+        for (int y = rowStart; y < rowEnd; y++) {
+            int aRow = aOffset + y * aRowStride;
+            for (int x = colStart; x < colEnd; x++) {
+                float v = 0;
+                for (int i = 0; i < k; i++) {
+                    v += a[aRow + i * aColStride] * b[bOffset + i * bRowStride + x * bColStride];
+                }
+                out[outOffset + y * outRowStride + x] += v;
+            }
+        }
+    }
+}
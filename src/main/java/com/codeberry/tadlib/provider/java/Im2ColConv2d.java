@@ -0,0 +1,290 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.util.MultiThreadingSupport.TaskRange;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.util.Arrays.fill;
+
+/**
+ * Lowers conv2d to a matrix multiplication.
+ * <p>
+ * For each example, the input patches under the filter are copied into the rows of a column matrix
+ * <code>[outPixels, fh*fw*in]</code> (im2col), which is then multiplied with the filter viewed as
+ * <code>[fh*fw*in, out]</code>. The output pixels are lowered in chunks to keep the column matrix cache sized.
+ * <p>
+ * Output pixel (y, x) reads input pixel (y + offsetY + filterY, x + offsetX + filterX), values outside the
+ * input are zero.
+ */
+class Im2ColConv2d {
+    // Max doubles in the column matrix of a chunk
+    private static final int COLUMN_BUFFER_SIZE = 128 * 1024;
+
+    private static final ThreadLocal<double[]> COLUMN_BUFFER = ThreadLocal.withInitial(() -> new double[0]);
+    private static final ThreadLocal<float[]> FLOAT_COLUMN_BUFFER = ThreadLocal.withInitial(() -> new float[0]);
+
+    /**
+     * Calculates the examples of the task range.
+     *
+     * @param input  normal ordered, [examples..., h, w, in]
+     * @param filter normal ordered, [fh, fw, in, out]
+     * @param out    [examples..., outHeight, outWidth, out]
+     */
+    static double[] conv2d(TaskRange exampleRange,
+                           double[] input, JavaShape inShape,
+                           double[] filter, JavaShape filterShape,
+                           int offsetY, int offsetX,
+                           double[] out, JavaShape outShape) {
+        int inHeight = inShape.at(-3);
+        int inWidth = inShape.at(-2);
+        int inChannels = inShape.at(-1);
+        int filterHeight = filterShape.at(0);
+        int filterWidth = filterShape.at(1);
+        int outHeight = outShape.at(-3);
+        int outWidth = outShape.at(-2);
+        int outChannels = outShape.at(-1);
+
+        int patchSize = filterHeight * filterWidth * inChannels;
+        int outPixels = outHeight * outWidth;
+        int chunkPixels = max(1, min(outPixels, COLUMN_BUFFER_SIZE / max(1, patchSize)));
+        double[] columns = columnBuffer(chunkPixels * patchSize);
+
+        Patches patches = new Patches(inHeight, inWidth, inChannels, filterHeight, filterWidth,
+                offsetY, offsetX, outWidth);
+        for (int example = exampleRange.start; example < exampleRange.end; example++) {
+            int inOffset = example * inHeight * inWidth * inChannels;
+            int outOffset = example * outPixels * outChannels;
+            for (int pixelStart = 0; pixelStart < outPixels; pixelStart += chunkPixels) {
+                int pixelEnd = min(outPixels, pixelStart + chunkPixels);
+
+                patches.copyToColumns(input, inOffset, pixelStart, pixelEnd, columns);
+                BlockedMatMul.multiply(columns, 0, patchSize, 1,
+                        filter, 0, outChannels, 1,
+                        out, outOffset + pixelStart * outChannels, outChannels,
+                        0, pixelEnd - pixelStart, outChannels, patchSize);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Gradient of the filter in conv2d(input, filter, offsetY, offsetX, ...), summed over the examples of the
+     * task range: <code>columns^T @ grad</code> per example, accumulated into one [fh, fw, in, out] array.
+     *
+     * @param input normal ordered, [examples..., h, w, in]
+     * @param grad  normal ordered, [examples..., outHeight, outWidth, out]
+     */
+    static double[] accumulateFilterGradient(TaskRange exampleRange,
+                                             double[] input, JavaShape inShape,
+                                             double[] grad, JavaShape gradShape,
+                                             int filterHeight, int filterWidth,
+                                             int offsetY, int offsetX) {
+        int inHeight = inShape.at(-3);
+        int inWidth = inShape.at(-2);
+        int inChannels = inShape.at(-1);
+        int outHeight = gradShape.at(-3);
+        int outWidth = gradShape.at(-2);
+        int outChannels = gradShape.at(-1);
+
+        int patchSize = filterHeight * filterWidth * inChannels;
+        int outPixels = outHeight * outWidth;
+        int chunkPixels = max(1, min(outPixels, COLUMN_BUFFER_SIZE / max(1, patchSize)));
+        double[] columns = columnBuffer(chunkPixels * patchSize);
+        double[] filterGrad = new double[patchSize * outChannels];
+
+        Patches patches = new Patches(inHeight, inWidth, inChannels, filterHeight, filterWidth,
+                offsetY, offsetX, outWidth);
+        for (int example = exampleRange.start; example < exampleRange.end; example++) {
+            int inOffset = example * inHeight * inWidth * inChannels;
+            int gradOffset = example * outPixels * outChannels;
+            for (int pixelStart = 0; pixelStart < outPixels; pixelStart += chunkPixels) {
+                int pixelEnd = min(outPixels, pixelStart + chunkPixels);
+
+                patches.copyToColumns(input, inOffset, pixelStart, pixelEnd, columns);
+                // columns read transposed: [patchSize, pixels]
+                BlockedMatMul.multiply(columns, 0, 1, patchSize,
+                        grad, gradOffset + pixelStart * outChannels, outChannels, 1,
+                        filterGrad, 0, outChannels,
+                        0, patchSize, outChannels, pixelEnd - pixelStart);
+            }
+        }
+        return filterGrad;
+    }
+
+    /**
+     * Same as {@link #conv2d(TaskRange, double[], JavaShape, double[], JavaShape, int, int, double[], JavaShape)},
+     * for floats, multiplied by {@link FloatMatMul}.
+     */
+    static float[] conv2d(TaskRange exampleRange,
+                          float[] input, JavaShape inShape,
+                          float[] filter, JavaShape filterShape,
+                          int offsetY, int offsetX,
+                          float[] out, JavaShape outShape) {
+        int inHeight = inShape.at(-3);
+        int inWidth = inShape.at(-2);
+        int inChannels = inShape.at(-1);
+        int filterHeight = filterShape.at(0);
+        int filterWidth = filterShape.at(1);
+        int outHeight = outShape.at(-3);
+        int outWidth = outShape.at(-2);
+        int outChannels = outShape.at(-1);
+
+        int patchSize = filterHeight * filterWidth * inChannels;
+        int outPixels = outHeight * outWidth;
+        int chunkPixels = max(1, min(outPixels, COLUMN_BUFFER_SIZE / max(1, patchSize)));
+        float[] columns = floatColumnBuffer(chunkPixels * patchSize);
+
+        Patches patches = new Patches(inHeight, inWidth, inChannels, filterHeight, filterWidth,
+                offsetY, offsetX, outWidth);
+        for (int example = exampleRange.start; example < exampleRange.end; example++) {
+            int inOffset = example * inHeight * inWidth * inChannels;
+            int outOffset = example * outPixels * outChannels;
+            for (int pixelStart = 0; pixelStart < outPixels; pixelStart += chunkPixels) {
+                int pixelEnd = min(outPixels, pixelStart + chunkPixels);
+
+                patches.copyToColumns(input, inOffset, pixelStart, pixelEnd, columns);
+                FloatMatMul.multiply(columns, 0, patchSize, 1,
+                        filter, 0, outChannels, 1,
+                        out, outOffset + pixelStart * outChannels, outChannels,
+                        0, pixelEnd - pixelStart, outChannels, patchSize);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Same as {@link #accumulateFilterGradient(TaskRange, double[], JavaShape, double[], JavaShape, int, int, int, int)},
+     * for floats.
+     */
+    static float[] accumulateFilterGradient(TaskRange exampleRange,
+                                            float[] input, JavaShape inShape,
+                                            float[] grad, JavaShape gradShape,
+                                            int filterHeight, int filterWidth,
+                                            int offsetY, int offsetX) {
+        int inHeight = inShape.at(-3);
+        int inWidth = inShape.at(-2);
+        int inChannels = inShape.at(-1);
+        int outHeight = gradShape.at(-3);
+        int outWidth = gradShape.at(-2);
+        int outChannels = gradShape.at(-1);
+
+        int patchSize = filterHeight * filterWidth * inChannels;
+        int outPixels = outHeight * outWidth;
+        int chunkPixels = max(1, min(outPixels, COLUMN_BUFFER_SIZE / max(1, patchSize)));
+        float[] columns = floatColumnBuffer(chunkPixels * patchSize);
+        float[] filterGrad = new float[patchSize * outChannels];
+
+        Patches patches = new Patches(inHeight, inWidth, inChannels, filterHeight, filterWidth,
+                offsetY, offsetX, outWidth);
+        for (int example = exampleRange.start; example < exampleRange.end; example++) {
+            int inOffset = example * inHeight * inWidth * inChannels;
+            int gradOffset = example * outPixels * outChannels;
+            for (int pixelStart = 0; pixelStart < outPixels; pixelStart += chunkPixels) {
+                int pixelEnd = min(outPixels, pixelStart + chunkPixels);
+
+                patches.copyToColumns(input, inOffset, pixelStart, pixelEnd, columns);
+                // columns read transposed: [patchSize, pixels]
+                FloatMatMul.multiply(columns, 0, 1, patchSize,
+                        grad, gradOffset + pixelStart * outChannels, outChannels, 1,
+                        filterGrad, 0, outChannels,
+                        0, patchSize, outChannels, pixelEnd - pixelStart);
+            }
+        }
+        return filterGrad;
+    }
+
+    private static float[] floatColumnBuffer(int minSize) {
+        float[] buf = FLOAT_COLUMN_BUFFER.get();
+        if (buf.length < minSize) {
+            buf = new float[minSize];
+            FLOAT_COLUMN_BUFFER.set(buf);
+        }
+        return buf;
+    }
+
+    private static double[] columnBuffer(int minSize) {
+        double[] buf = COLUMN_BUFFER.get();
+        if (buf.length < minSize) {
+            buf = new double[minSize];
+            COLUMN_BUFFER.set(buf);
+        }
+        return buf;
+    }
+
+    private static class Patches {
+        private final int inHeight;
+        private final int inWidth;
+        private final int inChannels;
+        private final int filterHeight;
+        private final int filterWidth;
+        private final int offsetY;
+        private final int offsetX;
+        private final int outWidth;
+
+        Patches(int inHeight, int inWidth, int inChannels, int filterHeight, int filterWidth,
+                int offsetY, int offsetX, int outWidth) {
+            this.inHeight = inHeight;
+            this.inWidth = inWidth;
+            this.inChannels = inChannels;
+            this.filterHeight = filterHeight;
+            this.filterWidth = filterWidth;
+            this.offsetY = offsetY;
+            this.offsetX = offsetX;
+            this.outWidth = outWidth;
+        }
+
+        void copyToColumns(double[] input, int inOffset, int pixelStart, int pixelEnd, double[] columns) {
+            int rowLen = filterWidth * inChannels;
+            int idx = 0;
+            for (int pixel = pixelStart; pixel < pixelEnd; pixel++) {
+                int outY = pixel / outWidth;
+                int outX = pixel % outWidth;
+                for (int fy = 0; fy < filterHeight; fy++) {
+                    int y = outY + offsetY + fy;
+                    if (y < 0 || y >= inHeight) {
+                        fill(columns, idx, idx + rowLen, 0);
+                        idx += rowLen;
+                        continue;
+                    }
+                    int rowOffset = inOffset + y * inWidth * inChannels;
+                    for (int fx = 0; fx < filterWidth; fx++) {
+                        int x = outX + offsetX + fx;
+                        if (x < 0 || x >= inWidth) {
+                            fill(columns, idx, idx + inChannels, 0);
+                        } else {
+                            System.arraycopy(input, rowOffset + x * inChannels, columns, idx, inChannels);
+                        }
+                        idx += inChannels;
+                    }
+                }
+            }
+        }
+
+        void copyToColumns(float[] input, int inOffset, int pixelStart, int pixelEnd, float[] columns) {
+            int rowLen = filterWidth * inChannels;
+            int idx = 0;
+            for (int pixel = pixelStart; pixel < pixelEnd; pixel++) {
+                int outY = pixel / outWidth;
+                int outX = pixel % outWidth;
+                for (int fy = 0; fy < filterHeight; fy++) {
+                    int y = outY + offsetY + fy;
+                    if (y < 0 || y >= inHeight) {
+                        fill(columns, idx, idx + rowLen, 0);
+                        idx += rowLen;
+                        continue;
+                    }
+                    int rowOffset = inOffset + y * inWidth * inChannels;
+                    for (int fx = 0; fx < filterWidth; fx++) {
+                        int x = outX + offsetX + fx;
+                        if (x < 0 || x >= inWidth) {
+                            fill(columns, idx, idx + inChannels, 0);
+                        } else {
+                            System.arraycopy(input, rowOffset + x * inChannels, columns, idx, inChannels);
+                        }
+                        idx += inChannels;
+                    }
+                }
+            }
+        }
+    }
+}
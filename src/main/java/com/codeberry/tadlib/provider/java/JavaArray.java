@@ -6,26 +6,38 @@ import com.codeberry.tadlib.array.util.SoftmaxUtils;
 import com.codeberry.tadlib.provider.ProviderStore;
 import com.codeberry.tadlib.util.MultiThreadingSupport;
 import com.codeberry.tadlib.util.StringUtils;
+import com.codeberry.tadlib.util.TaskCost;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
-import java.util.function.IntFunction;
 
 import static com.codeberry.tadlib.array.NDArray.DimKeepRemove.REMOVE_DIM;
 import static com.codeberry.tadlib.array.util.DimensionUtils.*;
+import static com.codeberry.tadlib.memorymanagement.DisposalRegister.registerForDisposal;
 import static com.codeberry.tadlib.util.MultiThreadingSupport.TaskRange.taskRange;
 import static com.codeberry.tadlib.util.MultiThreadingSupport.multiThreadingSupportRun;
-import static java.lang.Boolean.TRUE;
+import static com.codeberry.tadlib.util.TaskCost.ofDoubles;
+import static com.codeberry.tadlib.util.TaskCost.taskCost;
 import static java.lang.Math.*;
 import static java.lang.Math.max;
 import static java.lang.Math.min;
 import static java.util.Arrays.*;
 
 public class JavaArray implements NDArray {
+    private static final TaskCost POW_COST = ofDoubles("pow", 20, 2);
+    private static final TaskCost SQRT_COST = ofDoubles("sqrt", 4, 2);
+    private static final TaskCost MUL_SCALAR_COST = ofDoubles("mulScalar", 1, 2);
+
     private final double[] data;
     public final JavaShape shape;
+    private final boolean pooled;
+    private boolean disposed;
+    /**
+     * Bumped by every in place op that writes through this array, for the {@link WinogradConv2d} filter cache.
+     */
+    int version;
 
     public JavaArray(double val) {
         this(new double[]{val}, JavaShape.zeroDim());
@@ -36,69 +48,71 @@ public class JavaArray implements NDArray {
     }
 
     public JavaArray(double[] data, JavaShape shape) {
+        this(data, shape, true);
+    }
+
+    private JavaArray(double[] data, JavaShape shape, boolean register) {
         this.data = data;
         this.shape = shape;
+        this.pooled = JavaBufferPool.retain(data);
+        if (pooled && register) {
+            registerForDisposal(this);
+        }
     }
 
-    public static JavaArray distribute2dMaxGrad(JavaArray grad, JavaShape inputShape, JavaShape maxIndexShape, int[] maxIndexData) {
-        TMutableArray outputGrad = new TMutableArray(inputShape);
-
-        int[] tmpOutputGradIndices = outputGrad.shape.newIndexArray();
-        int[] tmpGradIndices = grad.shape.newIndexArray();
-        int[] tmpMaxIndices = maxIndexShape.newIndexArray();
-        fillMax2dGradInto(outputGrad, maxIndexShape, maxIndexData, grad, 0,
-                tmpOutputGradIndices, tmpGradIndices, tmpMaxIndices);
+    /**
+     * For an array that is disposed by its owner, instead of by the scope that is current when it is created.
+     */
+    static JavaArray owned(double[] data, JavaShape shape) {
+        return new JavaArray(data, shape, false);
+    }
 
-        return outputGrad.migrateToImmutable();
+    /**
+     * Gives the data back to the {@link JavaBufferPool}, when it came from there.
+     */
+    @Override
+    public synchronized void dispose() {
+        if (pooled && !disposed) {
+            disposed = true;
+            JavaBufferPool.release(data);
+        }
     }
 
-    private static void fillMax2dGradInto(TMutableArray outputGrad, JavaShape maxIndexShape, int[] maxIndexData, JavaArray grad, int dim,
-                                          int[] tmpOutputGradIndices, int[] tmpGradIndices, int[] tmpMaxIndices) {
-        if (maxIndexShape.dimCount - dim == 4) {
-            int maxILen = tmpMaxIndices.length;
-            int gradLen = tmpGradIndices.length;
-            int outputLen = tmpOutputGradIndices.length;
-            int h = grad.shape.at(-3);
-            int w = grad.shape.at(-2);
-            int channels = grad.shape.at(-1);
+    /**
+     * Writes each gradient value to the input location its max came from. Windows do not overlap, so every
+     * input location gets at most one value.
+     *
+     * @param maxOffsets the in-window offset of the max of each output value
+     */
+    static JavaArray distribute2dMaxGrad(JavaArray grad, JavaShape inputShape, int size, MaxOffsets maxOffsets) {
+        JavaArray g = grad.asNormalOrdered();
+        double[] gradData = g.data;
+        double[] out = JavaBufferPool.allocate(inputShape.size);
+
+        int inputH = inputShape.at(-3);
+        int inputW = inputShape.at(-2);
+        int h = g.shape.at(-3);
+        int w = g.shape.at(-2);
+        int channels = g.shape.at(-1);
+        int examples = countConv2dExamples(g.shape);
+
+        int outIdx = 0;
+        for (int example = 0; example < examples; example++) {
+            int inBase = example * inputH * inputW * channels;
             for (int y = 0; y < h; y++) {
-                tmpGradIndices[gradLen - 3] = y;
-                tmpMaxIndices[maxILen - 4] = y;
                 for (int x = 0; x < w; x++) {
-                    tmpGradIndices[gradLen - 2] = x;
-                    tmpMaxIndices[maxILen - 3] = x;
                     for (int c = 0; c < channels; c++) {
-                        tmpGradIndices[gradLen - 1] = c;
-                        tmpMaxIndices[maxILen - 2] = c;
-
-                        // y
-                        tmpMaxIndices[maxILen - 1] = 0;
-                        int indexYOffset = maxIndexShape.calcDataIndex(tmpMaxIndices);
-                        int yInInput = maxIndexData[indexYOffset];
-                        // x
-                        tmpMaxIndices[maxILen - 1] = 1;
-                        int indexXOffset = maxIndexShape.calcDataIndex(tmpMaxIndices);
-                        int xInInput = maxIndexData[indexXOffset];
-
-                        double gVal = grad.dataAt(tmpGradIndices);
-
-                        tmpOutputGradIndices[outputLen - 3] = yInInput;
-                        tmpOutputGradIndices[outputLen - 2] = xInInput;
-                        tmpOutputGradIndices[outputLen - 1] = c;
-                        outputGrad.setAt(tmpOutputGradIndices, gVal);
+                        int offset = maxOffsets.get(outIdx);
+                        int inY = y * size + offset / size;
+                        int inX = x * size + offset % size;
+                        out[inBase + (inY * inputW + inX) * channels + c] = gradData[outIdx];
+                        outIdx++;
                     }
                 }
             }
-        } else {
-            int len = maxIndexShape.at(dim);
-            for (int i = 0; i < len; i++) {
-                tmpOutputGradIndices[dim] = i;
-                tmpGradIndices[dim] = i;
-                tmpMaxIndices[dim] = i;
-                fillMax2dGradInto(outputGrad, maxIndexShape, maxIndexData, grad, dim + 1,
-                        tmpOutputGradIndices, tmpGradIndices, tmpMaxIndices);
-            }
         }
+
+        return new JavaArray(out, inputShape);
     }
 
     private static void toSoftmaxGradientOLD(TMutableArray tgt, NDArray predicted, int[] indices, NDArray labelsOneHot, int dim) {
@@ -130,105 +144,27 @@ public class JavaArray implements NDArray {
 
     public JavaArray calcConv2dFilterGradient(NDArray input, NDArray filter) {
         JavaShape filterShape = (JavaShape) filter.getShape();
-        int[] dims = new int[filterShape.dimCount + 1];
-        System.arraycopy(filterShape.toDimArray(), 0, dims, 1, filterShape.dimCount);
-        dims[0] = input.getShape().at(0);
-        JavaShape tgtShape = new JavaShape(dims);
-
-        JavaArray gradPerInputExample = multiThreadingSupportRun(taskRange(0, shape.at(0)),
-                range -> accumulateFilterGradientAtFirstDim(range, (JavaArray) input, tgtShape),
-                (left, right) -> left.add(right));
-
-        return (JavaArray) gradPerInputExample.sumFirstDims(1, REMOVE_DIM);
-    }
-
-    private JavaArray accumulateFilterGradientAtFirstDim(MultiThreadingSupport.TaskRange range, JavaArray input, JavaShape tgtShape) {
-        TMutableArray tgtGrad = new TMutableArray(new double[tgtShape.size], tgtShape);
-
-        int[] gradIndices = this.shape.newIndexArray();
-        int[] inIndices = input.shape.newIndexArray();
-        int[] tgtIndices = tgtShape.newIndexArray();
-
-        for (int i = range.start; i < range.end; i++) {
-            gradIndices[0] = i;
-            inIndices[0] = i;
-            tgtIndices[0] = i;
-            accumulateFilterGradient(gradIndices, 1, input, inIndices, tgtGrad, tgtIndices);
-        }
-
-        return tgtGrad.migrateToImmutable();
-    }
-
-    private void accumulateFilterGradient(int[] gradIndices, int dim,
-                                          JavaArray input, int[] inIndices,
-                                          TMutableArray tgtGrad, int[] tgtIndices) {
-        if (gradIndices.length - dim == 3) {
-            int filterH = tgtGrad.shape.at(1);
-            int filterW = tgtGrad.shape.at(2);
-            int inputChannels = input.shape.at(-1);
-            int outChannels = tgtGrad.shape.at(-1);
-            int tgtDims = tgtIndices.length;
-//            System.out.println("--- Example " + gradIndices[0] + " ---");
-            for (int inIdx = 0; inIdx < inputChannels; inIdx++) {
-                for (int outIdx = 0; outIdx < outChannels; outIdx++) {
-                    for (int y = 0; y < filterH; y++) {
-                        for (int x = 0; x < filterW; x++) {
-//                            System.out.println("- filterGrad["+y+"][" + x+"][" + inIdx+"][" + outIdx+"] -");
-                            double g = sumFilterGradAt(filterH, filterW,
-                                    gradIndices,
-                                    input, inIndices,
-                                    inIdx, outIdx,
-                                    y, x);
-//                            System.out.println("= " + g);
-                            tgtIndices[tgtDims - 4] = y;
-                            tgtIndices[tgtDims - 3] = x;
-                            tgtIndices[tgtDims - 2] = inIdx;
-                            tgtIndices[tgtDims - 1] = outIdx;
-                            tgtGrad.setAt(tgtIndices, g);
-                        }
-                    }
-                }
-            }
-        } else {
-            int len = shape.at(dim);
-            for (int i = 0; i < len; i++) {
-                gradIndices[dim] = i;
-                inIndices[dim] = i;
-                tgtIndices[dim] = i;
-                accumulateFilterGradient(gradIndices, dim + 1, input, inIndices, tgtGrad, tgtIndices);
-            }
-        }
+        int filterHeight = filterShape.at(0);
+        int filterWidth = filterShape.at(1);
+        JavaArray in = javaArray(input).asNormalOrdered();
+        JavaArray grad = asNormalOrdered();
+
+        double[] filterGrad = multiThreadingSupportRun(taskRange(0, countConv2dExamples(grad.shape),
+                        conv2dCost("conv2dFilterGradient", in.shape, grad.shape, filterHeight, filterWidth)),
+                range -> Im2ColConv2d.accumulateFilterGradient(range,
+                        in.data, in.shape, grad.data, grad.shape,
+                        filterHeight, filterWidth,
+                        -(filterHeight - 1) / 2, -(filterWidth - 1) / 2),
+                JavaArray::addInto);
+
+        return new JavaArray(filterGrad, new JavaShape(filterShape.toDimArray()));
     }
 
-    private double sumFilterGradAt(int filterH, int filterW,
-                                   int[] gradIndices,
-                                   JavaArray input, int[] inIndices,
-                                   int inIdx, int outIdx,
-                                   int offsetGradY, int offsetGradX) {
-        int inputH = input.shape.at(-3);
-        int inputW = input.shape.at(-2);
-        int offsetY = (filterH - 1) / 2;
-        int offsetX = (filterW - 1) / 2;
-        int len = gradIndices.length;
-        gradIndices[len - 1] = outIdx;
-        inIndices[len - 1] = inIdx;
-        double g = 0;
-        for (int y = 0; y < inputH; y++) {
-            for (int x = 0; x < inputW; x++) {
-                inIndices[len - 3] = y;
-                inIndices[len - 2] = x;
-                double inputVal = input.dataAt(inIndices);
-//                System.out.print("input...[" + inIndices[len - 3] + "][" + inIndices[len - 2] + "][" + inIndices[len - 1] + "]" );
-
-                gradIndices[len - 3] = y - offsetGradY + offsetY;
-                gradIndices[len - 2] = x - offsetGradX + offsetX;
-                double gradVal = dataAt(gradIndices);
-//                System.out.print(" * grad...[" + gradIndices[len - 3] + "][" + gradIndices[len - 2] + "][" + gradIndices[len - 1] + "]");
-//                System.out.println(" -> " + inputVal + " * " + gradVal + " (=" + inputVal * gradVal + ")");
-                g += inputVal * gradVal;
-            }
+    private static double[] addInto(double[] target, double[] values) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] += values[i];
         }
-        return g;
+        return target;
     }
 
     @Override
@@ -240,8 +176,35 @@ public class JavaArray implements NDArray {
         return data;
     }
 
+    @Override
+    public NDArray asType(DType dType) {
+        return dType == DType.FLOAT32 ? JavaFloatArray.narrow(this) : this;
+    }
+
+    /**
+     * @throws DTypeMismatch when the other array is not {@link DType#FLOAT64}
+     */
+    static JavaArray javaArray(NDArray other) {
+        if (other.getDType() != DType.FLOAT64) {
+            throw DTypeMismatch.of(DType.FLOAT64, other.getDType());
+        }
+        if (other instanceof JavaLazyArray) {
+            return ((JavaLazyArray) other).materialize();
+        }
+        if (other instanceof JavaSparseArray) {
+            return ((JavaSparseArray) other).toDense();
+        }
+        if (other instanceof JavaOffHeapArray) {
+            return ((JavaOffHeapArray) other).toHeap();
+        }
+        if (other instanceof JavaArraySlice) {
+            return ((JavaArraySlice) other).toDense();
+        }
+        return (JavaArray) other;
+    }
+
     public JavaArray softmax() {
-        TMutableArray output = new TMutableArray(new double[this.data.length], shape);
+        TMutableArray output = new TMutableArray(JavaBufferPool.allocate(this.data.length), shape);
 
         fillSoftMax(this, output, output.shape.newIndexArray(), 0);
 
@@ -253,23 +216,64 @@ public class JavaArray implements NDArray {
         return SoftmaxUtils.calcSoftmaxCrossEntropyGradient(softmax, oneHotArray).mul(this);
     }
 
+    /**
+     * One pass per row: the exps are written to the gradient buffer, then scaled in place to the softmax,
+     * and the loss uses log-sum-exp, clipped like the one hot loss by {@link SoftmaxUtils#clipExampleLoss(double)}.
+     */
+    @Override
+    public SoftmaxCrossEntropyResult softmaxCrossEntropy(NDIntArray labels) {
+        validateSameDimensionsExcept("labels", shape, labels.getShape(), -1);
+
+        JavaArray src = asNormalOrdered();
+        double[] logits = src.data;
+        int[] labelData = ((JavaIntArray) labels).data;
+        int classes = shape.at(-1);
+        double[] grad = JavaBufferPool.allocate(logits.length);
+
+        double loss = 0;
+        for (int row = 0, offset = 0; row < labelData.length; row++, offset += classes) {
+            int label = labelData[row];
+            if (label < 0 || label >= classes) {
+                throw new IndexOutOfBoundsException("Labels must be in range [0," + classes + "): actual.labels[" + row + "]=" + label);
+            }
+
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = offset; i < offset + classes; i++) {
+                max = max(max, logits[i]);
+            }
+            double expSum = 0;
+            for (int i = offset; i < offset + classes; i++) {
+                double exped = exp(logits[i] - max);
+                grad[i] = exped;
+                expSum += exped;
+            }
+            double scale = 1.0 / expSum;
+            for (int i = offset; i < offset + classes; i++) {
+                grad[i] *= scale;
+            }
+            grad[offset + label] -= 1.0;
+
+            loss += SoftmaxUtils.clipExampleLoss(Math.log(expSum) - (logits[offset + label] - max));
+        }
+
+        return new SoftmaxUtils.SoftmaxCrossEntropyResult(new JavaArray(loss), new JavaArray(grad, src.shape));
+    }
+
     @Override
     public DropOutResult dropOut(Random rnd, double dropoutKeep) {
-        double gradValue = 1.0 / dropoutKeep;
         JavaArray output = normalOrderedCopy();
         double[] data = output.getInternalData();
-        double[] gradMaskData = new double[data.length];
-        int[] dims = output.shape.toDimArray();
+        BitMask kept = new BitMask(output.shape, 1.0 / dropoutKeep, 0);
         for (int i = 0; i < data.length; i++) {
             if (rnd.nextDouble() >= dropoutKeep) {
                 data[i] = 0;
             } else {
                 data[i] /= dropoutKeep;
-                gradMaskData[i] = gradValue;
+                kept.set(i);
             }
         }
 
-        return new JavaDropOutResult(output, gradMaskData, dims);
+        return new JavaDropOutResult(output, kept);
     }
 
     @Override
@@ -285,14 +289,10 @@ public class JavaArray implements NDArray {
     public NDArray clip(Double min, Double max) {
         JavaArray copy = normalOrderedCopy();
 
-        for (int i = 0; i < copy.data.length; i++) {
-            if (min != null) {
-                copy.data[i] = max(copy.data[i], min);
-            }
-            if (max != null) {
-                copy.data[i] = min(copy.data[i], max);
-            }
-        }
+        ElementKernels.get().clip(copy.data,
+                min != null ? min : Double.NEGATIVE_INFINITY,
+                max != null ? max : Double.POSITIVE_INFINITY,
+                copy.data, 0, copy.data.length);
 
         return copy;
     }
@@ -301,9 +301,7 @@ public class JavaArray implements NDArray {
     public NDArray log() {
         JavaArray copy = normalOrderedCopy();
 
-        for (int i = 0; i < copy.data.length; i++) {
-            copy.data[i] = Math.log(copy.data[i]);
-        }
+        ElementKernels.get().log(copy.data, copy.data, 0, copy.data.length);
 
         return copy;
     }
@@ -416,7 +414,7 @@ public class JavaArray implements NDArray {
         double[] data = Arrays.copyOf(src.data, src.data.length);
 
         if (shape.getDimCount() == 1) {
-            data[((JavaIntArray) indices).data[0]] = ((JavaArray)change).data[0];
+            data[((JavaIntArray) indices).data[0]] = javaArray(change).data[0];
         } else {
             fillValuesIndicesOnAxis(indices, data, shape, shape.newIndexArray(), safeAxis, axisLen,
                     change, change.getShape(), change.getShape().newIndexArray(), 0);
@@ -498,6 +496,10 @@ public class JavaArray implements NDArray {
         return new JavaArray(data, (JavaShape) outShape);
     }
 
+    /**
+     * Copies, for each index of the axes before the concat axis, one block per source: the axis and the axes after
+     * it are contiguous in normal order.
+     */
     @Override
     public NDArray concat(NDArray[] appendees, int axis) {
         int safeAxis = getShape().wrapIndex(axis);
@@ -506,21 +508,38 @@ public class JavaArray implements NDArray {
         Shape[] shapes = extractShapes(srcs);
 
         validateConcatShapes(shapes, safeAxis);
-        Shape outShape = evalConcatShape(shapes, safeAxis);
+        JavaShape outShape = (JavaShape) evalConcatShape(shapes, safeAxis);
 
-        double[] data = new double[toIntExact(outShape.getSize())];
+        double[] data = JavaBufferPool.allocate(outShape.size);
 
-        fillConcat(srcs, getShape().newIndexArray(),
-                safeAxis, extractAxisLen(shapes, safeAxis),
-                data, outShape, outShape.newIndexArray(), 0);
+        int outer = 1;
+        for (int i = 0; i < safeAxis; i++) {
+            outer *= outShape.at(i);
+        }
+        int inner = 1;
+        for (int i = safeAxis + 1; i < outShape.dimCount; i++) {
+            inner *= outShape.at(i);
+        }
+        int outBlock = outShape.at(safeAxis) * inner;
+        int outOffset = 0;
+        for (JavaArray src : srcs) {
+            double[] srcData = src.asNormalOrdered().data;
+            int block = src.shape.at(safeAxis) * inner;
+            for (int o = 0; o < outer; o++) {
+                System.arraycopy(srcData, o * block, data, o * outBlock + outOffset, block);
+            }
+            outOffset += block;
+        }
 
-        return new JavaArray(data, (JavaShape) outShape);
+        return new JavaArray(data, outShape);
     }
 
     private static JavaArray[] toArray(JavaArray firstElement, NDArray[] appendees) {
         JavaArray[] copy = new JavaArray[appendees.length + 1];
-        System.arraycopy(appendees, 0, copy, 1, appendees.length);
         copy[0] = firstElement;
+        for (int i = 0; i < appendees.length; i++) {
+            copy[i + 1] = javaArray(appendees[i]);
+        }
         return copy;
     }
 
@@ -533,84 +552,16 @@ public class JavaArray implements NDArray {
         return r;
     }
 
-    private static void fillConcat(JavaArray[] srcs, int[] srcIndices,
-                                   int axis, int[] axisLens,
-                                   double[] data, Shape outShape, int[] outIndices, int dim) {
-        int outLen = outShape.at(dim);
-
-        for (int i = 0; i < outLen; i++) {
-            outIndices[dim] = i;
-            srcIndices[dim] = i;
-
-            if (dim == outIndices.length - 1) {
-                //... then is the last dimension
-                int workingIndex = outIndices[axis];
-
-                int srcIndex = 0;
-                while (workingIndex >= axisLens[srcIndex]) {
-                    workingIndex -= axisLens[srcIndex];
-                    srcIndex++;
-                }
-                srcIndices[axis] = workingIndex;
-                JavaArray src = srcs[srcIndex];
-
-                double val = src.dataAt(srcIndices);
-
-                data[outShape.calcDataIndex(outIndices)] = val;
-            } else {
-                fillConcat(srcs, srcIndices, axis, axisLens, data, outShape, outIndices, dim + 1);
-            }
-        }
-    }
-
+    /**
+     * @return parts that read the data of this array, see {@link JavaArraySlice}
+     */
     @Override
     public List<NDArray> split(int axis, int[] axisLens) {
-        Shape shape = getShape();
         int safeAxis = shape.wrapNegIndex(axis);
         validateSplitLens(shape, safeAxis, axisLens);
 
-        List<NDArray> parts = new ArrayList<>();
-        int offset = 0;
-        for (int axisLen : axisLens) {
-            Shape outShape = evalSplitShape(shape, safeAxis, axisLen);
-            double[] data = new double[toIntExact(outShape.getSize())];
-            fillSplit(this, shape.newIndexArray(), safeAxis, offset, axisLen,
-                    data, outShape, outShape.newIndexArray(), 0);
-
-            parts.add(new JavaArray(data, (JavaShape) outShape));
-
-            offset += axisLen;
-        }
-        return parts;
-    }
-
-    private static void fillSplit(JavaArray src, int[] srcIndices,
-                           int axis, int offset, int axisLen,
-                           double[] data, Shape outShape, int[] outIndices,
-                           int dim) {
-        int len, _offset;
-
-        if (dim == axis) {
-            len = axisLen;
-            _offset = offset;
-        } else {
-            len = src.shape.at(dim);
-            _offset = 0;
-        }
-
-        for (int i = 0; i < len; i++) {
-            srcIndices[dim] = i + _offset;
-            outIndices[dim] = i;
-
-            if (dim == outIndices.length - 1) {
-                //... then is the last dimension
-
-                int outOffset = outShape.calcDataIndex(outIndices);
-                data[outOffset] = src.dataAt(srcIndices);
-            } else {
-                fillSplit(src, srcIndices, axis, offset, axisLen, data, outShape, outIndices, dim + 1);
-            }
-        }
+        return JavaArraySlice.split(data, shape.toDimArray(), shape.strides(), shape.baseOffset(),
+                safeAxis, axisLens);
     }
 
     private static void fillDiagonal(JavaArray src, int[] srcIndices, double[] out, Shape outShape, int[] outIndices, int srcDim) {
@@ -644,6 +595,11 @@ public class JavaArray implements NDArray {
         return new JavaArray(data, outShape);
     }
 
+    @Override
+    public Object getDataOwner() {
+        return data;
+    }
+
     public JavaArray reshape(int... dims) {
         return new JavaArray(this.data, this.shape.reshape(dims));
     }
@@ -659,7 +615,10 @@ public class JavaArray implements NDArray {
 
     @Override
     public NDArray matmul(NDArray b) {
-        return matmul((JavaArray) b);
+        if (b instanceof JavaSparseArray) {
+            return ((JavaSparseArray) b).leftMatmul(this);
+        }
+        return matmul(javaArray(b));
     }
 
     public JavaArray matmul(JavaArray b) {
@@ -667,7 +626,13 @@ public class JavaArray implements NDArray {
     }
 
     public JavaArray add(NDArray b) {
-        return add(this, (JavaArray) b);
+        if (b instanceof JavaSparseArray) {
+            return ((JavaSparseArray) b).addTo(this);
+        }
+        if (b instanceof JavaArraySlice) {
+            return ((JavaArraySlice) b).binary(BinaryOp.ADD, this, false);
+        }
+        return add(this, javaArray(b));
     }
 
     private static JavaArray add(JavaArray a, JavaArray b) {
@@ -683,19 +648,21 @@ public class JavaArray implements NDArray {
         validateBroadcastShapes(a.shape, b.shape, -1);
         JavaShape outShape = evalBroadcastOutputShape(a.shape, b.shape);
 
-        int[] indexArray = outShape.newIndexArray();
-        double[] data = new double[outShape.size];
+        double[] data = JavaBufferPool.allocate(outShape.size);
 
-        add(a, b, data, outShape, indexArray, 0);
+        BroadcastPlan plan = BroadcastPlan.plan(a.shape, b.shape);
+        if (plan != null) {
+            plan.apply(BinaryOp.ADD, a.data, b.data, data);
+        } else {
+            add(a, b, data, outShape);
+        }
 
         return new JavaArray(data, outShape);
     }
 
     private static JavaArray fastAdd(JavaArray a, JavaArray b) {
-        double[] data = copyOf(a.data, a.data.length);
-        for (int i = data.length - 1; i >= 0; i--) {
-            data[i] += b.data[i];
-        }
+        double[] data = JavaBufferPool.allocate(a.data.length);
+        ElementKernels.get().add(a.data, b.data, data, 0, data.length);
         return new JavaArray(data, a.shape.copy());
     }
 
@@ -706,112 +673,102 @@ public class JavaArray implements NDArray {
 
     @Override
     public JavaArray conv2d(NDArray filter, int offsetY, int offsetX) {
-        return conv2d(this, (JavaArray) filter, offsetY, offsetX);
+        Shape filterShape = filter.getShape();
+
+        return conv2d(filter,
+                offsetY - (filterShape.at(0) - 1) / 2,
+                offsetX - (filterShape.at(1) - 1) / 2,
+                shape.at(-3), shape.at(-2));
     }
 
-    private static JavaArray conv2d(JavaArray input, JavaArray filter, int offsetY, int offsetX) {
+    @Override
+    public JavaArray conv2d(NDArray filter, int offsetY, int offsetX, int outHeight, int outWidth) {
+        return conv2d(this, javaArray(filter), offsetY, offsetX, outHeight, outWidth);
+    }
+
+    private static JavaArray conv2d(JavaArray input, JavaArray filter, int offsetY, int offsetX,
+                                    int outHeight, int outWidth) {
         NDArray.validateConv2dShapes(input.shape, filter.shape);
 
-        JavaShape outShape = evalConv2DShape(input.shape, filter.shape);
-        double[] data = new double[outShape.size];
+        JavaArray in = input.asNormalOrdered();
+        JavaShape outShape = evalConv2DShape(in.shape, filter.shape, outHeight, outWidth);
+        double[] data = JavaBufferPool.allocate(outShape.size);
+
+        double[] filledData;
+        if (WinogradConv2d.isSupported(filter.shape)) {
+            WinogradConv2d.FilterTransform transform = WinogradConv2d.transform(filter);
+            filledData = multiThreadingSupportRun(taskRange(0, countConv2dExamples(in.shape),
+                            conv2dCost("conv2d", in.shape, outShape, filter.shape.at(0), filter.shape.at(1))),
+                    range -> WinogradConv2d.conv2d(range,
+                            in.data, in.shape, transform, false,
+                            offsetY, offsetX,
+                            data, outShape),
+                    (left, ignored) -> left);
+        } else {
+            JavaArray f = filter.asNormalOrdered();
+            filledData = multiThreadingSupportRun(taskRange(0, countConv2dExamples(in.shape),
+                            conv2dCost("conv2d", in.shape, outShape, f.shape.at(0), f.shape.at(1))),
+                    range -> Im2ColConv2d.conv2d(range,
+                            in.data, in.shape, f.data, f.shape,
+                            offsetY, offsetX,
+                            data, outShape),
+                    (left, ignored) -> left);
+        }
+
+        return new JavaArray(filledData, outShape);
+    }
+
+    /**
+     * Uses the cached Winograd transform of the forward filter, when possible, instead of
+     * transforming a rotated copy.
+     */
+    @Override
+    public NDArray calcConv2dInputGradient(NDArray filter) {
+        JavaArray f = javaArray(filter);
+        if (!WinogradConv2d.isSupported(f.shape)) {
+            return NDArray.super.calcConv2dInputGradient(filter);
+        }
+        NDArray.validateConv2dShapes(shape, f.shape);
 
-        double[] filledData = multiThreadingSupportRun(taskRange(0, input.shape.at(0)),
-                range -> conv2dSegmentedAtFirstDim(range.start, range.end, input, filter, offsetY, offsetX,
+        JavaArray grad = asNormalOrdered();
+        int[] dims = grad.shape.toDimArray();
+        dims[dims.length - 1] = f.shape.at(2);
+        JavaShape outShape = new JavaShape(dims);
+        double[] data = JavaBufferPool.allocate(outShape.size);
+
+        WinogradConv2d.FilterTransform transform = WinogradConv2d.transform(f);
+        double[] filledData = multiThreadingSupportRun(taskRange(0, countConv2dExamples(grad.shape),
+                        conv2dCost("conv2dInputGradient", grad.shape, outShape, f.shape.at(0), f.shape.at(1))),
+                range -> WinogradConv2d.conv2d(range,
+                        grad.data, grad.shape, transform, true,
+                        -1, -1,
                         data, outShape),
                 (left, ignored) -> left);
 
         return new JavaArray(filledData, outShape);
     }
 
-    private static double[] conv2dSegmentedAtFirstDim(int start, int end,
-                                                      JavaArray input, JavaArray filter,
-                                                      int offsetY, int offsetX,
-                                                      double[] data, JavaShape outShape) {
-        int[] inIndices = input.shape.newIndexArray();
-        int[] fIndices = filter.shape.newIndexArray();
-        int[] outIndices = outShape.newIndexArray();
-        for (int i = start; i < end; i++) {
-            inIndices[0] = i;
-            outIndices[0] = i;
-            conv2dMain(input, inIndices, 1,
-                    filter, fIndices,
-                    offsetY, offsetX, data, outShape, outIndices);
-        }
-        return data;
+    /**
+     * @return cost of one example, as a direct convolution
+     */
+    static TaskCost conv2dCost(String op, JavaShape in, JavaShape out, int filterHeight, int filterWidth) {
+        double outValues = (double) out.at(-3) * out.at(-2) * out.at(-1);
+        double inValues = (double) in.at(-3) * in.at(-2) * in.at(-1);
+        return taskCost(op,
+                2 * outValues * filterHeight * filterWidth * in.at(-1),
+                Double.BYTES * (inValues + outValues));
     }
 
-    private static void conv2dMain(JavaArray input, int[] inIndices, int inDim,
-                                   JavaArray filter, int[] fIndices, int offsetY, int offsetX,
-                                   double[] data, JavaShape outShape, int[] outIndices) {
-        if (inIndices.length - inDim == 3) {
-            int h = outShape.at(-3);
-            int w = outShape.at(-2);
-            // Eg.: in: <...,5,5,2> filter: <3,3,2,3>
-            for (int y = 0; y < h; y++) {
-                inIndices[inIndices.length - 3] = y;
-                outIndices[outIndices.length - 3] = y;
-                for (int x = 0; x < w; x++) {
-                    inIndices[inIndices.length - 2] = x;
-                    outIndices[outIndices.length - 2] = x;
-                    conv2dAt(input, inIndices,
-                            filter, fIndices, offsetY, offsetX,
-                            data, outShape, outIndices);
-                }
-            }
-        } else {
-            int len = input.shape.at(inDim);
-            for (int i = 0; i < len; i++) {
-                inIndices[inDim] = i;
-                outIndices[inDim] = i;
-                conv2dMain(input, inIndices, inDim + 1,
-                        filter, fIndices,
-                        offsetY, offsetX, data, outShape, outIndices);
-            }
-        }
+    /**
+     * @return 0 when the examples are empty, so the conv loops do nothing
+     */
+    static int countConv2dExamples(JavaShape normalOrderedShape) {
+        int exampleSize = normalOrderedShape.at(-3) * normalOrderedShape.at(-2) * normalOrderedShape.at(-1);
+        return exampleSize == 0 ? 0 : normalOrderedShape.size / exampleSize;
     }
 
-    // Eg.: in: <...,5,5,2> filter: <3,3,2,3>
-    private static void conv2dAt(JavaArray input, int[] inIndices,
-                                 JavaArray filter, int[] fIndices, int offsetY, int offsetX,
-                                 double[] data, JavaShape outShape, int[] outIndices) {
-        int fLen = fIndices.length;
-        int inLen = inIndices.length;
-        int outLen = outIndices.length;
-        int inYIdx = inLen - 3;
-        int inXIdx = inLen - 2;
-        int oldY = inIndices[inYIdx];
-        int oldX = inIndices[inXIdx];
-        int fH = filter.shape.at(0);
-        int fW = filter.shape.at(1);
-        int fYOffset = -(fH - 1) / 2 + offsetY;
-        int fXOffset = -(fW - 1) / 2 + offsetX;
-        int inCount = input.shape.at(-1);
-        int outCount = outShape.at(-1);
-        for (int outI = 0; outI < outCount; outI++) {
-            fIndices[fLen - 1] = outI;
-            double v = 0;
-            for (int inI = 0; inI < inCount; inI++) {
-                inIndices[inLen - 1] = inI;
-                fIndices[fLen - 2] = inI;
-                for (int y = 0; y < fH; y++) {
-                    inIndices[inYIdx] = oldY + y + fYOffset;
-                    fIndices[0] = y;
-                    for (int x = 0; x < fW; x++) {
-                        inIndices[inXIdx] = oldX + x + fXOffset;
-                        fIndices[1] = x;
-                        double iVal = input.dataAt(inIndices);
-                        double fVal = filter.dataAt(fIndices);
-                        v += iVal * fVal;
-                    }
-                }
-            }
-            outIndices[outLen - 1] = outI;
-            int idx = outShape.calcDataIndex(outIndices);
-            data[idx] = v;
-        }
-
-        inIndices[inYIdx] = oldY;
-        inIndices[inXIdx] = oldX;
+    JavaArray asNormalOrdered() {
+        return shape.getClass() == JavaShape.class ? this : normalOrderedCopy();
     }
 
     /**
@@ -827,63 +784,71 @@ public class JavaArray implements NDArray {
 
     @Override
     public NDArray compare(NDIntArray other, Comparison comparison, double trueValue, double falseValue) {
-        Shape leftShape = this.shape;
-        Shape rightShape = other.getShape();
-        IntFunction<Double> left = offset -> this.data[offset];
-        IntFunction<Double> right = offset -> (double) ((JavaIntArray) other).data[offset];
+        JavaIntArray o = (JavaIntArray) other;
 
-        return CompareHelper.compare(comparison::doubleIsTrue, trueValue, falseValue,
-                leftShape, rightShape, left, right, new DoubleNDArrayWriter());
+        return CompareHelper.compare(comparison, trueValue, falseValue,
+                data, shape, o.data, o.getShape());
     }
 
     @Override
     public NDArray compare(NDArray other, Comparison comparison, double trueValue, double falseValue) {
-        Shape leftShape = this.shape;
-        Shape rightShape = other.getShape();
-        IntFunction<Double> left = offset -> this.data[offset];
-        IntFunction<Double> right = offset -> ((JavaArray) other).data[offset];
+        JavaArray o = javaArray(other);
 
-        return CompareHelper.compare(comparison::doubleIsTrue, trueValue, falseValue,
-                leftShape, rightShape, left, right, new DoubleNDArrayWriter());
+        return CompareHelper.compare(comparison, trueValue, falseValue,
+                data, shape, o.data, o.shape);
     }
 
-    private static JavaShape evalConv2DShape(JavaShape input, JavaShape filter) {
+    static JavaShape evalConv2DShape(JavaShape input, JavaShape filter, int outHeight, int outWidth) {
         int[] dims = input.normalOrderedCopy().dims;
+        dims[dims.length - 3] = outHeight;
+        dims[dims.length - 2] = outWidth;
         dims[dims.length - 1] = filter.at(-1);
         return new JavaShape(dims);
     }
 
     private static JavaArray matmul(JavaArray a, JavaArray b) {
+        return matmul(a, b, true);
+    }
+
+    /**
+     * Always uses the unblocked, index based, matmul. Meant for reference and benchmarking.
+     */
+    static JavaArray matmulUnblocked(JavaArray a, JavaArray b) {
+        return matmul(a, b, false);
+    }
+
+    private static JavaArray matmul(JavaArray a, JavaArray b, boolean allowBlocked) {
         MatMulParams params = MatMulParams.expandSingleDimArrays(a.shape, b.shape, JavaShape::new);
 
         validateMatMulShapes(params.leftShape, params.rightShape);
         validateBroadcastShapes(params.leftShape, params.rightShape, -3);
 
         JavaShape outShape = evalMatMulShape(params.leftShape, params.rightShape);
-        double[] data = new double[outShape.size];
+        double[] data = JavaBufferPool.allocate(outShape.size);
 
         JavaArray left = params.promoteLeft ? new JavaArray(a.data, (JavaShape) params.leftShape) : a;
         JavaArray right = params.promoteRight ? new JavaArray(b.data, (JavaShape) params.rightShape) : b;
 
         int outputRows = outShape.at(-2);
-        double[] filledData = multiThreadingSupportRun(
-                taskRange(0, outputRows)
-                        .withMinimumWorkLength(decideMinimumRowsPerThread(params.leftShape, outShape)),
-                range -> matmul(range, left, right,
-                        data, outShape, outShape.newIndexArray(), 0),
-                (_left, ignored_) -> _left);
+        double[] filledData;
+        if (allowBlocked &&
+                BlockedMatMul.isSupported(left.shape) && BlockedMatMul.isSupported(right.shape)) {
+            filledData = BlockedMatMul.matmul(left.data, left.shape, right.data, right.shape, data, outShape);
+        } else {
+            int k = params.leftShape.at(-1);
+            int n = outShape.at(-1);
+            filledData = multiThreadingSupportRun(
+                    taskRange(0, outputRows,
+                            taskCost("matmul", 2.0 * k * n, Double.BYTES * ((double) k * n + k + n))),
+                    range -> matmul(range, left, right,
+                            data, outShape, outShape.newIndexArray(), 0),
+                    (_left, ignored_) -> _left);
+        }
 
         return new JavaArray(filledData,
                 (JavaShape) params.revertDimExpandOfOutputShape(outShape));
     }
 
-    private static int decideMinimumRowsPerThread(Shape leftShape, Shape outShape) {
-        int valuesToMulPerOutput = leftShape.at(-1);
-        int outputsPerRow = outShape.at(-1);
-
-        return 1 + 512 / (valuesToMulPerOutput * outputsPerRow);
-    }
-
     public JavaArray normalOrderedCopy() {
         JavaShape tgtShape = this.shape.normalOrderedCopy();
         double[] data = this.shape.convertDataToShape(this.data, tgtShape);
@@ -920,25 +885,21 @@ public class JavaArray implements NDArray {
         return new JavaArray(m.data, new JavaShape(dimArr));
     }
 
-    private static void add(JavaArray a, JavaArray b,
-                            double[] out, JavaShape outShape,
-                            int[] indices, int dim) {
-        if (indices.length - dim == 1) {
-            //...the last index
-            int w = outShape.at(-1);
-            int dims = indices.length;
-            for (int x = 0; x < w; x++) {
-                indices[dims - 1] = x;
-                double _a = a.getBroadcasted(indices);
-                double _b = b.getBroadcasted(indices);
-                int outIndex = outShape.calcDataIndex(indices);
-                out[outIndex] = _a + _b;
-            }
-        } else {
-            int at = outShape.at(dim);
-            for (int i = 0; i < at; i++) {
-                indices[dim] = i;
-                add(a, b, out, outShape, indices, dim + 1);
+    private static void add(JavaArray a, JavaArray b, double[] out, JavaShape outShape) {
+        NDIter it = broadcastIter(a, b, outShape);
+        int len = it.innerLength();
+        int outStride = it.innerStride(0);
+        int aStride = it.innerStride(1);
+        int bStride = it.innerStride(2);
+        for (; it.hasNext(); it.next()) {
+            int outIdx = it.offset(0);
+            int aIdx = it.offset(1);
+            int bIdx = it.offset(2);
+            for (int i = 0; i < len; i++) {
+                out[outIdx] = a.data[aIdx] + b.data[bIdx];
+                outIdx += outStride;
+                aIdx += aStride;
+                bIdx += bStride;
             }
         }
     }
@@ -981,6 +942,14 @@ public class JavaArray implements NDArray {
         return out;
     }
 
+    private static NDIter broadcastIter(JavaArray a, JavaArray b, JavaShape outShape) {
+        int[] dims = outShape.dims;
+        return NDIter.iterate(dims,
+                NDIter.operand(outShape.strides(), 0),
+                NDIter.broadcast(a.shape, dims),
+                NDIter.broadcast(b.shape, dims));
+    }
+
     private double getBroadcasted(int[] indices) {
         int offset = shape.getBroadcastOffset(indices);
 
@@ -1003,147 +972,97 @@ public class JavaArray implements NDArray {
         return new JavaArray(data, shape);
     }
 
+    /**
+     * Every view covers all the data, so the order does not matter.
+     */
     public JavaArray sum() {
-        Boolean[] toCollapse = new Boolean[shape.dimCount];
-        fill(toCollapse, TRUE);
-        return sum(toCollapse, REMOVE_DIM);
+        return new JavaArray(ElementKernels.get().sum(data, 0, data.length));
     }
 
     @Override
     public JavaMaxPool2dResult maxPool2d(int size) {
         JavaShape outShape = (JavaShape) getMaxPool2dResultShape(shape, size);
 
-        TMutableArray tgt = new TMutableArray(new double[outShape.size], outShape);
-
-        int[] inputIndices = shape.newIndexArray();
-        int[] tgtIndices = outShape.newIndexArray();
-        JavaShape maxIndexShape = createMax2dIndexShape(outShape);
-        int[] tmpMaxIndices = maxIndexShape.newIndexArray();
-        int[] maxIndexData = new int[maxIndexShape.size];
-
-        fillMax2d(inputIndices, size, tgt, tgtIndices,
-                maxIndexShape, maxIndexData, tmpMaxIndices,
-                0);
-
-        return new JavaMaxPool2dResult(tgt.migrateToImmutable(), shape, maxIndexShape, maxIndexData);
-    }
-
-    private void fillMax2d(int[] inputIndices, int size,
-                           TMutableArray tgt, int[] tgtIndices,
-                           JavaShape maxIndexShape, int[] maxIndexData, int[] tmpMaxIndices,
-                           int dim) {
-        if (inputIndices.length - dim == 3) {
-            int len = tgtIndices.length;
-            int h = tgt.shape.at(-3);
-            int w = tgt.shape.at(-2);
-            int channels = tgt.shape.at(-1);
-            for (int y = 0; y < h; y++) {
-                tgtIndices[len - 3] = y;
-                tmpMaxIndices[len - 3] = y;
-                for (int x = 0; x < w; x++) {
-                    tgtIndices[len - 2] = x;
-                    tmpMaxIndices[len - 2] = x;
-                    for (int c = 0; c < channels; c++) {
-                        tgtIndices[len - 1] = c;
-                        tmpMaxIndices[len - 1] = c;
-
-                        double maxVal = getMax2dVal(inputIndices,
-                                y * size, x * size, c, size,
-                                maxIndexShape, maxIndexData, tmpMaxIndices);
+        double[] out = JavaBufferPool.allocate(outShape.size);
+        MaxOffsets maxOffsets = MaxOffsets.forWindow(size, outShape.size);
 
-                        tgt.setAt(tgtIndices, maxVal);
-                    }
-                }
-            }
-        } else {
-            int len = shape.at(dim);
-            for (int i = 0; i < len; i++) {
-                inputIndices[dim] = i;
-                tgtIndices[dim] = i;
-                tmpMaxIndices[dim] = i;
+        fillMax2d(size, out, outShape, maxOffsets);
 
-                fillMax2d(inputIndices, size, tgt, tgtIndices,
-                        maxIndexShape, maxIndexData, tmpMaxIndices,
-                        dim + 1);
-            }
-        }
+        return new JavaMaxPool2dResult(new JavaArray(out, outShape), shape.normalOrderedCopy(), size, maxOffsets);
     }
 
-    private double getMax2dVal(int[] inputIndices,
-                               int yInputOffset, int xInputOffset, int c,
-                               int size,
-                               JavaShape maxIndexShape, int[] maxIndexData, int[] tmpMaxIndices) {
-        double max = Double.NEGATIVE_INFINITY;
-        int len = inputIndices.length;
-        inputIndices[len - 1] = c;
-        int maxY = -1;
-        int maxX = -1;
-
+    /**
+     * The max offsets hold the location of each output value within its window.
+     */
+    private void fillMax2d(int size, double[] out, JavaShape outShape, MaxOffsets maxOffsets) {
+        int dimCount = shape.dimCount;
+        int[] inStrides = shape.strides();
+        int inYStride = inStrides[dimCount - 3];
+        int inXStride = inStrides[dimCount - 2];
+        int inCStride = inStrides[dimCount - 1];
         int inputH = shape.at(-3);
         int inputW = shape.at(-2);
-
-        for (int y = 0; y < size; y++) {
-            int inY = y + yInputOffset;
-
-            if (inY < inputH) {
-                inputIndices[len - 3] = inY;
-                for (int x = 0; x < size; x++) {
-                    int inX = x + xInputOffset;
-                    if (inX < inputW) {
-                        inputIndices[len - 2] = inX;
-                        double inVal = dataAt(inputIndices);
-                        if (inVal > max) {
-                            maxY = inY;
-                            maxX = inX;
-                            max = inVal;
+        int h = outShape.at(-3);
+        int w = outShape.at(-2);
+        int channels = outShape.at(-1);
+
+        NDIter it = NDIter.iterate(copyOf(outShape.dims, dimCount - 3),
+                NDIter.operand(copyOf(inStrides, dimCount - 3), shape.baseOffset()),
+                NDIter.operand(copyOf(outShape.strides(), dimCount - 3), 0));
+        for (; it.hasNext(); it.next()) {
+            int inBase = it.offset(0);
+            int outIdx = it.offset(1);
+            for (int example = 0; example < it.innerLength(); example++) {
+                for (int y = 0; y < h; y++) {
+                    int yStart = y * size;
+                    int yEnd = min(yStart + size, inputH);
+                    for (int x = 0; x < w; x++) {
+                        int xStart = x * size;
+                        int xEnd = min(xStart + size, inputW);
+                        for (int c = 0; c < channels; c++) {
+                            double max = Double.NEGATIVE_INFINITY;
+                            int maxY = yStart;
+                            int maxX = xStart;
+                            int inC = inBase + c * inCStride;
+                            for (int inY = yStart; inY < yEnd; inY++) {
+                                int inRow = inC + inY * inYStride;
+                                for (int inX = xStart; inX < xEnd; inX++) {
+                                    double inVal = data[inRow + inX * inXStride];
+                                    if (inVal > max) {
+                                        maxY = inY;
+                                        maxX = inX;
+                                        max = inVal;
+                                    }
+                                }
+                            }
+                            out[outIdx] = max;
+                            maxOffsets.set(outIdx, (maxY - yStart) * size + maxX - xStart);
+                            outIdx++;
                         }
                     }
                 }
+                inBase += it.innerStride(0);
+                outIdx += it.innerStride(1) - h * w * channels;
             }
         }
-
-        // y
-        tmpMaxIndices[maxIndexShape.dimCount - 1] = 0;
-        int indexYOffset = maxIndexShape.calcDataIndex(tmpMaxIndices);
-        maxIndexData[indexYOffset] = maxY;
-        // x
-        tmpMaxIndices[maxIndexShape.dimCount - 1] = 1;
-        int indexXOffset = maxIndexShape.calcDataIndex(tmpMaxIndices);
-        maxIndexData[indexXOffset] = maxX;
-
-        return max;
     }
 
+
     @Override
     public NDArray maxPool2dGrad(MaxPool2dResult result) {
         JavaMaxPool2dResult r = (JavaMaxPool2dResult) result;
-        return distribute2dMaxGrad(this, r.inputShape, r.maxIndexShape, r.maxIndexData);
+        return distribute2dMaxGrad(this, r.inputShape, r.size, r.maxOffsets);
     }
 
     @Override
     public ReluResult relu(double leakyScale) {
         JavaArray copy = normalOrderedCopy();
         double[] data = copy.getInternalData();
-        double[] gradMaskData = new double[data.length];
+        BitMask positive = new BitMask(copy.shape, 1, leakyScale);
 
-        for (int i = 0; i < data.length; i++) {
-            if (data[i] <= 0) {
-                data[i] *= leakyScale;
-                gradMaskData[i] = leakyScale;
-            } else {
-                gradMaskData[i] = 1;
-            }
-        }
-
-        return new JavaReluResult(data, copy.shape, gradMaskData);
-    }
+        ElementKernels.get().relu(data, leakyScale, data, positive.bits, 0, data.length);
 
-    private static JavaShape createMax2dIndexShape(Shape outShape) {
-        int[] idxDims = copyOf(outShape.toDimArray(), outShape.getDimCount() + 1);
-        // for (y,x) pair to log the original location of the value in
-        // the input matrix.
-        idxDims[outShape.getDimCount()] = 2;
-        return new JavaShape(idxDims);
+        return new JavaReluResult(copy, positive);
     }
 
     @Override
@@ -1154,9 +1073,8 @@ public class JavaArray implements NDArray {
         Shape physicalShape = toPhysicalShape(shape, dimsToCollapse);
         int[] dimMapping = createSrcToTargetMapping(dimsToCollapse);
 
-        double[] target = new double[toIntExact(physicalShape.getSize())];
-        sum(data, shape, shape.newIndexArray(), 0,
-                target, physicalShape, physicalShape.newIndexArray(), dimMapping);
+        double[] target = JavaBufferPool.allocate(toIntExact(physicalShape.getSize()));
+        SumReduction.sum(data, shape, target, (JavaShape) physicalShape, dimMapping);
 
         if (keepRemove == DimKeepRemove.KEEP_DIM) {
             return new JavaArray(target, toPhysicalShapeWithKeep(shape, dimsToCollapse));
@@ -1164,37 +1082,7 @@ public class JavaArray implements NDArray {
         return new JavaArray(target, (JavaShape) physicalShape);
     }
 
-    private static void sum(double[] src, Shape srcShape, int[] srcIndices, int srcI,
-                            double[] tgt, Shape tgtShape, int[] tgtIndices,
-                            int[] srcToTgtMapping) {
-        int dimLen = srcShape.at(srcI);
-        if (srcI == srcIndices.length - 1) {
-            //...last dim
-            for (int i = 0; i < dimLen; i++) {
-                srcIndices[srcI] = i;
-                double srcVal = src[srcShape.calcDataIndex(srcIndices)];
-                int srcToTgt = srcToTgtMapping[srcI];
-                if (srcToTgt != -1) {
-                    tgtIndices[srcToTgt] = i;
-                }
-                int tgtOffset = tgtShape.calcDataIndex(tgtIndices);
-                tgt[tgtOffset] += srcVal;
-            }
-        } else {
-            for (int i = 0; i < dimLen; i++) {
-                srcIndices[srcI] = i;
-                int srcToTgt = srcToTgtMapping[srcI];
-                if (srcToTgt != -1) {
-                    tgtIndices[srcToTgt] = i;
-                }
-                sum(src, srcShape, srcIndices, srcI + 1,
-                        tgt, tgtShape, tgtIndices,
-                        srcToTgtMapping);
-            }
-        }
-    }
-
-    private static int[] createSrcToTargetMapping(Boolean[] dimsToCollapse) {
+    static int[] createSrcToTargetMapping(Boolean[] dimsToCollapse) {
         int[] mapping = new int[dimsToCollapse.length];
         fill(mapping, -1);
         int idx = 0;
@@ -1208,7 +1096,7 @@ public class JavaArray implements NDArray {
         return mapping;
     }
 
-    private static Shape toPhysicalShape(Shape shape, Boolean[] dimsToCollapse) {
+    static Shape toPhysicalShape(Shape shape, Boolean[] dimsToCollapse) {
         int count = countFalse(dimsToCollapse);
         int[] physicalDims = new int[count];
         int idx = 0;
@@ -1221,7 +1109,7 @@ public class JavaArray implements NDArray {
         return ProviderStore.shape(physicalDims);
     }
 
-    private static JavaShape toPhysicalShapeWithKeep(JavaShape shape, Boolean[] dimsToCollapse) {
+    static JavaShape toPhysicalShapeWithKeep(JavaShape shape, Boolean[] dimsToCollapse) {
         int[] physicalDims = new int[dimsToCollapse.length];
         fill(physicalDims, 1);
         for (int i = 0; i < dimsToCollapse.length; i++) {
@@ -1242,25 +1130,21 @@ public class JavaArray implements NDArray {
         if (this.shape instanceof ReorderedJavaShape) {
             throw new UnsupportedOperationException("reordered shape not yet supported");
         }
-        double[] data = copyOf(this.data, this.data.length);
-        for (int i = 0; i < data.length; i++) {
-            data[i] *= -1;
-        }
+        double[] data = JavaBufferPool.allocate(this.data.length);
+        ElementKernels.get().mul(this.data, -1, data, 0, data.length);
         return new JavaArray(data, new JavaShape(this.shape.dims));
     }
 
     public JavaArray sqr() {
-        double[] cp = copyOf(data, data.length);
-        for (int i = 0; i < cp.length; i++) {
-            cp[i] *= cp[i];
-        }
+        double[] cp = JavaBufferPool.allocate(data.length);
+        ElementKernels.get().sqr(data, cp, 0, cp.length);
 
         return new JavaArray(cp, shape.copy());
     }
 
     public JavaArray pow(double power) {
-        double[] data = copyOf(this.data, this.data.length);
-        double[] filledData = multiThreadingSupportRun(taskRange(0, this.data.length, 64),
+        double[] data = JavaBufferPool.copyOf(this.data);
+        double[] filledData = multiThreadingSupportRun(taskRange(0, this.data.length, POW_COST),
                 range -> pow(range.start, range.end, data, power),
                 (left, ignored) -> left);
 
@@ -1268,15 +1152,13 @@ public class JavaArray implements NDArray {
     }
 
     private static double[] pow(int start, int end, double[] data, double power) {
-        for (int i = start; i < end; i++) {
-            data[i] = Math.pow(data[i], power);
-        }
+        ElementKernels.get().pow(data, power, data, start, end);
         return data;
     }
 
     public JavaArray sqrt() {
-        double[] data = copyOf(this.data, this.data.length);
-        double[] filledData = multiThreadingSupportRun(taskRange(0, data.length, 64),
+        double[] data = JavaBufferPool.copyOf(this.data);
+        double[] filledData = multiThreadingSupportRun(taskRange(0, data.length, SQRT_COST),
                 range -> sqrt(range.start, range.end, data),
                 (left, ignored) -> left);
 
@@ -1284,15 +1166,16 @@ public class JavaArray implements NDArray {
     }
 
     private static double[] sqrt(int start, int end, double[] data) {
-        for (int i = start; i < end; i++) {
-            data[i] = Math.sqrt(data[i]);
-        }
+        ElementKernels.get().sqrt(data, data, start, end);
         return data;
     }
 
     @Override
     public JavaArray div(NDArray b) {
-        return div(this, (JavaArray) b);
+        if (b instanceof JavaArraySlice) {
+            return ((JavaArraySlice) b).binary(BinaryOp.DIV, this, false);
+        }
+        return div(this, javaArray(b));
     }
 
     private static JavaArray div(JavaArray a, JavaArray b) {
@@ -1304,50 +1187,52 @@ public class JavaArray implements NDArray {
         validateBroadcastShapes(a.shape, b.shape, -1);
         JavaShape outShape = evalBroadcastOutputShape(a.shape, b.shape);
 
-        int[] indexArray = outShape.newIndexArray();
-        double[] data = new double[outShape.size];
+        double[] data = JavaBufferPool.allocate(outShape.size);
 
-        div(a, b,
-                data, outShape,
-                indexArray, 0);
+        BroadcastPlan plan = BroadcastPlan.plan(a.shape, b.shape);
+        if (plan != null) {
+            plan.apply(BinaryOp.DIV, a.data, b.data, data);
+        } else {
+            div(a, b, data, outShape);
+        }
 
         return new JavaArray(data, outShape);
     }
 
     private static JavaArray fastDiv(JavaArray a, JavaArray b) {
-        double[] data = copyOf(a.data, a.data.length);
-        for (int i = data.length - 1; i >= 0; i--) {
-            data[i] /= b.data[i];
-        }
+        double[] data = JavaBufferPool.allocate(a.data.length);
+        ElementKernels.get().div(a.data, b.data, data, 0, data.length);
         return new JavaArray(data, a.shape.copy());
     }
 
-    private static void div(JavaArray a, JavaArray b,
-                            double[] out, JavaShape outShape,
-                            int[] indices, int dim) {
-        if (indices.length - dim == 1) {
-            //...the last index
-            int w = outShape.at(-1);
-            int dims = indices.length;
-            for (int x = 0; x < w; x++) {
-                indices[dims - 1] = x;
-                double _a = a.getBroadcasted(indices);
-                double _b = b.getBroadcasted(indices);
-                int outIndex = outShape.calcDataIndex(indices);
-                out[outIndex] = _a / _b;
-            }
-        } else {
-            int at = outShape.at(dim);
-            for (int i = 0; i < at; i++) {
-                indices[dim] = i;
-                div(a, b, out, outShape, indices, dim + 1);
+    private static void div(JavaArray a, JavaArray b, double[] out, JavaShape outShape) {
+        NDIter it = broadcastIter(a, b, outShape);
+        int len = it.innerLength();
+        int outStride = it.innerStride(0);
+        int aStride = it.innerStride(1);
+        int bStride = it.innerStride(2);
+        for (; it.hasNext(); it.next()) {
+            int outIdx = it.offset(0);
+            int aIdx = it.offset(1);
+            int bIdx = it.offset(2);
+            for (int i = 0; i < len; i++) {
+                out[outIdx] = a.data[aIdx] / b.data[bIdx];
+                outIdx += outStride;
+                aIdx += aStride;
+                bIdx += bStride;
             }
         }
     }
 
     @Override
     public NDArray mul(NDArray other) {
-        return mul((JavaArray) other);
+        if (other instanceof JavaSparseArray) {
+            return other.mul(this);
+        }
+        if (other instanceof JavaArraySlice) {
+            return ((JavaArraySlice) other).binary(BinaryOp.MUL, this, false);
+        }
+        return mul(javaArray(other));
     }
 
     public JavaArray mul(JavaArray b) {
@@ -1363,63 +1248,52 @@ public class JavaArray implements NDArray {
         validateBroadcastShapes(a.shape, b.shape, -1);
         JavaShape outShape = evalBroadcastOutputShape(a.shape, b.shape);
 
-        int[] indexArray = outShape.newIndexArray();
-        double[] data = new double[outShape.size];
+        double[] data = JavaBufferPool.allocate(outShape.size);
 
-        mul(a, b,
-                data, outShape,
-                indexArray, 0);
+        BroadcastPlan plan = BroadcastPlan.plan(a.shape, b.shape);
+        if (plan != null) {
+            plan.apply(BinaryOp.MUL, a.data, b.data, data);
+        } else {
+            mul(a, b, data, outShape);
+        }
 
         return new JavaArray(data, outShape);
     }
 
     private static JavaArray fastMul(JavaArray a, JavaArray b) {
-        double[] data = copyOf(a.data, a.data.length);
-        for (int i = data.length - 1; i >= 0; i--) {
-            data[i] *= b.data[i];
-        }
+        double[] data = JavaBufferPool.allocate(a.data.length);
+        ElementKernels.get().mul(a.data, b.data, data, 0, data.length);
         return new JavaArray(data, a.shape.copy());
     }
 
-    private static void mul(JavaArray a, JavaArray b,
-                            double[] out, JavaShape outShape,
-                            int[] indices, int dim) {
-        if (indices.length - dim == 1) {
-            //...the last index
-            int w = outShape.at(-1);
-            int dims = indices.length;
-            for (int x = 0; x < w; x++) {
-                indices[dims - 1] = x;
-                double _a = a.getBroadcasted(indices);
-                double _b = b.getBroadcasted(indices);
-                int outIndex = outShape.calcDataIndex(indices);
-                out[outIndex] = _a * _b;
-            }
-        } else {
-            int at = outShape.at(dim);
-            for (int i = 0; i < at; i++) {
-                indices[dim] = i;
-                mul(a, b, out, outShape, indices, dim + 1);
+    private static void mul(JavaArray a, JavaArray b, double[] out, JavaShape outShape) {
+        NDIter it = broadcastIter(a, b, outShape);
+        int len = it.innerLength();
+        int outStride = it.innerStride(0);
+        int aStride = it.innerStride(1);
+        int bStride = it.innerStride(2);
+        for (; it.hasNext(); it.next()) {
+            int outIdx = it.offset(0);
+            int aIdx = it.offset(1);
+            int bIdx = it.offset(2);
+            for (int i = 0; i < len; i++) {
+                out[outIdx] = a.data[aIdx] * b.data[bIdx];
+                outIdx += outStride;
+                aIdx += aStride;
+                bIdx += bStride;
             }
         }
     }
 
     public JavaArray div(double v) {
-        double[] data = copyOf(this.data, this.data.length);
-        for (int i = 0; i < data.length; i++) {
-            data[i] /= v;
-        }
+        double[] data = JavaBufferPool.allocate(this.data.length);
+        ElementKernels.get().div(this.data, v, data, 0, data.length);
         return new JavaArray(data, shape.copy());
     }
 
-    @Override
-    public NDArray conv2d(NDArray filter, int offsetY, int offsetX, int outHeight, int outWidth) {
-        throw new UnsupportedOperationException();
-    }
-
     public JavaArray mul(double v) {
-        double[] data = copyOf(this.data, this.data.length);
-        double[] filledData = multiThreadingSupportRun(taskRange(0, data.length, 64),
+        double[] data = JavaBufferPool.copyOf(this.data);
+        double[] filledData = multiThreadingSupportRun(taskRange(0, data.length, MUL_SCALAR_COST),
                 range -> mul(range.start, range.end, data, v),
                 (left, ignored) -> left);
 
@@ -1427,36 +1301,148 @@ public class JavaArray implements NDArray {
     }
 
     private static double[] mul(int start, int end, double[] data, double v) {
-        for (int i = start; i < end; i++) {
-            data[i] *= v;
-        }
+        ElementKernels.get().mul(data, v, data, start, end);
         return data;
     }
 
     public JavaArray add(double v) {
-        double[] data = copyOf(this.data, this.data.length);
-        for (int i = 0; i < data.length; i++) {
-            data[i] += v;
-        }
+        double[] data = JavaBufferPool.allocate(this.data.length);
+        ElementKernels.get().add(this.data, v, data, 0, data.length);
         return new JavaArray(data, shape.copy());
     }
 
+    @Override
+    public JavaArray addInPlace(NDArray other) {
+        return binaryInto(this, javaArray(other), this, BinaryOp.ADD);
+    }
+
+    @Override
+    public JavaArray mulInPlace(NDArray other) {
+        return binaryInto(this, javaArray(other), this, BinaryOp.MUL);
+    }
+
+    @Override
+    public JavaArray addInto(NDArray other, NDArray target) {
+        return binaryInto(this, javaArray(other), javaArray(target), BinaryOp.ADD);
+    }
+
+    @Override
+    public JavaArray mulInto(NDArray other, NDArray target) {
+        return binaryInto(this, javaArray(other), javaArray(target), BinaryOp.MUL);
+    }
+
+    @Override
+    public JavaArray mulInPlace(double val) {
+        // Every view covers all the data, so the order does not matter
+        ElementKernels.get().mul(data, val, data, 0, data.length);
+        version++;
+        return this;
+    }
+
+    @Override
+    public JavaArray axpy(double alpha, NDArray x) {
+        JavaArray xArr = javaArray(x);
+        if (isSameLayout(this, xArr) && xArr.data != this.data) {
+            ElementKernels.get().axpy(alpha, xArr.data, data, 0, data.length);
+            version++;
+            return this;
+        }
+        return binaryInto(this, xArr.mul(alpha), this, BinaryOp.ADD);
+    }
+
+    enum BinaryOp {
+        ADD, MUL, DIV
+    }
+
+    /**
+     * Writes a (op) b into the target, that must have the broadcast shape of a and b. The operands may be
+     * views sharing data with the target: they are copied first when they are not read in the same order
+     * as the target is written.
+     */
+    private static JavaArray binaryInto(JavaArray a, JavaArray b, JavaArray target, BinaryOp op) {
+        validateBroadcastShapes(a.shape, b.shape, -1);
+        JavaShape outShape = evalBroadcastOutputShape(a.shape, b.shape);
+        if (!Arrays.equals(outShape.dims, target.shape.toDimArray())) {
+            throw new DimensionMismatch("Target shape " + target.shape + " must be the broadcast shape " + outShape);
+        }
+        if (a.data == target.data && !isSameLayout(a, target)) {
+            a = a.normalOrderedCopy();
+        }
+        if (b.data == target.data && !isSameLayout(b, target)) {
+            b = b.normalOrderedCopy();
+        }
+
+        if (isSameLayout(a, target) && isSameLayout(b, target)) {
+            // also covers views, since they cover all the data
+            if (op == BinaryOp.ADD) {
+                ElementKernels.get().add(a.data, b.data, target.data, 0, target.data.length);
+            } else {
+                ElementKernels.get().mul(a.data, b.data, target.data, 0, target.data.length);
+            }
+        } else {
+            binaryInto(a, b, target.data, target.shape, op);
+        }
+
+        target.version++;
+        return target;
+    }
+
+    private static void binaryInto(JavaArray a, JavaArray b, double[] out, JavaShape outShape, BinaryOp op) {
+        int[] dims = outShape.toDimArray();
+        NDIter it = NDIter.iterate(dims,
+                NDIter.operand(outShape.strides(), outShape.baseOffset()),
+                NDIter.broadcast(a.shape, dims),
+                NDIter.broadcast(b.shape, dims));
+        int len = it.innerLength();
+        int outStride = it.innerStride(0);
+        int aStride = it.innerStride(1);
+        int bStride = it.innerStride(2);
+        for (; it.hasNext(); it.next()) {
+            int outIdx = it.offset(0);
+            int aIdx = it.offset(1);
+            int bIdx = it.offset(2);
+            if (op == BinaryOp.ADD) {
+                for (int i = 0; i < len; i++, outIdx += outStride, aIdx += aStride, bIdx += bStride) {
+                    out[outIdx] = a.data[aIdx] + b.data[bIdx];
+                }
+            } else {
+                for (int i = 0; i < len; i++, outIdx += outStride, aIdx += aStride, bIdx += bStride) {
+                    out[outIdx] = a.data[aIdx] * b.data[bIdx];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true when element i of both arrays is at the same data offset
+     */
+    private static boolean isSameLayout(JavaArray a, JavaArray b) {
+        return a.data.length == b.data.length &&
+                Arrays.equals(a.shape.toDimArray(), b.shape.toDimArray()) &&
+                Arrays.equals(a.shape.strides(), b.shape.strides()) &&
+                a.shape.baseOffset() == b.shape.baseOffset();
+    }
+
     @Override
     public String toString() {
         return StringUtils.toString(this);
     }
 
-    private static class JavaMaxPool2dResult implements MaxPool2dResult {
-        private final JavaArray output;
-        private final JavaShape inputShape;
-        private final JavaShape maxIndexShape;
-        private final int[] maxIndexData;
+    static class JavaMaxPool2dResult implements MaxPool2dResult {
+        private final NDArray output;
+        final JavaShape inputShape;
+        final int size;
+        final MaxOffsets maxOffsets;
 
-        private JavaMaxPool2dResult(JavaArray output, JavaShape inputShape, JavaShape maxIndexShape, int[] maxIndexData) {
+        private JavaMaxPool2dResult(NDArray output, JavaShape inputShape, int size, MaxOffsets maxOffsets) {
             this.output = output;
             this.inputShape = inputShape;
-            this.maxIndexShape = maxIndexShape;
-            this.maxIndexData = maxIndexData;
+            this.size = size;
+            this.maxOffsets = maxOffsets;
+        }
+
+        JavaMaxPool2dResult withOutput(NDArray output) {
+            return new JavaMaxPool2dResult(output, inputShape, size, maxOffsets);
         }
 
         @Override
@@ -1466,36 +1452,37 @@ public class JavaArray implements NDArray {
     }
 
     private static class JavaReluResult implements ReluResult {
-        private final double[] data;
-        private final JavaShape shape;
-        private final double[] gradMaskData;
+        private final JavaArray output;
+        private final BitMask mask;
 
-        public JavaReluResult(double[] data, JavaShape shape, double[] gradMaskData) {
-            this.data = data;
-            this.shape = shape;
-            this.gradMaskData = gradMaskData;
+        public JavaReluResult(JavaArray output, BitMask mask) {
+            this.output = output;
+            this.mask = mask;
         }
 
         @Override
         public NDArray getOutput() {
-            return new JavaArray(data, shape);
+            return output;
         }
 
         @Override
         public NDArray createMask() {
-            return new JavaArray(gradMaskData, shape);
+            return mask.toArray();
+        }
+
+        @Override
+        public NDArray maskGradient(NDArray grad) {
+            return mask.apply(grad);
         }
     }
 
     private static class JavaDropOutResult implements DropOutResult {
         private final JavaArray output;
-        private final double[] gradMaskData;
-        private final int[] dims;
+        private final BitMask mask;
 
-        public JavaDropOutResult(JavaArray output, double[] gradMaskData, int[] dims) {
+        public JavaDropOutResult(JavaArray output, BitMask mask) {
             this.output = output;
-            this.gradMaskData = gradMaskData;
-            this.dims = dims;
+            this.mask = mask;
         }
 
         @Override
@@ -1505,31 +1492,12 @@ public class JavaArray implements NDArray {
 
         @Override
         public NDArray createMask() {
-            return new JavaArray(gradMaskData, JavaShape.of(dims));
-        }
-    }
-
-    private static class DoubleNDArrayWriter implements CompareHelper.CompareWriter<Double, JavaArray> {
-        private double[] data;
-
-        @Override
-        public JavaArray scalar(Double value) {
-            return new JavaArray(value);
-        }
-
-        @Override
-        public JavaArray toArray(JavaShape shape) {
-            return new JavaArray(data, shape);
-        }
-
-        @Override
-        public void prepareDate(int size) {
-            data = new double[size];
+            return mask.toArray();
         }
 
         @Override
-        public void write(int offset, Double outVal) {
-            data[offset] = outVal;
+        public NDArray maskGradient(NDArray grad) {
+            return mask.apply(grad);
         }
     }
 }
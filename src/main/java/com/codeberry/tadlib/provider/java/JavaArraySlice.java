@@ -0,0 +1,394 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.*;
+import com.codeberry.tadlib.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.codeberry.tadlib.array.util.DimensionUtils.validateBroadcastShapes;
+import static com.codeberry.tadlib.array.util.DimensionUtils.validateSplitLens;
+import static com.codeberry.tadlib.memorymanagement.DisposalRegister.registerForDisposal;
+
+/**
+ * A part of a {@link JavaArray}, returned by {@link JavaArray#split(int, int[])}, that reads the data of the array
+ * it was split from instead of copying it.
+ * <p>
+ * Parts split along the leading axis are contiguous, other parts step over the rest of the axis with the strides of
+ * the source. add, mul and div read the part in place, and reshape of a contiguous part shares the data. Other ops
+ * run on a dense copy, so a part that is never used (like the gradient of a constant) is never copied.
+ */
+public final class JavaArraySlice implements NDArray {
+    private final double[] data;
+    private final JavaShape shape;
+    private final int[] strides;
+    private final int baseOffset;
+    private final boolean pooled;
+    private boolean disposed;
+
+    private JavaArraySlice(double[] data, JavaShape shape, int[] strides, int baseOffset) {
+        this.data = data;
+        this.shape = shape;
+        this.strides = strides;
+        this.baseOffset = baseOffset;
+        // the source array may be disposed before its parts
+        this.pooled = JavaBufferPool.retain(data);
+        if (pooled) {
+            registerForDisposal(this);
+        }
+    }
+
+    static List<NDArray> split(double[] data, int[] srcDims, int[] srcStrides, int srcBaseOffset,
+                               int axis, int[] axisLens) {
+        List<NDArray> parts = new ArrayList<>(axisLens.length);
+        int offset = srcBaseOffset;
+        for (int axisLen : axisLens) {
+            int[] dims = Arrays.copyOf(srcDims, srcDims.length);
+            dims[axis] = axisLen;
+            parts.add(new JavaArraySlice(data, new JavaShape(dims), srcStrides, offset));
+            offset += axisLen * srcStrides[axis];
+        }
+        return parts;
+    }
+
+    @Override
+    public synchronized void dispose() {
+        if (pooled && !disposed) {
+            disposed = true;
+            JavaBufferPool.release(data);
+        }
+    }
+
+    /**
+     * @return true when the part is one block of the source data, in normal order
+     */
+    boolean isContiguous() {
+        return Arrays.equals(strides, shape.strides());
+    }
+
+    public JavaArray toDense() {
+        double[] out = JavaBufferPool.allocate(shape.size);
+        if (isContiguous()) {
+            System.arraycopy(data, baseOffset, out, 0, out.length);
+        } else {
+            int[] dims = shape.toDimArray();
+            NDIter it = NDIter.iterate(dims,
+                    NDIter.operand(shape.strides(), 0),
+                    NDIter.operand(strides, baseOffset));
+            int len = it.innerLength();
+            int srcStride = it.innerStride(1);
+            for (; it.hasNext(); it.next()) {
+                int outIdx = it.offset(0);
+                int srcIdx = it.offset(1);
+                if (srcStride == 1) {
+                    System.arraycopy(data, srcIdx, out, outIdx, len);
+                } else {
+                    for (int i = 0; i < len; i++, srcIdx += srcStride) {
+                        out[outIdx + i] = data[srcIdx];
+                    }
+                }
+            }
+        }
+        return new JavaArray(out, new JavaShape(shape.dims));
+    }
+
+    /**
+     * @return this (op) other when sliceIsLeft, else other (op) this, as a dense array
+     */
+    JavaArray binary(JavaArray.BinaryOp op, JavaArray other, boolean sliceIsLeft) {
+        validateBroadcastShapes(shape, other.shape, -1);
+        JavaShape outShape = JavaArray.evalBroadcastOutputShape(shape, other.shape);
+        double[] out = JavaBufferPool.allocate(outShape.size);
+        double[] otherData = other.getInternalData();
+
+        int[] outDims = outShape.toDimArray();
+        NDIter.Operand slice = NDIter.broadcast(shape.dims, strides, baseOffset, outDims);
+        NDIter.Operand dense = NDIter.broadcast(other.shape, outDims);
+        NDIter it = NDIter.iterate(outDims,
+                NDIter.operand(outShape.strides(), 0),
+                sliceIsLeft ? slice : dense,
+                sliceIsLeft ? dense : slice);
+        double[] a = (sliceIsLeft ? data : otherData);
+        double[] b = (sliceIsLeft ? otherData : data);
+        int len = it.innerLength();
+        int aStride = it.innerStride(1);
+        int bStride = it.innerStride(2);
+        for (; it.hasNext(); it.next()) {
+            int outIdx = it.offset(0);
+            int aIdx = it.offset(1);
+            int bIdx = it.offset(2);
+            switch (op) {
+                case ADD:
+                    for (int i = 0; i < len; i++, outIdx++, aIdx += aStride, bIdx += bStride) {
+                        out[outIdx] = a[aIdx] + b[bIdx];
+                    }
+                    break;
+                case MUL:
+                    for (int i = 0; i < len; i++, outIdx++, aIdx += aStride, bIdx += bStride) {
+                        out[outIdx] = a[aIdx] * b[bIdx];
+                    }
+                    break;
+                case DIV:
+                    for (int i = 0; i < len; i++, outIdx++, aIdx += aStride, bIdx += bStride) {
+                        out[outIdx] = a[aIdx] / b[bIdx];
+                    }
+                    break;
+            }
+        }
+        return new JavaArray(out, outShape);
+    }
+
+    @Override
+    public NDArray add(NDArray other) {
+        return binary(JavaArray.BinaryOp.ADD, JavaArray.javaArray(other), true);
+    }
+
+    @Override
+    public NDArray mul(NDArray other) {
+        return binary(JavaArray.BinaryOp.MUL, JavaArray.javaArray(other), true);
+    }
+
+    @Override
+    public NDArray div(NDArray other) {
+        return binary(JavaArray.BinaryOp.DIV, JavaArray.javaArray(other), true);
+    }
+
+    /**
+     * Shares the data when the part is contiguous.
+     */
+    @Override
+    public Object getDataOwner() {
+        return data;
+    }
+
+    @Override
+    public NDArray reshape(int... dims) {
+        if (isContiguous()) {
+            JavaShape reshaped = shape.reshape(dims);
+            return new JavaArraySlice(data, reshaped, reshaped.strides(), baseOffset);
+        }
+        return toDense().reshape(dims);
+    }
+
+    /**
+     * The parts read the same data as this part.
+     */
+    @Override
+    public List<NDArray> split(int axis, int[] axisLens) {
+        int safeAxis = shape.wrapNegIndex(axis);
+        validateSplitLens(shape, safeAxis, axisLens);
+        return split(data, shape.dims, strides, baseOffset, safeAxis, axisLens);
+    }
+
+    @Override
+    public JavaShape getShape() {
+        return shape;
+    }
+
+    @Override
+    public double dataAt(int... indices) {
+        int offset = baseOffset;
+        for (int i = 0; i < indices.length; i++) {
+            offset += indices[i] * strides[i];
+        }
+        return data[offset];
+    }
+
+    // --- Dense copy ---
+
+    @Override
+    public Object toDoubles() {
+        return toDense().toDoubles();
+    }
+
+    @Override
+    public NDArray normalOrderedCopy() {
+        return toDense();
+    }
+
+    /**
+     * @return the data of a dense copy
+     */
+    @Override
+    public double[] getInternalData() {
+        return toDense().getInternalData();
+    }
+
+    @Override
+    public NDArray add(double val) {
+        return toDense().add(val);
+    }
+
+    @Override
+    public NDArray mul(double val) {
+        return toDense().mul(val);
+    }
+
+    @Override
+    public NDArray div(double val) {
+        return toDense().div(val);
+    }
+
+    @Override
+    public NDArray negate() {
+        return toDense().negate();
+    }
+
+    @Override
+    public NDArray sqr() {
+        return toDense().sqr();
+    }
+
+    @Override
+    public NDArray sqrt() {
+        return toDense().sqrt();
+    }
+
+    @Override
+    public NDArray pow(double val) {
+        return toDense().pow(val);
+    }
+
+    @Override
+    public NDArray log() {
+        return toDense().log();
+    }
+
+    @Override
+    public NDArray clip(Double min, Double max) {
+        return toDense().clip(min, max);
+    }
+
+    @Override
+    public NDArray subArray(int fromBatchIndex, int fromOffset, int endBatchIndex, int toOffset) {
+        return toDense().subArray(fromBatchIndex, fromOffset, endBatchIndex, toOffset);
+    }
+
+    @Override
+    public NDArray compare(NDIntArray other, Comparison comparison, double trueValue, double falseValue) {
+        return toDense().compare(other, comparison, trueValue, falseValue);
+    }
+
+    @Override
+    public NDArray compare(NDArray other, Comparison comparison, double trueValue, double falseValue) {
+        return toDense().compare(other, comparison, trueValue, falseValue);
+    }
+
+    @Override
+    public NDArray matmul(NDArray b) {
+        return toDense().matmul(b);
+    }
+
+    @Override
+    public NDArray conv2d(NDArray filter, int offsetY, int offsetX, int outHeight, int outWidth) {
+        return toDense().conv2d(filter, offsetY, offsetX, outHeight, outWidth);
+    }
+
+    @Override
+    public NDArray conv2d(NDArray filter, int offsetY, int offsetX) {
+        return toDense().conv2d(filter, offsetY, offsetX);
+    }
+
+    @Override
+    public NDArray calcConv2dFilterGradient(NDArray input, NDArray filter) {
+        return toDense().calcConv2dFilterGradient(input, filter);
+    }
+
+    @Override
+    public NDArray calcConv2dInputGradient(NDArray filter) {
+        return toDense().calcConv2dInputGradient(filter);
+    }
+
+    @Override
+    public NDArray transpose(int... axes) {
+        return toDense().transpose(axes);
+    }
+
+    @Override
+    public NDArray rot180(int yAxis, int xAxis) {
+        return toDense().rot180(yAxis, xAxis);
+    }
+
+    @Override
+    public NDArray sum() {
+        return toDense().sum();
+    }
+
+    @Override
+    public NDArray sum(Boolean[] dimsToCollapse, DimKeepRemove keepRemove) {
+        return toDense().sum(dimsToCollapse, keepRemove);
+    }
+
+    @Override
+    public MaxPool2dResult maxPool2d(int size) {
+        return toDense().maxPool2d(size);
+    }
+
+    @Override
+    public NDArray maxPool2dGrad(MaxPool2dResult result) {
+        return toDense().maxPool2dGrad(result);
+    }
+
+    @Override
+    public ReluResult relu(double leakyScale) {
+        return toDense().relu(leakyScale);
+    }
+
+    @Override
+    public NDArray softmax() {
+        return toDense().softmax();
+    }
+
+    @Override
+    public NDArray softMaxCrossEntropyGrad(NDArray softmax, NDArray oneHotArray) {
+        return toDense().softMaxCrossEntropyGrad(softmax, oneHotArray);
+    }
+
+    @Override
+    public SoftmaxCrossEntropyResult softmaxCrossEntropy(NDIntArray labels) {
+        return toDense().softmaxCrossEntropy(labels);
+    }
+
+    @Override
+    public DropOutResult dropOut(Random rnd, double dropoutKeep) {
+        return toDense().dropOut(rnd, dropoutKeep);
+    }
+
+    @Override
+    public NDArray withUpdates(List<ValueUpdate> updates) {
+        return toDense().withUpdates(updates);
+    }
+
+    @Override
+    public NDIntArray argmax(int axis) {
+        return toDense().argmax(axis);
+    }
+
+    @Override
+    public NDArray getAtIndicesOnAxis(NDIntArray indices, int axis) {
+        return toDense().getAtIndicesOnAxis(indices, axis);
+    }
+
+    @Override
+    public NDArray withUpdateAtIndicesOnAxis(NDIntArray indices, int axis, NDArray change) {
+        return toDense().withUpdateAtIndicesOnAxis(indices, axis, change);
+    }
+
+    @Override
+    public NDArray diag() {
+        return toDense().diag();
+    }
+
+    @Override
+    public NDArray concat(NDArray[] appendees, int axis) {
+        return toDense().concat(appendees, axis);
+    }
+
+
+    @Override
+    public String toString() {
+        return StringUtils.toString(this);
+    }
+}
@@ -0,0 +1,373 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.memorymanagement.DisposalRegister;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Recycles the data arrays of {@link JavaArray}s created inside {@link DisposalRegister#modelIteration}.
+ * <p>
+ * Buffers are handed out per exact length (the length is the element count of the array), and are
+ * reference counted by the arrays sharing them, so a view returned from the iteration keeps its buffer
+ * even when the array it was created from is disposed. When the count drops to zero the buffer goes to
+ * the free list of its length, and the next iteration, that usually has the same shapes, picks it up.
+ * <p>
+ * Off by default. Set the system property {@value #PROP_TAD_JAVA_BUFFER_POOL} to <code>on</code>, or
+ * <code>poison</code> to fill recycled buffers with NaN and to fail when a buffer was written after it
+ * was disposed.
+ * <p>
+ * The free lists hold at most {@value #PROP_TAD_JAVA_BUFFER_POOL_MAX_FREE_MB} MB (256 by default), further
+ * buffers are left to the GC. Call {@link #clear()} when training is done to let the GC have them all.
+ * <p>
+ * Iterations run with {@link #plannedIteration(Object, Runnable)} take their buffers from a {@link BufferPlan}
+ * captured in the first iteration with the same key.
+ */
+public final class JavaBufferPool {
+    public static final String PROP_TAD_JAVA_BUFFER_POOL = "tad.java.bufferpool";
+    public static final String PROP_TAD_JAVA_BUFFER_POOL_MAX_FREE_MB = "tad.java.bufferpool.maxfreemb";
+
+    /**
+     * Smaller arrays are cheaper to allocate than to look up.
+     */
+    static final int MIN_POOLED_LENGTH = 64;
+    private static final long DEFAULT_MAX_FREE_MB = 256;
+    /**
+     * Iterations that keep allocating differently (e.g. depending on random dropout) use the free lists.
+     */
+    private static final int MAX_CAPTURES_PER_KEY = 4;
+
+    public enum Mode {
+        OFF, ON, POISON
+    }
+
+    private static final Object LOCK = new Object();
+    private static final Map<Integer, ArrayDeque<double[]>> FREE_LISTS = new HashMap<>();
+    /**
+     * Arrays compare by identity. Weak, since arrays kept after the iteration (e.g. params) are never
+     * disposed and their buffers are left to the GC.
+     */
+    private static final Map<double[], Ref> REF_COUNTS = new WeakHashMap<>();
+    private static final Map<Object, BufferPlan> PLANS = new HashMap<>();
+    private static final Map<Object, Integer> CAPTURE_COUNTS = new HashMap<>();
+
+    private static volatile Mode mode = Mode.valueOf(
+            System.getProperty(PROP_TAD_JAVA_BUFFER_POOL, Mode.OFF.name()).toUpperCase());
+
+    private static long maxFreeDoubles = megabytesToDoubles(
+            Long.getLong(PROP_TAD_JAVA_BUFFER_POOL_MAX_FREE_MB, DEFAULT_MAX_FREE_MB));
+    private static BufferPlan.Recorder recorder;
+    private static BufferPlan replaying;
+
+    private static long freeDoubles;
+    private static long hits;
+    private static long misses;
+    private static long usedDoubles;
+    private static long peakUsedDoubles;
+    private static long recycled;
+    private static long replayed;
+    private static long captures;
+
+    private JavaBufferPool() {
+    }
+
+    /**
+     * Free buffers and plans are dropped when the mode changes.
+     */
+    public static void setMode(Mode mode) {
+        synchronized (LOCK) {
+            JavaBufferPool.mode = mode;
+            clear();
+        }
+    }
+
+    /**
+     * Drops the free buffers and the plans. Buffers still in use are recycled as usual when released.
+     */
+    public static void clear() {
+        synchronized (LOCK) {
+            FREE_LISTS.clear();
+            PLANS.clear();
+            CAPTURE_COUNTS.clear();
+            freeDoubles = 0;
+        }
+    }
+
+    /**
+     * Runs a model iteration (that calls {@link DisposalRegister#modelIteration}) that makes the same
+     * allocations every time it runs with the same key, like a training step on a batch of a given size.
+     * <p>
+     * The first run captures a {@link BufferPlan}, later runs replay it. When a run allocates differently
+     * the rest of it uses the free lists, and the plan is captured again on the next run, at most
+     * {@value #MAX_CAPTURES_PER_KEY} times per key. The buffers of a plan are held by the plan, outside
+     * the free list limit, until {@link #clear()}.
+     */
+    public static void plannedIteration(Object key, Runnable iteration) {
+        if (mode == Mode.OFF) {
+            iteration.run();
+            return;
+        }
+        synchronized (LOCK) {
+            if (recorder != null || replaying != null) {
+                throw new IllegalStateException("Cannot be called recursively");
+            }
+            replaying = PLANS.get(key);
+            if (replaying != null) {
+                replaying.rewind();
+            } else if (CAPTURE_COUNTS.getOrDefault(key, 0) < MAX_CAPTURES_PER_KEY) {
+                recorder = new BufferPlan.Recorder();
+            }
+        }
+        try {
+            iteration.run();
+        } finally {
+            synchronized (LOCK) {
+                if (recorder != null) {
+                    PLANS.put(key, recorder.toPlan());
+                    CAPTURE_COUNTS.merge(key, 1, Integer::sum);
+                    captures++;
+                } else if (replaying != null && replaying.hasDiverged()) {
+                    PLANS.remove(key);
+                }
+                recorder = null;
+                replaying = null;
+            }
+        }
+    }
+
+    /**
+     * Drops free buffers until the free lists fit in the new limit.
+     */
+    public static void setMaxFreeMegabytes(long megabytes) {
+        synchronized (LOCK) {
+            maxFreeDoubles = megabytesToDoubles(megabytes);
+            Iterator<ArrayDeque<double[]>> lists = FREE_LISTS.values().iterator();
+            while (freeDoubles > maxFreeDoubles && lists.hasNext()) {
+                ArrayDeque<double[]> free = lists.next();
+                while (freeDoubles > maxFreeDoubles && !free.isEmpty()) {
+                    freeDoubles -= free.pollLast().length;
+                }
+                if (free.isEmpty()) {
+                    lists.remove();
+                }
+            }
+        }
+    }
+
+    private static long megabytesToDoubles(long megabytes) {
+        return megabytes * 1024 * 1024 / Double.BYTES;
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    public static Stats getStats() {
+        synchronized (LOCK) {
+            return new Stats(hits, misses, peakUsedDoubles, recycled, freeDoubles, replayed, captures);
+        }
+    }
+
+    public static void resetStats() {
+        synchronized (LOCK) {
+            hits = 0;
+            misses = 0;
+            peakUsedDoubles = usedDoubles;
+            recycled = 0;
+            replayed = 0;
+            captures = 0;
+        }
+    }
+
+    /**
+     * @return zero filled array
+     */
+    static double[] allocate(int length) {
+        double[] buf = take(length);
+        if (buf == null) {
+            return new double[length];
+        }
+        Arrays.fill(buf, 0);
+        return buf;
+    }
+
+    static double[] copyOf(double[] src) {
+        double[] buf = take(src.length);
+        if (buf == null) {
+            return Arrays.copyOf(src, src.length);
+        }
+        System.arraycopy(src, 0, buf, 0, src.length);
+        return buf;
+    }
+
+    private static double[] take(int length) {
+        Mode mode = JavaBufferPool.mode;
+        if (mode == Mode.OFF || length < MIN_POOLED_LENGTH || !DisposalRegister.isInModelIteration()) {
+            return null;
+        }
+        synchronized (LOCK) {
+            if (replaying != null) {
+                int slot = replaying.nextSlot(length);
+                if (slot != BufferPlan.NO_SLOT) {
+                    double[] buf = replaying.bufferOf(slot);
+                    if (buf == null) {
+                        // the first replay takes over the buffers recycled by the capture
+                        buf = pollFree(length);
+                        if (buf == null) {
+                            buf = new double[length];
+                        }
+                    } else if (mode == Mode.POISON) {
+                        verifyPoisoned(buf);
+                    }
+                    replaying.take(slot, buf);
+                    replayed++;
+                    addUsed(length);
+                    REF_COUNTS.put(buf, new Ref(replaying, slot));
+                    return buf;
+                }
+            }
+            double[] buf = pollFree(length);
+            if (buf != null) {
+                hits++;
+            } else {
+                misses++;
+                buf = new double[length];
+            }
+            addUsed(length);
+            Ref ref = new Ref(null, BufferPlan.NO_SLOT);
+            if (recorder != null) {
+                ref.recorder = recorder;
+                ref.allocIndex = recorder.allocated(length);
+            }
+            REF_COUNTS.put(buf, ref);
+            return buf;
+        }
+    }
+
+    private static double[] pollFree(int length) {
+        ArrayDeque<double[]> free = FREE_LISTS.get(length);
+        double[] buf = (free != null ? free.pollLast() : null);
+        if (buf != null) {
+            freeDoubles -= length;
+            if (mode == Mode.POISON) {
+                verifyPoisoned(buf);
+            }
+        }
+        return buf;
+    }
+
+    private static void addUsed(int length) {
+        usedDoubles += length;
+        peakUsedDoubles = Math.max(peakUsedDoubles, usedDoubles);
+    }
+
+    private static void verifyPoisoned(double[] buf) {
+        for (double v : buf) {
+            if (!Double.isNaN(v)) {
+                throw new IllegalStateException("Buffer of length " + buf.length + " was written after it was disposed");
+            }
+        }
+    }
+
+    /**
+     * @return true when the buffer is pooled, and the array must be disposed to release it
+     */
+    static boolean retain(double[] data) {
+        if (mode == Mode.OFF || data.length < MIN_POOLED_LENGTH) {
+            return false;
+        }
+        synchronized (LOCK) {
+            Ref ref = REF_COUNTS.get(data);
+            if (ref == null) {
+                return false;
+            }
+            ref.count++;
+            return true;
+        }
+    }
+
+    static void release(double[] data) {
+        synchronized (LOCK) {
+            Ref ref = REF_COUNTS.get(data);
+            if (ref == null || --ref.count > 0) {
+                return;
+            }
+            REF_COUNTS.remove(data);
+            recycled++;
+            usedDoubles -= data.length;
+
+            if (ref.recorder != null && ref.recorder == recorder) {
+                recorder.released(ref.allocIndex);
+            }
+            if (ref.plan != null) {
+                if (mode == Mode.POISON) {
+                    Arrays.fill(data, Double.NaN);
+                }
+                ref.plan.free(ref.slot);
+                return;
+            }
+
+            if (mode != Mode.OFF && freeDoubles + data.length <= maxFreeDoubles) {
+                if (mode == Mode.POISON) {
+                    Arrays.fill(data, Double.NaN);
+                }
+                FREE_LISTS.computeIfAbsent(data.length, len -> new ArrayDeque<>()).addLast(data);
+                freeDoubles += data.length;
+            }
+        }
+    }
+
+    private static class Ref {
+        final BufferPlan plan;
+        final int slot;
+        int count;
+        /**
+         * Set when allocated while capturing, releases are only recorded by the same capture
+         */
+        BufferPlan.Recorder recorder;
+        int allocIndex = -1;
+
+        Ref(BufferPlan plan, int slot) {
+            this.plan = plan;
+            this.slot = slot;
+        }
+    }
+
+    public static class Stats {
+        public final long hits;
+        public final long misses;
+        /**
+         * The most doubles in pooled buffers that were in use at the same time, since the stats were reset
+         */
+        public final long peakUsedDoubles;
+        public final long recycled;
+        public final long freeDoubles;
+        /**
+         * Buffers taken from a {@link BufferPlan}, they are not counted as hits or misses.
+         */
+        public final long replayed;
+        public final long captures;
+
+        private Stats(long hits, long misses, long peakUsedDoubles, long recycled, long freeDoubles,
+                      long replayed, long captures) {
+            this.hits = hits;
+            this.misses = misses;
+            this.peakUsedDoubles = peakUsedDoubles;
+            this.recycled = recycled;
+            this.freeDoubles = freeDoubles;
+            this.replayed = replayed;
+            this.captures = captures;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + " misses=" + misses + " peakUsed=" + (peakUsedDoubles * Double.BYTES / (1024 * 1024)) + "MB" +
+                    " recycled=" + recycled + " replayed=" + replayed + " captures=" + captures +
+                    " free=" + (freeDoubles * Double.BYTES / (1024 * 1024)) + "MB";
+        }
+    }
+}
@@ -0,0 +1,765 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.*;
+import com.codeberry.tadlib.array.util.FlatToMultiDimArrayConverter;
+import com.codeberry.tadlib.array.util.SoftmaxUtils;
+import com.codeberry.tadlib.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.codeberry.tadlib.array.util.DimensionUtils.*;
+import static com.codeberry.tadlib.util.MultiThreadingSupport.TaskRange.taskRange;
+import static com.codeberry.tadlib.util.MultiThreadingSupport.multiThreadingSupportRun;
+
+/**
+ * {@link DType#FLOAT32} array, storing half the bytes of a {@link JavaArray}.
+ * <p>
+ * Element wise ops, compare, relu, sums, views (transpose, reshape, rot180), matmul, conv2d, max pooling and
+ * softmax, with their gradients, work on the floats directly. The remaining ops (dropout, concat...) run the
+ * double implementation on a temporary widened copy and narrow the result, so values kept between ops, like
+ * parameters and activations saved for the backward pass, stay float.
+ */
+public class JavaFloatArray implements NDArray {
+    private final float[] data;
+    public final JavaShape shape;
+
+    public JavaFloatArray(float val) {
+        this(new float[]{val}, JavaShape.zeroDim());
+    }
+
+    public JavaFloatArray(float[] data, JavaShape shape) {
+        this.data = data;
+        this.shape = shape;
+    }
+
+    static JavaFloatArray narrow(JavaArray array) {
+        double[] src = array.getInternalData();
+        float[] data = new float[src.length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (float) src[i];
+        }
+        return new JavaFloatArray(data, array.shape);
+    }
+
+    private static NDArray narrow(NDArray array) {
+        return narrow(JavaArray.javaArray(array));
+    }
+
+    JavaArray widen() {
+        double[] wide = new double[data.length];
+        for (int i = 0; i < wide.length; i++) {
+            wide[i] = data[i];
+        }
+        return new JavaArray(wide, shape);
+    }
+
+    /**
+     * @throws DTypeMismatch when the other array is not {@link DType#FLOAT32}
+     */
+    static JavaFloatArray floatArray(NDArray other) {
+        if (other.getDType() != DType.FLOAT32) {
+            throw DTypeMismatch.of(DType.FLOAT32, other.getDType());
+        }
+        return (JavaFloatArray) other;
+    }
+
+    private static JavaArray widen(NDArray other) {
+        return floatArray(other).widen();
+    }
+
+    @Override
+    public DType getDType() {
+        return DType.FLOAT32;
+    }
+
+    @Override
+    public NDArray asType(DType dType) {
+        return dType == DType.FLOAT64 ? widen() : this;
+    }
+
+    @Override
+    public JavaShape getShape() {
+        return shape;
+    }
+
+    @Override
+    public Object toDoubles() {
+        return FlatToMultiDimArrayConverter.toDoubles(this.shape, i -> data[(int) i]);
+    }
+
+    @Override
+    public JavaFloatArray normalOrderedCopy() {
+        JavaShape tgtShape = shape.normalOrderedCopy();
+        if (shape.getClass() == JavaShape.class) {
+            return new JavaFloatArray(Arrays.copyOf(data, data.length), tgtShape);
+        }
+
+        float[] cp = new float[data.length];
+        NDIter it = NDIter.iterate(shape.toDimArray(),
+                NDIter.operand(tgtShape.strides(), 0),
+                NDIter.operand(shape.strides(), shape.baseOffset()));
+        int len = it.innerLength();
+        int tgtStride = it.innerStride(0);
+        int srcStride = it.innerStride(1);
+        for (; it.hasNext(); it.next()) {
+            int tgtOffset = it.offset(0);
+            int srcOffset = it.offset(1);
+            for (int i = 0; i < len; i++) {
+                cp[tgtOffset] = data[srcOffset];
+                tgtOffset += tgtStride;
+                srcOffset += srcStride;
+            }
+        }
+        return new JavaFloatArray(cp, tgtShape);
+    }
+
+    private JavaFloatArray asNormalOrdered() {
+        return shape.getClass() == JavaShape.class ? this : normalOrderedCopy();
+    }
+
+    /**
+     * @throws UnsupportedOperationException the data is float, use <code>asType(DType.FLOAT64)</code> first
+     */
+    @Override
+    public double[] getInternalData() {
+        throw new UnsupportedOperationException(DType.FLOAT32 + " data is float[], widen it with asType(" + DType.FLOAT64 + ")");
+    }
+
+    /**
+     * @return 0 when out of bounds
+     */
+    @Override
+    public double dataAt(int... indices) {
+        if (shape.isValid(indices)) {
+            return data[shape.calcDataIndex(indices)];
+        }
+        return 0;
+    }
+
+    @Override
+    public NDArray compare(NDIntArray other, Comparison comparison, double trueValue, double falseValue) {
+        JavaIntArray o = (JavaIntArray) other;
+
+        return CompareHelper.compare(comparison, trueValue, falseValue,
+                data, shape, o.data, o.getShape());
+    }
+
+    @Override
+    public NDArray compare(NDArray other, Comparison comparison, double trueValue, double falseValue) {
+        JavaFloatArray o = floatArray(other);
+
+        return CompareHelper.compare(comparison, trueValue, falseValue,
+                data, shape, o.data, o.shape);
+    }
+
+    @Override
+    public NDArray add(NDArray other) {
+        return broadcast(this, floatArray(other), BinaryOp.ADD);
+    }
+
+    @Override
+    public NDArray mul(NDArray other) {
+        return broadcast(this, floatArray(other), BinaryOp.MUL);
+    }
+
+    @Override
+    public NDArray div(NDArray other) {
+        return broadcast(this, floatArray(other), BinaryOp.DIV);
+    }
+
+    private enum BinaryOp {
+        ADD, MUL, DIV
+    }
+
+    private static JavaFloatArray broadcast(JavaFloatArray a, JavaFloatArray b, BinaryOp op) {
+        validateBroadcastShapes(a.shape, b.shape, -1);
+        JavaShape outShape = JavaArray.evalBroadcastOutputShape(a.shape, b.shape);
+        float[] out = new float[outShape.size];
+
+        int[] dims = outShape.dims;
+        NDIter it = NDIter.iterate(dims,
+                NDIter.operand(outShape.strides(), 0),
+                NDIter.broadcast(a.shape, dims),
+                NDIter.broadcast(b.shape, dims));
+        int len = it.innerLength();
+        int aStride = it.innerStride(1);
+        int bStride = it.innerStride(2);
+        for (; it.hasNext(); it.next()) {
+            // the output is always contiguous
+            int outIdx = it.offset(0);
+            int aIdx = it.offset(1);
+            int bIdx = it.offset(2);
+            switch (op) {
+                case ADD:
+                    for (int i = 0; i < len; i++, aIdx += aStride, bIdx += bStride) {
+                        out[outIdx + i] = a.data[aIdx] + b.data[bIdx];
+                    }
+                    break;
+                case MUL:
+                    for (int i = 0; i < len; i++, aIdx += aStride, bIdx += bStride) {
+                        out[outIdx + i] = a.data[aIdx] * b.data[bIdx];
+                    }
+                    break;
+                case DIV:
+                    for (int i = 0; i < len; i++, aIdx += aStride, bIdx += bStride) {
+                        out[outIdx + i] = a.data[aIdx] / b.data[bIdx];
+                    }
+                    break;
+            }
+        }
+        return new JavaFloatArray(out, outShape);
+    }
+
+    @Override
+    public NDArray add(double val) {
+        JavaFloatArray copy = normalOrderedCopy();
+        float v = (float) val;
+        for (int i = 0; i < copy.data.length; i++) {
+            copy.data[i] += v;
+        }
+        return copy;
+    }
+
+    @Override
+    public NDArray mul(double val) {
+        JavaFloatArray copy = normalOrderedCopy();
+        float v = (float) val;
+        for (int i = 0; i < copy.data.length; i++) {
+            copy.data[i] *= v;
+        }
+        return copy;
+    }
+
+    @Override
+    public NDArray div(double val) {
+        JavaFloatArray copy = normalOrderedCopy();
+        float v = (float) val;
+        for (int i = 0; i < copy.data.length; i++) {
+            copy.data[i] /= v;
+        }
+        return copy;
+    }
+
+    @Override
+    public NDArray negate() {
+        return mul(-1);
+    }
+
+    @Override
+    public NDArray sqr() {
+        JavaFloatArray copy = normalOrderedCopy();
+        for (int i = 0; i < copy.data.length; i++) {
+            copy.data[i] *= copy.data[i];
+        }
+        return copy;
+    }
+
+    @Override
+    public NDArray sqrt() {
+        JavaFloatArray copy = normalOrderedCopy();
+        for (int i = 0; i < copy.data.length; i++) {
+            copy.data[i] = (float) Math.sqrt(copy.data[i]);
+        }
+        return copy;
+    }
+
+    @Override
+    public NDArray pow(double val) {
+        JavaFloatArray copy = normalOrderedCopy();
+        for (int i = 0; i < copy.data.length; i++) {
+            copy.data[i] = (float) Math.pow(copy.data[i], val);
+        }
+        return copy;
+    }
+
+    @Override
+    public NDArray log() {
+        JavaFloatArray copy = normalOrderedCopy();
+        for (int i = 0; i < copy.data.length; i++) {
+            copy.data[i] = (float) Math.log(copy.data[i]);
+        }
+        return copy;
+    }
+
+    @Override
+    public NDArray clip(Double min, Double max) {
+        JavaFloatArray copy = normalOrderedCopy();
+        float lower = (min != null ? min.floatValue() : Float.NEGATIVE_INFINITY);
+        float upper = (max != null ? max.floatValue() : Float.POSITIVE_INFINITY);
+        for (int i = 0; i < copy.data.length; i++) {
+            copy.data[i] = Math.min(Math.max(copy.data[i], lower), upper);
+        }
+        return copy;
+    }
+
+    @Override
+    public ReluResult relu(double leakyScale) {
+        JavaFloatArray copy = normalOrderedCopy();
+        float leaky = (float) leakyScale;
+        BitMask positive = new BitMask(copy.shape, 1, leaky);
+        for (int i = 0; i < copy.data.length; i++) {
+            if (copy.data[i] <= 0) {
+                copy.data[i] *= leaky;
+            } else {
+                positive.set(i);
+            }
+        }
+
+        return new ReluResult() {
+            @Override
+            public NDArray getOutput() {
+                return copy;
+            }
+
+            @Override
+            public NDArray createMask() {
+                return narrow(positive.toArray());
+            }
+
+            @Override
+            public NDArray maskGradient(NDArray grad) {
+                return narrow(positive.apply(widen(grad)));
+            }
+        };
+    }
+
+    /**
+     * Accumulates in double. Every view covers all the data, so the order does not matter.
+     */
+    @Override
+    public NDArray sum() {
+        double sum = 0;
+        for (float v : data) {
+            sum += v;
+        }
+        return new JavaFloatArray((float) sum);
+    }
+
+    /**
+     * Accumulates in a double target, in source order, and narrows it.
+     */
+    @Override
+    public NDArray sum(Boolean[] dimsToCollapse, DimKeepRemove keepRemove) {
+        if (dimsToCollapse.length != shape.dimCount) {
+            throw new RuntimeException("input collapse dims must have same length as shape");
+        }
+        JavaShape physicalShape = (JavaShape) JavaArray.toPhysicalShape(shape, dimsToCollapse);
+        int[] dimMapping = JavaArray.createSrcToTargetMapping(dimsToCollapse);
+        int[] dims = shape.toDimArray();
+        int[] physicalStrides = physicalShape.strides();
+        int[] tgtStrides = new int[dims.length];
+        for (int i = 0; i < dims.length; i++) {
+            tgtStrides[i] = (dimMapping[i] != -1 ? physicalStrides[dimMapping[i]] : 0);
+        }
+
+        double[] target = new double[physicalShape.size];
+        if (shape.size > 0) {
+            NDIter it = NDIter.iterate(dims,
+                    NDIter.operand(shape.strides(), shape.baseOffset()),
+                    NDIter.operand(tgtStrides, 0));
+            int len = it.innerLength();
+            int srcStride = it.innerStride(0);
+            int tgtStride = it.innerStride(1);
+            for (; it.hasNext(); it.next()) {
+                int srcIdx = it.offset(0);
+                int tgtIdx = it.offset(1);
+                for (int i = 0; i < len; i++, srcIdx += srcStride, tgtIdx += tgtStride) {
+                    target[tgtIdx] += data[srcIdx];
+                }
+            }
+        }
+        float[] out = new float[target.length];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (float) target[i];
+        }
+
+        if (keepRemove == DimKeepRemove.KEEP_DIM) {
+            return new JavaFloatArray(out, JavaArray.toPhysicalShapeWithKeep(shape, dimsToCollapse));
+        }
+        return new JavaFloatArray(out, physicalShape);
+    }
+
+    @Override
+    public NDArray transpose(int... axes) {
+        ReorderedJavaShape shape = axes.length == 0 ?
+                ReorderedJavaShape.reverseOf(this.shape) : ReorderedJavaShape.customOrder(this.shape, axes);
+        return new JavaFloatArray(data, shape);
+    }
+
+    @Override
+    public NDArray rot180(int yAxis, int xAxis) {
+        return new JavaFloatArray(data, new JavaShapeRot180(shape, yAxis, xAxis));
+    }
+
+    @Override
+    public Object getDataOwner() {
+        return data;
+    }
+
+    @Override
+    public NDArray reshape(int... dims) {
+        return new JavaFloatArray(data, shape.reshape(dims));
+    }
+
+    @Override
+    public NDArray subArray(int fromBatchIndex, int fromOffset, int endBatchIndex, int toOffset) {
+        JavaFloatArray src = asNormalOrdered();
+
+        float[] data = Arrays.copyOfRange(src.data, fromOffset, toOffset);
+        int[] dims = src.shape.toDimArray();
+        dims[0] = endBatchIndex - fromBatchIndex;
+
+        return new JavaFloatArray(data, new JavaShape(dims));
+    }
+
+    @Override
+    public NDArray matmul(NDArray b) {
+        JavaFloatArray other = floatArray(b);
+        MatMulParams params = MatMulParams.expandSingleDimArrays(shape, other.shape, JavaShape::new);
+
+        validateMatMulShapes(params.leftShape, params.rightShape);
+        validateBroadcastShapes(params.leftShape, params.rightShape, -3);
+
+        JavaShape outShape = new JavaShape(evalMatMulResultDims(params.leftShape, params.rightShape));
+        JavaFloatArray left = params.promoteLeft ? new JavaFloatArray(data, (JavaShape) params.leftShape) : this;
+        JavaFloatArray right = params.promoteRight ? new JavaFloatArray(other.data, (JavaShape) params.rightShape) : other;
+        if (!BlockedMatMul.isSupported(left.shape)) {
+            left = left.normalOrderedCopy();
+        }
+        if (!BlockedMatMul.isSupported(right.shape)) {
+            right = right.normalOrderedCopy();
+        }
+
+        float[] out = FloatMatMul.matmul(left.data, left.shape, right.data, right.shape,
+                new float[outShape.size], outShape);
+
+        return new JavaFloatArray(out, (JavaShape) params.revertDimExpandOfOutputShape(outShape));
+    }
+
+    @Override
+    public NDArray conv2d(NDArray filter, int offsetY, int offsetX, int outHeight, int outWidth) {
+        NDArray.validateConv2dShapes(shape, filter.getShape());
+
+        JavaFloatArray in = asNormalOrdered();
+        JavaFloatArray f = floatArray(filter).asNormalOrdered();
+        JavaShape outShape = JavaArray.evalConv2DShape(in.shape, f.shape, outHeight, outWidth);
+        float[] out = new float[outShape.size];
+
+        float[] filledData = multiThreadingSupportRun(taskRange(0, JavaArray.countConv2dExamples(in.shape),
+                        JavaArray.conv2dCost("floatConv2d", in.shape, outShape, f.shape.at(0), f.shape.at(1))),
+                range -> Im2ColConv2d.conv2d(range,
+                        in.data, in.shape, f.data, f.shape,
+                        offsetY, offsetX,
+                        out, outShape),
+                (left, ignored) -> left);
+
+        return new JavaFloatArray(filledData, outShape);
+    }
+
+    @Override
+    public NDArray conv2d(NDArray filter, int offsetY, int offsetX) {
+        Shape filterShape = filter.getShape();
+
+        return conv2d(filter,
+                offsetY - (filterShape.at(0) - 1) / 2,
+                offsetX - (filterShape.at(1) - 1) / 2,
+                shape.at(-3), shape.at(-2));
+    }
+
+    @Override
+    public NDArray calcConv2dFilterGradient(NDArray input, NDArray filter) {
+        JavaShape filterShape = (JavaShape) filter.getShape();
+        int filterHeight = filterShape.at(0);
+        int filterWidth = filterShape.at(1);
+        JavaFloatArray in = floatArray(input).asNormalOrdered();
+        JavaFloatArray grad = asNormalOrdered();
+
+        float[] filterGrad = multiThreadingSupportRun(taskRange(0, JavaArray.countConv2dExamples(grad.shape),
+                        JavaArray.conv2dCost("floatConv2dFilterGradient", in.shape, grad.shape, filterHeight, filterWidth)),
+                range -> Im2ColConv2d.accumulateFilterGradient(range,
+                        in.data, in.shape, grad.data, grad.shape,
+                        filterHeight, filterWidth,
+                        -(filterHeight - 1) / 2, -(filterWidth - 1) / 2),
+                JavaFloatArray::addInto);
+
+        return new JavaFloatArray(filterGrad, new JavaShape(filterShape.toDimArray()));
+    }
+
+    private static float[] addInto(float[] target, float[] values) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] += values[i];
+        }
+        return target;
+    }
+
+    /**
+     * Same loops as {@link JavaArray#maxPool2d(int)}.
+     */
+    @Override
+    public MaxPool2dResult maxPool2d(int size) {
+        JavaShape outShape = (JavaShape) getMaxPool2dResultShape(shape, size);
+        float[] out = new float[outShape.size];
+        MaxOffsets maxOffsets = MaxOffsets.forWindow(size, outShape.size);
+
+        int dimCount = shape.dimCount;
+        int[] inStrides = shape.strides();
+        int inYStride = inStrides[dimCount - 3];
+        int inXStride = inStrides[dimCount - 2];
+        int inCStride = inStrides[dimCount - 1];
+        int inputH = shape.at(-3);
+        int inputW = shape.at(-2);
+        int h = outShape.at(-3);
+        int w = outShape.at(-2);
+        int channels = outShape.at(-1);
+
+        NDIter it = NDIter.iterate(Arrays.copyOf(outShape.dims, dimCount - 3),
+                NDIter.operand(Arrays.copyOf(inStrides, dimCount - 3), shape.baseOffset()),
+                NDIter.operand(Arrays.copyOf(outShape.strides(), dimCount - 3), 0));
+        for (; it.hasNext(); it.next()) {
+            int inBase = it.offset(0);
+            int outIdx = it.offset(1);
+            for (int example = 0; example < it.innerLength(); example++) {
+                for (int y = 0; y < h; y++) {
+                    int yStart = y * size;
+                    int yEnd = Math.min(yStart + size, inputH);
+                    for (int x = 0; x < w; x++) {
+                        int xStart = x * size;
+                        int xEnd = Math.min(xStart + size, inputW);
+                        for (int c = 0; c < channels; c++) {
+                            float max = Float.NEGATIVE_INFINITY;
+                            int maxY = yStart;
+                            int maxX = xStart;
+                            int inC = inBase + c * inCStride;
+                            for (int inY = yStart; inY < yEnd; inY++) {
+                                int inRow = inC + inY * inYStride;
+                                for (int inX = xStart; inX < xEnd; inX++) {
+                                    float inVal = data[inRow + inX * inXStride];
+                                    if (inVal > max) {
+                                        maxY = inY;
+                                        maxX = inX;
+                                        max = inVal;
+                                    }
+                                }
+                            }
+                            out[outIdx] = max;
+                            maxOffsets.set(outIdx, (maxY - yStart) * size + maxX - xStart);
+                            outIdx++;
+                        }
+                    }
+                }
+                inBase += it.innerStride(0);
+                outIdx += it.innerStride(1) - h * w * channels;
+            }
+        }
+
+        return new FloatMaxPool2dResult(new JavaFloatArray(out, outShape), shape.normalOrderedCopy(), size, maxOffsets);
+    }
+
+    /**
+     * Same loops as {@link JavaArray#distribute2dMaxGrad}.
+     */
+    @Override
+    public NDArray maxPool2dGrad(MaxPool2dResult result) {
+        FloatMaxPool2dResult r = (FloatMaxPool2dResult) result;
+        JavaFloatArray g = asNormalOrdered();
+        float[] out = new float[r.inputShape.size];
+
+        int inputH = r.inputShape.at(-3);
+        int inputW = r.inputShape.at(-2);
+        int h = g.shape.at(-3);
+        int w = g.shape.at(-2);
+        int channels = g.shape.at(-1);
+        int examples = JavaArray.countConv2dExamples(g.shape);
+
+        int outIdx = 0;
+        for (int example = 0; example < examples; example++) {
+            int inBase = example * inputH * inputW * channels;
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    for (int c = 0; c < channels; c++) {
+                        int offset = r.maxOffsets.get(outIdx);
+                        int inY = y * r.size + offset / r.size;
+                        int inX = x * r.size + offset % r.size;
+                        out[inBase + (inY * inputW + inX) * channels + c] = g.data[outIdx];
+                        outIdx++;
+                    }
+                }
+            }
+        }
+
+        return new JavaFloatArray(out, r.inputShape);
+    }
+
+    /**
+     * Over the last axis, with the exp sums in double.
+     */
+    @Override
+    public NDArray softmax() {
+        JavaFloatArray out = normalOrderedCopy();
+        float[] values = out.data;
+        int classes = (shape.dimCount > 0 ? shape.at(-1) : 1);
+
+        for (int offset = 0; offset < values.length; offset += classes) {
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = offset; i < offset + classes; i++) {
+                max = Math.max(max, values[i]);
+            }
+            double expSum = 0;
+            for (int i = offset; i < offset + classes; i++) {
+                float exped = (float) Math.exp(values[i] - max);
+                values[i] = exped;
+                expSum += exped;
+            }
+            float scale = (float) (1.0 / expSum);
+            for (int i = offset; i < offset + classes; i++) {
+                values[i] *= scale;
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public NDArray softMaxCrossEntropyGrad(NDArray softmax, NDArray oneHotArray) {
+        return narrow(widen().softMaxCrossEntropyGrad(widen(softmax), widen(oneHotArray)));
+    }
+
+    /**
+     * Same pass per row as {@link JavaArray#softmaxCrossEntropy(NDIntArray)}, with the exp sums and the loss
+     * in double.
+     */
+    @Override
+    public SoftmaxCrossEntropyResult softmaxCrossEntropy(NDIntArray labels) {
+        validateSameDimensionsExcept("labels", shape, labels.getShape(), -1);
+
+        float[] logits = asNormalOrdered().data;
+        int[] labelData = ((JavaIntArray) labels).data;
+        int classes = shape.at(-1);
+        float[] grad = new float[logits.length];
+
+        double loss = 0;
+        for (int row = 0, offset = 0; row < labelData.length; row++, offset += classes) {
+            int label = labelData[row];
+            if (label < 0 || label >= classes) {
+                throw new IndexOutOfBoundsException("Labels must be in range [0," + classes + "): actual.labels[" + row + "]=" + label);
+            }
+
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = offset; i < offset + classes; i++) {
+                max = Math.max(max, logits[i]);
+            }
+            double expSum = 0;
+            for (int i = offset; i < offset + classes; i++) {
+                float exped = (float) Math.exp(logits[i] - max);
+                grad[i] = exped;
+                expSum += exped;
+            }
+            float scale = (float) (1.0 / expSum);
+            for (int i = offset; i < offset + classes; i++) {
+                grad[i] *= scale;
+            }
+            grad[offset + label] -= 1.0f;
+
+            loss += SoftmaxUtils.clipExampleLoss(Math.log(expSum) - (logits[offset + label] - max));
+        }
+
+        return new SoftmaxUtils.SoftmaxCrossEntropyResult(new JavaFloatArray((float) loss),
+                new JavaFloatArray(grad, shape.normalOrderedCopy()));
+    }
+
+    @Override
+    public DropOutResult dropOut(Random rnd, double dropoutKeep) {
+        DropOutResult r = widen().dropOut(rnd, dropoutKeep);
+        NDArray output = narrow(r.getOutput());
+
+        return new DropOutResult() {
+            @Override
+            public NDArray getOutput() {
+                return output;
+            }
+
+            @Override
+            public NDArray createMask() {
+                return narrow(r.createMask());
+            }
+
+            @Override
+            public NDArray maskGradient(NDArray grad) {
+                return narrow(r.maskGradient(widen(grad)));
+            }
+        };
+    }
+
+    @Override
+    public NDArray withUpdates(List<ValueUpdate> updates) {
+        float[] cp = Arrays.copyOf(data, data.length);
+        for (ValueUpdate update : updates) {
+            cp[update.offset] = (float) update.value;
+        }
+        return new JavaFloatArray(cp, shape);
+    }
+
+    @Override
+    public NDIntArray argmax(int axis) {
+        return widen().argmax(axis);
+    }
+
+    @Override
+    public NDArray getAtIndicesOnAxis(NDIntArray indices, int axis) {
+        return narrow(widen().getAtIndicesOnAxis(indices, axis));
+    }
+
+    @Override
+    public NDArray withUpdateAtIndicesOnAxis(NDIntArray indices, int axis, NDArray change) {
+        return narrow(widen().withUpdateAtIndicesOnAxis(indices, axis, widen(change)));
+    }
+
+    @Override
+    public NDArray diag() {
+        return narrow(widen().diag());
+    }
+
+    @Override
+    public NDArray concat(NDArray[] appendees, int axis) {
+        NDArray[] wide = new NDArray[appendees.length];
+        for (int i = 0; i < appendees.length; i++) {
+            wide[i] = widen(appendees[i]);
+        }
+        return narrow(widen().concat(wide, axis));
+    }
+
+    @Override
+    public List<NDArray> split(int axis, int[] axisLens) {
+        List<NDArray> parts = new ArrayList<>();
+        for (NDArray part : widen().split(axis, axisLens)) {
+            parts.add(narrow(part));
+        }
+        return parts;
+    }
+
+    @Override
+    public String toString() {
+        return StringUtils.toString(this);
+    }
+
+    private static class FloatMaxPool2dResult implements MaxPool2dResult {
+        private final JavaFloatArray output;
+        private final JavaShape inputShape;
+        private final int size;
+        private final MaxOffsets maxOffsets;
+
+        private FloatMaxPool2dResult(JavaFloatArray output, JavaShape inputShape, int size, MaxOffsets maxOffsets) {
+            this.output = output;
+            this.inputShape = inputShape;
+            this.size = size;
+            this.maxOffsets = maxOffsets;
+        }
+
+        @Override
+        public NDArray getOutput() {
+            return output;
+        }
+    }
+}
@@ -6,8 +6,6 @@ import com.codeberry.tadlib.array.NDIntArray;
 import com.codeberry.tadlib.array.Shape;
 import com.codeberry.tadlib.array.util.FlatToMultiDimArrayConverter;
 
-import java.util.function.IntFunction;
-
 public class JavaIntArray implements NDIntArray {
     final int[] data;
     private final Shape shape;
@@ -57,37 +55,9 @@ public class JavaIntArray implements NDIntArray {
 
     @Override
     public NDIntArray compare(NDIntArray other, Comparison comparison, int trueValue, int falseValue) {
-        Shape leftShape = this.shape;
-        Shape rightShape = other.getShape();
-        IntFunction<Integer> left = offset -> this.data[offset];
-        IntFunction<Integer> right = offset -> ((JavaIntArray) other).data[offset];
-
-        return CompareHelper.compare(comparison::intIsTrue, trueValue, falseValue,
-                leftShape, rightShape, left, right, new IntNDArrayWriter());
-    }
-
-    private static class IntNDArrayWriter implements CompareHelper.CompareWriter<Integer, JavaIntArray> {
-        private int[] data;
-
-        @Override
-        public JavaIntArray scalar(Integer value) {
-            return new JavaIntArray(value);
-        }
+        JavaIntArray o = (JavaIntArray) other;
 
-        @Override
-        public JavaIntArray toArray(JavaShape shape) {
-            return new JavaIntArray(data, shape);
-        }
-
-        @Override
-        public void prepareDate(int size) {
-            data = new int[size];
-        }
-
-        @Override
-        public void write(int offset, Integer outVal) {
-            data[offset] = outVal;
-        }
+        return CompareHelper.compare(comparison, trueValue, falseValue,
+                data, shape, o.data, o.shape);
     }
-
 }
@@ -0,0 +1,749 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.*;
+import com.codeberry.tadlib.array.util.SoftmaxUtils;
+
+import java.util.*;
+
+import static com.codeberry.tadlib.array.util.DimensionUtils.validateBroadcastShapes;
+import static com.codeberry.tadlib.memorymanagement.DisposalRegister.registerForDisposal;
+import static com.codeberry.tadlib.util.MultiThreadingSupport.TaskRange.taskRange;
+import static com.codeberry.tadlib.util.MultiThreadingSupport.multiThreadingSupportRun;
+import static com.codeberry.tadlib.util.TaskCost.ofDoubles;
+import static java.lang.Math.min;
+
+/**
+ * {@link DType#FLOAT64} array that fuses chains of element wise ops, created by {@link JavaProvider}
+ * when fusion is enabled.
+ * <p>
+ * add, mul, div, negate, sqr, sqrt, pow, log, clip, with scalars or broadcast arrays, only record an
+ * expression. The expression is evaluated when the value is needed, by any other op or by toDoubles(),
+ * in a single pass that computes every node on small block buffers and writes the output once. No
+ * intermediate arrays are created for the chain.
+ * <p>
+ * An unevaluated expression used by several others is computed once per user, so expressions are capped
+ * at {@value #MAX_NODES} nodes: the larger operand is evaluated first when the cap is reached.
+ * <p>
+ * Off by default. Set the system property {@value #PROP_TAD_JAVA_FUSION} to <code>on</code>.
+ */
+public final class JavaLazyArray implements NDArray {
+    public static final String PROP_TAD_JAVA_FUSION = "tad.java.fusion";
+
+    static final int MAX_NODES = 32;
+    private static final int BLOCK_SIZE = 256;
+
+    private static volatile boolean enabled = "on".equalsIgnoreCase(System.getProperty(PROP_TAD_JAVA_FUSION));
+
+    private final JavaShape shape;
+    /**
+     * Replaced by a leaf of the value when evaluated.
+     */
+    private Node node;
+    /**
+     * Pooled buffers read by the expression. They are retained until the expression is evaluated or this
+     * array is disposed, since their arrays may be disposed before that.
+     */
+    private List<double[]> retained;
+    /**
+     * The value is disposed with this array. It is not registered for disposal itself, as it may be
+     * evaluated inside another disposal scope than the one this array was created in.
+     */
+    private boolean ownsValue;
+    private boolean disposed;
+
+    private JavaLazyArray(Node node) {
+        this.shape = node.shape;
+        this.node = node;
+        this.retained = retainLeaves(node);
+        if (node.op != Op.LEAF || !retained.isEmpty()) {
+            registerForDisposal(this);
+        }
+    }
+
+    public static void setEnabled(boolean enabled) {
+        JavaLazyArray.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    static NDArray wrap(NDArray array) {
+        return array instanceof JavaArray ? new JavaLazyArray(Node.leaf((JavaArray) array)) : array;
+    }
+
+    private static List<double[]> retainLeaves(Node root) {
+        List<double[]> retained = new ArrayList<>();
+        Deque<Node> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        while (!toVisit.isEmpty()) {
+            Node n = toVisit.pop();
+            if (n.op == Op.LEAF) {
+                double[] data = n.array.getInternalData();
+                if (JavaBufferPool.retain(data)) {
+                    retained.add(data);
+                }
+            } else {
+                toVisit.push(n.a);
+                if (n.b != null) {
+                    toVisit.push(n.b);
+                }
+            }
+        }
+        return retained;
+    }
+
+    private void releaseLeaves() {
+        for (double[] data : retained) {
+            JavaBufferPool.release(data);
+        }
+        retained = Collections.emptyList();
+    }
+
+    private synchronized Node node() {
+        return node;
+    }
+
+    synchronized JavaArray materialize() {
+        if (node.op != Op.LEAF) {
+            node = Node.leaf(evaluate(node));
+            ownsValue = true;
+            releaseLeaves();
+        }
+        return node.array;
+    }
+
+    @Override
+    public synchronized void dispose() {
+        if (!disposed) {
+            disposed = true;
+            releaseLeaves();
+            if (ownsValue) {
+                node.array.dispose();
+            }
+        }
+    }
+
+    private JavaLazyArray unary(Op op, double p0, double p1) {
+        Node a = (node().size + 1 > MAX_NODES ? Node.leaf(materialize()) : node());
+        return new JavaLazyArray(new Node(op, a.shape, null, a, null, p0, p1));
+    }
+
+    private JavaLazyArray unary(Op op, double p0) {
+        return unary(op, p0, 0);
+    }
+
+    private JavaLazyArray unary(Op op) {
+        return unary(op, 0, 0);
+    }
+
+    private JavaLazyArray binary(Op op, NDArray other) {
+        JavaLazyArray otherLazy = (other instanceof JavaLazyArray ? (JavaLazyArray) other : null);
+        Node a = node();
+        Node b = (otherLazy != null ? otherLazy.node() : Node.leaf(JavaArray.javaArray(other)));
+        validateBroadcastShapes(a.shape, b.shape, -1);
+        JavaShape outShape = JavaArray.evalBroadcastOutputShape(a.shape, b.shape);
+
+        // A broadcast operand would be computed once per output element instead of once per own element
+        if (a.op != Op.LEAF && a.shape.size < outShape.size) {
+            a = Node.leaf(materialize());
+        }
+        if (b.op != Op.LEAF && b.shape.size < outShape.size) {
+            b = Node.leaf(otherLazy.materialize());
+        }
+        if (a.size + b.size + 1 > MAX_NODES) {
+            if (a.size >= b.size) {
+                a = Node.leaf(materialize());
+            } else {
+                b = Node.leaf(otherLazy.materialize());
+            }
+        }
+        if (a.size + b.size + 1 > MAX_NODES) {
+            a = Node.leaf(materialize());
+            b = Node.leaf(otherLazy.materialize());
+        }
+        return new JavaLazyArray(new Node(op, outShape, null, a, b, 0, 0));
+    }
+
+    private static JavaArray evaluate(Node root) {
+        Program program = new Program(root);
+        int[] dims = root.shape.dims;
+        double[] out = JavaBufferPool.allocate(root.shape.size);
+
+        if (out.length == 0) {
+            // nothing to compute
+        } else if (dims.length == 0) {
+            program.run(new int[0], 0, out);
+        } else {
+            int innerSize = root.shape.size / Math.max(dims[0], 1);
+            // one flop per node, and the nodes read at most one double each, per element
+            multiThreadingSupportRun(taskRange(0, dims[0],
+                            ofDoubles("fused", (double) innerSize * root.size, (double) innerSize * (root.size + 1))),
+                    range -> {
+                        int[] rangeDims = dims.clone();
+                        rangeDims[0] = range.size();
+                        program.run(rangeDims, range.start, out);
+                        return out;
+                    },
+                    (left, ignored) -> left);
+        }
+
+        return JavaArray.owned(out, new JavaShape(dims));
+    }
+
+    private enum Op {
+        LEAF, ADD, MUL, DIV, ADD_SCALAR, MUL_SCALAR, DIV_SCALAR, SQR, SQRT, POW, LOG, CLIP;
+
+        void compute(ElementKernels kernels, double[] a, double[] b, double p0, double p1, double[] out, int len) {
+            switch (this) {
+                case ADD:
+                    kernels.add(a, b, out, 0, len);
+                    break;
+                case MUL:
+                    kernels.mul(a, b, out, 0, len);
+                    break;
+                case DIV:
+                    kernels.div(a, b, out, 0, len);
+                    break;
+                case ADD_SCALAR:
+                    kernels.add(a, p0, out, 0, len);
+                    break;
+                case MUL_SCALAR:
+                    kernels.mul(a, p0, out, 0, len);
+                    break;
+                case DIV_SCALAR:
+                    kernels.div(a, p0, out, 0, len);
+                    break;
+                case SQR:
+                    kernels.sqr(a, out, 0, len);
+                    break;
+                case SQRT:
+                    kernels.sqrt(a, out, 0, len);
+                    break;
+                case POW:
+                    kernels.pow(a, p0, out, 0, len);
+                    break;
+                case LOG:
+                    kernels.log(a, out, 0, len);
+                    break;
+                case CLIP:
+                    kernels.clip(a, p0, p1, out, 0, len);
+                    break;
+                default:
+                    throw new IllegalStateException("Not computable: " + this);
+            }
+        }
+    }
+
+    /**
+     * Immutable, so unevaluated expressions can be shared by several arrays.
+     */
+    private static final class Node {
+        final Op op;
+        final JavaShape shape;
+        final JavaArray array;
+        final Node a;
+        final Node b;
+        final double p0;
+        final double p1;
+        /**
+         * Nodes in the tree, counting shared sub trees once per use.
+         */
+        final int size;
+
+        Node(Op op, JavaShape shape, JavaArray array, Node a, Node b, double p0, double p1) {
+            this.op = op;
+            this.shape = shape;
+            this.array = array;
+            this.a = a;
+            this.b = b;
+            this.p0 = p0;
+            this.p1 = p1;
+            this.size = 1 + (a != null ? a.size : 0) + (b != null ? b.size : 0);
+        }
+
+        static Node leaf(JavaArray array) {
+            return new Node(Op.LEAF, array.shape, array, null, null, 0, 0);
+        }
+    }
+
+    /**
+     * The distinct nodes of an expression in evaluation order. Leaves are read through an {@link NDIter}
+     * into block buffers, with broadcast and view strides, then each node computes its block from the
+     * blocks of its operands.
+     */
+    private static final class Program {
+        private final Node[] nodes;
+        private final int[] aSlots;
+        private final int[] bSlots;
+        private final Node[] leaves;
+        private final int[] leafSlots;
+        /**
+         * Leaves in normal order whose dims are the last output dims repeat with this period in the
+         * output, e.g. a bias. 0 for other leaves.
+         */
+        private final int[] leafPeriods;
+        private final boolean allPeriodic;
+
+        Program(Node root) {
+            Map<Node, Integer> slots = new IdentityHashMap<>();
+            List<Node> ordered = new ArrayList<>();
+            addInOrder(root, slots, new IdentityHashMap<>(), ordered);
+
+            nodes = ordered.toArray(new Node[0]);
+            aSlots = new int[nodes.length];
+            bSlots = new int[nodes.length];
+            List<Node> leafList = new ArrayList<>();
+            List<Integer> leafSlotList = new ArrayList<>();
+            for (int i = 0; i < nodes.length; i++) {
+                Node n = nodes[i];
+                aSlots[i] = (n.a != null ? slots.get(n.a) : -1);
+                bSlots[i] = (n.b != null ? slots.get(n.b) : -1);
+                if (n.op == Op.LEAF) {
+                    leafList.add(n);
+                    leafSlotList.add(i);
+                }
+            }
+            leaves = leafList.toArray(new Node[0]);
+            leafSlots = leafSlotList.stream().mapToInt(Integer::intValue).toArray();
+
+            leafPeriods = new int[leaves.length];
+            boolean periodic = true;
+            for (int i = 0; i < leaves.length; i++) {
+                leafPeriods[i] = periodOf(leaves[i].array.shape, root.shape.dims);
+                periodic &= (leafPeriods[i] > 0);
+            }
+            allPeriodic = periodic;
+        }
+
+        private static int periodOf(JavaShape shape, int[] outDims) {
+            if (shape.getClass() != JavaShape.class) {
+                return 0;
+            }
+            int first = 0;
+            while (first < shape.dimCount && shape.dims[first] == 1) {
+                first++;
+            }
+            int ownDims = shape.dimCount - first;
+            for (int i = 1; i <= ownDims; i++) {
+                if (shape.dims[shape.dimCount - i] != outDims[outDims.length - i]) {
+                    return 0;
+                }
+            }
+            return shape.size;
+        }
+
+        /**
+         * Nodes shared in the tree, and leaves of the same array, get one slot.
+         */
+        private static void addInOrder(Node node, Map<Node, Integer> slots, Map<JavaArray, Integer> leafSlots,
+                                       List<Node> ordered) {
+            if (slots.containsKey(node)) {
+                return;
+            }
+            if (node.op == Op.LEAF && leafSlots.containsKey(node.array)) {
+                slots.put(node, leafSlots.get(node.array));
+                return;
+            }
+            if (node.a != null) {
+                addInOrder(node.a, slots, leafSlots, ordered);
+            }
+            if (node.b != null) {
+                addInOrder(node.b, slots, leafSlots, ordered);
+            }
+            slots.put(node, ordered.size());
+            if (node.op == Op.LEAF) {
+                leafSlots.put(node.array, ordered.size());
+            }
+            ordered.add(node);
+        }
+
+        /**
+         * Evaluates the rows [firstRow, firstRow + dims[0]) of the output. The output is in normal order,
+         * so only the leaves are walked by the iterator. Short inner runs, e.g. of a per channel operand,
+         * are packed into the same block.
+         */
+        void run(int[] dims, int firstRow, double[] out) {
+            int[] outDims = nodes[nodes.length - 1].shape.dims;
+            int rowSize = (outDims.length > 0 ? out.length / outDims[0] : 1);
+            if (allPeriodic) {
+                runPeriodic(firstRow * rowSize, (firstRow + (outDims.length > 0 ? dims[0] : 1)) * rowSize, out);
+                return;
+            }
+
+            NDIter.Operand[] operands = new NDIter.Operand[leaves.length];
+            for (int i = 0; i < leaves.length; i++) {
+                operands[i] = rowOffset(NDIter.broadcast(leaves[i].array.shape, outDims), firstRow);
+            }
+            double[][] leafData = new double[leaves.length][];
+            for (int i = 0; i < leaves.length; i++) {
+                leafData[i] = leaves[i].array.getInternalData();
+            }
+
+            double[][] blocks = new double[nodes.length][BLOCK_SIZE];
+            ElementKernels kernels = ElementKernels.get();
+            int outOffset = firstRow * rowSize;
+            int filled = 0;
+
+            NDIter it = NDIter.iterate(dims, operands);
+            int innerLength = it.innerLength();
+            for (; it.hasNext(); it.next()) {
+                for (int pos = 0; pos < innerLength; ) {
+                    int len = min(BLOCK_SIZE - filled, innerLength - pos);
+                    for (int i = 0; i < leaves.length; i++) {
+                        int stride = it.innerStride(i);
+                        gather(leafData[i], it.offset(i) + pos * stride, stride, blocks[leafSlots[i]], filled, len);
+                    }
+                    pos += len;
+                    filled += len;
+                    if (filled == BLOCK_SIZE) {
+                        computeBlock(kernels, blocks, filled, out, outOffset);
+                        outOffset += filled;
+                        filled = 0;
+                    }
+                }
+            }
+            if (filled > 0) {
+                computeBlock(kernels, blocks, filled, out, outOffset);
+            }
+        }
+
+        private void runPeriodic(int start, int end, double[] out) {
+            double[][] blocks = new double[nodes.length][BLOCK_SIZE];
+            ElementKernels kernels = ElementKernels.get();
+            for (int blockStart = start; blockStart < end; blockStart += BLOCK_SIZE) {
+                int len = min(BLOCK_SIZE, end - blockStart);
+                for (int i = 0; i < leaves.length; i++) {
+                    gatherPeriodic(leaves[i].array.getInternalData(), leafPeriods[i], blockStart,
+                            blocks[leafSlots[i]], len);
+                }
+                computeBlock(kernels, blocks, len, out, blockStart);
+            }
+        }
+
+        private static void gatherPeriodic(double[] src, int period, int start, double[] block, int len) {
+            if (period == 1) {
+                Arrays.fill(block, 0, len, src[0]);
+                return;
+            }
+            int srcIdx = start % period;
+            for (int filled = 0; filled < len; ) {
+                int n = min(period - srcIdx, len - filled);
+                System.arraycopy(src, srcIdx, block, filled, n);
+                filled += n;
+                srcIdx = 0;
+            }
+        }
+
+        private void computeBlock(ElementKernels kernels, double[][] blocks, int len, double[] out, int outOffset) {
+            for (int i = 0; i < nodes.length; i++) {
+                Node n = nodes[i];
+                if (n.op != Op.LEAF) {
+                    n.op.compute(kernels, blocks[aSlots[i]], bSlots[i] >= 0 ? blocks[bSlots[i]] : null,
+                            n.p0, n.p1, blocks[i], len);
+                }
+            }
+            System.arraycopy(blocks[nodes.length - 1], 0, out, outOffset, len);
+        }
+
+        private static NDIter.Operand rowOffset(NDIter.Operand operand, int firstRow) {
+            if (firstRow == 0) {
+                return operand;
+            }
+            return NDIter.operand(operand.strides, operand.baseOffset + firstRow * operand.strides[0]);
+        }
+
+        private static void gather(double[] src, int offset, int stride, double[] block, int blockOffset, int len) {
+            if (stride == 1) {
+                System.arraycopy(src, offset, block, blockOffset, len);
+            } else if (stride == 0) {
+                Arrays.fill(block, blockOffset, blockOffset + len, src[offset]);
+            } else {
+                for (int i = 0; i < len; i++) {
+                    block[blockOffset + i] = src[offset];
+                    offset += stride;
+                }
+            }
+        }
+    }
+
+    // --- Fused element wise ops ---
+
+    @Override
+    public NDArray add(NDArray other) {
+        return binary(Op.ADD, other);
+    }
+
+    @Override
+    public NDArray mul(NDArray other) {
+        return binary(Op.MUL, other);
+    }
+
+    @Override
+    public NDArray div(NDArray other) {
+        return binary(Op.DIV, other);
+    }
+
+    @Override
+    public NDArray add(double val) {
+        return unary(Op.ADD_SCALAR, val);
+    }
+
+    @Override
+    public NDArray mul(double val) {
+        return unary(Op.MUL_SCALAR, val);
+    }
+
+    @Override
+    public NDArray div(double val) {
+        return unary(Op.DIV_SCALAR, val);
+    }
+
+    @Override
+    public NDArray negate() {
+        return unary(Op.MUL_SCALAR, -1);
+    }
+
+    @Override
+    public NDArray sqr() {
+        return unary(Op.SQR);
+    }
+
+    @Override
+    public NDArray sqrt() {
+        return unary(Op.SQRT);
+    }
+
+    @Override
+    public NDArray pow(double val) {
+        return unary(Op.POW, val);
+    }
+
+    @Override
+    public NDArray log() {
+        return unary(Op.LOG);
+    }
+
+    @Override
+    public NDArray clip(Double min, Double max) {
+        return unary(Op.CLIP,
+                min != null ? min : Double.NEGATIVE_INFINITY,
+                max != null ? max : Double.POSITIVE_INFINITY);
+    }
+
+    // --- Evaluated ---
+
+    @Override
+    public JavaShape getShape() {
+        return shape;
+    }
+
+    @Override
+    public Object toDoubles() {
+        return materialize().toDoubles();
+    }
+
+    @Override
+    public NDArray normalOrderedCopy() {
+        return wrap(materialize().normalOrderedCopy());
+    }
+
+    @Override
+    public double[] getInternalData() {
+        return materialize().getInternalData();
+    }
+
+    @Override
+    public NDArray asType(DType dType) {
+        return dType == DType.FLOAT64 ? this : materialize().asType(dType);
+    }
+
+    @Override
+    public double dataAt(int... indices) {
+        return materialize().dataAt(indices);
+    }
+
+    @Override
+    public NDArray compare(NDIntArray other, Comparison comparison, double trueValue, double falseValue) {
+        return wrap(materialize().compare(other, comparison, trueValue, falseValue));
+    }
+
+    @Override
+    public NDArray compare(NDArray other, Comparison comparison, double trueValue, double falseValue) {
+        return wrap(materialize().compare(other, comparison, trueValue, falseValue));
+    }
+
+    @Override
+    public NDArray conv2d(NDArray filter, int offsetY, int offsetX, int outHeight, int outWidth) {
+        return wrap(materialize().conv2d(filter, offsetY, offsetX, outHeight, outWidth));
+    }
+
+    @Override
+    public NDArray conv2d(NDArray filter, int offsetY, int offsetX) {
+        return wrap(materialize().conv2d(filter, offsetY, offsetX));
+    }
+
+    @Override
+    public NDArray calcConv2dFilterGradient(NDArray input, NDArray filter) {
+        return wrap(materialize().calcConv2dFilterGradient(input, filter));
+    }
+
+    @Override
+    public NDArray calcConv2dInputGradient(NDArray filter) {
+        return wrap(materialize().calcConv2dInputGradient(filter));
+    }
+
+    @Override
+    public NDArray matmul(NDArray b) {
+        return wrap(materialize().matmul(b));
+    }
+
+    @Override
+    public NDArray transpose(int... axes) {
+        return wrap(materialize().transpose(axes));
+    }
+
+    @Override
+    public NDArray rot180(int yAxis, int xAxis) {
+        return wrap(materialize().rot180(yAxis, xAxis));
+    }
+
+    @Override
+    public NDArray reshape(int... dims) {
+        return wrap(materialize().reshape(dims));
+    }
+
+    @Override
+    public NDArray sum() {
+        return wrap(materialize().sum());
+    }
+
+    @Override
+    public NDArray sum(Boolean[] dimsToCollapse, DimKeepRemove keepRemove) {
+        return wrap(materialize().sum(dimsToCollapse, keepRemove));
+    }
+
+    @Override
+    public MaxPool2dResult maxPool2d(int size) {
+        JavaArray.JavaMaxPool2dResult r = materialize().maxPool2d(size);
+        return r.withOutput(wrap(r.getOutput()));
+    }
+
+    @Override
+    public NDArray maxPool2dGrad(MaxPool2dResult result) {
+        return wrap(materialize().maxPool2dGrad(result));
+    }
+
+    @Override
+    public ReluResult relu(double leakyScale) {
+        ReluResult r = materialize().relu(leakyScale);
+        NDArray output = wrap(r.getOutput());
+
+        return new ReluResult() {
+            @Override
+            public NDArray getOutput() {
+                return output;
+            }
+
+            @Override
+            public NDArray createMask() {
+                return wrap(r.createMask());
+            }
+
+            @Override
+            public NDArray maskGradient(NDArray grad) {
+                return wrap(r.maskGradient(grad));
+            }
+        };
+    }
+
+    @Override
+    public NDArray softmax() {
+        return wrap(materialize().softmax());
+    }
+
+    @Override
+    public NDArray softMaxCrossEntropyGrad(NDArray softmax, NDArray oneHotArray) {
+        return wrap(materialize().softMaxCrossEntropyGrad(softmax, oneHotArray));
+    }
+
+    @Override
+    public SoftmaxCrossEntropyResult softmaxCrossEntropy(NDIntArray labels) {
+        SoftmaxCrossEntropyResult r = materialize().softmaxCrossEntropy(labels);
+
+        return new SoftmaxUtils.SoftmaxCrossEntropyResult(wrap(r.getLoss()), wrap(r.getGradient()));
+    }
+
+    @Override
+    public DropOutResult dropOut(Random rnd, double dropoutKeep) {
+        DropOutResult r = materialize().dropOut(rnd, dropoutKeep);
+        NDArray output = wrap(r.getOutput());
+
+        return new DropOutResult() {
+            @Override
+            public NDArray getOutput() {
+                return output;
+            }
+
+            @Override
+            public NDArray createMask() {
+                return wrap(r.createMask());
+            }
+
+            @Override
+            public NDArray maskGradient(NDArray grad) {
+                return wrap(r.maskGradient(grad));
+            }
+        };
+    }
+
+    @Override
+    public NDArray withUpdates(List<ValueUpdate> updates) {
+        return wrap(materialize().withUpdates(updates));
+    }
+
+    @Override
+    public NDIntArray argmax(int axis) {
+        return materialize().argmax(axis);
+    }
+
+    @Override
+    public NDArray getAtIndicesOnAxis(NDIntArray indices, int axis) {
+        return wrap(materialize().getAtIndicesOnAxis(indices, axis));
+    }
+
+    @Override
+    public NDArray withUpdateAtIndicesOnAxis(NDIntArray indices, int axis, NDArray change) {
+        return wrap(materialize().withUpdateAtIndicesOnAxis(indices, axis, change));
+    }
+
+    @Override
+    public NDArray diag() {
+        return wrap(materialize().diag());
+    }
+
+    @Override
+    public NDArray concat(NDArray[] appendees, int axis) {
+        return wrap(materialize().concat(appendees, axis));
+    }
+
+    @Override
+    public List<NDArray> split(int axis, int[] axisLens) {
+        List<NDArray> parts = materialize().split(axis, axisLens);
+        List<NDArray> wrapped = new ArrayList<>(parts.size());
+        for (NDArray part : parts) {
+            wrapped.add(wrap(part));
+        }
+        return wrapped;
+    }
+
+    @Override
+    public NDArray subArray(int fromBatchIndex, int fromOffset, int endBatchIndex, int toOffset) {
+        return wrap(materialize().subArray(fromBatchIndex, fromOffset, endBatchIndex, toOffset));
+    }
+
+    @Override
+    public String toString() {
+        return materialize().toString();
+    }
+}
@@ -0,0 +1,435 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.*;
+import com.codeberry.tadlib.util.StringUtils;
+import com.codeberry.tadlib.util.TaskCost;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.codeberry.tadlib.util.MultiThreadingSupport.TaskRange.taskRange;
+import static com.codeberry.tadlib.util.MultiThreadingSupport.multiThreadingSupportRun;
+import static com.codeberry.tadlib.util.TaskCost.ofDoubles;
+import static java.lang.Math.min;
+import static java.lang.Math.toIntExact;
+
+/**
+ * {@link DType#FLOAT64} array in direct memory, for arrays that are too large for a <code>double[]</code>, or
+ * that should stay out of the garbage collected heap (like a whole training set, or large parameter blocks).
+ * <p>
+ * Offsets are <code>long</code>, so the array can have more than {@link Integer#MAX_VALUE} elements.
+ * {@link #subBatch(int, int)} copies the batch to a heap array. reshape, sum(), and the element wise ops against
+ * a scalar or an array with the same dimensions, return off-heap arrays and never copy the data to the heap.
+ * Other ops run on a heap copy, and fail when the array is too large for one.
+ */
+public final class JavaOffHeapArray implements NDArray {
+    private static final int CHUNK_LENGTH = 16 * 1024;
+    private static final TaskCost ZIP_CHUNK_COST = ofDoubles("offHeapElementWise", CHUNK_LENGTH, 3 * CHUNK_LENGTH);
+    private static final TaskCost SUM_CHUNK_COST = ofDoubles("offHeapSum", CHUNK_LENGTH, CHUNK_LENGTH);
+
+    public final JavaShape shape;
+    private final OffHeapDoubles data;
+
+    private JavaOffHeapArray(JavaShape shape, OffHeapDoubles data) {
+        this.shape = shape;
+        this.data = data;
+    }
+
+    /**
+     * @return zero filled array, to be filled with {@link #put(long, double[], int, int)}
+     */
+    public static JavaOffHeapArray allocate(int... dims) {
+        return allocate(new JavaShape(dims), OffHeapDoubles.DEFAULT_SEGMENT_SHIFT);
+    }
+
+    static JavaOffHeapArray allocate(JavaShape shape, int segmentShift) {
+        return new JavaOffHeapArray(shape, new OffHeapDoubles(shape.getSize(), segmentShift));
+    }
+
+    public static JavaOffHeapArray copyOf(NDArray array) {
+        JavaArray src = JavaArray.javaArray(array).asNormalOrdered();
+        JavaOffHeapArray copy = allocate(src.shape.toDimArray());
+        copy.data.put(0, src.getInternalData(), 0, src.shape.size);
+        return copy;
+    }
+
+    /**
+     * Copies values into the array, starting at the flat, normal ordered, <code>offset</code>. Only for filling
+     * the array after {@link #allocate(int...)}: ops may share the data with the arrays they return.
+     */
+    public void put(long offset, double[] src, int srcOffset, int count) {
+        data.put(offset, src, srcOffset, count);
+    }
+
+    /**
+     * Copies values from the flat, normal ordered, <code>offset</code>.
+     */
+    public void get(long offset, double[] dst, int dstOffset, int count) {
+        data.get(offset, dst, dstOffset, count);
+    }
+
+    public JavaArray toHeap() {
+        int size = shape.size;
+        if (size < 0) {
+            throw new UnsupportedOperationException("Too large for a heap array: " + shape);
+        }
+        double[] heap = JavaBufferPool.allocate(size);
+        data.get(0, heap, 0, size);
+        return new JavaArray(heap, new JavaShape(shape.toDimArray()));
+    }
+
+    // --- Chunked element wise ops ---
+
+    private interface ChunkReader {
+        void read(long offset, double[] dst, int count);
+    }
+
+    private interface UnaryChunkOp {
+        void apply(double[] a, double[] out, int count);
+    }
+
+    private interface BinaryChunkOp {
+        void apply(double[] a, double[] b, double[] out, int count);
+    }
+
+    private int chunkCount() {
+        return toIntExact((shape.getSize() + CHUNK_LENGTH - 1) / CHUNK_LENGTH);
+    }
+
+    private JavaOffHeapArray map(UnaryChunkOp op) {
+        return zip((offset, dst, count) -> { }, (a, ignored, out, count) -> op.apply(a, out, count));
+    }
+
+    private JavaOffHeapArray zip(ChunkReader other, BinaryChunkOp op) {
+        OffHeapDoubles out = new OffHeapDoubles(data.length, data.segmentShift);
+        long length = data.length;
+        multiThreadingSupportRun(taskRange(0, chunkCount(), ZIP_CHUNK_COST), range -> {
+            double[] a = new double[CHUNK_LENGTH];
+            double[] b = new double[CHUNK_LENGTH];
+            double[] result = new double[CHUNK_LENGTH];
+            for (int chunk = range.start; chunk < range.end; chunk++) {
+                long offset = (long) chunk * CHUNK_LENGTH;
+                int count = (int) min(CHUNK_LENGTH, length - offset);
+                data.get(offset, a, 0, count);
+                other.read(offset, b, count);
+                op.apply(a, b, result, count);
+                out.put(offset, result, 0, count);
+            }
+            return out;
+        }, (left, ignored) -> left);
+        return new JavaOffHeapArray(new JavaShape(shape.toDimArray()), out);
+    }
+
+    /**
+     * @return null when the other array does not have the same dimensions
+     */
+    private ChunkReader readerOfSameDims(NDArray other) {
+        if (!Arrays.equals(shape.dims, other.getShape().toDimArray())) {
+            return null;
+        }
+        if (other instanceof JavaOffHeapArray) {
+            OffHeapDoubles otherData = ((JavaOffHeapArray) other).data;
+            return (offset, dst, count) -> otherData.get(offset, dst, 0, count);
+        }
+        double[] otherData = JavaArray.javaArray(other).asNormalOrdered().getInternalData();
+        return (offset, dst, count) -> System.arraycopy(otherData, (int) offset, dst, 0, count);
+    }
+
+    @Override
+    public NDArray add(NDArray other) {
+        ChunkReader reader = readerOfSameDims(other);
+        if (reader == null) {
+            return toHeap().add(other);
+        }
+        return zip(reader, (a, b, out, count) -> ElementKernels.get().add(a, b, out, 0, count));
+    }
+
+    @Override
+    public NDArray mul(NDArray other) {
+        ChunkReader reader = readerOfSameDims(other);
+        if (reader == null) {
+            return toHeap().mul(other);
+        }
+        return zip(reader, (a, b, out, count) -> ElementKernels.get().mul(a, b, out, 0, count));
+    }
+
+    @Override
+    public NDArray div(NDArray other) {
+        ChunkReader reader = readerOfSameDims(other);
+        if (reader == null) {
+            return toHeap().div(other);
+        }
+        return zip(reader, (a, b, out, count) -> ElementKernels.get().div(a, b, out, 0, count));
+    }
+
+    @Override
+    public NDArray add(double val) {
+        return map((a, out, count) -> ElementKernels.get().add(a, val, out, 0, count));
+    }
+
+    @Override
+    public NDArray mul(double val) {
+        return map((a, out, count) -> ElementKernels.get().mul(a, val, out, 0, count));
+    }
+
+    @Override
+    public NDArray div(double val) {
+        return map((a, out, count) -> ElementKernels.get().div(a, val, out, 0, count));
+    }
+
+    @Override
+    public NDArray negate() {
+        return mul(-1.0);
+    }
+
+    @Override
+    public NDArray sqr() {
+        return map((a, out, count) -> ElementKernels.get().sqr(a, out, 0, count));
+    }
+
+    @Override
+    public NDArray sqrt() {
+        return map((a, out, count) -> ElementKernels.get().sqrt(a, out, 0, count));
+    }
+
+    @Override
+    public NDArray pow(double val) {
+        return map((a, out, count) -> ElementKernels.get().pow(a, val, out, 0, count));
+    }
+
+    @Override
+    public NDArray log() {
+        return map((a, out, count) -> ElementKernels.get().log(a, out, 0, count));
+    }
+
+    @Override
+    public NDArray clip(Double min, Double max) {
+        double lower = (min != null ? min : Double.NEGATIVE_INFINITY);
+        double upper = (max != null ? max : Double.POSITIVE_INFINITY);
+        return map((a, out, count) -> ElementKernels.get().clip(a, lower, upper, out, 0, count));
+    }
+
+    /**
+     * Sums each chunk, then the chunk sums in order, so the result does not depend on the thread mode.
+     */
+    @Override
+    public NDArray sum() {
+        int chunks = chunkCount();
+        double[] chunkSums = new double[chunks];
+        long length = data.length;
+        multiThreadingSupportRun(taskRange(0, chunks, SUM_CHUNK_COST), range -> {
+            double[] a = new double[CHUNK_LENGTH];
+            for (int chunk = range.start; chunk < range.end; chunk++) {
+                long offset = (long) chunk * CHUNK_LENGTH;
+                int count = (int) min(CHUNK_LENGTH, length - offset);
+                data.get(offset, a, 0, count);
+                chunkSums[chunk] = ElementKernels.get().sum(a, 0, count);
+            }
+            return chunkSums;
+        }, (left, ignored) -> left);
+        return new JavaArray(ElementKernels.get().sum(chunkSums, 0, chunks));
+    }
+
+    /**
+     * Shares the data with this array.
+     */
+    @Override
+    public Object getDataOwner() {
+        return data;
+    }
+
+    @Override
+    public NDArray reshape(int... dims) {
+        return new JavaOffHeapArray(shape.reshape(dims), data);
+    }
+
+    /**
+     * Copies the batch to a heap array, using <code>long</code> offsets.
+     */
+    @Override
+    public NDArray subBatch(int batchId, int batchSize) {
+        int fromBatchIndex = batchId * batchSize;
+        int endBatchIndex = min(shape.at(0), (batchId + 1) * batchSize);
+        return copyBatches(fromBatchIndex, endBatchIndex);
+    }
+
+    /**
+     * The offsets are ignored, since they overflow for large arrays, and calculated from the batch indices.
+     */
+    @Override
+    public NDArray subArray(int fromBatchIndex, int fromOffset, int endBatchIndex, int toOffset) {
+        return copyBatches(fromBatchIndex, endBatchIndex);
+    }
+
+    private JavaArray copyBatches(int fromBatchIndex, int endBatchIndex) {
+        int[] dims = shape.toDimArray();
+        dims[0] = endBatchIndex - fromBatchIndex;
+        JavaShape batchShape = new JavaShape(dims);
+        if (batchShape.size < 0) {
+            throw new UnsupportedOperationException("Too large for a heap array: " + batchShape);
+        }
+        long batchLength = shape.getSize() / shape.at(0);
+        double[] batch = JavaBufferPool.allocate(batchShape.size);
+        data.get(fromBatchIndex * batchLength, batch, 0, batchShape.size);
+        return new JavaArray(batch, batchShape);
+    }
+
+    @Override
+    public JavaShape getShape() {
+        return shape;
+    }
+
+    @Override
+    public double dataAt(int... indices) {
+        return data.get(shape.calcLongDataIndex(indices));
+    }
+
+    // --- Heap copy ---
+
+    @Override
+    public Object toDoubles() {
+        return toHeap().toDoubles();
+    }
+
+    @Override
+    public NDArray normalOrderedCopy() {
+        return toHeap();
+    }
+
+    /**
+     * @return the data of a heap copy
+     */
+    @Override
+    public double[] getInternalData() {
+        return toHeap().getInternalData();
+    }
+
+    @Override
+    public NDArray compare(NDIntArray other, Comparison comparison, double trueValue, double falseValue) {
+        return toHeap().compare(other, comparison, trueValue, falseValue);
+    }
+
+    @Override
+    public NDArray compare(NDArray other, Comparison comparison, double trueValue, double falseValue) {
+        return toHeap().compare(other, comparison, trueValue, falseValue);
+    }
+
+    @Override
+    public NDArray matmul(NDArray b) {
+        return toHeap().matmul(b);
+    }
+
+    @Override
+    public NDArray conv2d(NDArray filter, int offsetY, int offsetX, int outHeight, int outWidth) {
+        return toHeap().conv2d(filter, offsetY, offsetX, outHeight, outWidth);
+    }
+
+    @Override
+    public NDArray conv2d(NDArray filter, int offsetY, int offsetX) {
+        return toHeap().conv2d(filter, offsetY, offsetX);
+    }
+
+    @Override
+    public NDArray calcConv2dFilterGradient(NDArray input, NDArray filter) {
+        return toHeap().calcConv2dFilterGradient(input, filter);
+    }
+
+    @Override
+    public NDArray calcConv2dInputGradient(NDArray filter) {
+        return toHeap().calcConv2dInputGradient(filter);
+    }
+
+    @Override
+    public NDArray transpose(int... axes) {
+        return toHeap().transpose(axes);
+    }
+
+    @Override
+    public NDArray rot180(int yAxis, int xAxis) {
+        return toHeap().rot180(yAxis, xAxis);
+    }
+
+    @Override
+    public NDArray sum(Boolean[] dimsToCollapse, DimKeepRemove keepRemove) {
+        return toHeap().sum(dimsToCollapse, keepRemove);
+    }
+
+    @Override
+    public MaxPool2dResult maxPool2d(int size) {
+        return toHeap().maxPool2d(size);
+    }
+
+    @Override
+    public NDArray maxPool2dGrad(MaxPool2dResult result) {
+        return toHeap().maxPool2dGrad(result);
+    }
+
+    @Override
+    public ReluResult relu(double leakyScale) {
+        return toHeap().relu(leakyScale);
+    }
+
+    @Override
+    public NDArray softmax() {
+        return toHeap().softmax();
+    }
+
+    @Override
+    public NDArray softMaxCrossEntropyGrad(NDArray softmax, NDArray oneHotArray) {
+        return toHeap().softMaxCrossEntropyGrad(softmax, oneHotArray);
+    }
+
+    @Override
+    public SoftmaxCrossEntropyResult softmaxCrossEntropy(NDIntArray labels) {
+        return toHeap().softmaxCrossEntropy(labels);
+    }
+
+    @Override
+    public DropOutResult dropOut(Random rnd, double dropoutKeep) {
+        return toHeap().dropOut(rnd, dropoutKeep);
+    }
+
+    @Override
+    public NDArray withUpdates(List<ValueUpdate> updates) {
+        return toHeap().withUpdates(updates);
+    }
+
+    @Override
+    public NDIntArray argmax(int axis) {
+        return toHeap().argmax(axis);
+    }
+
+    @Override
+    public NDArray getAtIndicesOnAxis(NDIntArray indices, int axis) {
+        return toHeap().getAtIndicesOnAxis(indices, axis);
+    }
+
+    @Override
+    public NDArray withUpdateAtIndicesOnAxis(NDIntArray indices, int axis, NDArray change) {
+        return toHeap().withUpdateAtIndicesOnAxis(indices, axis, change);
+    }
+
+    @Override
+    public NDArray diag() {
+        return toHeap().diag();
+    }
+
+    @Override
+    public NDArray concat(NDArray[] appendees, int axis) {
+        return toHeap().concat(appendees, axis);
+    }
+
+    @Override
+    public List<NDArray> split(int axis, int[] axisLens) {
+        return toHeap().split(axis, axisLens);
+    }
+
+    @Override
+    public String toString() {
+        if (shape.size < 0) {
+            return "JavaOffHeapArray" + shape;
+        }
+        return StringUtils.toString(this);
+    }
+}
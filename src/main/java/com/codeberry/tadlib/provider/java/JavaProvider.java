@@ -8,12 +8,21 @@ import com.codeberry.tadlib.util.MultiThreadingSupport;
 import java.util.Arrays;
 
 public class JavaProvider implements Provider {
+    private final DType dType;
 
     public JavaProvider() {
         this(ThreadMode.MULTI_THREADED);
     }
 
     public JavaProvider(ThreadMode mode) {
+        this(mode, DType.FLOAT64);
+    }
+
+    /**
+     * @param dType type of the arrays created from doubles, use {@link DType#FLOAT32} to halve the memory use
+     */
+    public JavaProvider(ThreadMode mode, DType dType) {
+        this.dType = dType;
         if (mode == ThreadMode.MULTI_THREADED) {
             MultiThreadingSupport.enableMultiThreading();
         } else {
@@ -25,16 +34,39 @@ public class JavaProvider implements Provider {
         SINGLE_THREADED, MULTI_THREADED
     }
 
+    @Override
+    public DType getDType() {
+        return dType;
+    }
+
     @Override
     public NDArray createArray(double v) {
-        return new JavaArray(v);
+        return withDType(new JavaArray(v));
     }
 
     @Override
     public NDArray createArray(Object multiDimArray) {
         MultiDimArrayFlattener<double[]> preparedData = MultiDimArrayFlattener.prepareFlatData(multiDimArray, double[]::new);
 
-        return new JavaArray(preparedData.data, new JavaShape(preparedData.dimensions));
+        return withDType(new JavaArray(preparedData.data, new JavaShape(preparedData.dimensions)));
+    }
+
+    /**
+     * @return a {@link JavaSparseArray}, or a dense array when the type is not {@link DType#FLOAT64}
+     */
+    @Override
+    public NDArray createSparseArray(Shape shape, int[] offsets, double[] values) {
+        if (dType != DType.FLOAT64) {
+            return Provider.super.createSparseArray(shape, offsets, values);
+        }
+        return JavaSparseArray.fromCoordinates((JavaShape) shape, offsets, values);
+    }
+
+    private NDArray withDType(JavaArray array) {
+        if (dType == DType.FLOAT32) {
+            return JavaFloatArray.narrow(array);
+        }
+        return JavaLazyArray.isEnabled() ? JavaLazyArray.wrap(array) : array;
     }
 
     @Override
@@ -58,7 +90,12 @@ public class JavaProvider implements Provider {
 
     @Override
     public NDArray createArray(double[] data, Shape shape) {
-        return new JavaArray(data, (JavaShape) shape);
+        return withDType(new JavaArray(data, (JavaShape) shape));
+    }
+
+    @Override
+    public NDArray createArray(float[] data, Shape shape) {
+        return new JavaFloatArray(data, (JavaShape) shape);
     }
 
     @Override
@@ -68,13 +105,18 @@ public class JavaProvider implements Provider {
 
     @Override
     public NDArray createArrayWithValue(Shape shape, double v) {
+        if (dType == DType.FLOAT32) {
+            float[] data = new float[Math.toIntExact(shape.getSize())];
+            Arrays.fill(data, (float) v);
+            return new JavaFloatArray(data, (JavaShape) shape);
+        }
         double[] data = new double[Math.toIntExact(shape.getSize())];
         Arrays.fill(data, v);
-        return new JavaArray(data, (JavaShape) shape);
+        return withDType(new JavaArray(data, (JavaShape) shape));
     }
 
     @Override
     public String getShortDescription() {
-        return "Java";
+        return dType == DType.FLOAT64 ? "Java" : "Java " + dType;
     }
 }
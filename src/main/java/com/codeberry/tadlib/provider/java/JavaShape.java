@@ -12,14 +12,20 @@ import static java.lang.Math.min;
 public class JavaShape implements Shape {
     protected final int[] dims;
 
+    /**
+     * Element count, or -1 when the shape has more than {@link Integer#MAX_VALUE} elements and cannot be backed
+     * by a <code>double[]</code>. {@link #getSize()} is always valid.
+     */
     public final int size;
     public final int dimCount;
+    private final long longSize;
 
     public JavaShape(int... dims) {
 //        System.out.println("JavaShape.JavaShape");
         this.dims = dims;
         this.dimCount = dims.length;
-        this.size = mul(dims);
+        this.longSize = mul(dims);
+        this.size = (longSize <= Integer.MAX_VALUE ? (int) longSize : -1);
     }
 
     public static JavaShape of(int[] srcDims) {
@@ -50,8 +56,8 @@ public class JavaShape implements Shape {
         return new JavaShape(reshapeDims(dims));
     }
 
-    private static int mul(int[] dims) {
-        int targetSize = 1;
+    private static long mul(int[] dims) {
+        long targetSize = 1;
         for (int dim : dims) {
             targetSize *= dim;
         }
@@ -71,6 +77,26 @@ public class JavaShape implements Shape {
         return offset;
     }
 
+    /**
+     * @return data offset step of each dimension
+     */
+    int[] strides() {
+        int[] strides = new int[dimCount];
+        int blockSize = 1;
+        for (int i = dimCount - 1; i >= 0; i--) {
+            strides[i] = blockSize;
+            blockSize *= dims[i];
+        }
+        return strides;
+    }
+
+    /**
+     * @return data offset of the element at index zero
+     */
+    int baseOffset() {
+        return 0;
+    }
+
     public JavaShape squeeze(int... removeSingleDimsIndices) {
         if (this instanceof ReorderedJavaShape) {
             throw new UnsupportedOperationException("Reordered not supported");
@@ -117,32 +143,30 @@ public class JavaShape implements Shape {
 
     public double[] convertDataToShape(double[] data, JavaShape tgtShape) {
         if (tgtShape.getClass() == this.getClass()) {
-            return Arrays.copyOf(data, data.length);
+            return JavaBufferPool.copyOf(data);
         }
 
-        double[] cp = new double[data.length];
+        double[] cp = JavaBufferPool.allocate(data.length);
 
-        fillIntoDataArray(data, cp, tgtShape, newIndexArray(), 0);
+        fillIntoDataArray(data, cp, tgtShape);
 
         return cp;
     }
 
-    private void fillIntoDataArray(double[] src, double[] tgt,
-                                   JavaShape tgtShape, int[] indices, int dim) {
-        int len = at(dim);
-        if (dim == dimCount - 1) {
-            //...last index
-            for (int i = 0; i < len; i++) {
-                indices[dim] = i;
-                int srcOffset = calcDataIndex(indices);
-                int tgtOffset = tgtShape.calcDataIndex(indices);
-                tgt[tgtOffset] =
-                        src[srcOffset];
-            }
-        } else {
+    private void fillIntoDataArray(double[] src, double[] tgt, JavaShape tgtShape) {
+        NDIter it = NDIter.iterate(toDimArray(),
+                NDIter.operand(tgtShape.strides(), tgtShape.baseOffset()),
+                NDIter.operand(strides(), baseOffset()));
+        int len = it.innerLength();
+        int tgtStride = it.innerStride(0);
+        int srcStride = it.innerStride(1);
+        for (; it.hasNext(); it.next()) {
+            int tgtOffset = it.offset(0);
+            int srcOffset = it.offset(1);
             for (int i = 0; i < len; i++) {
-                indices[dim] = i;
-                fillIntoDataArray(src, tgt, tgtShape, indices, dim + 1);
+                tgt[tgtOffset] = src[srcOffset];
+                tgtOffset += tgtStride;
+                srcOffset += srcStride;
             }
         }
     }
@@ -163,7 +187,7 @@ public class JavaShape implements Shape {
 
     @Override
     public long getSize() {
-        return size;
+        return longSize;
     }
 
     @Override
@@ -21,6 +21,21 @@ public class JavaShapeRot180 extends JavaShape {
         return super.calcDataIndex(cp);
     }
 
+    // Walks the rotated axes backwards
+    @Override
+    int[] strides() {
+        int[] strides = super.strides();
+        strides[yAxis] = -strides[yAxis];
+        strides[xAxis] = -strides[xAxis];
+        return strides;
+    }
+
+    @Override
+    int baseOffset() {
+        int[] strides = super.strides();
+        return (dims[yAxis] - 1) * strides[yAxis] + (dims[xAxis] - 1) * strides[xAxis];
+    }
+
     // Rot180 has the same dimensions, so we use the super implementation
     @Override
     public boolean isValid(int[] indices) {
@@ -0,0 +1,609 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.*;
+import com.codeberry.tadlib.util.StringUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.DoubleUnaryOperator;
+
+import static com.codeberry.tadlib.array.util.DimensionUtils.validateBroadcastShapes;
+import static com.codeberry.tadlib.array.util.DimensionUtils.validateMatMulShapes;
+import static com.codeberry.tadlib.util.MultiThreadingSupport.TaskRange.taskRange;
+import static com.codeberry.tadlib.util.MultiThreadingSupport.multiThreadingSupportRun;
+import static com.codeberry.tadlib.util.TaskCost.taskCost;
+import static java.lang.Math.max;
+
+/**
+ * Sparse {@link DType#FLOAT64} array, created by {@link JavaProvider#createSparseArray(Shape, int[], double[])}.
+ * <p>
+ * Stored as CSR over the last dimension: row r covers the flat offsets [r * cols, (r + 1) * cols) and holds the
+ * columns and values of its non-zeros in ascending column order. For 2-D arrays this is plain CSR. For N-D arrays
+ * it is the same as COO sorted by coordinate.
+ * <p>
+ * matmul with a dense operand, 2-D transpose, reshape, subArray, sum(), and the ops that keep zeros at zero
+ * (mul, negate, sqr, sqrt, ...) only touch the non-zeros. Other ops run on a dense copy, and return dense
+ * arrays.
+ */
+public final class JavaSparseArray implements NDArray {
+    private final JavaShape shape;
+    private final int rows;
+    private final int cols;
+    private final int[] rowStart;
+    private final int[] colIndices;
+    private final double[] values;
+
+    private JavaSparseArray(JavaShape shape, int[] rowStart, int[] colIndices, double[] values) {
+        this.shape = shape;
+        this.rows = rowStart.length - 1;
+        this.cols = shape.at(-1);
+        this.rowStart = rowStart;
+        this.colIndices = colIndices;
+        this.values = values;
+    }
+
+    /**
+     * @param offsets flat, normal ordered, offset of each value. Values with the same offset are summed.
+     */
+    static JavaSparseArray fromCoordinates(JavaShape shape, int[] offsets, double[] values) {
+        validateHasDims(shape);
+        if (offsets.length != values.length) {
+            throw new IllegalArgumentException("Expected one offset per value: offsets=" + offsets.length +
+                    " values=" + values.length);
+        }
+        long[] keys = new long[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] < 0 || offsets[i] >= shape.size) {
+                throw new IndexOutOfBoundsException("Offsets must be in range [0," + shape.size + "): actual.offsets[" +
+                        i + "]=" + offsets[i]);
+            }
+            keys[i] = ((long) offsets[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] sortedOffsets = new int[keys.length];
+        double[] sortedValues = new double[keys.length];
+        int count = 0;
+        for (long key : keys) {
+            int offset = (int) (key >>> 32);
+            double v = values[(int) key];
+            if (count > 0 && sortedOffsets[count - 1] == offset) {
+                sortedValues[count - 1] += v;
+            } else {
+                sortedOffsets[count] = offset;
+                sortedValues[count] = v;
+                count++;
+            }
+        }
+        return fromSortedOffsets(shape, sortedOffsets, sortedValues, count);
+    }
+
+    /**
+     * Keeps the non-zero values of the dense array.
+     */
+    static JavaSparseArray fromDense(JavaArray dense) {
+        validateHasDims(dense.shape);
+        JavaArray src = dense.asNormalOrdered();
+        double[] data = src.getInternalData();
+        int count = 0;
+        for (double v : data) {
+            if (v != 0) {
+                count++;
+            }
+        }
+        int[] offsets = new int[count];
+        double[] values = new double[count];
+        int idx = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != 0) {
+                offsets[idx] = i;
+                values[idx] = data[i];
+                idx++;
+            }
+        }
+        return fromSortedOffsets(new JavaShape(src.shape.toDimArray()), offsets, values, count);
+    }
+
+    private static void validateHasDims(JavaShape shape) {
+        if (shape.dimCount == 0) {
+            throw new DimensionMissing("Sparse arrays need at least 1 dimension");
+        }
+    }
+
+    private static JavaSparseArray fromSortedOffsets(JavaShape shape, int[] offsets, double[] values, int count) {
+        int cols = shape.at(-1);
+        int rows = 1;
+        for (int d = 0; d < shape.dimCount - 1; d++) {
+            rows *= shape.at(d);
+        }
+        int[] rowStart = new int[rows + 1];
+        int[] colIndices = new int[count];
+        for (int i = 0; i < count; i++) {
+            rowStart[offsets[i] / cols + 1]++;
+            colIndices[i] = offsets[i] % cols;
+        }
+        for (int r = 0; r < rows; r++) {
+            rowStart[r + 1] += rowStart[r];
+        }
+        return new JavaSparseArray(shape, rowStart, colIndices, Arrays.copyOf(values, count));
+    }
+
+    public int getNonZeroCount() {
+        return values.length;
+    }
+
+    public JavaArray toDense() {
+        double[] data = JavaBufferPool.allocate(shape.size);
+        scatterAdd(data);
+        return new JavaArray(data, new JavaShape(shape.dims));
+    }
+
+    private void scatterAdd(double[] data) {
+        for (int r = 0; r < rows; r++) {
+            int rowOffset = r * cols;
+            for (int p = rowStart[r]; p < rowStart[r + 1]; p++) {
+                data[rowOffset + colIndices[p]] += values[p];
+            }
+        }
+    }
+
+    private int[] offsets() {
+        int[] offsets = new int[values.length];
+        for (int r = 0; r < rows; r++) {
+            for (int p = rowStart[r]; p < rowStart[r + 1]; p++) {
+                offsets[p] = r * cols + colIndices[p];
+            }
+        }
+        return offsets;
+    }
+
+    private JavaSparseArray withValues(double[] values) {
+        return new JavaSparseArray(shape, rowStart, colIndices, values);
+    }
+
+    private JavaSparseArray mapValues(DoubleUnaryOperator op) {
+        double[] mapped = new double[values.length];
+        for (int i = 0; i < mapped.length; i++) {
+            mapped[i] = op.applyAsDouble(values[i]);
+        }
+        return withValues(mapped);
+    }
+
+    private boolean hasSameDims(NDArray other) {
+        return Arrays.equals(shape.dims, other.getShape().toDimArray());
+    }
+
+    // --- Sparse ops ---
+
+    /**
+     * Sparse x dense: each non-zero adds its scaled row of the dense matrix to the output row.
+     */
+    @Override
+    public NDArray matmul(NDArray b) {
+        if (shape.dimCount != 2 || b.getShape().getDimCount() > 2) {
+            return toDense().matmul(b);
+        }
+        JavaArray dense = JavaArray.javaArray(b).asNormalOrdered();
+        boolean vector = dense.shape.dimCount == 1;
+        JavaShape rightShape = (vector ? new JavaShape(dense.shape.at(0), 1) : dense.shape);
+        validateMatMulShapes(shape, rightShape);
+
+        int outCols = rightShape.at(1);
+        double[] right = dense.getInternalData();
+        double[] out = JavaBufferPool.allocate(rows * outCols);
+
+        double nonZerosPerRow = (double) values.length / max(1, rows);
+        multiThreadingSupportRun(taskRange(0, rows, taskCost("sparseMatmul",
+                2 * nonZerosPerRow * outCols, Double.BYTES * (nonZerosPerRow * (outCols + 1) + outCols))), range -> {
+            for (int r = range.start; r < range.end; r++) {
+                int outOffset = r * outCols;
+                for (int p = rowStart[r]; p < rowStart[r + 1]; p++) {
+                    double v = values[p];
+                    int rightOffset = colIndices[p] * outCols;
+                    for (int j = 0; j < outCols; j++) {
+                        out[outOffset + j] += v * right[rightOffset + j];
+                    }
+                }
+            }
+            return out;
+        }, (left, ignored) -> left);
+
+        return new JavaArray(out, vector ? new JavaShape(rows) : new JavaShape(rows, outCols));
+    }
+
+    /**
+     * Dense x sparse: zeros of the dense matrix are skipped, and the other values add their scaled sparse
+     * row to the output row.
+     */
+    NDArray leftMatmul(JavaArray a) {
+        if (shape.dimCount != 2 || a.shape.dimCount > 2) {
+            return a.matmul(toDense());
+        }
+        JavaArray dense = a.asNormalOrdered();
+        boolean vector = dense.shape.dimCount == 1;
+        JavaShape leftShape = (vector ? new JavaShape(1, dense.shape.at(0)) : dense.shape);
+        validateMatMulShapes(leftShape, shape);
+
+        int outRows = leftShape.at(0);
+        double[] left = dense.getInternalData();
+        double[] out = JavaBufferPool.allocate(outRows * cols);
+
+        multiThreadingSupportRun(taskRange(0, outRows, taskCost("sparseLeftMatmul",
+                2.0 * values.length, Double.BYTES * ((double) rows + values.length + cols))), range -> {
+            for (int i = range.start; i < range.end; i++) {
+                int leftOffset = i * rows;
+                int outOffset = i * cols;
+                for (int k = 0; k < rows; k++) {
+                    double av = left[leftOffset + k];
+                    if (av != 0) {
+                        for (int p = rowStart[k]; p < rowStart[k + 1]; p++) {
+                            out[outOffset + colIndices[p]] += av * values[p];
+                        }
+                    }
+                }
+            }
+            return out;
+        }, (l, ignored) -> l);
+
+        return new JavaArray(out, vector ? new JavaShape(cols) : new JavaShape(outRows, cols));
+    }
+
+    @Override
+    public NDArray transpose(int... axes) {
+        boolean swap2d = shape.dimCount == 2 &&
+                (axes.length == 0 || (axes.length == 2 && axes[0] == 1 && axes[1] == 0));
+        if (!swap2d) {
+            return toDense().transpose(axes);
+        }
+        int[] tRowStart = new int[cols + 1];
+        for (int col : colIndices) {
+            tRowStart[col + 1]++;
+        }
+        for (int c = 0; c < cols; c++) {
+            tRowStart[c + 1] += tRowStart[c];
+        }
+        int[] next = Arrays.copyOf(tRowStart, cols);
+        int[] tColIndices = new int[values.length];
+        double[] tValues = new double[values.length];
+        for (int r = 0; r < rows; r++) {
+            for (int p = rowStart[r]; p < rowStart[r + 1]; p++) {
+                int dst = next[colIndices[p]]++;
+                tColIndices[dst] = r;
+                tValues[dst] = values[p];
+            }
+        }
+        return new JavaSparseArray(new JavaShape(cols, rows), tRowStart, tColIndices, tValues);
+    }
+
+    @Override
+    public NDArray reshape(int... dims) {
+        JavaShape reshaped = shape.reshape(dims);
+        if (reshaped.dimCount == 0) {
+            return toDense().reshape(dims);
+        }
+        return fromSortedOffsets(reshaped, offsets(), values, values.length);
+    }
+
+    @Override
+    public NDArray subArray(int fromBatchIndex, int fromOffset, int endBatchIndex, int toOffset) {
+        int[] offsets = offsets();
+        int start = lowerBound(offsets, fromOffset);
+        int end = lowerBound(offsets, toOffset);
+        int[] subOffsets = new int[end - start];
+        for (int i = 0; i < subOffsets.length; i++) {
+            subOffsets[i] = offsets[start + i] - fromOffset;
+        }
+        int[] dims = shape.toDimArray();
+        dims[0] = endBatchIndex - fromBatchIndex;
+
+        return fromSortedOffsets(new JavaShape(dims), subOffsets, Arrays.copyOfRange(values, start, end), subOffsets.length);
+    }
+
+    private static int lowerBound(int[] sorted, int key) {
+        int idx = Arrays.binarySearch(sorted, key);
+        if (idx < 0) {
+            return -idx - 1;
+        }
+        while (idx > 0 && sorted[idx - 1] == key) {
+            idx--;
+        }
+        return idx;
+    }
+
+    /**
+     * Sparse + sparse keeps the union of the non-zeros, sparse + dense returns a dense array.
+     */
+    @Override
+    public NDArray add(NDArray other) {
+        if (other instanceof JavaSparseArray && hasSameDims(other)) {
+            return union((JavaSparseArray) other);
+        }
+        if (hasSameDims(other)) {
+            return addTo(JavaArray.javaArray(other));
+        }
+        return toDense().add(other);
+    }
+
+    /**
+     * @return dense + this
+     */
+    JavaArray addTo(JavaArray dense) {
+        if (!hasSameDims(dense)) {
+            return dense.add(toDense());
+        }
+        JavaArray sum = dense.normalOrderedCopy();
+        scatterAdd(sum.getInternalData());
+        return sum;
+    }
+
+    private JavaSparseArray union(JavaSparseArray other) {
+        int[] uRowStart = new int[rows + 1];
+        int[] uColIndices = new int[values.length + other.values.length];
+        double[] uValues = new double[uColIndices.length];
+        int count = 0;
+        for (int r = 0; r < rows; r++) {
+            int p = rowStart[r];
+            int pEnd = rowStart[r + 1];
+            int q = other.rowStart[r];
+            int qEnd = other.rowStart[r + 1];
+            while (p < pEnd || q < qEnd) {
+                int pCol = (p < pEnd ? colIndices[p] : Integer.MAX_VALUE);
+                int qCol = (q < qEnd ? other.colIndices[q] : Integer.MAX_VALUE);
+                if (pCol == qCol) {
+                    uColIndices[count] = pCol;
+                    uValues[count] = values[p++] + other.values[q++];
+                } else if (pCol < qCol) {
+                    uColIndices[count] = pCol;
+                    uValues[count] = values[p++];
+                } else {
+                    uColIndices[count] = qCol;
+                    uValues[count] = other.values[q++];
+                }
+                count++;
+            }
+            uRowStart[r + 1] = count;
+        }
+        return new JavaSparseArray(shape, uRowStart,
+                Arrays.copyOf(uColIndices, count), Arrays.copyOf(uValues, count));
+    }
+
+    /**
+     * Stays sparse when the other array broadcasts to the shape of this array.
+     */
+    @Override
+    public NDArray mul(NDArray other) {
+        validateBroadcastShapes(shape, other.getShape(), -1);
+        JavaShape outShape = JavaArray.evalBroadcastOutputShape(shape, other.getShape());
+        if (!Arrays.equals(outShape.dims, shape.dims)) {
+            return toDense().mul(other);
+        }
+        JavaArray dense = JavaArray.javaArray(other);
+        double[] data = dense.getInternalData();
+        NDIter.Operand operand = NDIter.broadcast(dense.shape, shape.dims);
+        int[] strides = operand.strides;
+        int colStride = strides[strides.length - 1];
+
+        double[] product = new double[values.length];
+        for (int r = 0; r < rows; r++) {
+            int rowOffset = operand.baseOffset;
+            for (int d = shape.dimCount - 2, rest = r; d >= 0; d--) {
+                rowOffset += (rest % shape.dims[d]) * strides[d];
+                rest /= shape.dims[d];
+            }
+            for (int p = rowStart[r]; p < rowStart[r + 1]; p++) {
+                product[p] = values[p] * data[rowOffset + colIndices[p] * colStride];
+            }
+        }
+        return withValues(product);
+    }
+
+    @Override
+    public NDArray mul(double val) {
+        return mapValues(v -> v * val);
+    }
+
+    @Override
+    public NDArray div(double val) {
+        if (val == 0) {
+            return toDense().div(val);
+        }
+        return mapValues(v -> v / val);
+    }
+
+    @Override
+    public NDArray negate() {
+        return mapValues(v -> -v);
+    }
+
+    @Override
+    public NDArray sqr() {
+        return mapValues(v -> v * v);
+    }
+
+    @Override
+    public NDArray sqrt() {
+        return mapValues(Math::sqrt);
+    }
+
+    @Override
+    public NDArray pow(double val) {
+        if (val <= 0) {
+            return toDense().pow(val);
+        }
+        return mapValues(v -> Math.pow(v, val));
+    }
+
+    @Override
+    public NDArray sum() {
+        return new JavaArray(ElementKernels.get().sum(values, 0, values.length));
+    }
+
+    @Override
+    public JavaShape getShape() {
+        return shape;
+    }
+
+    @Override
+    public double dataAt(int... indices) {
+        int offset = shape.calcDataIndex(indices);
+        int r = offset / cols;
+        int idx = Arrays.binarySearch(colIndices, rowStart[r], rowStart[r + 1], offset % cols);
+        return idx >= 0 ? values[idx] : 0;
+    }
+
+    // --- Dense ---
+
+    @Override
+    public Object toDoubles() {
+        return toDense().toDoubles();
+    }
+
+    @Override
+    public NDArray normalOrderedCopy() {
+        return toDense();
+    }
+
+    /**
+     * @return the data of a dense copy
+     */
+    @Override
+    public double[] getInternalData() {
+        return toDense().getInternalData();
+    }
+
+    @Override
+    public NDArray compare(NDIntArray other, Comparison comparison, double trueValue, double falseValue) {
+        return toDense().compare(other, comparison, trueValue, falseValue);
+    }
+
+    @Override
+    public NDArray compare(NDArray other, Comparison comparison, double trueValue, double falseValue) {
+        return toDense().compare(other, comparison, trueValue, falseValue);
+    }
+
+    @Override
+    public NDArray add(double val) {
+        return toDense().add(val);
+    }
+
+    @Override
+    public NDArray div(NDArray other) {
+        return toDense().div(other);
+    }
+
+    @Override
+    public NDArray conv2d(NDArray filter, int offsetY, int offsetX, int outHeight, int outWidth) {
+        return toDense().conv2d(filter, offsetY, offsetX, outHeight, outWidth);
+    }
+
+    @Override
+    public NDArray conv2d(NDArray filter, int offsetY, int offsetX) {
+        return toDense().conv2d(filter, offsetY, offsetX);
+    }
+
+    @Override
+    public NDArray calcConv2dFilterGradient(NDArray input, NDArray filter) {
+        return toDense().calcConv2dFilterGradient(input, filter);
+    }
+
+    @Override
+    public NDArray calcConv2dInputGradient(NDArray filter) {
+        return toDense().calcConv2dInputGradient(filter);
+    }
+
+    @Override
+    public NDArray rot180(int yAxis, int xAxis) {
+        return toDense().rot180(yAxis, xAxis);
+    }
+
+    @Override
+    public NDArray sum(Boolean[] dimsToCollapse, DimKeepRemove keepRemove) {
+        return toDense().sum(dimsToCollapse, keepRemove);
+    }
+
+    @Override
+    public MaxPool2dResult maxPool2d(int size) {
+        return toDense().maxPool2d(size);
+    }
+
+    @Override
+    public NDArray maxPool2dGrad(MaxPool2dResult result) {
+        return toDense().maxPool2dGrad(result);
+    }
+
+    @Override
+    public ReluResult relu(double leakyScale) {
+        return toDense().relu(leakyScale);
+    }
+
+    @Override
+    public NDArray softmax() {
+        return toDense().softmax();
+    }
+
+    @Override
+    public NDArray softMaxCrossEntropyGrad(NDArray softmax, NDArray oneHotArray) {
+        return toDense().softMaxCrossEntropyGrad(softmax, oneHotArray);
+    }
+
+    @Override
+    public SoftmaxCrossEntropyResult softmaxCrossEntropy(NDIntArray labels) {
+        return toDense().softmaxCrossEntropy(labels);
+    }
+
+    @Override
+    public DropOutResult dropOut(Random rnd, double dropoutKeep) {
+        return toDense().dropOut(rnd, dropoutKeep);
+    }
+
+    @Override
+    public NDArray withUpdates(List<ValueUpdate> updates) {
+        return toDense().withUpdates(updates);
+    }
+
+    @Override
+    public NDArray clip(Double min, Double max) {
+        return toDense().clip(min, max);
+    }
+
+    @Override
+    public NDArray log() {
+        return toDense().log();
+    }
+
+    @Override
+    public NDIntArray argmax(int axis) {
+        return toDense().argmax(axis);
+    }
+
+    @Override
+    public NDArray getAtIndicesOnAxis(NDIntArray indices, int axis) {
+        return toDense().getAtIndicesOnAxis(indices, axis);
+    }
+
+    @Override
+    public NDArray withUpdateAtIndicesOnAxis(NDIntArray indices, int axis, NDArray change) {
+        return toDense().withUpdateAtIndicesOnAxis(indices, axis, change);
+    }
+
+    @Override
+    public NDArray diag() {
+        return toDense().diag();
+    }
+
+    @Override
+    public NDArray concat(NDArray[] appendees, int axis) {
+        return toDense().concat(appendees, axis);
+    }
+
+    @Override
+    public List<NDArray> split(int axis, int[] axisLens) {
+        return toDense().split(axis, axisLens);
+    }
+
+    @Override
+    public String toString() {
+        return StringUtils.toString(this);
+    }
+}
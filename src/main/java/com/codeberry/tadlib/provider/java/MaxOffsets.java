@@ -0,0 +1,37 @@
+package com.codeberry.tadlib.provider.java;
+
+/**
+ * The in-window offset, <code>dy * size + dx</code>, of the max of each max pool output value.
+ * <p>
+ * Stored as unsigned bytes when every offset of the window fits, which is up to 16 x 16 windows, else as ints.
+ */
+final class MaxOffsets {
+    private static final int MAX_BYTE_WINDOW_CELLS = 256;
+
+    private final byte[] bytes;
+    private final int[] ints;
+
+    private MaxOffsets(byte[] bytes, int[] ints) {
+        this.bytes = bytes;
+        this.ints = ints;
+    }
+
+    static MaxOffsets forWindow(int size, int outputSize) {
+        if ((long) size * size <= MAX_BYTE_WINDOW_CELLS) {
+            return new MaxOffsets(new byte[outputSize], null);
+        }
+        return new MaxOffsets(null, new int[outputSize]);
+    }
+
+    void set(int outIdx, int offset) {
+        if (bytes != null) {
+            bytes[outIdx] = (byte) offset;
+        } else {
+            ints[outIdx] = offset;
+        }
+    }
+
+    int get(int outIdx) {
+        return bytes != null ? bytes[outIdx] & 0xff : ints[outIdx];
+    }
+}
@@ -0,0 +1,186 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.Shape;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Row major walk over a shape, tracking the data offset of any number of strided operands.
+ * <p>
+ * Dimensions of length 1 are dropped and neighbouring dimensions that are contiguous in all operands are
+ * coalesced, so the caller usually gets one long inner run. Kernels loop over the inner dimension themselves,
+ * stepping each offset by its inner stride:
+ * <pre>
+ * for (; it.hasNext(); it.next()) {
+ *     int a = it.offset(0);
+ *     for (int i = 0; i &lt; it.innerLength(); i++) { ... a += it.innerStride(0); }
+ * }
+ * </pre>
+ */
+final class NDIter {
+    private final int[] dims;
+    private final int[][] strides;
+    private final int[] counters;
+    private final int[] offsets;
+    private final int innerLength;
+    private final int[] innerStrides;
+    private long remainingOuter;
+
+    static class Operand {
+        final int[] strides;
+        final int baseOffset;
+
+        private Operand(int[] strides, int baseOffset) {
+            this.strides = strides;
+            this.baseOffset = baseOffset;
+        }
+    }
+
+    static Operand operand(int[] strides, int baseOffset) {
+        return new Operand(strides, baseOffset);
+    }
+
+    /**
+     * Reads the operand as if it had the output dimensions: missing leading dimensions and
+     * dimensions of length 1 get stride 0.
+     */
+    static Operand broadcast(Shape shape, int[] outDims) {
+        return broadcast(shape.toDimArray(), stridesOf(shape), baseOffsetOf(shape), outDims);
+    }
+
+    /**
+     * Same as {@link #broadcast(Shape, int[])}, for an operand with its own strides, like a {@link JavaArraySlice}.
+     */
+    static Operand broadcast(int[] dims, int[] dimStrides, int baseOffset, int[] outDims) {
+        int dimCount = dims.length;
+        int[] strides = new int[outDims.length];
+        for (int i = 1; i <= dimCount; i++) {
+            int dimLen = dims[dimCount - i];
+            strides[outDims.length - i] = (dimLen == 1 ? 0 : dimStrides[dimCount - i]);
+        }
+        return new Operand(strides, baseOffset);
+    }
+
+    private static int[] stridesOf(Shape shape) {
+        if (shape instanceof JavaShape) {
+            return ((JavaShape) shape).strides();
+        }
+        return new JavaShape(shape.toDimArray()).strides();
+    }
+
+    private static int baseOffsetOf(Shape shape) {
+        return shape instanceof JavaShape ? ((JavaShape) shape).baseOffset() : 0;
+    }
+
+    static NDIter iterate(int[] dims, Operand... operands) {
+        List<Integer> keptDims = new ArrayList<>();
+        List<int[]> keptStrides = new ArrayList<>();
+        for (int d = 0; d < dims.length; d++) {
+            if (dims[d] == 1) {
+                continue;
+            }
+            int last = keptDims.size() - 1;
+            if (last >= 0 && isContiguous(keptStrides.get(last), operands, d, dims[d])) {
+                keptDims.set(last, keptDims.get(last) * dims[d]);
+                keptStrides.set(last, stridesAt(operands, d));
+            } else {
+                keptDims.add(dims[d]);
+                keptStrides.add(stridesAt(operands, d));
+            }
+        }
+        if (keptDims.isEmpty()) {
+            keptDims.add(1);
+            keptStrides.add(new int[operands.length]);
+        }
+
+        int[] coalescedDims = new int[keptDims.size()];
+        int[][] coalescedStrides = new int[operands.length][coalescedDims.length];
+        for (int d = 0; d < coalescedDims.length; d++) {
+            coalescedDims[d] = keptDims.get(d);
+            int[] s = keptStrides.get(d);
+            for (int op = 0; op < operands.length; op++) {
+                coalescedStrides[op][d] = s[op];
+            }
+        }
+        int[] baseOffsets = new int[operands.length];
+        for (int op = 0; op < operands.length; op++) {
+            baseOffsets[op] = operands[op].baseOffset;
+        }
+
+        return new NDIter(coalescedDims, coalescedStrides, baseOffsets);
+    }
+
+    private static boolean isContiguous(int[] outerStrides, Operand[] operands, int dim, int dimLen) {
+        for (int op = 0; op < operands.length; op++) {
+            if (outerStrides[op] != operands[op].strides[dim] * dimLen) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] stridesAt(Operand[] operands, int dim) {
+        int[] s = new int[operands.length];
+        for (int op = 0; op < operands.length; op++) {
+            s[op] = operands[op].strides[dim];
+        }
+        return s;
+    }
+
+    private NDIter(int[] dims, int[][] strides, int[] baseOffsets) {
+        this.dims = dims;
+        this.strides = strides;
+        this.counters = new int[dims.length];
+        this.offsets = baseOffsets;
+
+        int inner = dims.length - 1;
+        this.innerLength = dims[inner];
+        this.innerStrides = new int[strides.length];
+        for (int op = 0; op < strides.length; op++) {
+            innerStrides[op] = strides[op][inner];
+        }
+
+        long outer = 1;
+        for (int d = 0; d < inner; d++) {
+            outer *= dims[d];
+        }
+        this.remainingOuter = (innerLength == 0 ? 0 : outer);
+    }
+
+    int innerLength() {
+        return innerLength;
+    }
+
+    int innerStride(int operand) {
+        return innerStrides[operand];
+    }
+
+    /**
+     * @return data offset of the operand at the start of the current inner run
+     */
+    int offset(int operand) {
+        return offsets[operand];
+    }
+
+    boolean hasNext() {
+        return remainingOuter > 0;
+    }
+
+    void next() {
+        remainingOuter--;
+        for (int d = dims.length - 2; d >= 0; d--) {
+            counters[d]++;
+            if (counters[d] < dims[d]) {
+                for (int op = 0; op < offsets.length; op++) {
+                    offsets[op] += strides[op][d];
+                }
+                return;
+            }
+            counters[d] = 0;
+            for (int op = 0; op < offsets.length; op++) {
+                offsets[op] -= strides[op][d] * (dims[d] - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.codeberry.tadlib.provider.java;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+import static java.lang.Math.min;
+import static java.lang.Math.toIntExact;
+
+/**
+ * Zero filled doubles in direct memory, indexed by <code>long</code>.
+ * <p>
+ * A direct buffer holds at most 2^31 bytes, so the values are split over segments of
+ * <code>2^segmentShift</code> doubles. The memory is released when the buffers are garbage collected.
+ */
+final class OffHeapDoubles {
+    /**
+     * 2^27 doubles, 1 GiB, per segment.
+     */
+    static final int DEFAULT_SEGMENT_SHIFT = 27;
+
+    final long length;
+    final int segmentShift;
+    private final int segmentMask;
+    private final DoubleBuffer[] segments;
+
+    OffHeapDoubles(long length, int segmentShift) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative length: " + length);
+        }
+        if (segmentShift < 0 || segmentShift > DEFAULT_SEGMENT_SHIFT) {
+            throw new IllegalArgumentException("Segment shift must be in range [0," + DEFAULT_SEGMENT_SHIFT + "]: " +
+                    "actual=" + segmentShift);
+        }
+        long segmentLength = 1L << segmentShift;
+        this.length = length;
+        this.segmentShift = segmentShift;
+        this.segmentMask = (int) (segmentLength - 1);
+        this.segments = new DoubleBuffer[toIntExact((length + segmentLength - 1) >>> segmentShift)];
+        for (int i = 0; i < segments.length; i++) {
+            int doubles = (int) min(segmentLength, length - (i * segmentLength));
+            segments[i] = ByteBuffer.allocateDirect(doubles * Double.BYTES)
+                    .order(ByteOrder.nativeOrder())
+                    .asDoubleBuffer();
+        }
+    }
+
+    double get(long index) {
+        return segments[(int) (index >>> segmentShift)].get((int) index & segmentMask);
+    }
+
+    void set(long index, double value) {
+        segments[(int) (index >>> segmentShift)].put((int) index & segmentMask, value);
+    }
+
+    /**
+     * Copies <code>count</code> values, starting at <code>offset</code>, into <code>dst</code>.
+     */
+    void get(long offset, double[] dst, int dstOffset, int count) {
+        validateRange(offset, count);
+        while (count > 0) {
+            DoubleBuffer segment = segments[(int) (offset >>> segmentShift)];
+            int segmentOffset = (int) offset & segmentMask;
+            int len = min(count, segment.capacity() - segmentOffset);
+            segment.get(segmentOffset, dst, dstOffset, len);
+            offset += len;
+            dstOffset += len;
+            count -= len;
+        }
+    }
+
+    /**
+     * Copies <code>count</code> values from <code>src</code>, starting at <code>offset</code>.
+     */
+    void put(long offset, double[] src, int srcOffset, int count) {
+        validateRange(offset, count);
+        while (count > 0) {
+            DoubleBuffer segment = segments[(int) (offset >>> segmentShift)];
+            int segmentOffset = (int) offset & segmentMask;
+            int len = min(count, segment.capacity() - segmentOffset);
+            segment.put(segmentOffset, src, srcOffset, len);
+            offset += len;
+            srcOffset += len;
+            count -= len;
+        }
+    }
+
+    private void validateRange(long offset, int count) {
+        if (offset < 0 || count < 0 || offset + count > length) {
+            throw new IndexOutOfBoundsException("Range must be within [0," + length + "): " +
+                    "offset=" + offset + " count=" + count);
+        }
+    }
+}
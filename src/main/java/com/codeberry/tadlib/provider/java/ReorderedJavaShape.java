@@ -56,6 +56,15 @@ public class ReorderedJavaShape extends JavaShape {
         return offset;
     }
 
+    @Override
+    int[] strides() {
+        int[] strides = new int[dimCount];
+        for (int i = 0; i < dimCount; i++) {
+            strides[i] = blockSizes[order[i]];
+        }
+        return strides;
+    }
+
     @Override
     public JavaShape normalOrderedCopy() {
         int[] dims = new int[dimCount];
@@ -65,6 +74,22 @@ public class ReorderedJavaShape extends JavaShape {
         return new JavaShape(dims);
     }
 
+    /**
+     * @return true when the data is a sequence of column major matrices, e.g. after transposeLast2D()
+     */
+    boolean isOnlyLastTwoAxesSwapped() {
+        int len = order.length;
+        if (len < 2 || order[len - 2] != len - 1 || order[len - 1] != len - 2) {
+            return false;
+        }
+        for (int i = 0; i < len - 2; i++) {
+            if (order[i] != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public JavaShape copy() {
         return new ReorderedJavaShape(copyOf(dims, dimCount), copyOf(order,dimCount));
@@ -0,0 +1,182 @@
+package com.codeberry.tadlib.provider.java;
+
+import static com.codeberry.tadlib.util.MultiThreadingSupport.TaskRange.taskRange;
+import static com.codeberry.tadlib.util.MultiThreadingSupport.multiThreadingSupportRun;
+import static com.codeberry.tadlib.util.TaskCost.ofDoubles;
+import static java.lang.Math.min;
+
+/**
+ * Sums a strided array over some of its dimensions.
+ * <p>
+ * The source is cut into chunks of about {@value #CHUNK_SIZE} values along one dimension. When that dimension
+ * is kept, the chunks write to separate parts of the target. When it is summed over, every chunk sums into
+ * its own partial target, and the partials are added pairwise. Inside a chunk, runs along a summed inner
+ * dimension are added pairwise, and runs along a kept inner dimension are added row by row.
+ * <p>
+ * The chunks depend on the shapes only, never on the number of threads, so the order of the additions, and
+ * with it the result, is the same in every run and thread mode. It can still differ between machines, since
+ * the Vector API kernels sum in as many lanes as the hardware has.
+ * <p>
+ * Set the system property {@value #PROP_TAD_JAVA_SEQUENTIAL_SUM} to <code>true</code> to add every value
+ * to its target in row major source order instead, on the calling thread. The result is then the same on
+ * any machine, at the cost of the threads and of the pairwise accuracy.
+ */
+class SumReduction {
+    public static final String PROP_TAD_JAVA_SEQUENTIAL_SUM = "tad.java.sum.sequential";
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+    // Partial targets larger than this are not worth it, split a kept dimension instead
+    private static final int MAX_PARTIAL_SIZE = 16 * 1024;
+    // Shorter runs are added inline, the kernel call costs more than it saves
+    private static final int MIN_KERNEL_LENGTH = 64;
+
+    private static volatile boolean sequential = Boolean.getBoolean(PROP_TAD_JAVA_SEQUENTIAL_SUM);
+
+    static void setSequential(boolean sequential) {
+        SumReduction.sequential = sequential;
+    }
+
+    static boolean isSequential() {
+        return sequential;
+    }
+
+    /**
+     * @param tgt              zero filled, normal ordered
+     * @param srcToTgtMapping  target dimension of each source dimension, -1 when summed over
+     */
+    static void sum(double[] src, JavaShape srcShape, double[] tgt, JavaShape tgtShape, int[] srcToTgtMapping) {
+        int[] dims = srcShape.toDimArray();
+        int[] srcStrides = srcShape.strides();
+        int srcBase = srcShape.baseOffset();
+        int[] tgtShapeStrides = tgtShape.strides();
+        int[] tgtStrides = new int[dims.length];
+        for (int i = 0; i < dims.length; i++) {
+            int srcToTgt = srcToTgtMapping[i];
+            tgtStrides[i] = (srcToTgt != -1 ? tgtShapeStrides[srcToTgt] : 0);
+        }
+        if (srcShape.size == 0) {
+            return;
+        }
+        if (sequential) {
+            sumInOrder(src, dims, srcStrides, srcBase, tgt, tgtStrides);
+            return;
+        }
+        int splitDim = selectSplitDim(dims, tgtStrides, tgt.length);
+        if (splitDim == -1) {
+            sumRange(src, dims, srcStrides, srcBase, tgt, tgtStrides, 0);
+            return;
+        }
+
+        int rowSize = srcShape.size / dims[splitDim];
+        int rowsPerChunk = Math.max(1, CHUNK_SIZE / rowSize);
+        int chunks = (dims[splitDim] + rowsPerChunk - 1) / rowsPerChunk;
+        boolean partials = (tgtStrides[splitDim] == 0);
+        double[][] chunkTargets = new double[chunks][];
+
+        int chunkValues = rowsPerChunk * rowSize;
+        multiThreadingSupportRun(taskRange(0, chunks, ofDoubles("sum", chunkValues, chunkValues)),
+                range -> {
+                    for (int c = range.start; c < range.end; c++) {
+                        int first = c * rowsPerChunk;
+                        int[] chunkDims = dims.clone();
+                        chunkDims[splitDim] = min(rowsPerChunk, dims[splitDim] - first);
+                        double[] chunkTgt = (partials && c > 0 ? new double[tgt.length] : tgt);
+
+                        sumRange(src, chunkDims, srcStrides, srcBase + first * srcStrides[splitDim],
+                                chunkTgt, tgtStrides, first * tgtStrides[splitDim]);
+                        chunkTargets[c] = chunkTgt;
+                    }
+                    return null;
+                },
+                (left, right) -> null);
+
+        if (partials) {
+            addPairwise(chunkTargets);
+        }
+    }
+
+    /**
+     * @return the outermost dimension to cut into chunks, or -1 when the source is a single chunk
+     */
+    private static int selectSplitDim(int[] dims, int[] tgtStrides, int tgtSize) {
+        long size = 1;
+        for (int d : dims) {
+            size *= d;
+        }
+        if (size <= CHUNK_SIZE) {
+            return -1;
+        }
+        for (int d = 0; d < dims.length; d++) {
+            if (dims[d] > 1 && (tgtStrides[d] != 0 || tgtSize <= MAX_PARTIAL_SIZE)) {
+                return d;
+            }
+        }
+        return -1;
+    }
+
+    private static void sumRange(double[] src, int[] dims, int[] srcStrides, int srcBase,
+                                 double[] tgt, int[] tgtStrides, int tgtBase) {
+        ElementKernels kernels = ElementKernels.get();
+        NDIter it = NDIter.iterate(dims,
+                NDIter.operand(srcStrides, srcBase),
+                NDIter.operand(tgtStrides, tgtBase));
+        int len = it.innerLength();
+        int srcStride = it.innerStride(0);
+        int tgtStride = it.innerStride(1);
+        for (; it.hasNext(); it.next()) {
+            int srcIdx = it.offset(0);
+            int tgtIdx = it.offset(1);
+            if (tgtStride == 0) {
+                if (len > ElementKernels.SUM_BLOCK_SIZE) {
+                    tgt[tgtIdx] += kernels.sum(src, srcIdx, srcStride, len);
+                } else {
+                    double sum = 0;
+                    for (int i = 0; i < len; i++) {
+                        sum += src[srcIdx];
+                        srcIdx += srcStride;
+                    }
+                    tgt[tgtIdx] += sum;
+                }
+            } else if (srcStride == 1 && tgtStride == 1 && len >= MIN_KERNEL_LENGTH) {
+                kernels.addTo(src, srcIdx, tgt, tgtIdx, len);
+            } else {
+                for (int i = 0; i < len; i++) {
+                    tgt[tgtIdx] += src[srcIdx];
+                    srcIdx += srcStride;
+                    tgtIdx += tgtStride;
+                }
+            }
+        }
+    }
+
+    private static void sumInOrder(double[] src, int[] dims, int[] srcStrides, int srcBase,
+                                   double[] tgt, int[] tgtStrides) {
+        NDIter it = NDIter.iterate(dims,
+                NDIter.operand(srcStrides, srcBase),
+                NDIter.operand(tgtStrides, 0));
+        int len = it.innerLength();
+        int srcStride = it.innerStride(0);
+        int tgtStride = it.innerStride(1);
+        for (; it.hasNext(); it.next()) {
+            int srcIdx = it.offset(0);
+            int tgtIdx = it.offset(1);
+            for (int i = 0; i < len; i++) {
+                tgt[tgtIdx] += src[srcIdx];
+                srcIdx += srcStride;
+                tgtIdx += tgtStride;
+            }
+        }
+    }
+
+    /**
+     * Adds all partials into the first one, in a fixed tree: (0 + 1) + (2 + 3)...
+     */
+    private static void addPairwise(double[][] partials) {
+        ElementKernels kernels = ElementKernels.get();
+        for (int step = 1; step < partials.length; step *= 2) {
+            for (int i = 0; i + step < partials.length; i += 2 * step) {
+                kernels.add(partials[i], partials[i + step], partials[i], 0, partials[i].length);
+            }
+        }
+    }
+}
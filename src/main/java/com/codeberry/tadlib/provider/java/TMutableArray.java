@@ -11,7 +11,7 @@ public class TMutableArray {
     public final Shape shape;
 
     public TMutableArray(JavaShape shape) {
-        this(new double[shape.size], shape);
+        this(JavaBufferPool.allocate(shape.size), shape);
     }
 
     public TMutableArray(double[] data, Shape shape) {
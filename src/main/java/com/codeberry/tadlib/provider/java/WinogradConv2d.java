@@ -0,0 +1,272 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.util.MultiThreadingSupport.TaskRange;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.util.Arrays.fill;
+
+/**
+ * Winograd F(2x2, 3x3) convolution for 3x3 filters.
+ * <p>
+ * Each 2x2 output tile is calculated from a 4x4 input tile as <code>A^T [(G g G^T) . (B^T d B)] A</code>. The
+ * element wise product is done as 16 matrix multiplications, one per tile element, over all channels: 16 multiplies
+ * per 4 outputs instead of 9 per output.
+ * <p>
+ * Reference: https://arxiv.org/abs/1509.09308
+ */
+class WinogradConv2d {
+    private static final int TILE = 2;
+    private static final int IN_TILE = 4;
+    private static final int ELEMENTS = IN_TILE * IN_TILE;
+
+    // Below this, the transforms cost more than the saved multiplies
+    private static final int MIN_CHANNEL_PRODUCT = 64;
+
+    // Max doubles in the transformed input and output of a chunk
+    private static final int TILE_BUFFER_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<double[]> TILE_BUFFER = ThreadLocal.withInitial(() -> new double[0]);
+
+    private static final Map<JavaArray, FilterTransform> FILTER_TRANSFORMS =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    static boolean isSupported(JavaShape filterShape) {
+        return filterShape.at(0) == 3 && filterShape.at(1) == 3 &&
+                filterShape.at(2) * filterShape.at(3) >= MIN_CHANNEL_PRODUCT;
+    }
+
+    /**
+     * The transform is cached by filter instance, and made again when the {@link JavaArray#version} of the
+     * filter has changed: once per in place weight update. Updates through another view of the filter data
+     * are not seen, in place updates must go through the filter array itself, like the optimizers do.
+     */
+    static FilterTransform transform(JavaArray filter) {
+        int version = filter.version;
+        FilterTransform transform = FILTER_TRANSFORMS.get(filter);
+        if (transform == null || transform.filterVersion != version) {
+            transform = new FilterTransform(filter.normalOrderedCopy(), version);
+            FILTER_TRANSFORMS.put(filter, transform);
+        }
+        return transform;
+    }
+
+    /**
+     * G g G^T of every [in, out] filter, stored as [16][in][out].
+     */
+    static class FilterTransform {
+        final int inChannels;
+        final int outChannels;
+        final double[] data;
+        final int filterVersion;
+
+        FilterTransform(JavaArray filter, int filterVersion) {
+            this.filterVersion = filterVersion;
+            this.inChannels = filter.shape.at(2);
+            this.outChannels = filter.shape.at(3);
+            this.data = new double[ELEMENTS * inChannels * outChannels];
+
+            double[] f = filter.getInternalData();
+            int channels = inChannels * outChannels;
+            double[] g = new double[9];
+            double[] u = new double[ELEMENTS];
+            for (int c = 0; c < channels; c++) {
+                for (int i = 0; i < 9; i++) {
+                    g[i] = f[i * channels + c];
+                }
+                transformFilter(g, u);
+                for (int e = 0; e < ELEMENTS; e++) {
+                    data[e * channels + c] = u[e];
+                }
+            }
+        }
+
+        /**
+         * The filter rotated 180 degrees, with in/out swapped, has the same transform with rows and columns
+         * 0 and 3 swapped, read transposed.
+         */
+        int offsetOf(int element, boolean rotatedAndSwapped) {
+            if (rotatedAndSwapped) {
+                int y = flip(element / IN_TILE);
+                int x = flip(element % IN_TILE);
+                element = y * IN_TILE + x;
+            }
+            return element * inChannels * outChannels;
+        }
+
+        private static int flip(int i) {
+            return (i == 0 ? 3 : (i == 3 ? 0 : i));
+        }
+    }
+
+    /**
+     * Same semantics as {@link Im2ColConv2d#conv2d}, for the examples of the task range.
+     *
+     * @param rotatedAndSwapped convolve with the filter rotated 180 degrees and in/out channels swapped,
+     *                          as in the input gradient.
+     */
+    static double[] conv2d(TaskRange exampleRange,
+                           double[] input, JavaShape inShape,
+                           FilterTransform filter, boolean rotatedAndSwapped,
+                           int offsetY, int offsetX,
+                           double[] out, JavaShape outShape) {
+        int inHeight = inShape.at(-3);
+        int inWidth = inShape.at(-2);
+        int inChannels = inShape.at(-1);
+        int outHeight = outShape.at(-3);
+        int outWidth = outShape.at(-2);
+        int outChannels = outShape.at(-1);
+
+        int tilesY = (outHeight + TILE - 1) / TILE;
+        int tilesX = (outWidth + TILE - 1) / TILE;
+        int tiles = tilesY * tilesX;
+        int chunkTiles = max(1, min(tiles, TILE_BUFFER_SIZE / (ELEMENTS * (inChannels + outChannels))));
+        int vSize = ELEMENTS * chunkTiles * inChannels;
+        double[] buf = tileBuffer(vSize + ELEMENTS * chunkTiles * outChannels);
+
+        // In the filter transform: rows are indexed by input channel
+        int uRowStride = rotatedAndSwapped ? 1 : outChannels;
+        int uColStride = rotatedAndSwapped ? inChannels : 1;
+
+        for (int example = exampleRange.start; example < exampleRange.end; example++) {
+            int inOffset = example * inHeight * inWidth * inChannels;
+            int outOffset = example * outHeight * outWidth * outChannels;
+            for (int tileStart = 0; tileStart < tiles; tileStart += chunkTiles) {
+                int count = min(tiles, tileStart + chunkTiles) - tileStart;
+                for (int t = 0; t < count; t++) {
+                    int tile = tileStart + t;
+                    transformInputTile(input, inOffset, inHeight, inWidth, inChannels,
+                            tile / tilesX * TILE + offsetY, tile % tilesX * TILE + offsetX,
+                            buf, t, count);
+                }
+
+                fill(buf, vSize, vSize + ELEMENTS * count * outChannels, 0);
+                for (int e = 0; e < ELEMENTS; e++) {
+                    BlockedMatMul.multiply(buf, e * count * inChannels, inChannels, 1,
+                            filter.data, filter.offsetOf(e, rotatedAndSwapped), uRowStride, uColStride,
+                            buf, vSize + e * count * outChannels, outChannels,
+                            0, count, outChannels, inChannels);
+                }
+
+                for (int t = 0; t < count; t++) {
+                    int tile = tileStart + t;
+                    transformOutputTile(buf, vSize, t, count, outChannels,
+                            out, outOffset, outHeight, outWidth,
+                            tile / tilesX * TILE, tile % tilesX * TILE);
+                }
+            }
+        }
+        return out;
+    }
+
+    private static double[] tileBuffer(int minSize) {
+        double[] buf = TILE_BUFFER.get();
+        if (buf.length < minSize) {
+            buf = new double[minSize];
+            TILE_BUFFER.set(buf);
+        }
+        return buf;
+    }
+
+    /**
+     * Writes B^T d B of every channel to v[element][tile][channel].
+     */
+    private static void transformInputTile(double[] input, int inOffset, int inHeight, int inWidth, int channels,
+                                           int y0, int x0,
+                                           double[] v, int tile, int tileCount) {
+        double[] d = new double[ELEMENTS];
+        double[] t = new double[ELEMENTS];
+        int elementStride = tileCount * channels;
+        int vOffset = tile * channels;
+        for (int c = 0; c < channels; c++) {
+            for (int y = 0; y < IN_TILE; y++) {
+                int inY = y0 + y;
+                for (int x = 0; x < IN_TILE; x++) {
+                    int inX = x0 + x;
+                    boolean inside = inY >= 0 && inY < inHeight && inX >= 0 && inX < inWidth;
+                    d[y * IN_TILE + x] = inside ? input[inOffset + (inY * inWidth + inX) * channels + c] : 0;
+                }
+            }
+
+            // B^T d
+            for (int x = 0; x < IN_TILE; x++) {
+                double d0 = d[x], d1 = d[4 + x], d2 = d[8 + x], d3 = d[12 + x];
+                t[x] = d0 - d2;
+                t[4 + x] = d1 + d2;
+                t[8 + x] = d2 - d1;
+                t[12 + x] = d1 - d3;
+            }
+            // (B^T d) B
+            for (int y = 0; y < IN_TILE; y++) {
+                int r = y * IN_TILE;
+                double t0 = t[r], t1 = t[r + 1], t2 = t[r + 2], t3 = t[r + 3];
+                v[r * elementStride + vOffset + c] = t0 - t2;
+                v[(r + 1) * elementStride + vOffset + c] = t1 + t2;
+                v[(r + 2) * elementStride + vOffset + c] = t2 - t1;
+                v[(r + 3) * elementStride + vOffset + c] = t1 - t3;
+            }
+        }
+    }
+
+    /**
+     * Reads m[element][tile][channel] and writes A^T m A to the output, clipped to the output size.
+     */
+    private static void transformOutputTile(double[] m, int mOffset, int tile, int tileCount, int channels,
+                                            double[] out, int outOffset, int outHeight, int outWidth,
+                                            int y0, int x0) {
+        int elementStride = tileCount * channels;
+        int base = mOffset + tile * channels;
+        double[] t = new double[TILE * IN_TILE];
+        for (int c = 0; c < channels; c++) {
+            for (int x = 0; x < IN_TILE; x++) {
+                double m0 = m[base + x * elementStride + c];
+                double m1 = m[base + (4 + x) * elementStride + c];
+                double m2 = m[base + (8 + x) * elementStride + c];
+                double m3 = m[base + (12 + x) * elementStride + c];
+                t[x] = m0 + m1 + m2;
+                t[4 + x] = m1 - m2 - m3;
+            }
+            for (int y = 0; y < TILE; y++) {
+                int outY = y0 + y;
+                if (outY >= outHeight) {
+                    break;
+                }
+                int r = y * IN_TILE;
+                double y_0 = t[r] + t[r + 1] + t[r + 2];
+                double y_1 = t[r + 1] - t[r + 2] - t[r + 3];
+                int outRow = outOffset + outY * outWidth * channels;
+                out[outRow + x0 * channels + c] = y_0;
+                if (x0 + 1 < outWidth) {
+                    out[outRow + (x0 + 1) * channels + c] = y_1;
+                }
+            }
+        }
+    }
+
+    /**
+     * u = G g G^T, where g is 3x3 and u is 4x4.
+     */
+    private static void transformFilter(double[] g, double[] u) {
+        // G g
+        double[] t = new double[4 * 3];
+        for (int x = 0; x < 3; x++) {
+            double g0 = g[x], g1 = g[3 + x], g2 = g[6 + x];
+            t[x] = g0;
+            t[3 + x] = (g0 + g1 + g2) / 2;
+            t[6 + x] = (g0 - g1 + g2) / 2;
+            t[9 + x] = g2;
+        }
+        // (G g) G^T
+        for (int y = 0; y < 4; y++) {
+            double t0 = t[y * 3], t1 = t[y * 3 + 1], t2 = t[y * 3 + 2];
+            u[y * 4] = t0;
+            u[y * 4 + 1] = (t0 + t1 + t2) / 2;
+            u[y * 4 + 2] = (t0 - t1 + t2) / 2;
+            u[y * 4 + 3] = t2;
+        }
+    }
+}
@@ -17,6 +17,7 @@ import com.sun.jna.Pointer;
 import java.util.*;
 import java.util.function.Function;
 
+import static com.codeberry.tadlib.array.util.DimensionUtils.validateSameDimensionsExcept;
 import static com.codeberry.tadlib.memorymanagement.DisposalRegister.disposeAllExceptReturnedValue;
 import static com.codeberry.tadlib.memorymanagement.DisposalRegister.registerForDisposal;
 import static com.codeberry.tadlib.provider.opencl.OclBuffer.*;
@@ -186,6 +187,13 @@ public class OclArray implements NDArray {
         return SoftmaxUtils.calcSoftmaxCrossEntropyGradient(softmax, oneHotArray).mul(this);
     }
 
+    @Override
+    public SoftmaxCrossEntropyResult softmaxCrossEntropy(NDIntArray labels) {
+        validateSameDimensionsExcept("labels", shape, labels.getShape(), -1);
+
+        return Softmax.softmaxCrossEntropy(buffer.context, this, (OclIntArray) labels);
+    }
+
     /**
      * Reads data from OpenCL, then modify it and create result array.
      * <p>
@@ -399,6 +407,14 @@ public class OclArray implements NDArray {
         return shape;
     }
 
+    /**
+     * Views from reshape() share the resources of the kernel that wrote the buffer, and dispose them with the view.
+     */
+    @Override
+    public Object getDataOwner() {
+        return resources;
+    }
+
     @Override
     public NDArray reshape(int... dims) {
         return createNDArray(this.shape.reshape(dims), buffer, resources);
@@ -2,9 +2,11 @@ package com.codeberry.tadlib.provider.opencl.ops;
 
 import com.codeberry.tadlib.array.NDArray;
 import com.codeberry.tadlib.array.Shape;
+import com.codeberry.tadlib.array.util.SoftmaxUtils;
 import com.codeberry.tadlib.provider.opencl.InProgressResources;
 import com.codeberry.tadlib.provider.opencl.OclArray;
 import com.codeberry.tadlib.provider.opencl.OclBuffer;
+import com.codeberry.tadlib.provider.opencl.OclIntArray;
 import com.codeberry.tadlib.provider.opencl.buffer.BufferMemFlags;
 import com.codeberry.tadlib.provider.opencl.context.Context;
 import com.codeberry.tadlib.provider.opencl.kernel.Kernel;
@@ -20,11 +22,12 @@ import static com.codeberry.tadlib.util.ClassResourceUtils.readString;
 import static java.lang.Long.max;
 import static java.lang.Math.min;
 import static java.lang.Math.toIntExact;
-import static java.util.Collections.singletonList;
+import static java.util.Arrays.asList;
 
 public class Softmax implements OclKernelSource {
 
     public static final String SOFTMAX = "softmax";
+    public static final String SOFTMAX_CROSS_ENTROPY = "softmaxCrossEntropy";
 
     @Override
     public String getKernelSource() {
@@ -33,7 +36,7 @@ public class Softmax implements OclKernelSource {
 
     @Override
     public List<String> getKernels() {
-        return singletonList(SOFTMAX);
+        return asList(SOFTMAX, SOFTMAX_CROSS_ENTROPY);
     }
 
     public static NDArray softmax(Context context, OclArray src) {
@@ -70,6 +73,47 @@ public class Softmax implements OclKernelSource {
         return createNDArray(shape, out, resources);
     }
 
+    public static NDArray.SoftmaxCrossEntropyResult softmaxCrossEntropy(Context context, OclArray src, OclIntArray labels) {
+        Shape shape = src.getShape();
+        Shape lossShape = labels.getShape();
+
+        InProgressResources resources = new InProgressResources(context);
+        OclBuffer grad = createBuffer(context, sizeOf(cl_double, shape.getSize()), BufferMemFlags.CL_MEM_READ_WRITE);
+        OclBuffer loss = createBuffer(context, sizeOf(cl_double, lossShape.getSize()), BufferMemFlags.CL_MEM_READ_WRITE);
+
+        CommandQueue queue = context.getQueue();
+        Kernel kernel = context.findKernel(SOFTMAX_CROSS_ENTROPY);
+
+        int valuesPerExample = shape.at(-1);
+        long maxWorkers = queue.getDevice().info.maxWorkGroupSize.longValue();
+
+        if (valuesPerExample > maxWorkers) {
+            throw new RuntimeException("Kernel supports only " + maxWorkers + " values per example. Please rewrite the kernel.");
+        }
+
+        long workGroupSizeMultiple = kernel.getPreferredWorkGroupSizeMultiple(queue);
+        int neededWorkers = toMultiplesOf(valuesPerExample, maxWorkers, workGroupSizeMultiple);
+
+        long exampleCount = max(shape.mulDims(0, -1), 1);
+        kernel.createArgSetter(resources)
+                .nextArg(src)
+                .nextArg(labels)
+                .nextArg(valuesPerExample)
+                .nextArg(SoftmaxUtils.MIN_EXAMPLE_LOSS)
+                .nextArg(SoftmaxUtils.MAX_EXAMPLE_LOSS)
+                .nextArgKeepRef(grad)
+                .nextArgKeepRef(loss)
+                .nextArgLocalDoubles(neededWorkers);
+
+        queue.enqueueKernel(kernel,
+                new long[]{neededWorkers, exampleCount},
+                new long[]{neededWorkers, 1},
+                resources);
+
+        OclArray exampleLosses = createNDArray(lossShape, loss, resources);
+        return new SoftmaxUtils.SoftmaxCrossEntropyResult(exampleLosses.sum(), createNDArray(shape, grad, resources));
+    }
+
     private static int toMultiplesOf(int minValue, long maxValue, long multiples) {
         return toIntExact(min((minValue + multiples - 1) / multiples * multiples, maxValue));
     }
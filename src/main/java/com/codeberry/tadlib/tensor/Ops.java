@@ -1,17 +1,20 @@
 package com.codeberry.tadlib.tensor;
 
 import com.codeberry.tadlib.array.*;
+import com.codeberry.tadlib.memorymanagement.DisposalRegister.Disposable;
 import com.codeberry.tadlib.nn.loss.SoftmaxCrossEntropyLoss;
 import com.codeberry.tadlib.provider.ProviderStore;
 import com.codeberry.tadlib.provider.java.JavaArray;
 
 import java.util.*;
+import java.util.function.Function;
 
 import static com.codeberry.tadlib.array.NDArray.*;
 import static com.codeberry.tadlib.array.NDArray.DimKeepRemove.KEEP_DIM;
 import static com.codeberry.tadlib.array.NDArray.DimKeepRemove.REMOVE_DIM;
 import static com.codeberry.tadlib.array.TArrayFactory.*;
 import static com.codeberry.tadlib.memorymanagement.DisposalRegister.disposeAllExceptReturnedValue;
+import static com.codeberry.tadlib.memorymanagement.DisposalRegister.disposeAllExceptReturnedValues;
 import static com.codeberry.tadlib.tensor.ParentLink.parentLink;
 import static com.codeberry.tadlib.util.MultiThreadingSupport.TaskRange.taskRange;
 import static java.lang.Boolean.TRUE;
@@ -180,19 +183,28 @@ public abstract class Ops {
         });
     }
 
+    /**
+     * Sums the gradient over the dimensions that were broadcast, in a single reduction, so bias and per channel
+     * gradients are one pass over the gradient.
+     */
     private static NDArray aggregateBroadcastedDims(Tensor self, NDArray grad) {
+        Shape selfShape = self.getVals().getShape();
+        Shape gradShape = grad.getShape();
+        int missingDims = gradShape.getDimCount() - selfShape.getDimCount();
+
+        Boolean[] dimensionsToSum = gradShape.newCollapseArray();
+        boolean broadcast = false;
+        for (int i = 0; i < dimensionsToSum.length; i++) {
+            dimensionsToSum[i] = (i < missingDims ||
+                    (selfShape.at(i - missingDims) == 1 && gradShape.at(i) != 1));
+            broadcast |= dimensionsToSum[i];
+        }
+        if (!broadcast) {
+            return grad;
+        }
         return disposeAllExceptReturnedValue(() -> {
-            NDArray gr = grad;
-            int missingDims = gr.getShape().getDimCount() - self.getVals().getShape().getDimCount();
-            if (missingDims >= 1) {
-                gr = gr.sumFirstDims(missingDims, REMOVE_DIM);
-            }
-
-            if (self.getVals().getShape().hasSingleDims()) {
-                Boolean[] dimensionsToSum = self.getVals().getShape().forEachDim(dim -> dim == 1, Boolean[]::new);
-                gr = gr.sum(dimensionsToSum, KEEP_DIM);
-            }
-            return gr;
+            NDArray summed = grad.sum(dimensionsToSum, KEEP_DIM);
+            return (missingDims >= 1 ? summed.reshape(selfShape.toDimArray()) : summed);
         });
     }
 
@@ -208,15 +220,7 @@ public abstract class Ops {
     public static Tensor conv2d(Tensor input, Tensor filter) {
         NDArray y = input.getVals().conv2d(filter.getVals());
 
-        GradFunc gF_Input = grad -> disposeAllExceptReturnedValue(() -> {
-            NDArray transposed = filter.getVals().transpose(0, 1, 3, 2);
-            NDArray fT = transposed.normalOrderedCopy();
-            NDArray fRotated = fT.rot180(0, 1);
-
-            int offsetY = (filter.getVals().getShape().at(0) % 2 == 0) ? -1 : 0;
-            int offsetX = (filter.getVals().getShape().at(1) % 2 == 0) ? -1 : 0;
-            return grad.conv2d(fRotated, offsetY, offsetX);
-        });
+        GradFunc gF_Input = grad -> grad.calcConv2dInputGradient(filter.getVals());
         GradFunc gF_Filter = grad -> grad.calcConv2dFilterGradient(input.getVals(), filter.getVals());
 
         return new Tensor(y,
@@ -263,7 +267,7 @@ public abstract class Ops {
         ReluResult result = input.getVals().relu(0.0);
         NDArray relu = result.getOutput();
 
-        GradFunc gF = grad -> grad.mul(result.createMask());
+        GradFunc gF = result::maskGradient;
 
         return new Tensor(relu, singletonList(parentLink(input, gF)));
     }
@@ -272,7 +276,7 @@ public abstract class Ops {
         ReluResult result = input.getVals().relu(leakyScale);
         NDArray relu = result.getOutput();
 
-        GradFunc gF = grad -> grad.mul(result.createMask());
+        GradFunc gF = result::maskGradient;
 
         return new Tensor(relu, singletonList(parentLink(input, gF)));
     }
@@ -288,12 +292,25 @@ public abstract class Ops {
         return new Tensor(cost, singletonList(parentLink(prediction, gF)));
     }
 
+    /**
+     * Like {@link #sumSoftmaxCrossEntropy(Tensor, Tensor)}, but takes the class index of each example, and
+     * gets the loss and the gradient from one fused op.
+     */
+    public static Tensor sumSoftmaxCrossEntropy(NDIntArray labels, Tensor prediction) {
+        SoftmaxCrossEntropyResult result = prediction.getVals().softmaxCrossEntropy(labels);
+        NDArray gradient = result.getGradient();
+
+        GradFunc gF = gradient::mul;
+
+        return new Tensor(result.getLoss(), singletonList(parentLink(prediction, gF)));
+    }
+
     public static Tensor dropout(Tensor input, Random rnd, double dropoutKeep, RunMode runMode) {
         if (runMode == RunMode.TRAINING) {
             DropOutResult result = input.getVals().dropOut(rnd, dropoutKeep);
             NDArray output = result.getOutput();
 
-            GradFunc gF = grad -> grad.mul(result.createMask());
+            GradFunc gF = result::maskGradient;
 
             return new Tensor(output, singletonList(parentLink(input, gF)));
         }
@@ -395,6 +412,72 @@ public abstract class Ops {
         return new Tensor(concat, links);
     }
 
+    /**
+     * Gradient checkpoint. The output of a part of the graph, calculated in {@link Tensor#noGrad}, is
+     * linked to the input and the params of the part. When the gradient reaches the output, the part is calculated
+     * again by recompute and backward is run through it. The tensors inside the part are only kept during that step,
+     * their arrays are disposed when it is done.
+     *
+     * @param recompute must calculate the same values as detachedOutput, from the given input
+     * @param params    the other tensors that the part calculates gradients for, they get the gradients of the
+     *                  recomputed part directly
+     */
+    public static Tensor checkpoint(Tensor input, Tensor detachedOutput, Function<Tensor, Tensor> recompute,
+                                    List<Tensor> params) {
+        Recomputation recomputation = new Recomputation(input, recompute, params);
+
+        List<ParentLink> links = new ArrayList<>(params.size() + 1);
+        links.add(parentLink(input, recomputation::inputGradient));
+        for (Tensor param : params) {
+            links.add(parentLink(param, recomputation::passOnToParams));
+        }
+
+        return new Tensor(detachedOutput.getVals(), links);
+    }
+
+    private static class Recomputation {
+        private final Tensor input;
+        private final Function<Tensor, Tensor> recompute;
+        private final List<Tensor> params;
+
+        private NDArray gradient;
+        private Tensor recomputedInput;
+
+        Recomputation(Tensor input, Function<Tensor, Tensor> recompute, List<Tensor> params) {
+            this.input = input;
+            this.recompute = recompute;
+            this.params = params;
+        }
+
+        NDArray inputGradient(NDArray gradient) {
+            return backward(gradient).getGradient();
+        }
+
+        NDArray passOnToParams(NDArray gradient) {
+            backward(gradient);
+            return null;
+        }
+
+        private synchronized Tensor backward(NDArray gradient) {
+            if (this.gradient != gradient) {
+                this.gradient = gradient;
+
+                recomputedInput = input.detach();
+                disposeAllExceptReturnedValues(() -> {
+                    recompute.apply(recomputedInput).backward(gradient);
+
+                    List<Disposable> gradients = new ArrayList<>(params.size() + 1);
+                    gradients.add(recomputedInput.getGradient());
+                    for (Tensor param : params) {
+                        gradients.add(param.getGradient());
+                    }
+                    return gradients;
+                });
+            }
+            return recomputedInput;
+        }
+    }
+
     private static class GradSplitter {
         private final int axis;
         private final int[] axisLens;
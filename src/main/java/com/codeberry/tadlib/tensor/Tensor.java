@@ -10,12 +10,14 @@ import com.codeberry.tadlib.provider.ProviderStore;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 import static com.codeberry.tadlib.tensor.Tensor.GradientMode.*;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 
 public class Tensor {
+    private static final ThreadLocal<Boolean> NO_GRAD = ThreadLocal.withInitial(() -> false);
     public static final Tensor ZERO = new Tensor(ProviderStore.array(0.), NONE);
 
     private final long id;
@@ -24,6 +26,8 @@ public class Tensor {
 
     private NDArray vals;
     private NDArray gradient;
+    // the first gradient is usually shared with the child, only accumulate in place into our own sum
+    private boolean ownsGradient;
 
     public Tensor(double val) {
         this(val, CALCULATE_GRAD);
@@ -53,13 +57,16 @@ public class Tensor {
         this(vals, emptyList(), gradientMode);
     }
 
+    /**
+     * Inside {@link #noGrad(Supplier)} the links are dropped and the tensor is a constant.
+     */
     Tensor(NDArray vals, List<ParentLink> links) {
-        this(vals, links, CALCULATE_GRAD);
+        this(vals, links, NO_GRAD.get() ? NONE : CALCULATE_GRAD);
     }
 
     private Tensor(NDArray vals, List<ParentLink> links, GradientMode gradientMode) {
         this.vals = vals;
-        this.links = links;
+        this.links = (gradientMode == CALCULATE_GRAD ? links : emptyList());
         this.gradientMode = gradientMode;
         this.id = IdGenerator.nextId();
     }
@@ -80,6 +87,29 @@ public class Tensor {
         return new Tensor(tArray);
     }
 
+    /**
+     * Runs the callable without recording the graph for backward(): the ops return constants that do not
+     * reference their inputs, so the intermediate tensors can be garbage collected right away.
+     * <p>
+     * Tensors created with the public constructors, like params, still calculate gradients.
+     */
+    public static <R> R noGrad(Supplier<R> supplier) {
+        boolean prev = NO_GRAD.get();
+        NO_GRAD.set(true);
+        try {
+            return supplier.get();
+        } finally {
+            NO_GRAD.set(prev);
+        }
+    }
+
+    /**
+     * @return true when called inside {@link #noGrad(Supplier)}
+     */
+    public static boolean isNoGrad() {
+        return NO_GRAD.get();
+    }
+
     public static Tensor constant(double val) {
         return new Tensor(val, NONE);
     }
@@ -101,9 +131,14 @@ public class Tensor {
             throw new IllegalArgumentException("Wrong shape: param:" + this.vals.getShape() + " vs grad:" + gradient.getShape());
         }
 
-        this.gradient = this.gradient == null ?
-                gradient :
-                this.gradient.add(gradient);
+        if (this.gradient == null) {
+            this.gradient = gradient;
+        } else if (ownsGradient) {
+            this.gradient = this.gradient.addInPlace(gradient);
+        } else {
+            this.gradient = this.gradient.add(gradient);
+            ownsGradient = true;
+        }
     }
 
     public static abstract class TensorFactories {
@@ -126,7 +161,7 @@ public class Tensor {
 
     public void backward(NDArray gradient) {
 //        backwardDepthFirst(gradient);
-        backwardBreadthFirst(gradient);
+        backwardInTopologicalOrder(gradient);
     }
 
     private void backwardDepthFirst(NDArray gradient) {
@@ -144,35 +179,154 @@ public class Tensor {
         }
     }
 
-    private void backwardBreadthFirst(NDArray gradient) {
+    /**
+     * Passes the gradients on in one walk over the tensors, each after all tensors that pass it a gradient.
+     * <p>
+     * Inside {@link DisposalRegister#modelIteration}, the gradient of an intermediate tensor is disposed as soon as
+     * it has been passed on to all parents, instead of at the end of the iteration. Its {@link #getGradient()} is
+     * null afterwards. Only the gradients of tensors without links (the params) are kept.
+     */
+    private void backwardInTopologicalOrder(NDArray gradient) {
         if (gradientMode == CALCULATE_GRAD) {
-            PriorityQueue<Tensor> gradientsToAdd = new PriorityQueue<>(IdGenerator::compareId);
-            this.addGradient(gradient);
-            gradientsToAdd.add(this);
+            Map<Tensor, int[]> pendingGradients = new IdentityHashMap<>();
+            List<Tensor> order = backwardOrder(pendingGradients);
+            GradientHolders holders = (DisposalRegister.isInModelIteration() ? new GradientHolders(gradient) : null);
+
+            this.addGradient(gradient, holders);
+            for (Tensor tensor : order) {
+                int[] pending = pendingGradients.get(tensor);
+                if (pending != null && pending[0] != 0) {
+                    throw new IllegalStateException("Gradient of " + tensor + " is missing " + pending[0] + " parts");
+                }
+                // null when every consumer has passed the gradient on itself, see Ops.checkpoint()
+                NDArray tensorGradient = tensor.gradient;
+
+                for (ParentLink link : tensor.links) {
+                    Tensor parent = link.parent;
+
+                    if (parent.gradientMode == CALCULATE_GRAD) {
+                        NDArray parentGrad = (tensorGradient != null ? link.gradFunc.calcGradient(tensorGradient) : null);
+
+                        // null when the grad func has passed the gradient on itself, see Ops.checkpoint()
+                        if (parentGrad != null) {
+                            parent.addGradient(parentGrad, holders);
+                        }
+                        pendingGradients.get(parent)[0]--;
+                    }
+                }
 
-            backwardBreadthFirst(gradientsToAdd);
+                if (holders != null && tensorGradient != null && tensor != this && !tensor.links.isEmpty()) {
+                    holders.release(tensorGradient);
+                    tensor.gradient = null;
+                    tensor.ownsGradient = false;
+                }
+            }
         }
     }
 
-    private void backwardBreadthFirst(PriorityQueue<Tensor> tensorsById) {
-        while (!tensorsById.isEmpty()) {
-            Tensor tensor = tensorsById.poll();
-            NDArray gradient = tensor.gradient;
+    private void addGradient(NDArray gradient, GradientHolders holders) {
+        NDArray old = this.gradient;
+        addGradient(gradient);
 
-            for (ParentLink link : tensor.links) {
-                Tensor parent = link.parent;
+        if (holders != null) {
+            if (this.gradient != old) {
+                holders.hold(this.gradient);
+                if (old != null) {
+                    holders.release(old);
+                }
+            }
+            if (this.gradient != gradient) {
+                // only added to the gradient of the parent
+                holders.disposeWhenUnheld(gradient);
+            }
+        }
+    }
 
-                if (parent.gradientMode == CALCULATE_GRAD) {
-                    NDArray parentGrad = link.gradFunc.calcGradient(gradient);
+    /**
+     * Counts the tensors that hold a gradient on each data owner (see {@link NDArray#getDataOwner()}) during
+     * backward(). Grad funcs may pass the same array on to several parents, e.g. for add(), or a view of it, e.g.
+     * for reshape(), so the arrays on the data are only disposed when no tensor holds any of them.
+     */
+    private static class GradientHolders {
+        private final Map<Object, Holding> holdings = new IdentityHashMap<>();
 
-                    parent.addGradient(parentGrad);
+        GradientHolders(NDArray callerGradient) {
+            // owned by the caller of backward(), never disposed
+            hold(callerGradient);
+        }
 
-                    if (!tensorsById.contains(parent)) {
-                        tensorsById.add(parent);
+        void hold(NDArray gradient) {
+            Holding holding = holdings.computeIfAbsent(gradient.getDataOwner(), owner -> new Holding());
+            holding.count++;
+            holding.arrays.add(gradient);
+        }
+
+        void release(NDArray gradient) {
+            Object owner = gradient.getDataOwner();
+            Holding holding = holdings.get(owner);
+            if (holding == null) {
+                // the gradient was there before backward(), e.g. of a param that is shared with an outer backward()
+                return;
+            }
+            if (--holding.count == 0) {
+                holdings.remove(owner);
+                holding.arrays.forEach(NDArray::dispose);
+            }
+        }
+
+        void disposeWhenUnheld(NDArray array) {
+            Holding holding = holdings.get(array.getDataOwner());
+            if (holding == null) {
+                array.dispose();
+            } else {
+                holding.arrays.add(array);
+            }
+        }
+
+        private static class Holding {
+            final Set<NDArray> arrays = Collections.newSetFromMap(new IdentityHashMap<>());
+            int count;
+        }
+    }
+
+    /**
+     * Iterative depth first walk over the parents that calculate gradients, so deep graphs do not overflow the
+     * stack. Reversed post order puts every tensor before its parents.
+     *
+     * @param pendingGradients filled with the number of gradients each parent gets
+     */
+    private List<Tensor> backwardOrder(Map<Tensor, int[]> pendingGradients) {
+        List<Tensor> postOrder = new ArrayList<>();
+        Set<Tensor> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Visit> path = new ArrayDeque<>();
+        visited.add(this);
+        path.push(new Visit(this));
+        while (!path.isEmpty()) {
+            Visit visit = path.peek();
+            if (visit.nextLink < visit.tensor.links.size()) {
+                Tensor parent = visit.tensor.links.get(visit.nextLink++).parent;
+                if (parent.gradientMode == CALCULATE_GRAD) {
+                    pendingGradients.computeIfAbsent(parent, p -> new int[1])[0]++;
+                    if (visited.add(parent)) {
+                        path.push(new Visit(parent));
                     }
                 }
+            } else {
+                path.pop();
+                postOrder.add(visit.tensor);
             }
         }
+        Collections.reverse(postOrder);
+        return postOrder;
+    }
+
+    private static class Visit {
+        final Tensor tensor;
+        int nextLink;
+
+        Visit(Tensor tensor) {
+            this.tensor = tensor;
+        }
     }
 
     public Object toDoubles() {
@@ -184,6 +338,13 @@ public class Tensor {
         return "Tensor{" + vals.getShape() + "}";
     }
 
+    /**
+     * @return a tensor of the same values and gradient mode, without links
+     */
+    Tensor detach() {
+        return new Tensor(this.vals, this.gradientMode);
+    }
+
     public Tensor subBatch(int batchId, int batchSize) {
         return new Tensor(this.vals.subBatch(batchId, batchSize), this.gradientMode);
     }
@@ -196,7 +357,9 @@ public class Tensor {
         this.vals = convertFunc.apply(old, this.gradient);
         testNan(this.vals);
 
-        DisposalRegister.registerForDisposal(old);
+        if (old != this.vals) {
+            DisposalRegister.registerForDisposal(old);
+        }
 
         resetGradient();
     }
@@ -238,6 +401,7 @@ public class Tensor {
             DisposalRegister.registerForDisposal(gradient);
         }
         this.gradient = null;
+        this.ownsGradient = false;
     }
 
     public enum GradientMode {
@@ -255,11 +419,6 @@ public class Tensor {
             });
         }
 
-        static int compareId(Tensor left, Tensor right) {
-            // reverse left/right since we want higher ids to be processed first
-            return compareIdNaturalOrder(right.id, left.id);
-        }
-
         static int compareIdNaturalOrder(long l, long r) {
             long diff = diff(l, r);
 
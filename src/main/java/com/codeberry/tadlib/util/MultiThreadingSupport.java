@@ -1,21 +1,60 @@
 package com.codeberry.tadlib.util;
 
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
 
+/**
+ * Runs a task over a range of indices, split in halves over a fork join pool.
+ * <p>
+ * A {@link TaskCost} range is split by a cost model: each task gets at least
+ * {@value #MIN_OVERHEADS_PER_TASK} times the overhead of a task in estimated work, and there are at most
+ * {@value #MAX_TASKS_PER_THREAD} tasks per thread. The overhead is measured when multi threading is enabled,
+ * unless the system property {@value #PROP_TAD_TASK_OVERHEAD_NANOS} sets it.
+ */
 public abstract class MultiThreadingSupport {
+    public static final String PROP_TAD_TASK_OVERHEAD_NANOS = "tad.task.overhead.nanos";
+    /**
+     * Set to <code>true</code> to collect the {@link #getSplitStats()}.
+     */
+    public static final String PROP_TAD_TASK_SPLIT_STATS = "tad.task.splitstats";
+
+    // Rough throughput of one core, for the work estimates
+    private static final double NANOS_PER_FLOP = 0.25;
+    private static final double NANOS_PER_BYTE = 0.1;
+
+    private static final int MIN_OVERHEADS_PER_TASK = 8;
+    private static final int MAX_TASKS_PER_THREAD = 4;
+    private static final long DEFAULT_TASK_OVERHEAD_NANOS = 10_000;
+    private static final long MIN_TASK_OVERHEAD_NANOS = 500;
+    private static final long MAX_TASK_OVERHEAD_NANOS = 200_000;
+    private static final int CALIBRATION_TASKS = 256;
+
     private static volatile ForkJoinPool pool;
+    private static volatile long taskOverheadNanos = Long.getLong(PROP_TAD_TASK_OVERHEAD_NANOS, -1);
+
+    private static final Map<String, SplitCounters> SPLIT_COUNTERS = new ConcurrentHashMap<>();
+    private static volatile boolean collectSplitStats = Boolean.getBoolean(PROP_TAD_TASK_SPLIT_STATS);
 
     public static void enableMultiThreading() {
         int processors = Runtime.getRuntime().availableProcessors();
         if (processors >= 2) {
-            int threads = max(processors - 1, 2);
-            pool = new ForkJoinPool(threads);
+            enableMultiThreading(max(processors - 1, 2));
+        }
+    }
+
+    static void enableMultiThreading(int threads) {
+        pool = new ForkJoinPool(threads);
+        if (taskOverheadNanos < 0) {
+            taskOverheadNanos = calibrateTaskOverhead(pool);
         }
     }
 
@@ -23,12 +62,133 @@ public abstract class MultiThreadingSupport {
         pool = null;
     }
 
+    /**
+     * Runs tasks that do nothing, and takes the fastest of a few rounds.
+     */
+    private static long calibrateTaskOverhead(ForkJoinPool pool) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            pool.invoke(new MyRecursiveTask<>(TaskRange.taskRange(0, CALIBRATION_TASKS, 1),
+                    range -> null, (left, right) -> null));
+            best = min(best, System.nanoTime() - start);
+        }
+        return max(MIN_TASK_OVERHEAD_NANOS, min(MAX_TASK_OVERHEAD_NANOS, best / CALIBRATION_TASKS));
+    }
+
+    /**
+     * @return measured, or configured, overhead of running a task in the pool
+     */
+    public static long getTaskOverheadNanos() {
+        long overhead = taskOverheadNanos;
+        return overhead >= 0 ? overhead : DEFAULT_TASK_OVERHEAD_NANOS;
+    }
+
+    /**
+     * Replaces the measured overhead, for tuning.
+     */
+    public static void setTaskOverheadNanos(long nanos) {
+        taskOverheadNanos = nanos;
+    }
+
     public static <R> R multiThreadingSupportRun(TaskRange totalRange, Function<TaskRange, R> task, BiFunction<R, R, R> merger) {
+        SplitCounters counters = (collectSplitStats && totalRange.cost != null ?
+                SPLIT_COUNTERS.computeIfAbsent(totalRange.cost.op, op -> new SplitCounters()) : null);
+        if (counters != null) {
+            counters.runs.increment();
+            counters.indices.add(totalRange.length());
+        }
         if (pool == null ||
                 totalRange.isSmallEnoughForDirectWork()) {
+            if (counters != null) {
+                counters.tasks.increment();
+            }
             return task.apply(totalRange);
         } else {
-            return pool.invoke(new MyRecursiveTask<>(totalRange, task, merger));
+            if (counters != null) {
+                counters.splitRuns.increment();
+            }
+            return pool.invoke(new MyRecursiveTask<>(totalRange, task, merger, counters));
+        }
+    }
+
+    /**
+     * @return the smallest range a task gets, so the estimated work of a task pays for its overhead, and the
+     * range is not cut into more tasks than the threads can use
+     */
+    static int minLengthFor(TaskCost cost, int length) {
+        ForkJoinPool pool = MultiThreadingSupport.pool;
+        if (pool == null) {
+            return max(1, length);
+        }
+        double nanosPerIndex = max(NANOS_PER_FLOP,
+                cost.flopsPerIndex * NANOS_PER_FLOP + cost.bytesPerIndex * NANOS_PER_BYTE);
+        double minByOverhead = Math.ceil(MIN_OVERHEADS_PER_TASK * getTaskOverheadNanos() / nanosPerIndex);
+        int maxTasks = pool.getParallelism() * MAX_TASKS_PER_THREAD;
+        int minByTaskCount = (length + maxTasks - 1) / maxTasks;
+        return (int) max(1, max(min(minByOverhead, Integer.MAX_VALUE), minByTaskCount));
+    }
+
+    /**
+     * Turns the collection of {@link #getSplitStats()} on or off, for tuning.
+     */
+    public static void setCollectSplitStats(boolean collect) {
+        collectSplitStats = collect;
+    }
+
+    /**
+     * @return split statistics per {@link TaskCost#op}, since start or {@link #resetSplitStats()}, when
+     * collected, see {@value #PROP_TAD_TASK_SPLIT_STATS}
+     */
+    public static Map<String, SplitStats> getSplitStats() {
+        Map<String, SplitStats> stats = new TreeMap<>();
+        SPLIT_COUNTERS.forEach((op, counters) -> stats.put(op, counters.toStats()));
+        return stats;
+    }
+
+    public static void resetSplitStats() {
+        SPLIT_COUNTERS.clear();
+    }
+
+    private static class SplitCounters {
+        final LongAdder runs = new LongAdder();
+        final LongAdder splitRuns = new LongAdder();
+        final LongAdder indices = new LongAdder();
+        final LongAdder tasks = new LongAdder();
+
+        SplitStats toStats() {
+            return new SplitStats(runs.sum(), splitRuns.sum(), indices.sum(), tasks.sum());
+        }
+    }
+
+    public static class SplitStats {
+        public final long runs;
+        /**
+         * Runs that were split over the pool. The others ran on the calling thread.
+         */
+        public final long splitRuns;
+        public final long indices;
+        public final long tasks;
+
+        private SplitStats(long runs, long splitRuns, long indices, long tasks) {
+            this.runs = runs;
+            this.splitRuns = splitRuns;
+            this.indices = indices;
+            this.tasks = tasks;
+        }
+
+        public double getTasksPerRun() {
+            return runs > 0 ? (double) tasks / runs : 0;
+        }
+
+        public double getIndicesPerTask() {
+            return tasks > 0 ? (double) indices / tasks : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "runs=" + runs + " splitRuns=" + splitRuns + " indices=" + indices + " tasks=" + tasks +
+                    String.format(" tasksPerRun=%.1f indicesPerTask=%.1f", getTasksPerRun(), getIndicesPerTask());
         }
     }
 
@@ -38,11 +198,20 @@ public abstract class MultiThreadingSupport {
         public final int start;
         public final int end;
         public final int minLength;
+        /**
+         * null when the caller gave the minimum length
+         */
+        final TaskCost cost;
 
         public TaskRange(int start, int end, int minLength) {
+            this(start, end, minLength, null);
+        }
+
+        private TaskRange(int start, int end, int minLength, TaskCost cost) {
             this.start = start;
             this.end = end;
             this.minLength = minLength;
+            this.cost = cost;
         }
 
         public static TaskRange taskRange(int start, int end) {
@@ -53,6 +222,13 @@ public abstract class MultiThreadingSupport {
             return new TaskRange(start, end, minSegmentLength);
         }
 
+        /**
+         * @param cost estimated work of each index
+         */
+        public static TaskRange taskRange(int start, int end, TaskCost cost) {
+            return new TaskRange(start, end, minLengthFor(cost, end - start), cost);
+        }
+
         public int size() {
             return end - start;
         }
@@ -66,15 +242,15 @@ public abstract class MultiThreadingSupport {
         }
 
         public TaskRange withMinimumWorkLength(int minLen) {
-            return new TaskRange(start, end, minLen);
+            return new TaskRange(start, end, minLen, cost);
         }
 
         public TaskRange leftPart() {
-            return new TaskRange(start, start + length() / 2, minLength);
+            return new TaskRange(start, start + length() / 2, minLength, cost);
         }
 
         public TaskRange rightPart() {
-            return new TaskRange(start + length() / 2, end, minLength);
+            return new TaskRange(start + length() / 2, end, minLength, cost);
         }
 
         @Override
@@ -87,16 +263,24 @@ public abstract class MultiThreadingSupport {
         private final TaskRange range;
         private final Function<TaskRange, R> task;
         private final BiFunction<R, R, R> merger;
+        private final SplitCounters counters;
 
         public MyRecursiveTask(TaskRange range, Function<TaskRange, R> task, BiFunction<R, R, R> merger) {
+            this(range, task, merger, null);
+        }
+
+        private MyRecursiveTask(TaskRange range, Function<TaskRange, R> task, BiFunction<R, R, R> merger,
+                                SplitCounters counters) {
             this.range = range;
             this.task = task;
             this.merger = merger;
+            this.counters = counters;
         }
 
         @Override
         protected R compute() {
             if (range.isSmallEnoughForDirectWork()) {
+                countTask();
                 return task.apply(this.range);
             } else {
                 TaskRange left = this.range.leftPart();
@@ -104,12 +288,13 @@ public abstract class MultiThreadingSupport {
 
                 R leftResult;
                 R rightResult;
-                MyRecursiveTask<R> leftTask = new MyRecursiveTask<>(left, task, merger);
+                MyRecursiveTask<R> leftTask = new MyRecursiveTask<>(left, task, merger, counters);
                 leftTask.fork();
                 if (right.isSmallEnoughForDirectWork()) {
+                    countTask();
                     rightResult = task.apply(right);
                 } else {
-                    MyRecursiveTask<R> rightTask = new MyRecursiveTask<>(right, task, merger);
+                    MyRecursiveTask<R> rightTask = new MyRecursiveTask<>(right, task, merger, counters);
                     rightTask.fork();
                     rightResult = rightTask.join();
                 }
@@ -118,5 +303,11 @@ public abstract class MultiThreadingSupport {
                 return merger.apply(leftResult, rightResult);
             }
         }
+
+        private void countTask() {
+            if (counters != null) {
+                counters.tasks.increment();
+            }
+        }
     }
 }
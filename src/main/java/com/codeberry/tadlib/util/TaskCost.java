@@ -0,0 +1,39 @@
+package com.codeberry.tadlib.util;
+
+/**
+ * Estimated work of one index of a {@link MultiThreadingSupport.TaskRange}, used to decide how far the range is
+ * split. The estimate only has to be right within a factor of a few: it is compared with the measured overhead of
+ * a task.
+ * <p>
+ * Split statistics are collected per {@link #op}, see {@link MultiThreadingSupport#getSplitStats()}.
+ */
+public final class TaskCost {
+    public final String op;
+    public final double flopsPerIndex;
+    public final double bytesPerIndex;
+
+    private TaskCost(String op, double flopsPerIndex, double bytesPerIndex) {
+        this.op = op;
+        this.flopsPerIndex = flopsPerIndex;
+        this.bytesPerIndex = bytesPerIndex;
+    }
+
+    /**
+     * @param bytesPerIndex bytes read and written
+     */
+    public static TaskCost taskCost(String op, double flopsPerIndex, double bytesPerIndex) {
+        return new TaskCost(op, flopsPerIndex, bytesPerIndex);
+    }
+
+    /**
+     * @param doublesPerIndex doubles read and written
+     */
+    public static TaskCost ofDoubles(String op, double flopsPerIndex, double doublesPerIndex) {
+        return new TaskCost(op, flopsPerIndex, doublesPerIndex * Double.BYTES);
+    }
+
+    @Override
+    public String toString() {
+        return op + "(flops=" + flopsPerIndex + " bytes=" + bytesPerIndex + ")";
+    }
+}
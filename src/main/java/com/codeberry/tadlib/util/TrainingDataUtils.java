@@ -1,5 +1,6 @@
 package com.codeberry.tadlib.util;
 
+import com.codeberry.tadlib.array.NDIntArray;
 import com.codeberry.tadlib.array.Shape;
 import com.codeberry.tadlib.provider.java.TMutableArray;
 import com.codeberry.tadlib.provider.ProviderStore;
@@ -10,12 +11,7 @@ import static com.codeberry.tadlib.provider.ProviderStore.shape;
 public abstract class TrainingDataUtils {
     public static Tensor toOneHot(Tensor yTrain, int outputUnits) {
         Shape shape = yTrain.getShape();
-        if (shape.getDimCount() != 2) {
-            throw new IllegalArgumentException("Expected 2 dimensions (batch, labelValue): actualShape=" + shape);
-        }
-        if (shape.at(-1) != 1) {
-            throw new IllegalArgumentException("Expected last dimension to be of length 1 (the label value): actualLen=" + shape.at(-1));
-        }
+        validateLabelShape(shape);
 
         int examples = shape.at(0);
         TMutableArray out = new TMutableArray(new double[examples * outputUnits], shape(examples, outputUnits));
@@ -27,4 +23,27 @@ public abstract class TrainingDataUtils {
         }
         return new Tensor(ProviderStore.array(out.getData(), shape(examples, outputUnits)), Tensor.GradientMode.NONE);
     }
+
+    /**
+     * @return the label value of each example as an int array of shape (batch)
+     */
+    public static NDIntArray toClassIndices(Tensor yTrain) {
+        validateLabelShape(yTrain.getShape());
+
+        double[][] labels = (double[][]) yTrain.getVals().toDoubles();
+        int[] indices = new int[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            indices[i] = (int) labels[i][0];
+        }
+        return ProviderStore.array(indices);
+    }
+
+    private static void validateLabelShape(Shape shape) {
+        if (shape.getDimCount() != 2) {
+            throw new IllegalArgumentException("Expected 2 dimensions (batch, labelValue): actualShape=" + shape);
+        }
+        if (shape.at(-1) != 1) {
+            throw new IllegalArgumentException("Expected last dimension to be of length 1 (the label value): actualLen=" + shape.at(-1));
+        }
+    }
 }
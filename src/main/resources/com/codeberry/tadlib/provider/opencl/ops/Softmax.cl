@@ -78,3 +78,85 @@ __kernel void softmax(__global const double *src,
 
 
 }
+
+/**
+ * Softmax of each example, fused with the cross entropy against the class index in labels.
+ * Writes softmax - oneHot to gradOut and -log(softmax[label]) to lossOut.
+ */
+__kernel void softmaxCrossEntropy(__global const double *src,
+                    __global const int *labels,
+                    int valuesPerExample,
+                    double minLoss,
+                    double maxLoss,
+                    __global double *gradOut,
+                    __global double *lossOut,
+                    __local double *vals) {
+    long unitIndex = get_local_id(0);
+
+    long exampleIndex = get_global_id(1);
+    long offset = exampleIndex * valuesPerExample + unitIndex;
+
+    double v = -DBL_MAX;
+    if(unitIndex < valuesPerExample) {
+        v = src[offset];
+    }
+    vals[unitIndex] = v;
+
+    // --- Find max ---
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    if(valuesPerExample > 1) {
+        int limit = valuesPerExample;
+        do {
+            if(unitIndex == 0 && (limit & 1) != 0) {
+                vals[0] = max(vals[0], vals[limit-1]);
+            }
+            limit >>= 1;
+            if(unitIndex < limit) {
+                vals[unitIndex] = max(vals[unitIndex], vals[unitIndex + limit]);
+            }
+            barrier(CLK_LOCAL_MEM_FENCE);
+        } while(limit > 1);
+    }
+    double max = vals[0];
+
+    // --- Calc shifted exp ---
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    double shifted = v - max;
+    double exped = 0;
+    if(unitIndex < valuesPerExample) {
+        exped = exp(shifted);
+    }
+    vals[unitIndex] = exped;
+
+    // --- Sum Exp ---
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    if(valuesPerExample > 1) {
+        int limit = valuesPerExample;
+        do {
+            if(unitIndex == 0 && (limit & 1) != 0) {
+                vals[0] += vals[limit-1];
+            }
+            limit >>= 1;
+            if(unitIndex < limit) {
+                vals[unitIndex] += vals[unitIndex + limit];
+            }
+            barrier(CLK_LOCAL_MEM_FENCE);
+        } while(limit > 1);
+    }
+
+    // --- Output ---
+    if(unitIndex < valuesPerExample) {
+        double expSum = vals[0];
+        int label = labels[exampleIndex];
+
+        if(unitIndex == label) {
+            gradOut[offset] = exped / expSum - 1.0;
+            lossOut[exampleIndex] = clamp(log(expSum) - shifted, minLoss, maxLoss);
+        } else {
+            gradOut[offset] = exped / expSum;
+        }
+    }
+}
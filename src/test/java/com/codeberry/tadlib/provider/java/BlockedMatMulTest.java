@@ -0,0 +1,75 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.provider.ProviderStore;
+import com.codeberry.tadlib.util.MultiThreadingSupport;
+import org.junit.jupiter.api.Test;
+
+import static com.codeberry.tadlib.util.MatrixTestUtils.assertEqualsMatrix;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BlockedMatMulTest extends JavaArrayTestBase {
+    @Test
+    public void plain() {
+        assertSameAsUnblocked(random(7, 5), random(5, 3));
+        assertSameAsUnblocked(random(64, 300), random(300, 130));
+        assertSameAsUnblocked(random(67, 257), random(257, 1029));
+    }
+
+    @Test
+    public void transposed() {
+        JavaArray a = random(300, 67);
+        JavaArray b = random(130, 300);
+
+        assertSameAsUnblocked((JavaArray) a.transposeLast2D(), random(300, 130));
+        assertSameAsUnblocked(random(67, 300), (JavaArray) b.transposeLast2D());
+        assertSameAsUnblocked((JavaArray) a.transposeLast2D(), (JavaArray) b.transposeLast2D());
+    }
+
+    @Test
+    public void broadcastBatches() {
+        assertSameAsUnblocked(random(1, 33, 40), random(3, 40, 17));
+        assertSameAsUnblocked(random(2, 3, 33, 40), random(40, 17));
+        assertSameAsUnblocked(random(2, 1, 33, 40), (JavaArray) random(3, 17, 40).transposeLast2D());
+    }
+
+    @Test
+    public void singleDims() {
+        assertSameAsUnblocked(random(300), random(300, 21));
+        assertSameAsUnblocked(random(21, 300), random(300));
+    }
+
+    @Test
+    public void multiThreaded() {
+        ProviderStore.setProvider(new JavaProvider(JavaProvider.ThreadMode.MULTI_THREADED));
+
+        assertSameAsUnblocked(random(513, 300), random(300, 70));
+        assertSameAsUnblocked(random(4, 100, 80), (JavaArray) random(4, 60, 80).transposeLast2D());
+        // Attention heads: many batches with few, cheap, rows
+        assertSameAsUnblocked(random(64, 1, 49, 8), random(64, 49, 8, 1));
+        assertSameAsUnblocked(random(500, 3, 5), random(500, 5, 2));
+        assertSameAsUnblocked(random(3, 200, 70), random(70, 90));
+    }
+
+    @Test
+    public void batchesAndRowsAreOneTaskRange() {
+        MultiThreadingSupport.setCollectSplitStats(true);
+        MultiThreadingSupport.resetSplitStats();
+        try {
+            // 4 rows per batch fit in one row block, so every batch is a unit the threads can share
+            assertSameAsUnblocked(random(64, 4, 64), random(64, 64, 64));
+
+            MultiThreadingSupport.SplitStats stats = MultiThreadingSupport.getSplitStats().get("blockedMatmul");
+            assertEquals(1, stats.runs);
+            assertEquals(64, stats.indices);
+        } finally {
+            MultiThreadingSupport.setCollectSplitStats(false);
+        }
+    }
+
+    private static void assertSameAsUnblocked(JavaArray a, JavaArray b) {
+        JavaArray expected = JavaArray.matmulUnblocked(a, b);
+        JavaArray actual = a.matmul(b);
+
+        assertEqualsMatrix(expected.toDoubles(), actual.toDoubles());
+    }
+}
@@ -0,0 +1,98 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.Comparison;
+import com.codeberry.tadlib.array.NDArray;
+import com.codeberry.tadlib.tensor.Ops;
+import com.codeberry.tadlib.tensor.Tensor;
+import org.junit.jupiter.api.Test;
+
+import java.util.function.DoubleBinaryOperator;
+
+import static com.codeberry.tadlib.util.MatrixTestUtils.assertEqualsMatrix;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class BroadcastPlanTest extends JavaArrayTestBase {
+    private static final int[][][] SHAPE_PAIRS = {
+            {{4, 5, 6, 3}, {3}},
+            {{4, 5, 6, 3}, {1, 1, 1, 3}},
+            {{4, 5, 6, 3}, {4, 1, 1, 1}},
+            {{4, 5, 6, 3}, {5, 6, 3}},
+            {{4, 5, 6, 3}, {}},
+            {{4, 5, 6, 3}, {1}},
+            {{7, 2}, {7, 1}},
+            {{4, 5, 6, 3}, {5, 1, 3}},
+            {{4, 1, 3}, {1, 5, 1}},
+    };
+
+    @Test
+    public void binaryOpsMatchNaive() {
+        for (int[][] pair : SHAPE_PAIRS) {
+            JavaArray full = random(pair[0]);
+            JavaArray partial = random(pair[1]).add(3.0);
+            for (JavaArray[] ab : new JavaArray[][]{{full, partial}, {partial, full}}) {
+                JavaArray a = ab[0];
+                JavaArray b = ab[1];
+                assertEqualsMatrix(naive(a, b, Double::sum).toDoubles(), a.add(b).toDoubles());
+                assertEqualsMatrix(naive(a, b, (x, y) -> x * y).toDoubles(), a.mul(b).toDoubles());
+                assertEqualsMatrix(naive(a, b, (x, y) -> x / y).toDoubles(), a.div(b).toDoubles());
+                assertEqualsMatrix(naive(a, b, (x, y) -> x > y ? 1 : 0).toDoubles(),
+                        a.compare(b, Comparison.greaterThan(), 1, 0).toDoubles());
+            }
+        }
+    }
+
+    @Test
+    public void plannedShapes() {
+        assertNotNull(BroadcastPlan.plan(new JavaShape(4, 5, 6, 3), new JavaShape(3)));
+        assertNotNull(BroadcastPlan.plan(new JavaShape(4, 1, 1, 1), new JavaShape(4, 5, 6, 3)));
+        assertNotNull(BroadcastPlan.plan(new JavaShape(), new JavaShape(4, 5)));
+        assertNull(BroadcastPlan.plan(new JavaShape(4, 5, 6, 3), new JavaShape(5, 1, 3)));
+        assertNull(BroadcastPlan.plan(new JavaShape(4, 1, 3), new JavaShape(1, 5, 1)));
+        assertNull(BroadcastPlan.plan(random(3, 4).transpose().shape, new JavaShape(3)));
+    }
+
+    @Test
+    public void biasGradient() {
+        JavaArray input = random(4, 5, 6, 3);
+        JavaArray grad = random(4, 5, 6, 3).mul(2.0);
+        for (JavaArray bias : new JavaArray[]{random(3), random(1, 1, 1, 3), random(1, 6, 1)}) {
+            Tensor x = new Tensor(input);
+            Tensor b = new Tensor(bias);
+            Ops.add(x, b).backward(grad);
+
+            Boolean[] toSum = new Boolean[4];
+            int missing = 4 - bias.shape.dimCount;
+            for (int i = 0; i < 4; i++) {
+                toSum[i] = (i < missing || bias.shape.at(i - missing) == 1);
+            }
+            NDArray expected = grad.sum(toSum, NDArray.DimKeepRemove.KEEP_DIM).reshape(bias.shape.toDimArray());
+            assertEqualsMatrix(expected.toDoubles(), b.getGradient().toDoubles());
+        }
+    }
+
+    private static JavaArray naive(JavaArray a, JavaArray b, DoubleBinaryOperator op) {
+        JavaShape outShape = JavaArray.evalBroadcastOutputShape(a.shape, b.shape);
+        int[] dims = outShape.toDimArray();
+        double[] out = new double[outShape.size];
+        int[] indices = new int[dims.length];
+        for (int n = 0; n < out.length; n++) {
+            int rest = n;
+            for (int d = dims.length - 1; d >= 0; d--) {
+                indices[d] = rest % dims[d];
+                rest /= dims[d];
+            }
+            out[n] = op.applyAsDouble(valueAt(a, indices), valueAt(b, indices));
+        }
+        return new JavaArray(out, outShape);
+    }
+
+    private static double valueAt(JavaArray array, int[] outIndices) {
+        int dimCount = array.shape.dimCount;
+        int[] indices = new int[dimCount];
+        for (int i = 1; i <= dimCount; i++) {
+            indices[dimCount - i] = Math.min(outIndices[outIndices.length - i], array.shape.at(-i) - 1);
+        }
+        return array.dataAt(indices);
+    }
+}
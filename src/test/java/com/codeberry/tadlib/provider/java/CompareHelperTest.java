@@ -0,0 +1,106 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.Comparison;
+import com.codeberry.tadlib.array.NDArray;
+import com.codeberry.tadlib.array.NDIntArray;
+import org.junit.jupiter.api.Test;
+
+import static com.codeberry.tadlib.util.MatrixTestUtils.assertEqualsMatrix;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CompareHelperTest extends JavaArrayTestBase {
+    @Test
+    public void doubles() {
+        JavaArray a = random(4, 3, 5);
+        JavaArray bias = random(5);
+        JavaArray perRow = random(4, 1, 1);
+
+        NDArray gt = a.compare(bias, Comparison.greaterThan(), 2.0, -1.0);
+        assertEqualsMatrix(expected(a, broadcastTo(bias, a.shape), Comparison.greaterThan(), 2.0, -1.0),
+                gt.toDoubles());
+        NDArray le = perRow.compare(a, Comparison.lessThanOrEquals(), 1.0, 0.0);
+        assertEqualsMatrix(expected(broadcastTo(perRow, a.shape), a, Comparison.lessThanOrEquals(), 1.0, 0.0),
+                le.toDoubles());
+
+        JavaArray transposed = random(5, 3, 4).transpose(2, 1, 0);
+        NDArray lt = a.compare(transposed, Comparison.lessThan(), 1.0, 0.0);
+        assertEqualsMatrix(expected(a, transposed, Comparison.lessThan(), 1.0, 0.0), lt.toDoubles());
+
+        NDArray eq = a.compare(a.add(1e-12), Comparison.equalsWithDelta(1e-9), 1.0, 0.0);
+        assertEqualsMatrix(a.mul(0.0).add(1.0).toDoubles(), eq.toDoubles());
+    }
+
+    @Test
+    public void doublesAndInts() {
+        JavaArray a = random(6, 4).mul(3.0);
+        JavaIntArray labels = randomInts(4);
+
+        JavaArray labelsAsDoubles = broadcastTo(toDoubles(labels), a.shape);
+        assertEqualsMatrix(expected(a, labelsAsDoubles, Comparison.greaterThanOrEquals(), 1.0, 0.0),
+                a.compare(labels, Comparison.greaterThanOrEquals(), 1.0, 0.0).toDoubles());
+        assertEqualsMatrix(expected(labelsAsDoubles, a, Comparison.greaterThanOrEquals(), 1.0, 0.0),
+                labels.compare(a, Comparison.greaterThanOrEquals(), 1.0, 0.0).toDoubles());
+    }
+
+    @Test
+    public void ints() {
+        JavaIntArray a = randomInts(3, 4);
+        JavaIntArray b = randomInts(4);
+
+        NDIntArray eq = a.compare(b, Comparison.equalsWithDelta(0), 7, -7);
+        int[][] actual = (int[][]) eq.toInts();
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 4; col++) {
+                boolean equal = a.dataAt(row, col) == b.dataAt(col);
+                assertEquals(equal ? 7 : -7, actual[row][col]);
+            }
+        }
+    }
+
+    @Test
+    public void scalars() {
+        NDArray gt = new JavaArray(2.0).compare(new JavaArray(1.0), Comparison.greaterThan(), 5.0, 0.0);
+        assertEquals(0, gt.getShape().getDimCount());
+        assertEquals(5.0, (double) gt.toDoubles());
+
+        NDIntArray lt = new JavaIntArray(2).compare(new JavaIntArray(1), Comparison.lessThan(), 5, 3);
+        assertEquals(0, lt.getShape().getDimCount());
+        assertArrayEquals(new int[]{3}, ((JavaIntArray) lt).data);
+    }
+
+    private static Object expected(JavaArray left, JavaArray right, Comparison comparison,
+                                   double trueValue, double falseValue) {
+        JavaShape shape = left.shape.normalOrderedCopy();
+        double[] out = new double[shape.size];
+        int[] indices = shape.newIndexArray();
+        for (int i = 0; i < out.length; i++) {
+            for (int d = indices.length - 1, rest = i; d >= 0; rest /= shape.at(d), d--) {
+                indices[d] = rest % shape.at(d);
+            }
+            out[i] = comparison.doubleIsTrue(left.dataAt(indices), right.dataAt(indices)) ? trueValue : falseValue;
+        }
+        return new JavaArray(out, shape).toDoubles();
+    }
+
+    private static JavaArray broadcastTo(JavaArray array, JavaShape shape) {
+        return array.add(new JavaArray(new double[shape.size], shape.normalOrderedCopy()));
+    }
+
+    private static JavaArray toDoubles(JavaIntArray array) {
+        double[] data = new double[array.data.length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = array.data[i];
+        }
+        return new JavaArray(data, new JavaShape(array.getShape().toDimArray()));
+    }
+
+    private JavaIntArray randomInts(int... dims) {
+        JavaShape shape = new JavaShape(dims);
+        int[] data = new int[shape.size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = rand.nextInt(3) - 1;
+        }
+        return new JavaIntArray(data, shape);
+    }
+}
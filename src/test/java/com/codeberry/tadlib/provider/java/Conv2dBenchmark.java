@@ -0,0 +1,54 @@
+package com.codeberry.tadlib.provider.java;
+
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static com.codeberry.tadlib.provider.java.JavaArrayTestUtils.random;
+import static com.codeberry.tadlib.util.MultiThreadingSupport.TaskRange.taskRange;
+
+/**
+ * Compares the im2col and the Winograd conv2d on MNIST sized 3x3 convolutions, single threaded.
+ * <p>
+ * Run the main method manually, it is not part of the test suite.
+ */
+public class Conv2dBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    public static void main(String[] args) {
+        Random rand = new Random(4);
+        int[][] inOutChannels = {
+                {1, 16},
+                {4, 16},
+                {8, 8},
+                {16, 32},
+                {32, 32},
+        };
+        for (int[] channels : inOutChannels) {
+            JavaArray input = random(rand, 32, 28, 28, channels[0]);
+            JavaArray filter = random(rand, 3, 3, channels[0], channels[1]);
+            JavaShape outShape = new JavaShape(32, 28, 28, channels[1]);
+
+            double im2col = millis(() -> Im2ColConv2d.conv2d(taskRange(0, 32),
+                    input.getInternalData(), input.shape, filter.getInternalData(), filter.shape,
+                    -1, -1, new double[outShape.size], outShape));
+            WinogradConv2d.FilterTransform transform = WinogradConv2d.transform(filter);
+            double winograd = millis(() -> WinogradConv2d.conv2d(taskRange(0, 32),
+                    input.getInternalData(), input.shape, transform, false,
+                    -1, -1, new double[outShape.size], outShape));
+            System.out.printf("%2d -> %2d channels: im2col %7.2fms, winograd %7.2fms (%.1fx)%n",
+                    channels[0], channels[1], im2col, winograd, im2col / winograd);
+        }
+    }
+
+    private static double millis(Supplier<double[]> conv) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            conv.get();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            conv.get();
+        }
+        return (System.nanoTime() - start) / 1e6 / MEASURED_ROUNDS;
+    }
+}
@@ -0,0 +1,137 @@
+package com.codeberry.tadlib.provider.java;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the selected kernels (vectorized when run with the simd profile) with the scalar ones.
+ */
+class ElementKernelsTest {
+    private static final double DELTA = 1e-12;
+
+    private final ElementKernels selected = ElementKernels.get();
+    private final ElementKernels scalar = new ElementKernels();
+    private final Random rand = new Random(4);
+
+    @Test
+    public void binaryOps() {
+        for (int len : new int[]{0, 1, 7, 64, 1001}) {
+            double[] a = random(len);
+            double[] b = random(len);
+
+            assertSame(len, (k, out) -> k.add(a, b, out, 0, len));
+            assertSame(len, (k, out) -> k.mul(a, b, out, 0, len));
+            assertSame(len, (k, out) -> k.div(a, b, out, 0, len));
+            assertSame(len, (k, out) -> k.add(a, 1.5, out, 0, len));
+            assertSame(len, (k, out) -> k.mul(a, -2.5, out, 0, len));
+            assertSame(len, (k, out) -> k.div(a, 3.0, out, 0, len));
+        }
+    }
+
+    @Test
+    public void unaryOps() {
+        for (int len : new int[]{0, 3, 64, 1001}) {
+            double[] a = random(len);
+            double[] positive = new double[len];
+            for (int i = 0; i < len; i++) {
+                positive[i] = Math.abs(a[i]) + 0.01;
+            }
+
+            assertSame(len, (k, out) -> k.sqr(a, out, 0, len));
+            assertSame(len, (k, out) -> k.sqrt(positive, out, 0, len));
+            assertSame(len, (k, out) -> k.pow(positive, 1.7, out, 0, len));
+            assertSame(len, (k, out) -> k.log(positive, out, 0, len));
+            assertSame(len, (k, out) -> k.clip(a, -0.5, 0.5, out, 0, len));
+            assertSame(len, (k, out) -> k.clip(a, Double.NEGATIVE_INFINITY, 0.5, out, 0, len));
+        }
+    }
+
+    @Test
+    public void reluAndMask() {
+        int len = 1001;
+        double[] a = random(len);
+        double[] expected = new double[len];
+        long[] expectedBits = new long[(len + 63) / 64];
+        double[] actual = new double[len];
+        long[] actualBits = new long[(len + 63) / 64];
+
+        scalar.relu(a, 0.01, expected, expectedBits, 0, len);
+        selected.relu(a, 0.01, actual, actualBits, 0, len);
+
+        assertArrayEquals(expected, actual, DELTA);
+        assertArrayEquals(expectedBits, actualBits);
+        for (int i = 0; i < len; i++) {
+            assertEquals(a[i] > 0, (actualBits[i / 64] & (1L << (i % 64))) != 0);
+        }
+
+        double[] grad = random(len);
+        assertSame(len, (k, out) -> k.applyMask(grad, actualBits, 1, 0.01, out, 0, len));
+        double[] masked = new double[len];
+        selected.applyMask(grad, actualBits, 1, 0.01, masked, 0, len);
+        for (int i = 0; i < len; i++) {
+            assertEquals(grad[i] * (a[i] > 0 ? 1 : 0.01), masked[i], 0.0);
+        }
+    }
+
+    @Test
+    public void axpy() {
+        double[] x = random(1001);
+        double[] expected = random(1001);
+        double[] actual = expected.clone();
+
+        scalar.axpy(-0.3, x, expected, 0, x.length);
+        selected.axpy(-0.3, x, actual, 0, x.length);
+
+        assertArrayEquals(expected, actual, DELTA);
+    }
+
+    @Test
+    public void sumOfRange() {
+        double[] a = random(1001);
+
+        assertEquals(scalar.sum(a, 0, a.length), selected.sum(a, 0, a.length), 1e-9);
+        assertEquals(scalar.sum(a, 13, 900), selected.sum(a, 13, 900), 1e-9);
+        assertEquals(0.0, selected.sum(a, 5, 5));
+    }
+
+    @Test
+    public void stridedSumAndAddTo() {
+        double[] a = random(3001);
+        double expected = 0;
+        for (int i = 7; i < a.length; i += 3) {
+            expected += a[i];
+        }
+        assertEquals(expected, selected.sum(a, 7, 3, (a.length - 7 + 2) / 3), 1e-9);
+
+        double[] tgt = random(500);
+        double[] scalarTgt = tgt.clone();
+        scalar.addTo(a, 11, scalarTgt, 3, 490);
+        selected.addTo(a, 11, tgt, 3, 490);
+        assertArrayEquals(scalarTgt, tgt, DELTA);
+    }
+
+    private interface KernelCall {
+        void run(ElementKernels kernels, double[] out);
+    }
+
+    private void assertSame(int len, KernelCall call) {
+        double[] expected = new double[len];
+        double[] actual = new double[len];
+        call.run(scalar, expected);
+        call.run(selected, actual);
+
+        assertArrayEquals(expected, actual, DELTA);
+    }
+
+    private double[] random(int len) {
+        double[] data = new double[len];
+        for (int i = 0; i < len; i++) {
+            data[i] = rand.nextGaussian();
+        }
+        return data;
+    }
+}
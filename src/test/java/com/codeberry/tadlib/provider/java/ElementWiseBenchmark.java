@@ -0,0 +1,67 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.Comparison;
+import com.codeberry.tadlib.array.NDArray;
+import com.codeberry.tadlib.provider.ProviderStore;
+
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static com.codeberry.tadlib.array.NDArray.DimKeepRemove.KEEP_DIM;
+import static com.codeberry.tadlib.array.NDArray.DimKeepRemove.REMOVE_DIM;
+import static com.codeberry.tadlib.provider.java.JavaArrayTestUtils.random;
+import static com.codeberry.tadlib.provider.java.JavaProvider.ThreadMode.SINGLE_THREADED;
+
+/**
+ * Times the broadcast, reduction, layout conversion and fused chain ops on a conv layer sized [32, 28, 28, 16] array.
+ * <p>
+ * Run the main method manually, it is not part of the test suite.
+ */
+public class ElementWiseBenchmark {
+    private static final int WARMUP_ROUNDS = 50;
+    private static final int MEASURED_ROUNDS = 20;
+
+    public static void main(String[] args) {
+        ProviderStore.setProvider(new JavaProvider(SINGLE_THREADED));
+
+        Random rand = new Random(4);
+        JavaArray x = random(rand, 32, 28, 28, 16);
+        JavaArray bias = random(rand, 16);
+        JavaArray perExample = random(rand, 32, 1, 1, 1);
+        JavaArray transposed = random(rand, 16, 28, 28, 32).transpose(3, 1, 2, 0);
+
+        time("add [32,28,28,16] + [16]", () -> x.add(bias));
+        time("mul [32,28,28,16] * [32,1,1,1]", () -> x.mul(perExample));
+        time("div [32,28,28,16] / [16]", () -> x.div(bias));
+        time("add transposed + [32,28,28,16]", () -> transposed.add(x));
+        time("sum axes 0,1,2", () -> x.sum(new Boolean[]{true, true, true, false}, REMOVE_DIM));
+        time("sum axis 3 (keep)", () -> x.sum(new Boolean[]{false, false, false, true}, KEEP_DIM));
+        time("maxPool2d(2)", () -> x.maxPool2d(2));
+        time("normalOrderedCopy of transposed", transposed::normalOrderedCopy);
+        time("compare [32,28,28,16] > [16]", () -> x.compare(bias, Comparison.greaterThan(), 1, 0));
+
+        JavaArray grad = random(rand, 32, 28, 28, 16);
+        JavaArray variance = random(rand, 16).sqr();
+        time("rmsprop sT chain", () -> x.mul(0.9).add(grad.sqr().mul(0.1)));
+        time("rmsprop sT chain, fused", () -> lazy(x).mul(0.9).add(lazy(grad).sqr().mul(0.1)).getInternalData());
+        time("batch norm chain", () -> x.sub(bias).div(variance.add(1e-5).sqrt()).mul(bias).add(bias));
+        time("batch norm chain, fused", () -> lazy(x).sub(lazy(bias)).div(lazy(variance).add(1e-5).sqrt())
+                .mul(lazy(bias)).add(lazy(bias)).getInternalData());
+    }
+
+    private static NDArray lazy(JavaArray array) {
+        return JavaLazyArray.wrap(array);
+    }
+
+    private static void time(String name, Supplier<Object> op) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            op.get();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            op.get();
+        }
+        double ms = (System.nanoTime() - start) / 1e6 / MEASURED_ROUNDS;
+        System.out.printf("%-36s %8.3fms%n", name, ms);
+    }
+}
@@ -0,0 +1,154 @@
+package com.codeberry.tadlib.provider.java;
+
+import org.junit.jupiter.api.Test;
+
+import static com.codeberry.tadlib.util.MatrixTestUtils.assertEqualsMatrix;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class Im2ColConv2dTest extends JavaArrayTestBase {
+    @Test
+    public void sameSizeOutput() {
+        JavaArray input = random(3, 9, 7, 2);
+
+        assertSameAsReference(input, random(3, 3, 2, 5), -1, -1, 9, 7);
+        assertSameAsReference(input, random(1, 1, 2, 5), 0, 0, 9, 7);
+        assertSameAsReference(input, random(2, 4, 2, 3), 0, -1, 9, 7);
+    }
+
+    @Test
+    public void offsetAndOutputSize() {
+        JavaArray input = random(2, 8, 6, 3);
+
+        assertSameAsReference(input, random(3, 3, 3, 4), 0, 0, 6, 4);
+        assertSameAsReference(input, random(3, 3, 3, 4), -2, 1, 11, 3);
+        assertSameAsReference(input, random(5, 2, 3, 4), 2, -3, 1, 9);
+    }
+
+    @Test
+    public void threeArgOffsetsAreRelativeToCenteredFilter() {
+        JavaArray input = random(2, 6, 5, 3);
+        JavaArray filter = random(3, 3, 3, 2);
+
+        assertEqualsMatrix(input.conv2d(filter, -1, 1, 6, 5).toDoubles(),
+                input.conv2d(filter, 0, 2).toDoubles());
+    }
+
+    @Test
+    public void extraLeadingDims() {
+        assertSameAsReference(random(2, 3, 5, 5, 2), random(3, 3, 2, 2), -1, -1, 5, 5);
+    }
+
+    @Test
+    public void reorderedInputAndFilter() {
+        JavaArray input = random(4, 7, 6, 2).transpose(3, 1, 2, 0);
+        JavaArray filter = random(3, 3, 3, 4).transpose(0, 1, 3, 2);
+
+        assertSameAsReference(input, filter, -1, -1, 7, 6);
+        assertSameAsReference(input, (JavaArray) filter.normalOrderedCopy().rot180(0, 1), -1, -1, 7, 6);
+    }
+
+    @Test
+    public void largeChunkedInput() {
+        assertSameAsReference(random(2, 40, 40, 16), random(5, 5, 16, 8), -2, -2, 40, 40);
+    }
+
+    @Test
+    public void emptyInput() {
+        JavaArray noExamples = random(0, 5, 5, 2).conv2d(random(3, 3, 2, 4), -1, -1, 5, 5);
+        assertEquals(new JavaShape(0, 5, 5, 4), noExamples.shape);
+
+        assertSameAsReference(random(2, 0, 5, 2), random(2, 2, 2, 4), -1, 0, 3, 5);
+        assertSameAsReference(random(2, 5, 5, 0), random(3, 3, 0, 4), -1, -1, 5, 5);
+        assertSameAsReference(random(2, 5, 5, 0), random(2, 2, 0, 4), 0, 0, 5, 5);
+
+        assertFilterGradientSameAsReference(random(0, 5, 5, 2), random(0, 5, 5, 4), 3, 3);
+        assertFilterGradientSameAsReference(random(2, 0, 5, 2), random(2, 0, 5, 4), 2, 2);
+        JavaArray noChannels = random(2, 5, 5, 4).calcConv2dFilterGradient(random(2, 5, 5, 0),
+                new JavaArray(new double[0], new JavaShape(3, 3, 0, 4)));
+        assertEquals(new JavaShape(3, 3, 0, 4), noChannels.shape);
+    }
+
+    @Test
+    public void filterGradient() {
+        assertFilterGradientSameAsReference(random(3, 9, 7, 2), random(3, 9, 7, 5), 3, 3);
+        assertFilterGradientSameAsReference(random(2, 6, 6, 3), random(2, 6, 6, 4), 2, 4);
+        assertFilterGradientSameAsReference(random(1, 100, 100, 2), random(1, 100, 100, 2), 3, 3);
+    }
+
+    private static void assertFilterGradientSameAsReference(JavaArray input, JavaArray grad, int filterHeight, int filterWidth) {
+        int inChannels = input.shape.at(-1);
+        int outChannels = grad.shape.at(-1);
+        int offsetY = -(filterHeight - 1) / 2;
+        int offsetX = -(filterWidth - 1) / 2;
+
+        // d(sum(conv2d * grad)) / d(filter[fy][fx][i][o]) = sum(conv2d(input, unit filter at fy,fx,i,o) * grad)
+        double[] expected = new double[filterHeight * filterWidth * inChannels * outChannels];
+        for (int i = 0; i < expected.length; i++) {
+            double[] unit = new double[expected.length];
+            unit[i] = 1;
+            JavaArray unitFilter = new JavaArray(unit, new JavaShape(filterHeight, filterWidth, inChannels, outChannels));
+            JavaArray y = referenceConv2d(input, unitFilter, offsetY, offsetX, grad.shape.at(-3), grad.shape.at(-2));
+            for (int j = 0; j < y.getInternalData().length; j++) {
+                expected[i] += y.getInternalData()[j] * grad.getInternalData()[j];
+            }
+        }
+        JavaArray actual = grad.calcConv2dFilterGradient(input,
+                new JavaArray(new double[expected.length], new JavaShape(filterHeight, filterWidth, inChannels, outChannels)));
+
+        assertEqualsMatrix(expected, actual.getInternalData());
+    }
+
+    private static void assertSameAsReference(JavaArray input, JavaArray filter,
+                                              int offsetY, int offsetX, int outHeight, int outWidth) {
+        JavaArray expected = referenceConv2d(input.normalOrderedCopy(), filter.normalOrderedCopy(),
+                offsetY, offsetX, outHeight, outWidth);
+        JavaArray actual = input.conv2d(filter, offsetY, offsetX, outHeight, outWidth);
+
+        assertEqualsMatrix(expected.toDoubles(), actual.toDoubles());
+    }
+
+    private static JavaArray referenceConv2d(JavaArray input, JavaArray filter,
+                                             int offsetY, int offsetX, int outHeight, int outWidth) {
+        int[] dims = input.shape.toDimArray();
+        int inChannels = dims[dims.length - 1];
+        int outChannels = filter.shape.at(-1);
+        dims[dims.length - 3] = outHeight;
+        dims[dims.length - 2] = outWidth;
+        dims[dims.length - 1] = outChannels;
+        JavaShape outShape = new JavaShape(dims);
+        double[] out = new double[outShape.size];
+
+        int[] inIdx = input.shape.newIndexArray();
+        int[] fIdx = filter.shape.newIndexArray();
+        int[] outIdx = outShape.newIndexArray();
+        int len = outIdx.length;
+        for (int i = 0; i < out.length; i++) {
+            toIndices(i, dims, outIdx);
+            System.arraycopy(outIdx, 0, inIdx, 0, len - 3);
+            fIdx[3] = outIdx[len - 1];
+            double v = 0;
+            for (int fy = 0; fy < filter.shape.at(0); fy++) {
+                for (int fx = 0; fx < filter.shape.at(1); fx++) {
+                    for (int c = 0; c < inChannels; c++) {
+                        inIdx[len - 3] = outIdx[len - 3] + offsetY + fy;
+                        inIdx[len - 2] = outIdx[len - 2] + offsetX + fx;
+                        inIdx[len - 1] = c;
+                        fIdx[0] = fy;
+                        fIdx[1] = fx;
+                        fIdx[2] = c;
+                        v += input.dataAt(inIdx) * filter.dataAt(fIdx);
+                    }
+                }
+            }
+            out[i] = v;
+        }
+        return new JavaArray(out, outShape);
+    }
+
+    private static void toIndices(int offset, int[] dims, int[] indices) {
+        for (int d = dims.length - 1; d >= 0; d--) {
+            indices[d] = offset % dims[d];
+            offset /= dims[d];
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.NDArray;
+import com.codeberry.tadlib.tensor.Ops;
+import com.codeberry.tadlib.tensor.Tensor;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static com.codeberry.tadlib.util.MatrixTestUtils.assertEqualsMatrix;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JavaArraySliceTest extends JavaArrayTestBase {
+    @Test
+    public void splitReadsTheSourceData() {
+        JavaArray src = random(4, 3, 5);
+
+        for (int axis = 0; axis < 3; axis++) {
+            int axisLen = src.shape.at(axis);
+            int[] axisLens = {1, axisLen - 1};
+            List<NDArray> parts = src.split(axis, axisLens);
+
+            assertEquals(2, parts.size());
+            int offset = 0;
+            for (int p = 0; p < parts.size(); p++) {
+                JavaArraySlice part = (JavaArraySlice) parts.get(p);
+                assertEquals(axis == 0, part.isContiguous());
+                assertEqualsMatrix(copyOfRange(src, axis, offset, axisLens[p]).toDoubles(), part.toDoubles());
+                offset += axisLens[p];
+            }
+        }
+
+        NDArray last = src.split(1, new int[]{2, 1}).get(1);
+        src.getInternalData()[src.shape.calcDataIndex(3, 2, 4)] = 42;
+        assertEquals(42, last.dataAt(3, 0, 4));
+    }
+
+    @Test
+    public void splitOfTransposedArray() {
+        JavaArray src = random(5, 3, 4).transpose(2, 1, 0);
+        List<NDArray> parts = src.split(-1, new int[]{2, 3});
+
+        JavaArray dense = src.normalOrderedCopy();
+        assertEqualsMatrix(copyOfRange(dense, 2, 0, 2).toDoubles(), parts.get(0).toDoubles());
+        assertEqualsMatrix(copyOfRange(dense, 2, 2, 3).toDoubles(), parts.get(1).toDoubles());
+
+        List<NDArray> again = parts.get(1).split(0, new int[]{3, 1});
+        assertEqualsMatrix(copyOfRange(copyOfRange(dense, 2, 2, 3), 0, 3, 1).toDoubles(),
+                again.get(1).toDoubles());
+    }
+
+    @Test
+    public void opsOnParts() {
+        JavaArray src = random(6, 4, 8);
+        NDArray part = src.split(-1, new int[]{3, 5}).get(1);
+        JavaArray dense = copyOfRange(src, 2, 3, 5);
+        JavaArray other = random(4, 5).mul(2.0);
+
+        assertEqualsMatrix(dense.add(other).toDoubles(), part.add(other).toDoubles());
+        assertEqualsMatrix(other.add(dense).toDoubles(), other.add(part).toDoubles());
+        assertEqualsMatrix(dense.mul(other).toDoubles(), part.mul(other).toDoubles());
+        assertEqualsMatrix(other.div(dense).toDoubles(), other.div(part).toDoubles());
+        assertEqualsMatrix(dense.div(other).toDoubles(), part.div(other).toDoubles());
+        assertEquals((double) dense.sum().toDoubles(), (double) part.sum().toDoubles(), 1e-12);
+        assertEqualsMatrix(dense.reshape(24, 5).toDoubles(), part.reshape(24, 5).toDoubles());
+
+        NDArray leading = src.split(0, new int[]{2, 4}).get(1);
+        NDArray reshaped = leading.reshape(16, 8);
+        assertTrue(reshaped instanceof JavaArraySlice);
+        assertEqualsMatrix(copyOfRange(src, 0, 2, 4).reshape(16, 8).toDoubles(), reshaped.toDoubles());
+    }
+
+    @Test
+    public void concat() {
+        JavaArray a = random(2, 3, 4);
+        JavaArray b = random(2, 3, 1).add(5.0);
+        JavaArray c = random(3, 2, 2).transpose(1, 0, 2);
+
+        for (int axis : new int[]{0, 1}) {
+            JavaArray bb = random(axis == 0 ? 3 : 2, axis == 1 ? 2 : 3, 4);
+            NDArray concat = a.concat(bb, axis);
+            assertEqualsMatrix(a.toDoubles(), concat.split(axis, new int[]{a.shape.at(axis), bb.shape.at(axis)})
+                    .get(0).toDoubles());
+            assertEqualsMatrix(bb.toDoubles(), concat.split(axis, new int[]{a.shape.at(axis), bb.shape.at(axis)})
+                    .get(1).toDoubles());
+        }
+
+        NDArray concat = a.concat(new NDArray[]{b, c}, -1);
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 3; j++) {
+                for (int k = 0; k < 7; k++) {
+                    double expected = (k < 4 ? a.dataAt(i, j, k) : k < 5 ? b.dataAt(i, j, 0) : c.dataAt(i, j, k - 5));
+                    assertEquals(expected, concat.dataAt(i, j, k));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void concatGradients() {
+        Tensor a = new Tensor(random(2, 3, 4));
+        Tensor b = new Tensor(random(2, 3, 2));
+        Tensor y = Ops.concat(-1, a, b);
+        JavaArray grad = random(2, 3, 6);
+        y.backward(grad);
+
+        assertEqualsMatrix(copyOfRange(grad, 2, 0, 4).toDoubles(), a.getGradient().toDoubles());
+        assertEqualsMatrix(copyOfRange(grad, 2, 4, 2).toDoubles(), b.getGradient().toDoubles());
+    }
+
+    private static JavaArray copyOfRange(JavaArray src, int axis, int from, int len) {
+        int[] dims = src.shape.toDimArray();
+        dims[axis] = len;
+        JavaShape shape = new JavaShape(dims);
+        double[] data = new double[shape.size];
+        int[] indices = shape.newIndexArray();
+        for (int i = 0; i < data.length; i++) {
+            for (int d = indices.length - 1, rest = i; d >= 0; rest /= dims[d], d--) {
+                indices[d] = rest % dims[d];
+            }
+            indices[axis] += from;
+            data[i] = src.dataAt(indices);
+        }
+        return new JavaArray(data, shape);
+    }
+}
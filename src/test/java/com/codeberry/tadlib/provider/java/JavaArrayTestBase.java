@@ -0,0 +1,25 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.provider.ProviderStore;
+import org.junit.jupiter.api.BeforeEach;
+
+import java.util.Random;
+
+/**
+ * Runs every test on a default {@link JavaProvider}, with a random that is seeded the same for every test.
+ */
+abstract class JavaArrayTestBase {
+    protected final Random rand = new Random(4);
+
+    @BeforeEach
+    public void useJavaProvider() {
+        ProviderStore.setProvider(new JavaProvider());
+    }
+
+    /**
+     * @see JavaArrayTestUtils#random(Random, int...)
+     */
+    protected JavaArray random(int... dims) {
+        return JavaArrayTestUtils.random(rand, dims);
+    }
+}
@@ -0,0 +1,73 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.example.TrainingData;
+import com.codeberry.tadlib.memorymanagement.DisposalRegister.Disposable;
+import com.codeberry.tadlib.nn.model.Model;
+import com.codeberry.tadlib.nn.model.optimizer.Optimizer;
+import com.codeberry.tadlib.tensor.Tensor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.codeberry.tadlib.example.mnist.MNISTLoader.generate;
+import static com.codeberry.tadlib.example.mnist.TrainConfiguredConvMNISTMain.ModelSize;
+import static com.codeberry.tadlib.example.mnist.TrainConfiguredConvMNISTMain.createModelFactory;
+import static com.codeberry.tadlib.memorymanagement.DisposalRegister.modelIteration;
+
+public abstract class JavaArrayTestUtils {
+    /**
+     * Draws from the given random, so arrays created one after the other in a test hold different values.
+     */
+    public static JavaArray random(Random rand, int... dims) {
+        JavaShape shape = new JavaShape(dims);
+        double[] data = new double[shape.size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = rand.nextGaussian();
+        }
+        return new JavaArray(data, shape);
+    }
+
+    /**
+     * Trains a tiny conv model, from the same weights and data every call, for a few model iterations.
+     *
+     * @return the params after training, as {@link Tensor#toDoubles()}
+     */
+    static List<Object> trainTinyModel(Optimizer optimizer) {
+        return trainTinyModel(optimizer, false);
+    }
+
+    /**
+     * @param planned run each iteration with {@link JavaBufferPool#plannedIteration}, all with the same key
+     */
+    static List<Object> trainTinyModel(Optimizer optimizer, boolean planned) {
+        TrainingData data = generate(new Random(4), 16);
+        Model model = createModelFactory(ModelSize.TINY).createModel();
+
+        for (int i = 0; i < 4; i++) {
+            Model.IterationInfo info = new Model.IterationInfo(i, 0, 1);
+            Random dropRnd = new Random(i);
+            Runnable iteration = () -> modelIteration(() -> {
+                model.trainSingleIteration(dropRnd, data.getTrainingBatchAll(), optimizer, info);
+
+                List<Disposable> keep = new ArrayList<>(model.getKeepInMemoryDisposables());
+                keep.addAll(optimizer.getKeepInMemoryDisposables());
+                for (Tensor param : model.getParams()) {
+                    keep.addAll(param.getDisposables());
+                }
+                return keep;
+            });
+            if (planned) {
+                JavaBufferPool.plannedIteration("train", iteration);
+            } else {
+                iteration.run();
+            }
+        }
+
+        List<Object> params = new ArrayList<>();
+        for (Tensor param : model.getParams()) {
+            params.add(param.getVals().toDoubles());
+        }
+        return params;
+    }
+}
@@ -0,0 +1,331 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.nn.model.optimizer.SGD;
+import com.codeberry.tadlib.tensor.Ops;
+import com.codeberry.tadlib.tensor.Tensor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static com.codeberry.tadlib.memorymanagement.DisposalRegister.modelIteration;
+import static com.codeberry.tadlib.nn.model.optimizer.FixedLearningRate.fixedLearningRate;
+import static com.codeberry.tadlib.provider.java.JavaArrayTestUtils.trainTinyModel;
+import static com.codeberry.tadlib.util.MatrixTestUtils.assertEqualsMatrix;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.*;
+
+class JavaBufferPoolTest extends JavaArrayTestBase {
+    @BeforeEach
+    public void init() {
+        JavaBufferPool.setMode(JavaBufferPool.Mode.ON);
+        JavaBufferPool.resetStats();
+    }
+
+    @AfterEach
+    public void reset() {
+        JavaBufferPool.setMode(JavaBufferPool.Mode.OFF);
+        JavaBufferPool.setMaxFreeMegabytes(256);
+    }
+
+    @Test
+    public void recyclesBetweenIterations() {
+        JavaArray a = random(10, 20);
+        JavaArray b = random(10, 20);
+
+        for (int i = 0; i < 3; i++) {
+            modelIteration(() -> {
+                a.add(b).mul(a).sqr();
+                return emptyList();
+            });
+        }
+
+        JavaBufferPool.Stats stats = JavaBufferPool.getStats();
+        assertEquals(3, stats.misses);
+        assertEquals(6, stats.hits);
+        assertEquals(9, stats.recycled);
+    }
+
+    @Test
+    public void replaysCapturedPlan() {
+        JavaArray a = random(10, 20);
+        JavaArray b = random(10, 20);
+        Object[] results = new Object[3];
+
+        for (int i = 0; i < 3; i++) {
+            int iteration = i;
+            JavaBufferPool.plannedIteration("key", () -> modelIteration(() -> {
+                results[iteration] = a.add(b).mul(a).sqr().toDoubles();
+                return emptyList();
+            }));
+        }
+
+        JavaBufferPool.Stats stats = JavaBufferPool.getStats();
+        assertEquals(1, stats.captures);
+        assertEquals(3, stats.misses);
+        assertEquals(0, stats.hits);
+        assertEquals(6, stats.replayed);
+        assertEquals(0, stats.freeDoubles);
+        assertEqualsMatrix(results[0], results[1]);
+        assertEqualsMatrix(results[0], results[2]);
+    }
+
+    @Test
+    public void replaysBackwardPass() {
+        JavaBufferPool.setMode(JavaBufferPool.Mode.POISON);
+        Tensor x = new Tensor(random(4, 5, 6));
+        Tensor w = new Tensor(random(30, 3));
+        Runnable iteration = () -> modelIteration(() -> {
+            x.resetGradient();
+            w.resetGradient();
+            viewsGraph(x, w).backward();
+            return emptyList();
+        });
+
+        JavaBufferPool.plannedIteration("key", iteration);
+        JavaBufferPool.Stats captured = JavaBufferPool.getStats();
+        JavaBufferPool.resetStats();
+        for (int i = 0; i < 3; i++) {
+            JavaBufferPool.plannedIteration("key", iteration);
+        }
+
+        JavaBufferPool.Stats stats = JavaBufferPool.getStats();
+        assertEquals(0, stats.captures);
+        assertEquals(0, stats.misses);
+        assertEquals(0, stats.hits);
+        assertEquals(3 * (captured.hits + captured.misses), stats.replayed);
+    }
+
+    @Test
+    public void divergingIterationIsCapturedAgain() {
+        JavaArray a = random(10, 20);
+        JavaArray b = random(5, 20);
+
+        JavaBufferPool.plannedIteration("key", () -> modelIteration(() -> {
+            a.add(1.0).mul(2.0);
+            return emptyList();
+        }));
+        Object[] result = new Object[1];
+        JavaBufferPool.plannedIteration("key", () -> modelIteration(() -> {
+            result[0] = a.add(1.0).mul(b.add(1.0).reshape(10, 10).matmul(a)).toDoubles();
+            return emptyList();
+        }));
+        assertEqualsMatrix(a.add(1.0).mul(b.add(1.0).reshape(10, 10).matmul(a)).toDoubles(), result[0]);
+        assertEquals(1, JavaBufferPool.getStats().captures);
+
+        JavaBufferPool.plannedIteration("key", () -> modelIteration(() -> {
+            a.add(1.0).mul(2.0);
+            return emptyList();
+        }));
+        assertEquals(2, JavaBufferPool.getStats().captures);
+    }
+
+    @Test
+    public void keptBufferIsNotReplayedWhileInUse() {
+        JavaArray a = random(10, 20);
+        JavaArray[] kept = new JavaArray[2];
+
+        for (int i = 0; i < 2; i++) {
+            int iteration = i;
+            JavaBufferPool.plannedIteration("key", () -> modelIteration(() -> {
+                kept[iteration] = a.mul(iteration + 2.0).add(1.0);
+                return iteration == 0 ? emptyList() : singletonList(kept[iteration]);
+            }));
+        }
+        JavaBufferPool.plannedIteration("key", () -> modelIteration(() -> {
+            a.mul(2.0).add(1.0);
+            return emptyList();
+        }));
+
+        assertEqualsMatrix(a.mul(3.0).add(1.0).toDoubles(), kept[1].toDoubles());
+    }
+
+    @Test
+    public void slotsAreSharedByArraysNotAliveAtTheSameTime() {
+        BufferPlan.Recorder recorder = new BufferPlan.Recorder();
+        int a = recorder.allocated(100);
+        int b = recorder.allocated(100);
+        recorder.released(a);
+        int c = recorder.allocated(100);
+        recorder.allocated(100); // kept after the iteration
+        recorder.released(b);
+        recorder.released(c);
+
+        BufferPlan plan = recorder.toPlan();
+        assertEquals(300, plan.plannedDoubles());
+        assertEquals(200, plan.slotDoubles());
+    }
+
+    @Test
+    public void clearDropsPlans() {
+        JavaArray a = random(10, 20);
+        Runnable iteration = () -> modelIteration(() -> {
+            a.add(1.0);
+            return emptyList();
+        });
+
+        JavaBufferPool.plannedIteration("key", iteration);
+        JavaBufferPool.clear();
+        JavaBufferPool.plannedIteration("key", iteration);
+
+        JavaBufferPool.Stats stats = JavaBufferPool.getStats();
+        assertEquals(2, stats.captures);
+        assertEquals(0, stats.replayed);
+    }
+
+    @Test
+    public void freeListsAreLimitedAndCanBeCleared() {
+        JavaArray a = random(200, 200);
+        long limit = 1024 * 1024 / Double.BYTES;
+        JavaBufferPool.setMaxFreeMegabytes(1);
+
+        modelIteration(() -> {
+            a.add(1.0).add(2.0).add(3.0).add(4.0);
+            return emptyList();
+        });
+        assertEquals(3 * a.shape.size, JavaBufferPool.getStats().freeDoubles);
+        assertTrue(JavaBufferPool.getStats().freeDoubles <= limit);
+
+        JavaBufferPool.setMaxFreeMegabytes(0);
+        assertEquals(0, JavaBufferPool.getStats().freeDoubles);
+
+        JavaBufferPool.setMaxFreeMegabytes(1);
+        modelIteration(() -> {
+            a.add(1.0);
+            return emptyList();
+        });
+        assertEquals(a.shape.size, JavaBufferPool.getStats().freeDoubles);
+        JavaBufferPool.clear();
+        assertEquals(0, JavaBufferPool.getStats().freeDoubles);
+    }
+
+    @Test
+    public void returnedViewKeepsBuffer() {
+        JavaArray a = random(10, 20);
+        JavaArray[] kept = new JavaArray[1];
+
+        modelIteration(() -> {
+            kept[0] = a.mul(2.0).transpose();
+            return singletonList(kept[0]);
+        });
+        modelIteration(() -> {
+            a.mul(3.0).add(1.0);
+            return emptyList();
+        });
+
+        assertEqualsMatrix(a.mul(2.0).transpose().toDoubles(), kept[0].toDoubles());
+    }
+
+    @Test
+    public void poisonDetectsUseAfterDispose() {
+        JavaBufferPool.setMode(JavaBufferPool.Mode.POISON);
+        JavaArray a = random(10, 20);
+        JavaArray[] leaked = new JavaArray[1];
+
+        modelIteration(() -> {
+            leaked[0] = a.add(1.0);
+            return emptyList();
+        });
+
+        assertTrue(Double.isNaN(leaked[0].dataAt(0, 0)));
+
+        leaked[0].getInternalData()[0] = 1.0;
+        RuntimeException e = assertThrows(RuntimeException.class, () -> modelIteration(() -> {
+            a.add(1.0);
+            return emptyList();
+        }));
+        assertEquals(IllegalStateException.class, e.getCause().getClass());
+    }
+
+    @Test
+    public void backwardReleasesIntermediateGradients() {
+        JavaBufferPool.setMode(JavaBufferPool.Mode.POISON);
+        Tensor x = new Tensor(random(10, 20));
+        Tensor[] intermediates = new Tensor[4];
+
+        modelIteration(() -> {
+            Tensor y = x;
+            for (int i = 0; i < intermediates.length; i++) {
+                y = Ops.sqr(Ops.add(y, 0.1));
+                intermediates[i] = y;
+            }
+            Ops.sum(y).backward();
+            return singletonList(x.getGradient());
+        });
+
+        for (Tensor t : intermediates) {
+            assertNull(t.getGradient());
+        }
+        assertTrue(JavaBufferPool.getStats().hits > 0);
+
+        Tensor expected = new Tensor(x.getVals());
+        Tensor y = expected;
+        for (int i = 0; i < intermediates.length; i++) {
+            y = Ops.sqr(Ops.add(y, 0.1));
+        }
+        Ops.sum(y).backward();
+        assertEqualsMatrix(expected.getGradient().toDoubles(), x.getGradient().toDoubles());
+    }
+
+    @Test
+    public void backwardThroughReshapeViews() {
+        JavaBufferPool.setMode(JavaBufferPool.Mode.POISON);
+        Tensor x = new Tensor(random(4, 5, 6));
+        Tensor w = new Tensor(random(30, 3));
+
+        modelIteration(() -> {
+            viewsGraph(x, w).backward();
+            return asList(x.getGradient(), w.getGradient());
+        });
+
+        Tensor expectedX = new Tensor(x.getVals());
+        Tensor expectedW = new Tensor(w.getVals());
+        viewsGraph(expectedX, expectedW).backward();
+        assertEqualsMatrix(expectedX.getGradient().toDoubles(), x.getGradient().toDoubles());
+        assertEqualsMatrix(expectedW.getGradient().toDoubles(), w.getGradient().toDoubles());
+    }
+
+    /**
+     * Both flatten() and reshape() pass a view of their gradient on to a parent that is released after them.
+     */
+    private static Tensor viewsGraph(Tensor x, Tensor w) {
+        Tensor h = Ops.sqr(Ops.add(x, 0.1));
+        Tensor flat = Ops.flatten(Ops.reshape(h, 4, 6, 5));
+        return Ops.sum(Ops.sqr(Ops.matmul(flat, w)));
+    }
+
+    @Test
+    public void trainingIsUnchangedInPoisonMode() {
+        JavaBufferPool.setMode(JavaBufferPool.Mode.OFF);
+        List<Object> expected = train();
+
+        JavaBufferPool.setMode(JavaBufferPool.Mode.POISON);
+        List<Object> actual = train();
+
+        assertTrue(JavaBufferPool.getStats().hits > 0);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEqualsMatrix(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void trainingIsUnchangedWithPlans() {
+        JavaBufferPool.setMode(JavaBufferPool.Mode.OFF);
+        List<Object> expected = train();
+
+        JavaBufferPool.setMode(JavaBufferPool.Mode.POISON);
+        List<Object> actual = trainTinyModel(new SGD(fixedLearningRate(0.1)), true);
+
+        assertTrue(JavaBufferPool.getStats().replayed > 0);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEqualsMatrix(expected.get(i), actual.get(i));
+        }
+    }
+
+    private static List<Object> train() {
+        return trainTinyModel(new SGD(fixedLearningRate(0.1)));
+    }
+}
@@ -0,0 +1,185 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.Comparison;
+import com.codeberry.tadlib.array.DType;
+import com.codeberry.tadlib.array.DTypeMismatch;
+import com.codeberry.tadlib.array.NDArray;
+import com.codeberry.tadlib.provider.ProviderStore;
+import com.codeberry.tadlib.tensor.Ops;
+import com.codeberry.tadlib.tensor.Tensor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static com.codeberry.tadlib.provider.java.JavaProvider.ThreadMode.MULTI_THREADED;
+import static com.codeberry.tadlib.tensor.Tensor.tensor;
+import static com.codeberry.tadlib.util.MatrixTestUtils.assertEqualsMatrix;
+import static org.junit.jupiter.api.Assertions.*;
+
+class JavaFloatArrayTest extends JavaArrayTestBase {
+    private static final double FLOAT_ERR_ASPECT = 1e-6;
+
+    @AfterEach
+    public void reset() {
+        ProviderStore.setProvider(new JavaProvider());
+    }
+
+    @Test
+    public void providerCreatesFloatArrays() {
+        ProviderStore.setProvider(new JavaProvider(MULTI_THREADED, DType.FLOAT32));
+
+        assertEquals(DType.FLOAT32, ProviderStore.getDType());
+        assertEquals(DType.FLOAT32, ProviderStore.array(1.0).getDType());
+        assertEquals(DType.FLOAT32, ProviderStore.array(new double[]{1, 2}).getDType());
+        assertEquals(DType.FLOAT32, ProviderStore.arrayFillWith(ProviderStore.shape(2, 3), 1.0).getDType());
+
+        ProviderStore.setProvider(new JavaProvider());
+        assertEquals(DType.FLOAT32, ProviderStore.array(new float[]{1, 2}, ProviderStore.shape(2)).getDType());
+    }
+
+    @Test
+    public void elementWiseOnViews() {
+        JavaArray a = random(3, 4, 5);
+        JavaArray b = random(4, 1);
+
+        assertSameAsDouble(a.transpose(2, 0, 1).add(b.transpose(1, 0)),
+                narrow(a).transpose(2, 0, 1).add(narrow(b).transpose(1, 0)));
+        assertSameAsDouble(a.mul(b.transpose(1, 0).reshape(1, 4, 1)),
+                narrow(a).mul(narrow(b).transpose(1, 0).reshape(1, 4, 1)));
+        assertSameAsDouble(a.div(a.sqr().add(1.0)), narrow(a).div(narrow(a).sqr().add(1.0)));
+        assertSameAsDouble(a.rot180(0, 1).normalOrderedCopy(), narrow(a).rot180(0, 1).normalOrderedCopy());
+        assertSameAsDouble(a.clip(-0.5, null), narrow(a).clip(-0.5, null));
+        assertSameAsDouble(a.relu(0.1).createMask(), narrow(a).relu(0.1).createMask());
+        assertSameAsDouble(a.sum(), narrow(a).sum());
+    }
+
+    @Test
+    public void matmul() {
+        JavaArray a = random(3, 5, 6);
+        JavaArray b = random(6, 4);
+        JavaArray v = random(6);
+
+        assertSameAsDouble(a.matmul(b), narrow(a).matmul(narrow(b)));
+        assertSameAsDouble(a.matmul(a.transpose(0, 2, 1)), narrow(a).matmul(narrow(a).transpose(0, 2, 1)));
+        assertSameAsDouble(b.transpose().matmul(a.transpose(2, 1, 0).reshape(6, 15)),
+                narrow(b).transpose().matmul(narrow(a).transpose(2, 1, 0).reshape(6, 15)));
+        assertSameAsDouble(a.matmul(v), narrow(a).matmul(narrow(v)));
+        assertSameAsDouble(v.matmul(b), narrow(v).matmul(narrow(b)));
+    }
+
+    @Test
+    public void conv2d() {
+        JavaArray input = random(2, 8, 8, 3);
+        JavaArray filter = random(3, 3, 3, 4);
+        JavaArray evenFilter = random(2, 2, 3, 4);
+        JavaArray grad = random(2, 8, 8, 4);
+
+        assertSameAsDouble(input.conv2d(filter), narrow(input).conv2d(narrow(filter)));
+        assertSameAsDouble(input.conv2d(filter, -2, -1, 5, 7), narrow(input).conv2d(narrow(filter), -2, -1, 5, 7));
+        assertSameAsDouble(input.transpose(0, 2, 1, 3).conv2d(evenFilter),
+                narrow(input).transpose(0, 2, 1, 3).conv2d(narrow(evenFilter)));
+        assertSameAsDouble(grad.calcConv2dFilterGradient(input, filter),
+                narrow(grad).calcConv2dFilterGradient(narrow(input), narrow(filter)));
+        assertSameAsDouble(grad.calcConv2dInputGradient(filter), narrow(grad).calcConv2dInputGradient(narrow(filter)));
+        assertSameAsDouble(grad.calcConv2dInputGradient(evenFilter),
+                narrow(grad).calcConv2dInputGradient(narrow(evenFilter)));
+    }
+
+    @Test
+    public void poolingAndSoftmax() {
+        JavaArray input = random(2, 8, 8, 3);
+        JavaArray m = random(5, 6);
+        JavaIntArray labels = new JavaIntArray(new int[]{3, 0, 5, 1, 1}, new JavaShape(5));
+
+        assertSameAsDouble(m.softmax(), narrow(m).softmax());
+        assertSameAsDouble(m.transpose().softmax(), narrow(m).transpose().softmax());
+        NDArray.SoftmaxCrossEntropyResult expected = m.softmaxCrossEntropy(labels);
+        NDArray.SoftmaxCrossEntropyResult actual = narrow(m).softmaxCrossEntropy(labels);
+        assertSameAsDouble(expected.getLoss(), actual.getLoss());
+        assertSameAsDouble(expected.getGradient(), actual.getGradient());
+
+        for (JavaArray in : new JavaArray[]{input, input.transpose(0, 2, 1, 3)}) {
+            NDArray.MaxPool2dResult pooled = narrow(in).maxPool2d(3);
+            JavaArray.JavaMaxPool2dResult expectedPooled = in.maxPool2d(3);
+            assertSameAsDouble(expectedPooled.getOutput(), pooled.getOutput());
+
+            JavaArray grad = random(2, 3, 3, 3);
+            assertSameAsDouble(grad.maxPool2dGrad(expectedPooled), narrow(grad).maxPool2dGrad(pooled));
+        }
+    }
+
+    @Test
+    public void compareAndSumOverAxes() {
+        JavaArray a = random(4, 5, 6);
+        JavaArray b = random(5, 1);
+        JavaIntArray ints = new JavaIntArray(new int[]{0, 1, 0, -1, 2, 0}, new JavaShape(6));
+
+        assertSameAsDouble(a.compare(b, Comparison.greaterThan(), 1, 0),
+                narrow(a).compare(narrow(b), Comparison.greaterThan(), 1, 0));
+        assertSameAsDouble(a.transpose().compare(ints.reshape(6, 1, 1), Comparison.lessThanOrEquals(), 2, -1),
+                narrow(a).transpose().compare(ints.reshape(6, 1, 1), Comparison.lessThanOrEquals(), 2, -1));
+
+        for (Boolean[] axes : new Boolean[][]{{true, false, true}, {false, true, false}, {true, true, true}}) {
+            assertSameAsDouble(a.sum(axes, NDArray.DimKeepRemove.KEEP_DIM),
+                    narrow(a).sum(axes, NDArray.DimKeepRemove.KEEP_DIM));
+            assertSameAsDouble(a.transpose(2, 0, 1).sum(axes, NDArray.DimKeepRemove.REMOVE_DIM),
+                    narrow(a).transpose(2, 0, 1).sum(axes, NDArray.DimKeepRemove.REMOVE_DIM));
+        }
+    }
+
+    @Test
+    public void internalDataIsNotWidened() {
+        assertThrows(UnsupportedOperationException.class, () -> narrow(random(2, 3)).getInternalData());
+    }
+
+    @Test
+    public void mixedTypesFail() {
+        JavaArray a = random(2, 3);
+        NDArray f = narrow(a);
+
+        assertThrows(DTypeMismatch.class, () -> a.add(f));
+        assertThrows(DTypeMismatch.class, () -> f.mul(a));
+        assertThrows(DTypeMismatch.class, () -> f.matmul(a.transpose()));
+
+        NDArray widened = f.asType(DType.FLOAT64);
+        assertEquals(DType.FLOAT64, widened.getDType());
+        assertEqualsMatrix(a.add(a).getInternalData(), widened.add(a).getInternalData(), FLOAT_ERR_ASPECT);
+        assertSame(f, f.asType(DType.FLOAT32));
+    }
+
+    @Test
+    public void trainingGradients() {
+        JavaArray input = random(2, 8, 8, 3);
+        JavaArray filter = random(3, 3, 3, 4);
+        double[][] doubleGrads = conv2dGradients(DType.FLOAT64, input, filter);
+        double[][] floatGrads = conv2dGradients(DType.FLOAT32, input, filter);
+
+        assertEqualsMatrix(doubleGrads[0], floatGrads[0], FLOAT_ERR_ASPECT);
+        assertEqualsMatrix(doubleGrads[1], floatGrads[1], FLOAT_ERR_ASPECT);
+    }
+
+    private static double[][] conv2dGradients(DType dType, JavaArray inputVals, JavaArray filterVals) {
+        ProviderStore.setProvider(new JavaProvider(MULTI_THREADED, dType));
+        Tensor input = tensor(ProviderStore.array(inputVals.getInternalData(), ProviderStore.shape(2, 8, 8, 3)));
+        Tensor filter = tensor(ProviderStore.array(filterVals.getInternalData(), ProviderStore.shape(3, 3, 3, 4)));
+
+        Tensor out = Ops.sum(Ops.maxpool2d(Ops.relu(Ops.conv2d(input, filter)), 2));
+        out.backward();
+
+        assertEquals(dType, input.getGradient().getDType());
+        return new double[][]{
+                input.getGradient().asType(DType.FLOAT64).getInternalData(),
+                filter.getGradient().asType(DType.FLOAT64).getInternalData()
+        };
+    }
+
+    private static void assertSameAsDouble(NDArray expected, NDArray actual) {
+        assertEquals(DType.FLOAT32, actual.getDType());
+        assertEquals(expected.getShape(), actual.getShape());
+        assertEqualsMatrix(((JavaArray) expected).normalOrderedCopy().getInternalData(),
+                actual.asType(DType.FLOAT64).normalOrderedCopy().getInternalData(), FLOAT_ERR_ASPECT);
+    }
+
+    private static JavaFloatArray narrow(JavaArray array) {
+        return JavaFloatArray.narrow(array);
+    }
+}
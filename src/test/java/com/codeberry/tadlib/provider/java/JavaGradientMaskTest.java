@@ -0,0 +1,93 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.NDArray;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static com.codeberry.tadlib.util.MatrixTestUtils.assertEqualsMatrix;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JavaGradientMaskTest extends JavaArrayTestBase {
+    @Test
+    public void reluMask() {
+        JavaArray a = random(7, 130);
+        JavaArray grad = random(130, 7).mul(3.0);
+
+        NDArray.ReluResult result = a.relu(0.1);
+        NDArray mask = result.createMask();
+        for (int i = 0; i < 7; i++) {
+            for (int j = 0; j < 130; j++) {
+                assertEquals(a.dataAt(i, j) > 0 ? 1.0 : 0.1, mask.dataAt(i, j), 0.0);
+            }
+        }
+
+        NDArray transposedGrad = grad.transpose();
+        assertEqualsMatrix(transposedGrad.mul(mask).toDoubles(), result.maskGradient(transposedGrad).toDoubles());
+        assertEqualsMatrix(grad.transpose().mul(2.0).mul(mask).toDoubles(),
+                result.maskGradient(random(1, 130).mul(0.0).add(transposedGrad.mul(2.0))).toDoubles());
+    }
+
+    @Test
+    public void dropOutMask() {
+        JavaArray a = random(5, 70);
+        JavaArray grad = random(5, 70);
+
+        NDArray.DropOutResult result = a.dropOut(new Random(3), 0.7);
+        NDArray mask = result.createMask();
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 70; j++) {
+                double m = mask.dataAt(i, j);
+                assertEquals(m == 0 ? 0 : a.dataAt(i, j) / 0.7, result.getOutput().dataAt(i, j), 1e-12);
+            }
+        }
+
+        assertEqualsMatrix(grad.mul(mask).toDoubles(), result.maskGradient(grad).toDoubles());
+    }
+
+    @Test
+    public void maxPoolGradient() {
+        for (JavaArray input : new JavaArray[]{
+                random(2, 5, 7, 3),
+                (JavaArray) random(2, 6, 6, 4).rot180(1, 2),
+                random(1, 20, 19, 2)}) {
+            for (int size : new int[]{2, 3, 17}) {
+                JavaArray.JavaMaxPool2dResult result = input.maxPool2d(size);
+                JavaArray grad = random(result.getOutput().getShape().toDimArray());
+
+                assertEqualsMatrix(naiveMaxPoolGrad(input, grad, size).toDoubles(),
+                        grad.maxPool2dGrad(result).toDoubles());
+            }
+        }
+    }
+
+    private static JavaArray naiveMaxPoolGrad(JavaArray input, JavaArray grad, int size) {
+        int[] dims = input.shape.toDimArray();
+        JavaShape shape = new JavaShape(dims);
+        double[] out = new double[shape.size];
+        int[] outDims = grad.shape.toDimArray();
+        for (int n = 0; n < outDims[0]; n++) {
+            for (int y = 0; y < outDims[1]; y++) {
+                for (int x = 0; x < outDims[2]; x++) {
+                    for (int c = 0; c < outDims[3]; c++) {
+                        int maxY = -1;
+                        int maxX = -1;
+                        double max = Double.NEGATIVE_INFINITY;
+                        for (int inY = y * size; inY < Math.min(y * size + size, dims[1]); inY++) {
+                            for (int inX = x * size; inX < Math.min(x * size + size, dims[2]); inX++) {
+                                double v = input.dataAt(n, inY, inX, c);
+                                if (v > max) {
+                                    max = v;
+                                    maxY = inY;
+                                    maxX = inX;
+                                }
+                            }
+                        }
+                        out[shape.calcDataIndex(n, maxY, maxX, c)] = grad.dataAt(n, y, x, c);
+                    }
+                }
+            }
+        }
+        return new JavaArray(out, shape);
+    }
+}
@@ -0,0 +1,105 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.DimensionMismatch;
+import com.codeberry.tadlib.array.NDArray;
+import org.junit.jupiter.api.Test;
+
+import static com.codeberry.tadlib.util.MatrixTestUtils.assertEqualsMatrix;
+import static org.junit.jupiter.api.Assertions.*;
+
+class JavaInPlaceOpsTest extends JavaArrayTestBase {
+    @Test
+    public void inPlaceMatchesAllocating() {
+        JavaArray a = random(4, 5);
+        JavaArray b = random(1, 5).mul(3.0);
+        JavaArray expectedAdd = a.add(b);
+        JavaArray expectedMul = a.add(b).mul(b);
+
+        JavaArray target = a.normalOrderedCopy();
+        NDArray result = target.addInPlace(b);
+        assertSame(target, result);
+        assertEqualsMatrix(expectedAdd.toDoubles(), target.toDoubles());
+
+        target.mulInPlace(b);
+        assertEqualsMatrix(expectedMul.toDoubles(), target.toDoubles());
+
+        target.mulInPlace(0.5);
+        assertEqualsMatrix(expectedMul.mul(0.5).toDoubles(), target.toDoubles());
+    }
+
+    @Test
+    public void writesThroughViews() {
+        JavaArray a = random(3, 4);
+        JavaArray b = random(4, 3);
+        JavaArray expected = a.add(b.transpose()).transpose();
+
+        JavaArray copy = b.mul(0.0).add(a.transpose());
+        NDArray view = copy.transpose();
+        view.addInPlace(b.transpose());
+
+        assertEqualsMatrix(expected.toDoubles(), copy.toDoubles());
+    }
+
+    @Test
+    public void aliasedOperands() {
+        JavaArray a = random(5, 5);
+        JavaArray expected = a.add(a.transpose());
+
+        JavaArray target = a.normalOrderedCopy();
+        target.addInPlace(target.transpose());
+
+        assertEqualsMatrix(expected.toDoubles(), target.toDoubles());
+    }
+
+    @Test
+    public void outParameter() {
+        JavaArray a = random(2, 3);
+        JavaArray b = random(3);
+        JavaArray target = new JavaArray(new double[6], new JavaShape(2, 3));
+
+        assertSame(target, a.mulInto(b, target));
+        assertEqualsMatrix(a.mul(b).toDoubles(), target.toDoubles());
+
+        a.addInto(b, target);
+        assertEqualsMatrix(a.add(b).toDoubles(), target.toDoubles());
+
+        assertThrows(DimensionMismatch.class, () -> a.addInto(b, random(3, 2)));
+        assertThrows(DimensionMismatch.class, () -> b.addInPlace(a));
+    }
+
+    @Test
+    public void axpy() {
+        JavaArray y = random(6, 7);
+        JavaArray x = random(6, 7).mul(2.0);
+        JavaArray expected = y.add(x.mul(-0.25));
+
+        JavaArray target = y.normalOrderedCopy();
+        target.axpy(-0.25, x);
+        assertEqualsMatrix(expected.toDoubles(), target.toDoubles());
+
+        JavaArray viewTarget = y.transpose().normalOrderedCopy();
+        viewTarget.transpose().axpy(-0.25, x);
+        assertEqualsMatrix(expected.transpose().toDoubles(), viewTarget.toDoubles());
+    }
+
+    @Test
+    public void invalidatesCachedWinogradFilter() {
+        JavaArray input = random(1, 6, 6, 8);
+        JavaArray filter = random(3, 3, 8, 8);
+        assertTrue(WinogradConv2d.isSupported(filter.shape));
+
+        JavaArray before = filter.normalOrderedCopy();
+        input.conv2d(filter);
+        filter.mulInPlace(2.0);
+
+        assertEqualsMatrix(input.conv2d(before.mul(2.0)).toDoubles(), input.conv2d(filter).toDoubles());
+
+        JavaArray step = random(3, 3, 8, 8);
+        filter.axpy(-0.5, step);
+        assertEqualsMatrix(input.conv2d(before.mul(2.0).add(step.mul(-0.5))).toDoubles(),
+                input.conv2d(filter).toDoubles());
+
+        before.addInto(step, filter);
+        assertEqualsMatrix(input.conv2d(before.add(step)).toDoubles(), input.conv2d(filter).toDoubles());
+    }
+}
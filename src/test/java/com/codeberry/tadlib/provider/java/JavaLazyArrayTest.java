@@ -0,0 +1,121 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.NDArray;
+import com.codeberry.tadlib.nn.model.optimizer.RMSProp;
+import com.codeberry.tadlib.provider.ProviderStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static com.codeberry.tadlib.memorymanagement.DisposalRegister.modelIteration;
+import static com.codeberry.tadlib.nn.model.optimizer.FixedLearningRate.fixedLearningRate;
+import static com.codeberry.tadlib.provider.java.JavaArrayTestUtils.trainTinyModel;
+import static com.codeberry.tadlib.util.MatrixTestUtils.assertEqualsMatrix;
+import static java.util.Collections.emptyList;
+import static org.junit.jupiter.api.Assertions.*;
+
+class JavaLazyArrayTest extends JavaArrayTestBase {
+    @AfterEach
+    public void reset() {
+        JavaLazyArray.setEnabled(false);
+        JavaBufferPool.setMode(JavaBufferPool.Mode.OFF);
+    }
+
+    @Test
+    public void fusedMatchesEager() {
+        JavaArray a = random(3, 4, 5);
+        JavaArray b = random(4, 1);
+        JavaArray c = random(5, 4, 3);
+
+        NDArray expected = a.mul(2.0).add(b).sqr().add(1.0).sqrt()
+                .div(c.transpose(2, 1, 0).sqr().add(0.5))
+                .sub(b)
+                .clip(0.1, null).pow(1.5).log().negate();
+
+        NDArray lazyA = lazy(a);
+        NDArray actual = lazyA.mul(2.0).add(lazy(b)).sqr().add(1.0).sqrt()
+                .div(lazy(c).transpose(2, 1, 0).sqr().add(0.5))
+                .sub(b)
+                .clip(0.1, null).pow(1.5).log().negate();
+
+        assertEquals(expected.getShape(), actual.getShape());
+        assertEqualsMatrix(expected.toDoubles(), actual.toDoubles());
+    }
+
+    @Test
+    public void writesOnlyTheOutput() {
+        JavaBufferPool.setMode(JavaBufferPool.Mode.ON);
+        NDArray a = lazy(random(10, 20));
+        NDArray b = lazy(random(20));
+
+        modelIteration(() -> {
+            JavaBufferPool.resetStats();
+            NDArray chain = a.mul(0.9).add(b.sqr().mul(0.1)).div(b.add(3.0));
+            assertEquals(0, JavaBufferPool.getStats().misses);
+
+            chain.toDoubles();
+            assertEquals(1, JavaBufferPool.getStats().misses);
+            return emptyList();
+        });
+    }
+
+    @Test
+    public void sharedAndLongExpressions() {
+        JavaArray a = random(7, 9);
+
+        NDArray x = lazy(a).mul(3.0).add(1.0);
+        NDArray squared = x.mul(x);
+        assertEqualsMatrix(a.mul(3.0).add(1.0).sqr().toDoubles(), squared.toDoubles());
+
+        NDArray expected = a;
+        NDArray actual = lazy(a);
+        for (int i = 0; i < 3 * JavaLazyArray.MAX_NODES; i++) {
+            expected = expected.add(expected.mul(0.01));
+            actual = actual.add(actual.mul(0.01));
+        }
+        assertEqualsMatrix(expected.toDoubles(), actual.toDoubles());
+    }
+
+    @Test
+    public void otherOpsEvaluate() {
+        JavaArray a = random(2, 6, 6, 3);
+        JavaArray filter = random(3, 3, 3, 2);
+
+        NDArray lazyInput = lazy(a).mul(0.5).add(0.1);
+        NDArray expectedInput = a.mul(0.5).add(0.1);
+
+        assertEqualsMatrix(expectedInput.conv2d(filter).toDoubles(), lazyInput.conv2d(lazy(filter)).toDoubles());
+        assertEquals(expectedInput.sum().dataAt(), lazyInput.sum().dataAt(), 1e-9);
+
+        NDArray.MaxPool2dResult expectedPool = expectedInput.maxPool2d(2);
+        NDArray.MaxPool2dResult actualPool = lazyInput.maxPool2d(2);
+        assertTrue(actualPool.getOutput() instanceof JavaLazyArray);
+        JavaArray poolGrad = random(2, 3, 3, 3);
+        NDArray grad = lazy(poolGrad).mul(2.0);
+        assertEqualsMatrix(poolGrad.mul(2.0).maxPool2dGrad(expectedPool).toDoubles(),
+                grad.maxPool2dGrad(actualPool).toDoubles());
+    }
+
+    @Test
+    public void trainingIsUnchanged() {
+        List<Object> expected = train();
+
+        JavaLazyArray.setEnabled(true);
+        JavaBufferPool.setMode(JavaBufferPool.Mode.POISON);
+        ProviderStore.setProvider(new JavaProvider());
+        List<Object> actual = train();
+
+        for (int i = 0; i < expected.size(); i++) {
+            assertEqualsMatrix(expected.get(i), actual.get(i));
+        }
+    }
+
+    private static List<Object> train() {
+        return trainTinyModel(new RMSProp(fixedLearningRate(0.01)));
+    }
+
+    private static NDArray lazy(JavaArray array) {
+        return JavaLazyArray.wrap(array);
+    }
+}
@@ -0,0 +1,84 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.NDArray;
+import org.junit.jupiter.api.Test;
+
+import static com.codeberry.tadlib.util.MatrixTestUtils.assertEqualsMatrix;
+import static org.junit.jupiter.api.Assertions.*;
+
+class JavaOffHeapArrayTest extends JavaArrayTestBase {
+    private static final int SMALL_SEGMENT_SHIFT = 5;
+
+    @Test
+    public void elementWiseOpsStayOffHeap() {
+        JavaArray a = random(7, 5, 11);
+        JavaArray b = random(7, 5, 11).add(3.0);
+        JavaOffHeapArray offA = copy(a);
+        JavaOffHeapArray offB = copy(b);
+
+        assertEqualsMatrix(a.add(b).toDoubles(), offA.add(offB).toDoubles());
+        assertEqualsMatrix(a.mul(b).toDoubles(), offA.mul(b).toDoubles());
+        assertEqualsMatrix(a.div(b).toDoubles(), offA.div(offB).toDoubles());
+        assertEqualsMatrix(a.mul(2.5).add(-1.0).toDoubles(), offA.mul(2.5).add(-1.0).toDoubles());
+        assertEqualsMatrix(b.sqr().sqrt().log().toDoubles(), offB.sqr().sqrt().log().toDoubles());
+        assertEqualsMatrix(a.clip(-0.5, null).toDoubles(), offA.clip(-0.5, null).toDoubles());
+        assertEquals((double) a.sum().toDoubles(), (double) offA.sum().toDoubles(), 1e-12);
+
+        assertTrue(offA.add(offB) instanceof JavaOffHeapArray);
+        assertTrue(offA.negate() instanceof JavaOffHeapArray);
+        assertTrue(offA.reshape(35, 11) instanceof JavaOffHeapArray);
+
+        JavaArray bias = random(11);
+        assertEqualsMatrix(a.add(bias).toDoubles(), offA.add(bias).toDoubles());
+        JavaArray right = random(11, 3);
+        assertEqualsMatrix(a.reshape(35, 11).matmul(right).toDoubles(),
+                offA.reshape(35, 11).matmul(right).toDoubles());
+    }
+
+    @Test
+    public void subBatch() {
+        JavaArray a = random(10, 3, 4);
+        JavaOffHeapArray offA = copy(a);
+
+        for (int batchId = 0; batchId < 4; batchId++) {
+            NDArray batch = offA.subBatch(batchId, 3);
+            assertTrue(batch instanceof JavaArray);
+            assertEqualsMatrix(a.subBatch(batchId, 3).toDoubles(), batch.toDoubles());
+        }
+        assertEquals(a.dataAt(9, 2, 1), offA.dataAt(9, 2, 1));
+    }
+
+    @Test
+    public void putAndGetAcrossSegments() {
+        OffHeapDoubles doubles = new OffHeapDoubles(100, SMALL_SEGMENT_SHIFT);
+        double[] src = new double[70];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = i + 1;
+        }
+        doubles.put(20, src, 0, src.length);
+
+        double[] dst = new double[100];
+        doubles.get(0, dst, 0, 100);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i >= 20 && i < 90 ? i - 19 : 0.0, dst[i]);
+            assertEquals(dst[i], doubles.get(i));
+        }
+        assertThrows(IndexOutOfBoundsException.class, () -> doubles.put(40, src, 0, src.length));
+    }
+
+    @Test
+    public void longShapes() {
+        JavaShape shape = new JavaShape(4, 65536, 65536);
+
+        assertEquals(4L << 32, shape.getSize());
+        assertEquals(-1, shape.size);
+        assertEquals((3L << 32) + 65536 + 2, shape.calcLongDataIndex(3, 1, 2));
+        assertEquals(3L << 32, shape.mulDims(1, 3) * 3);
+    }
+
+    private static JavaOffHeapArray copy(JavaArray array) {
+        JavaOffHeapArray copy = JavaOffHeapArray.allocate(new JavaShape(array.shape.toDimArray()), SMALL_SEGMENT_SHIFT);
+        copy.put(0, array.getInternalData(), 0, array.shape.size);
+        return copy;
+    }
+}
@@ -0,0 +1,101 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.NDArray;
+import com.codeberry.tadlib.provider.ProviderStore;
+import com.codeberry.tadlib.tensor.Ops;
+import com.codeberry.tadlib.tensor.Tensor;
+import org.junit.jupiter.api.Test;
+
+import static com.codeberry.tadlib.util.MatrixTestUtils.assertEqualsMatrix;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JavaSparseArrayTest extends JavaArrayTestBase {
+    @Test
+    public void matmul() {
+        JavaArray dense = randomSparse(40, 30);
+        JavaSparseArray sparse = JavaSparseArray.fromDense(dense);
+        assertTrue(sparse.getNonZeroCount() < dense.shape.size / 2);
+
+        JavaArray right = random(30, 7);
+        assertEqualsMatrix(dense.matmul(right).toDoubles(), sparse.matmul(right).toDoubles());
+        JavaArray vector = random(30);
+        assertEqualsMatrix(dense.matmul(vector).toDoubles(), sparse.matmul(vector).toDoubles());
+
+        JavaArray left = randomSparse(9, 40);
+        assertEqualsMatrix(left.matmul(dense).toDoubles(), left.matmul(sparse).toDoubles());
+        JavaArray leftVector = random(40);
+        assertEqualsMatrix(leftVector.matmul(dense).toDoubles(), leftVector.matmul(sparse).toDoubles());
+    }
+
+    @Test
+    public void sparseOps() {
+        JavaArray dense = randomSparse(6, 5, 8);
+        JavaSparseArray sparse = JavaSparseArray.fromDense(dense);
+        JavaArray matrix = randomSparse(12, 9);
+        JavaSparseArray sparseMatrix = JavaSparseArray.fromDense(matrix);
+
+        assertEqualsMatrix(matrix.transpose().toDoubles(), sparseMatrix.transpose().toDoubles());
+        assertEqualsMatrix(dense.reshape(30, 8).toDoubles(), sparse.reshape(30, 8).toDoubles());
+        assertEqualsMatrix(dense.subArray(2, 2 * 40, 4, 4 * 40).toDoubles(),
+                sparse.subArray(2, 2 * 40, 4, 4 * 40).toDoubles());
+
+        JavaArray other = randomSparse(6, 5, 8).mul(3.0);
+        assertEqualsMatrix(dense.add(other).toDoubles(),
+                sparse.add(JavaSparseArray.fromDense(other)).toDoubles());
+        assertEqualsMatrix(dense.add(other).toDoubles(), sparse.add(other).toDoubles());
+        assertEqualsMatrix(other.add(dense).toDoubles(), other.add(sparse).toDoubles());
+
+        JavaArray bias = random(5, 1);
+        assertEqualsMatrix(dense.mul(bias).toDoubles(), sparse.mul(bias).toDoubles());
+        assertTrue(sparse.mul(bias) instanceof JavaSparseArray);
+        assertEqualsMatrix(bias.mul(dense).toDoubles(), bias.mul(sparse).toDoubles());
+        assertEqualsMatrix(dense.sqr().mul(-2.0).toDoubles(), sparse.sqr().mul(-2.0).toDoubles());
+        assertEquals((double) dense.sum().toDoubles(), (double) sparse.sum().toDoubles(), 1e-12);
+        assertEquals(dense.dataAt(3, 1, 4), sparse.dataAt(3, 1, 4));
+        assertEqualsMatrix(dense.add(1.0).toDoubles(), sparse.add(1.0).toDoubles());
+    }
+
+    @Test
+    public void duplicateCoordinatesAreSummed() {
+        NDArray sparse = ProviderStore.sparseArray(ProviderStore.shape(2, 3),
+                new int[]{5, 1, 5, 0},
+                new double[]{1, 2, 3, 4});
+
+        assertEqualsMatrix(new double[][]{
+                {4, 2, 0},
+                {0, 0, 4}
+        }, sparse.toDoubles());
+    }
+
+    @Test
+    public void matmulGradients() {
+        JavaArray a = randomSparse(8, 6);
+        JavaArray b = randomSparse(6, 4);
+        JavaArray grad = random(8, 4);
+
+        Tensor denseA = new Tensor(a);
+        Tensor denseB = new Tensor(b);
+        Ops.matmul(denseA, denseB).backward(grad);
+
+        Tensor sparseA = new Tensor(JavaSparseArray.fromDense(a));
+        Tensor sparseB = new Tensor(JavaSparseArray.fromDense(b));
+        Tensor y = Ops.matmul(sparseA, sparseB);
+        y.backward(grad);
+
+        assertEqualsMatrix(a.matmul(b).toDoubles(), y.toDoubles());
+        assertEqualsMatrix(denseA.getGradient().toDoubles(), sparseA.getGradient().toDoubles());
+        assertEqualsMatrix(denseB.getGradient().toDoubles(), sparseB.getGradient().toDoubles());
+    }
+
+    private JavaArray randomSparse(int... dims) {
+        JavaArray array = random(dims);
+        double[] data = array.getInternalData();
+        for (int i = 0; i < data.length; i++) {
+            if (rand.nextDouble() < 0.8) {
+                data[i] = 0;
+            }
+        }
+        return array;
+    }
+}
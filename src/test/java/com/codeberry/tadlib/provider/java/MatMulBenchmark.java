@@ -0,0 +1,53 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.provider.ProviderStore;
+
+import java.util.Random;
+import java.util.function.BinaryOperator;
+
+import static com.codeberry.tadlib.provider.java.JavaArrayTestUtils.random;
+import static com.codeberry.tadlib.provider.java.JavaProvider.ThreadMode.SINGLE_THREADED;
+
+/**
+ * Compares the blocked and the unblocked matmul on dense layer sized matrices, in GFLOP/s.
+ * <p>
+ * Run the main method manually, it is not part of the test suite.
+ */
+public class MatMulBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    public static void main(String[] args) {
+        ProviderStore.setProvider(new JavaProvider(SINGLE_THREADED));
+
+        Random rand = new Random(4);
+        int[][] mkn = {
+                {256, 784, 512},
+                {256, 512, 512},
+                {256, 512, 10},
+        };
+        for (int[] dims : mkn) {
+            JavaArray a = random(rand, dims[0], dims[1]);
+            JavaArray b = random(rand, dims[1], dims[2]);
+
+            double unblocked = gflops(a, b, JavaArray::matmulUnblocked);
+            double blocked = gflops(a, b, JavaArray::matmul);
+            System.out.printf("%4d x %4d x %4d: unblocked %6.2f GFLOP/s, blocked %6.2f GFLOP/s (%.1fx)%n",
+                    dims[0], dims[1], dims[2], unblocked, blocked, blocked / unblocked);
+        }
+    }
+
+    private static double gflops(JavaArray a, JavaArray b, BinaryOperator<JavaArray> matmul) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            matmul.apply(a, b);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            matmul.apply(a, b);
+        }
+        long used = System.nanoTime() - start;
+
+        double flops = 2.0 * a.shape.at(-2) * a.shape.at(-1) * b.shape.at(-1) * MEASURED_ROUNDS;
+        return flops / used;
+    }
+}
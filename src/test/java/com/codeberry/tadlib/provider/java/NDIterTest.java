@@ -0,0 +1,74 @@
+package com.codeberry.tadlib.provider.java;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class NDIterTest {
+    @Test
+    public void coalescesContiguousDims() {
+        JavaShape shape = new JavaShape(2, 3, 4);
+        NDIter it = NDIter.iterate(shape.toDimArray(), NDIter.operand(shape.strides(), 0));
+
+        assertEquals(24, it.innerLength());
+        assertEquals(1, it.innerStride(0));
+    }
+
+    @Test
+    public void broadcastDimsHaveZeroStride() {
+        int[] outDims = {2, 3, 4};
+        NDIter it = NDIter.iterate(outDims,
+                NDIter.operand(new JavaShape(outDims).strides(), 0),
+                NDIter.broadcast(new JavaShape(3, 1), outDims));
+
+        List<Integer> offsets = collectOffsets(it, 1);
+
+        assertEquals(List.of(
+                0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+                0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2), offsets);
+    }
+
+    @Test
+    public void sameOffsetsAsCalcDataIndex() {
+        assertSameOffsetsAsCalcDataIndex(new ReorderedJavaShape(new int[]{2, 3, 4}, new int[]{2, 0, 1}));
+        assertSameOffsetsAsCalcDataIndex(new ReorderedJavaShape(new int[]{2, 3, 4, 5}, new int[]{0, 1, 3, 2}));
+        assertSameOffsetsAsCalcDataIndex(new JavaShapeRot180(new JavaShape(3, 4, 2, 5), 0, 1));
+        assertSameOffsetsAsCalcDataIndex(new JavaShape(1, 3, 1, 2));
+    }
+
+    private static void assertSameOffsetsAsCalcDataIndex(JavaShape shape) {
+        int[] dims = new int[shape.dimCount];
+        for (int i = 0; i < dims.length; i++) {
+            dims[i] = shape.at(i);
+        }
+        NDIter it = NDIter.iterate(dims, NDIter.operand(shape.strides(), shape.baseOffset()));
+
+        List<Integer> expected = new ArrayList<>();
+        int[] indices = shape.newIndexArray();
+        for (int i = 0; i < shape.size; i++) {
+            int rest = i;
+            for (int d = dims.length - 1; d >= 0; d--) {
+                indices[d] = rest % dims[d];
+                rest /= dims[d];
+            }
+            expected.add(shape.calcDataIndex(indices));
+        }
+
+        assertEquals(expected, collectOffsets(it, 0));
+    }
+
+    private static List<Integer> collectOffsets(NDIter it, int operand) {
+        List<Integer> offsets = new ArrayList<>();
+        for (; it.hasNext(); it.next()) {
+            int offset = it.offset(operand);
+            for (int i = 0; i < it.innerLength(); i++) {
+                offsets.add(offset);
+                offset += it.innerStride(operand);
+            }
+        }
+        return offsets;
+    }
+}
@@ -0,0 +1,105 @@
+package com.codeberry.tadlib.provider.java;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static com.codeberry.tadlib.array.NDArray.DimKeepRemove.KEEP_DIM;
+import static com.codeberry.tadlib.array.NDArray.DimKeepRemove.REMOVE_DIM;
+import static com.codeberry.tadlib.provider.java.JavaProvider.ThreadMode.MULTI_THREADED;
+import static com.codeberry.tadlib.provider.java.JavaProvider.ThreadMode.SINGLE_THREADED;
+import static com.codeberry.tadlib.util.MatrixTestUtils.assertEqualsMatrix;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SumReductionTest extends JavaArrayTestBase {
+    private static final Boolean[][] AXES = {
+            {true, true, true, false},
+            {false, false, false, true},
+            {true, false, false, false},
+            {false, true, true, false},
+            {true, true, true, true},
+            {false, false, false, false},
+    };
+
+    @AfterEach
+    public void reset() {
+        new JavaProvider(MULTI_THREADED);
+        SumReduction.setSequential(false);
+    }
+
+    @Test
+    public void matchesNaiveSum() {
+        for (JavaArray array : new JavaArray[]{
+                random(2, 3, 4, 5),
+                random(32, 28, 28, 16),
+                random(5, 4, 3, 2000).transpose(3, 1, 2, 0),
+                (JavaArray) random(4, 4, 40, 40).rot180(2, 3)}) {
+            for (Boolean[] axes : AXES) {
+                JavaArray expected = naiveSum(array, axes);
+                assertEqualsMatrix(expected.toDoubles(), array.sum(axes, KEEP_DIM).toDoubles());
+                assertEquals(expected.getShape().getSize(), array.sum(axes, REMOVE_DIM).getShape().getSize());
+            }
+        }
+    }
+
+    @Test
+    public void sameResultInAllThreadModes() {
+        JavaArray array = random(64, 28, 28, 16);
+        JavaArray wide = random(8, 100, 1000);
+
+        new JavaProvider(SINGLE_THREADED);
+        double[][] single = sums(array, wide);
+        new JavaProvider(MULTI_THREADED);
+        double[][] multi = sums(array, wide);
+
+        for (int i = 0; i < single.length; i++) {
+            assertArrayEquals(single[i], multi[i], 0.0);
+        }
+    }
+
+    @Test
+    public void sequentialSumAddsInSourceOrder() {
+        SumReduction.setSequential(true);
+        for (JavaArray array : new JavaArray[]{
+                random(32, 28, 28, 16),
+                random(5, 4, 3, 2000).transpose(3, 1, 2, 0)}) {
+            for (Boolean[] axes : AXES) {
+                assertArrayEquals(naiveSum(array, axes).getInternalData(),
+                        array.sum(axes, KEEP_DIM).getInternalData(), 0.0);
+            }
+        }
+    }
+
+    private static double[][] sums(JavaArray array, JavaArray wide) {
+        return new double[][]{
+                array.sum(new Boolean[]{true, true, true, false}, REMOVE_DIM).getInternalData(),
+                array.sum(new Boolean[]{false, true, true, true}, REMOVE_DIM).getInternalData(),
+                array.sum().getInternalData(),
+                wide.sum(new Boolean[]{true, false, false}, REMOVE_DIM).getInternalData(),
+        };
+    }
+
+    private static JavaArray naiveSum(JavaArray array, Boolean[] axes) {
+        int[] dims = array.shape.toDimArray();
+        int[] tgtDims = dims.clone();
+        for (int i = 0; i < dims.length; i++) {
+            if (axes[i]) {
+                tgtDims[i] = 1;
+            }
+        }
+        JavaShape tgtShape = new JavaShape(tgtDims);
+        double[] tgt = new double[tgtShape.size];
+        int[] indices = new int[dims.length];
+        int[] tgtIndices = new int[dims.length];
+        for (int n = 0; n < array.shape.size; n++) {
+            int rest = n;
+            for (int d = dims.length - 1; d >= 0; d--) {
+                indices[d] = rest % dims[d];
+                rest /= dims[d];
+                tgtIndices[d] = (axes[d] ? 0 : indices[d]);
+            }
+            tgt[tgtShape.calcDataIndex(tgtIndices)] += array.dataAt(indices);
+        }
+        return new JavaArray(tgt, tgtShape);
+    }
+}
@@ -0,0 +1,83 @@
+package com.codeberry.tadlib.provider.java;
+
+import com.codeberry.tadlib.array.NDArray;
+import org.junit.jupiter.api.Test;
+
+import static com.codeberry.tadlib.util.MatrixTestUtils.assertEqualsMatrix;
+import static com.codeberry.tadlib.util.MultiThreadingSupport.TaskRange.taskRange;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WinogradConv2dTest extends JavaArrayTestBase {
+    private static final double TOLERANCE = 1e-10;
+
+    @Test
+    public void onlyFor3x3Filters() {
+        assertTrue(WinogradConv2d.isSupported(new JavaShape(3, 3, 8, 16)));
+        assertFalse(WinogradConv2d.isSupported(new JavaShape(5, 5, 8, 16)));
+        assertFalse(WinogradConv2d.isSupported(new JavaShape(3, 1, 8, 16)));
+    }
+
+    @Test
+    public void sameAsDirect() {
+        JavaArray filter = random(3, 3, 6, 12);
+
+        assertSameAsDirect(random(2, 8, 8, 6), filter, -1, -1, 8, 8);
+        assertSameAsDirect(random(3, 7, 9, 6), filter, -1, -1, 7, 9);
+        assertSameAsDirect(random(1, 28, 28, 6), filter, -1, -1, 28, 28);
+    }
+
+    @Test
+    public void offsetAndOutputSize() {
+        JavaArray input = random(2, 9, 6, 4);
+        JavaArray filter = random(3, 3, 4, 16);
+
+        assertSameAsDirect(input, filter, 0, 0, 7, 4);
+        assertSameAsDirect(input, filter, -3, 2, 12, 3);
+        assertSameAsDirect(input, filter, 1, -1, 1, 1);
+    }
+
+    @Test
+    public void reorderedFilter() {
+        JavaArray filter = random(3, 3, 12, 6).transpose(0, 1, 3, 2);
+
+        assertSameAsDirect(random(2, 8, 8, 6), filter, -1, -1, 8, 8);
+    }
+
+    @Test
+    public void inputGradient() {
+        JavaArray filter = random(3, 3, 6, 12);
+        JavaArray grad = random(2, 7, 10, 12);
+
+        NDArray fRotated = filter.transpose(0, 1, 3, 2).normalOrderedCopy().rot180(0, 1);
+        JavaArray expected = direct(grad, (JavaArray) fRotated.normalOrderedCopy(), -1, -1, 7, 10);
+
+        assertEqualsMatrix(expected.toDoubles(), grad.calcConv2dInputGradient(filter).toDoubles(), TOLERANCE);
+    }
+
+    @Test
+    public void filterTransformIsCachedPerFilterInstance() {
+        JavaArray filter = random(3, 3, 6, 12);
+
+        assertSame(WinogradConv2d.transform(filter), WinogradConv2d.transform(filter));
+    }
+
+    private static void assertSameAsDirect(JavaArray input, JavaArray filter,
+                                           int offsetY, int offsetX, int outHeight, int outWidth) {
+        JavaArray expected = direct(input, filter.normalOrderedCopy(), offsetY, offsetX, outHeight, outWidth);
+        JavaArray actual = input.conv2d(filter, offsetY, offsetX, outHeight, outWidth);
+
+        assertEqualsMatrix(expected.toDoubles(), actual.toDoubles(), TOLERANCE);
+    }
+
+    private static JavaArray direct(JavaArray input, JavaArray filter,
+                                    int offsetY, int offsetX, int outHeight, int outWidth) {
+        JavaShape outShape = new JavaShape(input.shape.at(0), outHeight, outWidth, filter.shape.at(-1));
+        double[] out = Im2ColConv2d.conv2d(taskRange(0, input.shape.at(0)),
+                input.getInternalData(), input.shape, filter.getInternalData(), filter.shape,
+                offsetY, offsetX,
+                new double[outShape.size], outShape);
+        return new JavaArray(out, outShape);
+    }
+}
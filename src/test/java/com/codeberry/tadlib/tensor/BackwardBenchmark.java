@@ -0,0 +1,79 @@
+package com.codeberry.tadlib.tensor;
+
+import com.codeberry.tadlib.provider.ProviderStore;
+import com.codeberry.tadlib.provider.java.JavaProvider;
+
+import java.util.function.Supplier;
+
+import static com.codeberry.tadlib.provider.java.JavaProvider.ThreadMode.SINGLE_THREADED;
+import static com.codeberry.tadlib.tensor.ParentLink.parentLink;
+import static java.util.Arrays.asList;
+
+/**
+ * Times backward() on graphs of about 10k scalar nodes: a running sum of param * x terms. The params are created
+ * before the sum, so they all wait for their gradient while the sum is walked.
+ * <p>
+ * The "links" graph has the same shape but passes the gradient on unchanged, so it mostly times the ordering of
+ * the nodes.
+ * <p>
+ * Run the main method manually, it is not part of the test suite.
+ */
+public class BackwardBenchmark {
+    private static final int TERMS = 3_333;
+    private static final int WARMUP_ROUNDS = 10;
+    private static final int MEASURED_ROUNDS = 20;
+
+    public static void main(String[] args) {
+        ProviderStore.setProvider(new JavaProvider(SINGLE_THREADED));
+
+        run("ops", BackwardBenchmark::opsGraph);
+        run("links", BackwardBenchmark::linksGraph);
+    }
+
+    private static void run(String name, Supplier<Tensor> graph) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runBackward(graph.get());
+        }
+        long nanos = 0;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            nanos += runBackward(graph.get());
+        }
+        System.out.printf("backward %-5s, %d nodes %8.3fms%n", name, TERMS * 3 + 1, nanos / 1e6 / MEASURED_ROUNDS);
+    }
+
+    private static Tensor opsGraph() {
+        Tensor x = new Tensor(1.0);
+        Tensor[] params = params();
+        Tensor sum = Tensor.constant(0.0);
+        for (Tensor param : params) {
+            sum = Ops.add(sum, Ops.mul(param, x));
+        }
+        return sum;
+    }
+
+    private static Tensor linksGraph() {
+        Tensor x = new Tensor(1.0);
+        Tensor[] params = params();
+        GradFunc passOn = gradient -> gradient;
+        Tensor sum = Tensor.constant(0.0);
+        for (Tensor param : params) {
+            Tensor term = new Tensor(x.getVals(), asList(parentLink(param, passOn), parentLink(x, passOn)));
+            sum = new Tensor(x.getVals(), asList(parentLink(sum, passOn), parentLink(term, passOn)));
+        }
+        return sum;
+    }
+
+    private static Tensor[] params() {
+        Tensor[] params = new Tensor[TERMS];
+        for (int i = 0; i < TERMS; i++) {
+            params[i] = new Tensor(i);
+        }
+        return params;
+    }
+
+    private static long runBackward(Tensor sum) {
+        long start = System.nanoTime();
+        sum.backward();
+        return System.nanoTime() - start;
+    }
+}
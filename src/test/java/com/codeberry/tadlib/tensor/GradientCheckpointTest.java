@@ -0,0 +1,178 @@
+package com.codeberry.tadlib.tensor;
+
+import com.codeberry.tadlib.array.NDArray;
+import com.codeberry.tadlib.example.TrainingData;
+import com.codeberry.tadlib.memorymanagement.DisposalRegister.Disposable;
+import com.codeberry.tadlib.nn.model.Model;
+import com.codeberry.tadlib.nn.model.SequentialModel;
+import com.codeberry.tadlib.nn.model.layer.DenseLayer;
+import com.codeberry.tadlib.nn.model.layer.LayerBuilder;
+import com.codeberry.tadlib.provider.ProviderStore;
+import com.codeberry.tadlib.provider.java.JavaBufferPool;
+import com.codeberry.tadlib.provider.java.JavaProvider;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import static com.codeberry.tadlib.provider.ProviderStore.shape;
+import static com.codeberry.tadlib.example.mnist.MNISTLoader.generate;
+import static com.codeberry.tadlib.memorymanagement.DisposalRegister.modelIteration;
+import static com.codeberry.tadlib.nn.model.SequentialModel.Factory.Builder.cfgBuilder;
+import static com.codeberry.tadlib.nn.model.layer.BatchNormLayer.Builder.batchNorm;
+import static com.codeberry.tadlib.nn.model.layer.Conv2dLayer.Builder.conv2d;
+import static com.codeberry.tadlib.nn.model.layer.DenseLayer.Builder.dense;
+import static com.codeberry.tadlib.nn.model.layer.Conv2dLayer.BiasParam.USE_BIAS;
+import static com.codeberry.tadlib.nn.model.layer.DropOutLayer.Builder.dropout;
+import static com.codeberry.tadlib.nn.model.layer.FlattenLayer.Builder.flatten;
+import static com.codeberry.tadlib.nn.model.layer.MaxPool2dLayer.Builder.maxPool2d;
+import static com.codeberry.tadlib.nn.model.layer.ReluLayer.Builder.relu;
+import static com.codeberry.tadlib.util.MatrixTestUtils.assertEqualsMatrix;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GradientCheckpointTest {
+    private TrainingData data;
+
+    @BeforeEach
+    public void init() {
+        ProviderStore.setProvider(new JavaProvider());
+        data = generate(new Random(4), 8);
+    }
+
+    @Test
+    public void sameGradientsAsWithoutCheckpoints() {
+        Model plain = createModel(0).createModel();
+        Model.PredictionAndLosses expected = plain.calcGradient(new Random(3), data.getTrainingBatchAll(), new Model.IterationInfo(0, 0, 1));
+
+        for (int checkpointEvery : new int[]{1, 3, 4, 100}) {
+            Model checkpointed = createModel(checkpointEvery).createModel();
+            Model.PredictionAndLosses actual = checkpointed.calcGradient(new Random(3), data.getTrainingBatchAll(), new Model.IterationInfo(0, 0, 1));
+
+            assertEquals((double) expected.totalLoss.toDoubles(), (double) actual.totalLoss.toDoubles(), 1e-9);
+            assertEqualGradients(plain.getGradients(), checkpointed.getGradients());
+        }
+    }
+
+    @Test
+    public void recomputedSegmentMakesTheSameRandomChoices() {
+        // a single segment draws its Random seed from the given Random
+        long segmentSeed = new Random(3).nextLong();
+
+        Model plain = createModel(0, dropout().dropoutKeep(0.5)).createModel();
+        Model.PredictionAndLosses expected = plain.calcGradient(new Random(segmentSeed), data.getTrainingBatchAll(), new Model.IterationInfo(0, 0, 1));
+
+        Model checkpointed = createModel(100, dropout().dropoutKeep(0.5)).createModel();
+        Model.PredictionAndLosses actual = checkpointed.calcGradient(new Random(3), data.getTrainingBatchAll(), new Model.IterationInfo(0, 0, 1));
+
+        assertEquals((double) expected.totalLoss.toDoubles(), (double) actual.totalLoss.toDoubles(), 1e-9);
+        assertEqualGradients(plain.getGradients(), checkpointed.getGradients());
+    }
+
+    @Test
+    public void checkpointsLowerPeakPoolUsage() {
+        TrainingData batch = generate(new Random(4), 64);
+        Model plain = createDenseStack(0).createModel();
+        long plainPeak = peakPooledDoubles(plain, batch);
+
+        Model checkpointed = createDenseStack(4).createModel();
+        long checkpointedPeak = peakPooledDoubles(checkpointed, batch);
+
+        assertTrue(checkpointedPeak < plainPeak * 3 / 4, checkpointedPeak + " vs " + plainPeak);
+        assertEqualGradients(plain.getGradients(), checkpointed.getGradients());
+    }
+
+    @Test
+    public void derivedParamOnlyUsedByACheckpoint() {
+        Tensor weights = new Tensor(new double[]{1, 2, 3});
+        // not a leaf, and its only consumer is the param link of the checkpoint, which passes no gradient
+        Tensor scaled = Ops.mul(weights, Tensor.constant(2));
+        Tensor input = new Tensor(new double[]{4, 5, 6});
+        Function<Tensor, Tensor> part = in -> Ops.mul(in, scaled);
+
+        Tensor output = Ops.checkpoint(input, Tensor.noGrad(() -> part.apply(input)), part, List.of(scaled));
+        modelIteration(() -> {
+            Ops.sum(output).backward();
+            return List.of(weights.getGradient(), input.getGradient());
+        });
+
+        assertEqualsMatrix(new double[]{8, 10, 12}, weights.getGradient().toDoubles());
+        assertEqualsMatrix(new double[]{2, 4, 6}, input.getGradient().toDoubles());
+    }
+
+    /**
+     * Poison mode fails when a disposed activation is written to again.
+     */
+    private static long peakPooledDoubles(Model model, TrainingData batch) {
+        JavaBufferPool.setMode(JavaBufferPool.Mode.POISON);
+        JavaBufferPool.resetStats();
+        // buffers still held by earlier models
+        long usedBefore = JavaBufferPool.getStats().peakUsedDoubles;
+        try {
+            modelIteration(() -> {
+                model.calcGradient(new Random(3), batch.getTrainingBatchAll(), new Model.IterationInfo(0, 0, 1));
+
+                List<Disposable> keep = new ArrayList<>(model.getKeepInMemoryDisposables());
+                keep.addAll(model.getGradients());
+                return keep;
+            });
+            return JavaBufferPool.getStats().peakUsedDoubles - usedBefore;
+        } finally {
+            JavaBufferPool.setMode(JavaBufferPool.Mode.OFF);
+        }
+    }
+
+    private static SequentialModel.Factory createModel(int checkpointEvery) {
+        return createModel(checkpointEvery, relu());
+    }
+
+    private static SequentialModel.Factory createModel(int checkpointEvery, LayerBuilder beforeOutput) {
+        return cfgBuilder()
+                .inputShape(shape(-1, 28, 28, 1))
+                .layerBuilders(
+                        batchNorm(),
+                        conv2d().biasParam(USE_BIAS).l2Lambda(0.01).filters(2).kernelSize(3),
+                        maxPool2d().size(2),
+                        relu().leakyScale(0.01),
+                        conv2d().biasParam(USE_BIAS).filters(3).kernelSize(3),
+                        maxPool2d().size(2),
+                        batchNorm(),
+                        relu().leakyScale(0.01),
+                        flatten(),
+                        dense().biasParam(DenseLayer.BiasParam.USE_BIAS).units(6),
+                        beforeOutput,
+                        dense().biasParam(DenseLayer.BiasParam.USE_BIAS).l2Lambda(0.01).units(10)
+                )
+                .weightInitRandomSeed(4)
+                .checkpointEvery(checkpointEvery)
+                .build();
+    }
+
+    private static SequentialModel.Factory createDenseStack(int checkpointEvery) {
+        LayerBuilder[] layers = new LayerBuilder[2 + 2 * 16 + 1];
+        layers[0] = flatten();
+        layers[1] = dense().biasParam(DenseLayer.BiasParam.USE_BIAS).units(16);
+        for (int i = 0; i < 16; i++) {
+            layers[2 + 2 * i] = dense().biasParam(DenseLayer.BiasParam.USE_BIAS).units(16);
+            layers[3 + 2 * i] = relu().leakyScale(0.01);
+        }
+        layers[layers.length - 1] = dense().biasParam(DenseLayer.BiasParam.USE_BIAS).units(10);
+
+        return cfgBuilder()
+                .inputShape(shape(-1, 28, 28, 1))
+                .layerBuilders(layers)
+                .weightInitRandomSeed(4)
+                .checkpointEvery(checkpointEvery)
+                .build();
+    }
+
+    private static void assertEqualGradients(List<NDArray> expected, List<NDArray> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEqualsMatrix(expected.get(i).toDoubles(), actual.get(i).toDoubles());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.codeberry.tadlib.tensor;
+
+import com.codeberry.tadlib.provider.ProviderStore;
+import com.codeberry.tadlib.provider.java.JavaProvider;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static com.codeberry.tadlib.memorymanagement.DisposalRegister.modelIteration;
+import static com.codeberry.tadlib.tensor.Tensor.GradientMode.NONE;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TensorBackwardTest {
+    @BeforeEach
+    public void init() {
+        ProviderStore.setProvider(new JavaProvider());
+    }
+
+    @Test
+    public void sharedNodesPassOnTheirFullGradient() {
+        Tensor a = new Tensor(3.0);
+        Tensor b = new Tensor(5.0);
+        Tensor y = Ops.mul(a, b);
+        // z = y^2 + y*a + y
+        Tensor z = Ops.add(Ops.add(Ops.mul(y, y), Ops.mul(y, a)), y);
+
+        z.backward();
+
+        double dzdy = 2 * 15 + 3 + 1;
+        assertEquals(dzdy, (double) y.getGradient().toDoubles(), 1e-12);
+        assertEquals(dzdy * 5 + 15, (double) a.getGradient().toDoubles(), 1e-12);
+        assertEquals(dzdy * 3, (double) b.getGradient().toDoubles(), 1e-12);
+    }
+
+    @Test
+    public void constantsGetNoGradient() {
+        Tensor a = new Tensor(2.0);
+        Tensor c = new Tensor(7.0, NONE);
+        Tensor z = Ops.mul(Ops.add(a, c), c);
+
+        z.backward();
+
+        assertEquals(7.0, (double) a.getGradient().toDoubles(), 1e-12);
+        assertNull(c.getGradient());
+    }
+
+    @Test
+    public void severalBackwardsInOneModelIteration() {
+        Tensor a = new Tensor(3.0);
+        Tensor c = new Tensor(2.0, NONE);
+
+        modelIteration(() -> {
+            Ops.mul(a, c).backward();
+            // a already has a gradient, from before this backward()
+            Ops.mul(Ops.mul(a, c), c).backward();
+            return singletonList(a.getGradient());
+        });
+
+        assertEquals(2.0 + 4.0, (double) a.getGradient().toDoubles(), 1e-12);
+    }
+
+    @Test
+    public void noGradOpsAreConstants() {
+        Tensor a = new Tensor(3.0);
+        Tensor b = new Tensor(5.0);
+
+        Tensor y = Tensor.noGrad(() -> {
+            assertTrue(Tensor.isNoGrad());
+            return Ops.add(Ops.mul(a, b), a);
+        });
+        assertFalse(Tensor.isNoGrad());
+        assertEquals(18.0, (double) y.toDoubles(), 1e-12);
+
+        y.backward();
+        assertNull(a.getGradient());
+        assertNull(b.getGradient());
+
+        Ops.mul(y, a).backward();
+        assertEquals(18.0, (double) a.getGradient().toDoubles(), 1e-12);
+        assertNull(b.getGradient());
+    }
+
+    @Test
+    public void deepGraph() {
+        Tensor x = new Tensor(1.0);
+        Tensor sum = x;
+        for (int i = 0; i < 50_000; i++) {
+            sum = Ops.add(sum, x);
+        }
+
+        sum.backward();
+
+        assertEquals(50_001, (double) x.getGradient().toDoubles(), 1e-12);
+    }
+}
@@ -1,10 +1,12 @@
 package com.codeberry.tadlib.tensor;
 
 import com.codeberry.tadlib.array.NDArray;
+import com.codeberry.tadlib.array.util.SoftmaxUtils;
 import com.codeberry.tadlib.provider.ProviderStore;
 import com.codeberry.tadlib.provider.java.JavaProvider;
 import com.codeberry.tadlib.provider.opencl.OpenCLProvider;
 import com.codeberry.tadlib.util.MatrixTestUtils;
+import com.codeberry.tadlib.util.TrainingDataUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -172,4 +174,45 @@ public class TensorSoftmaxTest {
         assertEqualsMatrix(expectedGrad.toDoubles(), input.getGradient().toDoubles());
 
     }
+
+    @Test
+    public void sparseSoftmaxCrossEntropyMatchesOneHot() {
+        Tensor labels = new Tensor(array(new double[][]{{1}, {0}, {3}}));
+        NDArray logits = array(new double[]{
+                0.234, 2.73, -5.3, 2,
+                2.92, 0.2, 4.5, -3.1,
+                -1.5, 0.7, 1.2, 1.1
+        }).reshape(3, 4);
+
+        Tensor oneHotInput = new Tensor(logits);
+        Tensor oneHotCost = Ops.sumSoftmaxCrossEntropy(TrainingDataUtils.toOneHot(labels, 4), oneHotInput);
+        oneHotCost.backward(array(0.85));
+
+        Tensor input = new Tensor(logits);
+        Tensor cost = Ops.sumSoftmaxCrossEntropy(TrainingDataUtils.toClassIndices(labels), input);
+        cost.backward(array(0.85));
+
+        Assertions.assertEquals((double) oneHotCost.getVals().toDoubles(), (double) cost.getVals().toDoubles(), 0.00001);
+        assertEqualsMatrix(oneHotInput.getGradient().toDoubles(), input.getGradient().toDoubles());
+    }
+
+    @Test
+    public void sparseSoftmaxCrossEntropyLossIsClippedLikeOneHot() {
+        Tensor labels = new Tensor(array(new double[][]{{0}, {2}, {1}}));
+        NDArray logits = array(new double[]{
+                -40, 40, 0,
+                0.5, -0.3, 60,
+                1.5, 0.2, -2.1
+        }).reshape(3, 3);
+
+        NDArray.SoftmaxCrossEntropyResult fused = logits.softmaxCrossEntropy(TrainingDataUtils.toClassIndices(labels));
+        NDArray.SoftmaxCrossEntropyResult generic = SoftmaxUtils.calcSparseSoftmaxCrossEntropy(logits,
+                TrainingDataUtils.toClassIndices(labels));
+        Tensor oneHotCost = Ops.sumSoftmaxCrossEntropy(TrainingDataUtils.toOneHot(labels, 3), new Tensor(logits));
+
+        double expected = -Math.log(Ops.EPSILON) - Math.log(1.0 - Ops.EPSILON) + 1.56225312;
+        Assertions.assertEquals(expected, (double) fused.getLoss().toDoubles(), 0.000001);
+        Assertions.assertEquals(expected, (double) generic.getLoss().toDoubles(), 0.000001);
+        Assertions.assertEquals(expected, (double) oneHotCost.getVals().toDoubles(), 0.000001);
+    }
 }
@@ -0,0 +1,83 @@
+package com.codeberry.tadlib.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static com.codeberry.tadlib.util.MultiThreadingSupport.TaskRange.taskRange;
+import static com.codeberry.tadlib.util.MultiThreadingSupport.multiThreadingSupportRun;
+import static com.codeberry.tadlib.util.TaskCost.ofDoubles;
+import static com.codeberry.tadlib.util.TaskCost.taskCost;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MultiThreadingSupportTest {
+    private long overhead;
+
+    @BeforeEach
+    public void init() {
+        overhead = MultiThreadingSupport.getTaskOverheadNanos();
+        MultiThreadingSupport.setTaskOverheadNanos(10_000);
+        MultiThreadingSupport.enableMultiThreading(4);
+        MultiThreadingSupport.setCollectSplitStats(true);
+        MultiThreadingSupport.resetSplitStats();
+    }
+
+    @AfterEach
+    public void restore() {
+        MultiThreadingSupport.setTaskOverheadNanos(overhead);
+        MultiThreadingSupport.disableMultiThreading();
+        MultiThreadingSupport.setCollectSplitStats(false);
+    }
+
+    @Test
+    public void cheapWorkRunsOnTheCallingThread() {
+        long sum = sumOfIndices(taskRange(0, 1000, ofDoubles("cheap", 1, 2)));
+
+        assertEquals(999 * 1000 / 2, sum);
+        MultiThreadingSupport.SplitStats stats = MultiThreadingSupport.getSplitStats().get("cheap");
+        assertEquals(1, stats.runs);
+        assertEquals(0, stats.splitRuns);
+        assertEquals(1, stats.tasks);
+        assertEquals(1000, stats.indices);
+    }
+
+    @Test
+    public void splitStatsAreOnlyCollectedWhenAskedFor() {
+        MultiThreadingSupport.setCollectSplitStats(false);
+        sumOfIndices(taskRange(0, 1000, ofDoubles("uncounted", 1, 2)));
+
+        assertFalse(MultiThreadingSupport.getSplitStats().containsKey("uncounted"));
+    }
+
+    @Test
+    public void expensiveWorkIsSplitUpToTheTaskLimit() {
+        long sum = sumOfIndices(taskRange(0, 1000, taskCost("expensive", 1e6, 0)));
+
+        assertEquals(999 * 1000 / 2, sum);
+        MultiThreadingSupport.SplitStats stats = MultiThreadingSupport.getSplitStats().get("expensive");
+        assertEquals(1, stats.splitRuns);
+        assertEquals(16, stats.tasks);
+    }
+
+    @Test
+    public void minLengthFollowsTheCost() {
+        int cheap = MultiThreadingSupport.minLengthFor(ofDoubles("a", 1, 2), 10_000);
+        int costly = MultiThreadingSupport.minLengthFor(ofDoubles("b", 1000, 2), 10_000);
+        assertTrue(costly < cheap);
+
+        MultiThreadingSupport.disableMultiThreading();
+        assertEquals(1_000_000, MultiThreadingSupport.minLengthFor(ofDoubles("b", 100, 2), 1_000_000));
+    }
+
+    private static long sumOfIndices(MultiThreadingSupport.TaskRange range) {
+        return multiThreadingSupportRun(range, r -> {
+            long sum = 0;
+            for (int i = r.start; i < r.end; i++) {
+                sum += i;
+            }
+            return sum;
+        }, Long::sum);
+    }
+}